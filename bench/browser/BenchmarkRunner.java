@@ -0,0 +1,211 @@
+package browser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Класс BenchmarkRunner - минимальная среда для микробенчмарков в стиле JMH: прогревочные и измерительные
+ * итерации фиксированной длительности, поглощение результатов (consume), среднее время операции
+ * с доверительным интервалом 99.9% и вывод результатов в JSON в формате, близком к JMH
+ * (benchmark, params, primaryMetric.score/scoreError/rawData), чтобы результаты разных коммитов можно было сравнивать.
+ * <p>
+ * Параметры командной строки: -o файл.json, -wi число прогревочных итераций, -i число измерительных итераций,
+ * -t длительность итерации в мс, -f регулярное выражение для отбора бенчмарков по имени
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * Поглотитель результатов: не даёт JIT-компилятору удалить вычисления как неиспользуемые
+     */
+    private static volatile Object sink;
+
+    private final List<Result> results = new ArrayList<>();
+
+    private int warmupIterations = 3;
+
+    private int measurementIterations = 5;
+
+    private long iterationMillis = 1_000;
+
+    private Pattern filter = Pattern.compile(".*");
+
+    private Path output = Path.of("bench-results.json");
+
+    /**
+     * Операция бенчмарка. Возвращаемое значение поглощается
+     */
+    public interface Operation {
+        Object run() throws Exception;
+    }
+
+    public BenchmarkRunner(String[] args) {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-o" -> output = Path.of(args[i + 1]);
+                case "-wi" -> warmupIterations = Integer.parseInt(args[i + 1]);
+                case "-i" -> measurementIterations = Integer.parseInt(args[i + 1]);
+                case "-t" -> iterationMillis = Long.parseLong(args[i + 1]);
+                case "-f" -> filter = Pattern.compile(args[i + 1]);
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    public static void consume(Object value) {
+        sink = value;
+    }
+
+    /**
+     * Измерение среднего времени операции. params - параметры бенчмарка для отчёта (например, размер корпуса)
+     */
+    public Result run(String name, Map<String, ?> params, Operation operation) throws Exception {
+        return run(name, params, 0, null, operation);
+    }
+
+    /**
+     * Измерение среднего времени операции с дополнительной метрикой пропускной способности:
+     * unitsPerOperation единиц (например, мегабайт) за операцию пересчитываются в единицы в секунду
+     */
+    public Result run(String name, Map<String, ?> params, double unitsPerOperation, String unit, Operation operation)
+            throws Exception {
+        if (!filter.matcher(name).find()) {
+            return null;
+        }
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(operation);
+        }
+        double[] raw = new double[measurementIterations];
+        for (int i = 0; i < measurementIterations; i++) {
+            raw[i] = iteration(operation);
+        }
+        Result result = new Result(name, params, raw);
+        if (unit != null) {
+            result.secondary.put(unit + "/s", unitsPerOperation / (result.getScore() / 1e9));
+        }
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Одна итерация: операция выполняется пачками, пока не истечёт время итерации. Возвращает нс на операцию
+     */
+    private double iteration(Operation operation) throws Exception {
+        long deadline = System.nanoTime() + iterationMillis * 1_000_000;
+        long operations = 0;
+        int batch = 1;
+        long start = System.nanoTime();
+        long now;
+        do {
+            for (int i = 0; i < batch; i++) {
+                sink = operation.run();
+            }
+            operations += batch;
+            now = System.nanoTime();
+            if (batch < 1 << 20 && now - start < (deadline - start) / 100) {
+                batch <<= 1;
+            }
+        } while (now < deadline);
+        return (double) (now - start) / operations;
+    }
+
+    /**
+     * Запись результатов в JSON-файл
+     */
+    public void writeJson() throws IOException {
+        StringBuilder json = new StringBuilder("[\n");
+        for (int i = 0; i < results.size(); i++) {
+            json.append(results.get(i).toJson()).append(i + 1 < results.size() ? ",\n" : "\n");
+        }
+        json.append("]\n");
+        Files.writeString(output, json.toString(), StandardCharsets.UTF_8);
+        System.out.println("Results written to " + output.toAbsolutePath());
+    }
+
+    /**
+     * Результат бенчмарка: время операции и, если задана, пропускная способность
+     */
+    public static final class Result {
+
+        private final String name;
+        private final Map<String, ?> params;
+        private final double[] raw;
+        private final Map<String, Double> secondary = new LinkedHashMap<>();
+
+        Result(String name, Map<String, ?> params, double[] raw) {
+            this.name = name;
+            this.params = params;
+            this.raw = raw;
+        }
+
+        public double getScore() {
+            double sum = 0;
+            for (double value : raw) {
+                sum += value;
+            }
+            return sum / raw.length;
+        }
+
+        /**
+         * Половина доверительного интервала 99.9% (приближение нормальным распределением)
+         */
+        public double getError() {
+            if (raw.length < 2) {
+                return Double.NaN;
+            }
+            double mean = getScore();
+            double squares = 0;
+            for (double value : raw) {
+                squares += (value - mean) * (value - mean);
+            }
+            return 3.29 * Math.sqrt(squares / (raw.length - 1)) / Math.sqrt(raw.length);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder(String.format("%-40s %-24s %14.1f +- %10.1f ns/op",
+                    name, params.isEmpty() ? "" : params.toString(), getScore(), getError()));
+            secondary.forEach((unit, value) -> text.append(String.format("  %.1f %s", value, unit)));
+            return text.toString();
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder("  {\"benchmark\": \"").append(escape(name)).append("\", \"mode\": \"avgt\", \"params\": {");
+            int i = 0;
+            for (Map.Entry<String, ?> param : params.entrySet()) {
+                json.append(i++ > 0 ? ", " : "").append('"').append(escape(param.getKey())).append("\": \"")
+                        .append(escape(String.valueOf(param.getValue()))).append('"');
+            }
+            json.append("}, \"primaryMetric\": {\"score\": ").append(number(getScore()))
+                    .append(", \"scoreError\": ").append(number(getError()))
+                    .append(", \"scoreUnit\": \"ns/op\", \"rawData\": [");
+            for (int j = 0; j < raw.length; j++) {
+                json.append(j > 0 ? ", " : "").append(number(raw[j]));
+            }
+            json.append("]}, \"secondaryMetrics\": {");
+            i = 0;
+            for (Map.Entry<String, Double> metric : secondary.entrySet()) {
+                json.append(i++ > 0 ? ", " : "").append('"').append(escape(metric.getKey())).append("\": {\"score\": ")
+                        .append(number(metric.getValue())).append('}');
+            }
+            return json.append("}}").toString();
+        }
+
+        private static String number(double value) {
+            return Double.isFinite(value) ? String.valueOf(value) : "\"NaN\"";
+        }
+
+        private static String escape(String value) {
+            return value.replace("\\", "\\\\").replace("\"", "\\\"");
+        }
+
+    }
+
+}
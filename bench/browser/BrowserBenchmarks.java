@@ -0,0 +1,513 @@
+package browser;
+
+import com.sun.net.httpserver.HttpServer;
+import net.sf.image4j.codec.ico.ICOEncoder;
+import org.apache.commons.validator.routines.UrlValidator;
+
+import javafx.geometry.Rectangle2D;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+
+/**
+ * Бенчмарки горячих путей браузера, не связанных с интерфейсом: подсказки адресной строки,
+ * разбор и классификация адресов, распознавание файлов для скачивания, скорость загрузки, декодирование фавиконок,
+ * HTTP-кэш, история посещений, полнотекстовый поиск, фильтр рекламы
+ * и поиск места вставки перетаскиваемой вкладки.
+ * <p>
+ * Запуск: java -cp out:lib/* browser.BrowserBenchmarks [-o bench-results.json] [-f регулярное выражение]
+ */
+public class BrowserBenchmarks {
+
+    private static final String[] WORDS = {"news", "mail", "shop", "cloud", "video", "music", "travel", "bank", "game",
+            "photo", "weather", "sport", "blog", "wiki", "code", "docs", "maps", "food", "auto", "health"};
+
+    private static final String[] DOMAINS = {".com", ".org", ".net", ".ru", ".de", ".co.uk", ".io", ".jp", ".fr", ".edu"};
+
+    public static void main(String[] args) throws Exception {
+        //Кэш и другие данные браузера не должны смешиваться с данными пользователя
+        if (System.getProperty("jwebbrowser.home") == null) {
+            System.setProperty("jwebbrowser.home", Files.createTempDirectory("jwebbrowser-bench-home").toString());
+        }
+        BenchmarkRunner runner = new BenchmarkRunner(args);
+        suggestions(runner);
+        addresses(runner);
+        downloadableExtensions(runner);
+        downloadThroughput(runner);
+        favicons(runner);
+        httpCache(runner);
+        history(runner);
+        pageSearch(runner);
+        contentFilter(runner);
+        tabDrop(runner);
+        runner.writeJson();
+        System.exit(0);
+    }
+
+    /**
+     * Подсказки адресной строки на корпусах разного размера: индекс AutocompleteIndex
+     * и прежний линейный перебор всех адресов с contains
+     */
+    private static void suggestions(BenchmarkRunner runner) throws Exception {
+        String[] inputs = {"a", "ama", "https://www.go", "news", "shop4", "cloud12.n", "eather", "zzz"};
+        for (int size : new int[]{1_000, 10_000, 100_000}) {
+            List<String> corpus = generateUrls(size, 42);
+            AutocompleteIndex index = new AutocompleteIndex();
+            index.addAll(corpus);
+            TreeSet<String> proposals = new TreeSet<>(corpus);
+
+            int[] next = {0};
+            runner.run("suggestions.index", Map.of("corpus", size), () -> index.query(inputs[next[0]++ & 7], 15));
+            runner.run("suggestions.linearScan", Map.of("corpus", size), () -> {
+                String text = inputs[next[0]++ & 7];
+                return proposals.stream().filter(string -> string.toLowerCase().contains(text.toLowerCase())).limit(15).toList();
+            });
+        }
+    }
+
+    /**
+     * Разбор и классификация введённых в адресную строку значений
+     */
+    private static void addresses(BenchmarkRunner runner) throws Exception {
+        String[] inputs = {"https://www.google.com/search?q=java", "github.com/openjdk/jfx", "localhost:8080",
+                "how to cook pasta", "192.168.0.1", "file:///tmp/index.html", "mirea.ru", "ftp://ftp.example.org/pub"};
+        String[] urls = {"https://www.google.com/search?q=java", "http://github.com/openjdk/jfx", "https://mirea.ru/",
+                "ftp://ftp.example.org/pub", "http://192.168.0.1:8080/admin", "https://en.wikipedia.org/wiki/Java"};
+        int[] next = {0};
+        runner.run("address.toURL", Map.of(), () -> BrowserTab.toURL(inputs[next[0]++ & 7]));
+        runner.run("address.getHostName", Map.of(), () -> BrowserTab.getHostName(urls[next[0]++ % urls.length]));
+        runner.run("address.resolveUrlValidator", Map.of(), () -> resolveWithUrlValidator(inputs[next[0]++ & 7]));
+        runner.run("address.resolveOmnibox", Map.of(), () -> OmniboxClassifier.toAddress(inputs[next[0]++ & 7]));
+        runner.run("address.classifyOmnibox", Map.of(), () -> OmniboxClassifier.classify(inputs[next[0]++ & 7]));
+    }
+
+    /**
+     * Прежний способ разбора адреса в BrowserTab: новый UrlValidator на каждое нажатие Enter и до двух вызовов new URL
+     */
+    private static String resolveWithUrlValidator(String url) {
+        String tmp = BrowserTab.toURL(url);
+        UrlValidator urlValidator = new UrlValidator(new String[]{"http", "https", "ftp"});
+        if (tmp == null) {
+            tmp = BrowserTab.toURL("http://" + url);
+        }
+        if (urlValidator.isValid(tmp)) {
+            return tmp;
+        }
+        return "https://google.com/search?q=" + url;
+    }
+
+    /**
+     * Прежний список расширений файлов для скачивания из BrowserTab
+     */
+    private static final String[] DOWNLOADABLE_EXTENSIONS = {".doc", ".xls", ".zip", ".tgz", ".jar", ".mp3", ".txt", ".mp4", ".exe",
+            ".msi", ".pdf", ".docx", ".css", ".js", ".psd", ".svg", ".jpg", ".png", ".bmp", ".gif",
+            ".dmg", ".bat", ".dll", ".xml", ".xlsx", ".rar", ".7z", ".htm", ".avi", ".torrent", ".bin", ".iso",
+            ".ini", ".midi", ".ppt", ".pptx", ".wav", ".sai"};
+
+    /**
+     * Распознавание адресов файлов для скачивания по расширению: прежний перебор endsWith и DownloadDetector
+     */
+    private static void downloadableExtensions(BenchmarkRunner runner) throws Exception {
+        List<String> generated = generateUrls(1_024, 7);
+        String[] locations = new String[generated.size()];
+        Random random = new Random(7);
+        for (int i = 0; i < locations.length; i++) {
+            //Четверть адресов указывает на файлы
+            locations[i] = generated.get(i) + (random.nextInt(4) == 0
+                    ? "/files/archive" + DOWNLOADABLE_EXTENSIONS[random.nextInt(DOWNLOADABLE_EXTENSIONS.length)]
+                    : "/page/" + i);
+        }
+        int[] next = {0};
+        runner.run("download.extensionScan", Map.of(), () -> {
+            String location = locations[next[0]++ & 1023];
+            for (String ext : DOWNLOADABLE_EXTENSIONS) {
+                if (location.endsWith(ext)) {
+                    return ext;
+                }
+            }
+            return null;
+        });
+        runner.run("download.extensionLookup", Map.of(), () -> DownloadDetector.isDownloadableExtension(locations[next[0]++ & 1023]));
+    }
+
+    /**
+     * Скорость загрузки файла с локального HTTP-сервера через DownloadManager (одним потоком и по частям)
+     */
+    private static void downloadThroughput(BenchmarkRunner runner) throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        Path directory = Files.createTempDirectory("jwebbrowser-bench");
+        try {
+            for (int megabytes : new int[]{8, 64}) {
+                byte[] data = new byte[megabytes * 1024 * 1024];
+                new Random(megabytes).nextBytes(data);
+                String path = "/file" + megabytes + ".bin";
+                server.createContext(path, exchange -> {
+                    exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                    exchange.getResponseHeaders().add("ETag", "\"" + megabytes + "\"");
+                    if (exchange.getRequestMethod().equals("HEAD")) {
+                        exchange.getResponseHeaders().add("Content-Length", String.valueOf(data.length));
+                        exchange.sendResponseHeaders(200, -1);
+                        exchange.close();
+                        return;
+                    }
+                    int first = 0;
+                    int last = data.length - 1;
+                    String range = exchange.getRequestHeaders().getFirst("Range");
+                    if (range != null) {
+                        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                        first = Integer.parseInt(bounds[0]);
+                        last = bounds[1].isEmpty() ? last : Integer.parseInt(bounds[1]);
+                    }
+                    exchange.sendResponseHeaders(range != null ? 206 : 200, last - first + 1);
+                    try (OutputStream body = exchange.getResponseBody()) {
+                        body.write(data, first, last - first + 1);
+                    }
+                });
+            }
+            server.start();
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+            for (int megabytes : new int[]{8, 64}) {
+                Path target = directory.resolve("file" + megabytes + ".bin");
+                runner.run("download.copy", Map.of("megabytes", megabytes), megabytes, "MB", () -> {
+                    Download download = DownloadManager.start(base + "/file" + megabytes + ".bin", target);
+                    while (download.isActive() || download.getState() == Download.State.QUEUED) {
+                        Thread.sleep(1);
+                    }
+                    if (download.getState() != Download.State.COMPLETED) {
+                        throw new IllegalStateException("Download failed: " + download.getError());
+                    }
+                    DownloadManager.getDownloads().remove(download);
+                    return download;
+                });
+            }
+        } finally {
+            server.stop(0);
+            try (var files = Files.list(directory)) {
+                for (Path file : files.toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+    }
+
+    /**
+     * Декодирование фавиконок: ICO с несколькими размерами через ICODecoder и PNG через ImageIO
+     */
+    private static void favicons(BenchmarkRunner runner) throws Exception {
+        List<BufferedImage> images = new ArrayList<>();
+        for (int size : new int[]{16, 32, 48}) {
+            images.add(createIcon(size));
+        }
+        ByteArrayOutputStream ico = new ByteArrayOutputStream();
+        ICOEncoder.write(images, ico);
+        byte[] icoData = ico.toByteArray();
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(createIcon(32), "png", png);
+        byte[] pngData = png.toByteArray();
+
+        runner.run("favicon.decodeIco", Map.of("sizes", "16,32,48"), () -> FaviconService.decode(icoData));
+        runner.run("favicon.decodePng", Map.of("sizes", "32"), () -> FaviconService.decode(pngData));
+    }
+
+    /**
+     * Загрузка ресурса 64 КБ с локального HTTP-сервера через HttpCache: свежий ответ с диска,
+     * подтверждение ответом 304 и ответ, который нельзя кэшировать (каждый раз из сети)
+     */
+    private static void httpCache(BenchmarkRunner runner) throws Exception {
+        byte[] data = new byte[64 * 1024];
+        new Random(64).nextBytes(data);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            exchange.getResponseHeaders().add("Cache-Control", path.equals("/fresh") ? "max-age=3600"
+                    : path.equals("/revalidate") ? "no-cache" : "no-store");
+            exchange.getResponseHeaders().add("ETag", "\"1\"");
+            if ("\"1\"".equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                exchange.sendResponseHeaders(304, -1);
+                exchange.close();
+                return;
+            }
+            exchange.sendResponseHeaders(200, data.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(data);
+            }
+        });
+        server.start();
+        try {
+            String base = "http://127.0.0.1:" + server.getAddress().getPort();
+            for (String path : new String[]{"/fresh", "/revalidate", "/network"}) {
+                runner.run("cache.fetch", Map.of("response", path.substring(1)), () -> {
+                    try (HttpCache.Response response = HttpCache.get(base + path)) {
+                        return response.getBody().readAllBytes();
+                    }
+                });
+            }
+            System.out.println(HttpCache.getStatistics());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Подсказки из истории посещений разного размера (каждый пятый адрес посещается повторно):
+     * время поиска не должно расти вместе с историей
+     */
+    private static void history(BenchmarkRunner runner) throws Exception {
+        String[] inputs = {"a", "ama", "https://www.go", "news", "shop4", "cloud12.n", "eather", "zzz"};
+        for (int visits : new int[]{10_000, 100_000, 1_000_000}) {
+            List<String> urls = generateUrls(visits / 5, 17);
+            HistoryStore store = new HistoryStore(Files.createTempDirectory("jwebbrowser-bench-history"), new AutocompleteIndex());
+            store.start();
+            Random random = new Random(visits);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < visits; i++) {
+                //Часть адресов посещается намного чаще остальных
+                int url = (int) Math.min(urls.size() - 1, Math.abs(random.nextGaussian()) * urls.size() / 3);
+                store.recordVisit(urls.get(url), null, now - (visits - i) * 1_000L);
+            }
+            store.flush();
+
+            int[] next = {0};
+            runner.run("history.query", Map.of("visits", visits), () -> store.query(inputs[next[0]++ & 7], 15));
+            store.close();
+        }
+    }
+
+    /**
+     * Поиск по тексту посещённых страниц: синтетические страницы из 200 слов с частотами слов по закону Ципфа,
+     * запросы из частых, средних и редких слов
+     */
+    private static void pageSearch(BenchmarkRunner runner) throws Exception {
+        String[] inputs = {"w1", "w3 w70", "w150 w2000", "w9000", "w5 w12 w40", "w19999", "w30 w31", "nothing"};
+        for (int pages : new int[]{10_000, 100_000, 300_000}) {
+            PageIndex index = new PageIndex(Files.createTempDirectory("jwebbrowser-bench-search"), 0);
+            index.open();
+            Random random = new Random(pages);
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < pages; i++) {
+                text.setLength(0);
+                for (int word = 0; word < 200; word++) {
+                    //Ранг слова по закону Ципфа для словаря из 20000 слов
+                    text.append('w').append((int) Math.pow(20_000, random.nextDouble())).append(' ');
+                }
+                index.add("https://site" + i + ".example.com/", "Page " + i, text.toString());
+            }
+            index.commit();
+
+            int[] next = {0};
+            runner.run("search.query", Map.of("pages", pages, "segments", index.getSegmentCount()),
+                    () -> index.search(inputs[next[0]++ & 7], 20));
+        }
+    }
+
+    /**
+     * Фильтр рекламы: компиляция списка (больше 50000 сетевых правил) и проверка адресов из корпуса ресурсов
+     * страниц, часть которых подходит под правила доменов и шаблонов
+     */
+    private static void contentFilter(BenchmarkRunner runner) throws Exception {
+        List<String> pages = generateUrls(1_000, 23);
+        for (int size : new int[]{60_000, 120_000}) {
+            List<String> rules = generateRules(size, size);
+            ContentFilter filter = new ContentFilter(rules);
+            Random random = new Random(size);
+            int count = 100_000;
+            String[] urls = new String[count];
+            String[] referers = new String[count];
+            for (int i = 0; i < count; i++) {
+                int n = random.nextInt(size);
+                String word = WORDS[n % WORDS.length];
+                String page = pages.get(random.nextInt(pages.size()));
+                switch (random.nextInt(20)) {
+                    case 0:
+                        urls[i] = "https://ads" + n + "." + word + ".com/serve?id=" + i;
+                        break;
+                    case 1:
+                        urls[i] = "https://cdn.example.net/" + word + n + "/banner/img.gif";
+                        break;
+                    default:
+                        urls[i] = page + "/static/" + WORDS[random.nextInt(WORDS.length)] + "/" + word + i
+                                + (random.nextBoolean() ? ".js" : ".png?v=" + n);
+                        break;
+                }
+                referers[i] = page;
+            }
+            int blocked = 0;
+            for (int i = 0; i < count; i++) {
+                blocked += filter.matches(urls[i], referers[i], ContentFilter.UNKNOWN) ? 1 : 0;
+            }
+
+            int[] next = {0};
+            runner.run("filter.match", Map.of("rules", filter.getRuleCount(), "urls", count, "blocked", blocked), () -> {
+                int i = next[0]++ % count;
+                return filter.matches(urls[i], referers[i], ContentFilter.UNKNOWN);
+            });
+            runner.run("filter.compile", Map.of("rules", filter.getRuleCount()), () -> new ContentFilter(rules));
+        }
+    }
+
+    /**
+     * Поиск места вставки перетаскиваемой вкладки среди окон, разложенных сеткой по нескольким мониторам: TabDropIndex
+     * и прежний перебор всех панелей и пар соседних вкладок (здесь - по готовым прямоугольникам,
+     * без localToScene, который прежний код вызывал на каждое движение мыши)
+     */
+    private static void tabDrop(BenchmarkRunner runner) throws Exception {
+        int windows = 20;
+        int tabsPerWindow = 50;
+        List<Rectangle2D> paneRects = new ArrayList<>();
+        List<Rectangle2D[]> tabRects = new ArrayList<>();
+        for (int w = 0; w < windows; w++) {
+            double x = (w % 5) * 1280;
+            double y = (w / 5) * 800;
+            paneRects.add(new Rectangle2D(x, y, 1280, 800));
+            Rectangle2D[] tabs = new Rectangle2D[tabsPerWindow];
+            for (int i = 0; i < tabsPerWindow; i++) {
+                tabs[i] = new Rectangle2D(x + 4 + i * 25, y + 6, 21, 18);
+            }
+            tabRects.add(tabs);
+        }
+        Random random = new Random(29);
+        double[][] points = new double[1024][];
+        for (int i = 0; i < points.length; i++) {
+            Rectangle2D pane = paneRects.get(random.nextInt(windows));
+            points[i] = new double[]{pane.getMinX() + random.nextDouble() * 1280, pane.getMinY() + random.nextDouble() * 60};
+        }
+        TabDropIndex<Integer> index = new TabDropIndex<>();
+        for (int w = 0; w < windows; w++) {
+            index.add(w, paneRects.get(w), tabRects.get(w));
+        }
+
+        Map<String, Object> params = Map.of("windows", windows, "tabs", windows * tabsPerWindow);
+        int[] next = {0};
+        runner.run("tabDrop.index", params, () -> {
+            double[] point = points[next[0]++ & 1023];
+            TabDropIndex.Entry<Integer> entry = index.paneAt(point[0], point[1]);
+            return entry == null ? -1 : entry.insertIndex(point[0], point[1]);
+        });
+        runner.run("tabDrop.linearScan", params, () -> {
+            double[] point = points[next[0]++ & 1023];
+            for (int w = 0; w < windows; w++) {
+                if (!paneRects.get(w).contains(point[0], point[1])) {
+                    continue;
+                }
+                Rectangle2D[] tabs = tabRects.get(w);
+                if (tabs[0].getMaxY() + 60 < point[1] || tabs[0].getMinY() > point[1]) {
+                    return -1;
+                }
+                if (point[0] < tabs[0].getMinX() + tabs[0].getWidth() / 2) {
+                    return 0;
+                }
+                if (point[0] > tabs[tabs.length - 1].getMaxX() - tabs[tabs.length - 1].getWidth() / 2) {
+                    return tabs.length;
+                }
+                for (int i = 0; i < tabs.length - 1; i++) {
+                    if (point[0] >= tabs[i].getMinX() + tabs[i].getWidth() / 2
+                            && point[0] <= tabs[i + 1].getMaxX() - tabs[i + 1].getWidth() / 2) {
+                        return i + 1;
+                    }
+                }
+                return 0;
+            }
+            return -1;
+        });
+        runner.run("tabDrop.build", params, () -> {
+            TabDropIndex<Integer> built = new TabDropIndex<>();
+            for (int w = 0; w < windows; w++) {
+                built.add(w, paneRects.get(w), tabRects.get(w));
+            }
+            return built;
+        });
+    }
+
+    /**
+     * Синтетический список правил в формате EasyList: правила доменов, адресов с путями и шаблонами,
+     * параметры, исключения и косметические правила (последние пропускаются при компиляции)
+     */
+    static List<String> generateRules(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> rules = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String word = WORDS[i % WORDS.length];
+            switch (random.nextInt(20)) {
+                case 0:
+                case 1:
+                case 2:
+                case 3:
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    rules.add("||ads" + i + "." + word + ".com^" + (random.nextBoolean() ? "$third-party" : ""));
+                    break;
+                case 8:
+                case 9:
+                case 10:
+                    rules.add("/" + word + i + "/banner/*." + (random.nextBoolean() ? "gif" : "js") + "|");
+                    break;
+                case 11:
+                case 12:
+                    rules.add("||cdn.example.net/" + word + i + "/*$script,image");
+                    break;
+                case 13:
+                    rules.add("-" + word + "-" + i + "x" + random.nextInt(1000) + ".");
+                    break;
+                case 14:
+                    rules.add("&" + word + i + "_id=");
+                    break;
+                case 15:
+                    rules.add("||track" + i + ".net/pixel^$domain=" + word + random.nextInt(1000) + ".com|~shop.com");
+                    break;
+                case 16:
+                    rules.add("@@||ads" + random.nextInt(i + 1) + "." + word + ".com/allowed/");
+                    break;
+                default:
+                    rules.add(word + ".com##.ad-" + i);
+                    break;
+            }
+        }
+        return rules;
+    }
+
+    private static BufferedImage createIcon(int size) {
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.ORANGE);
+        graphics.fillOval(0, 0, size, size);
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.drawString("J", size / 3, size * 3 / 4);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Синтетический корпус адресов вида https://www.news12.com/shop
+     */
+    static List<String> generateUrls(int count, long seed) {
+        Random random = new Random(seed);
+        List<String> urls = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String host = WORDS[random.nextInt(WORDS.length)] + i + DOMAINS[random.nextInt(DOMAINS.length)];
+            String prefix = random.nextBoolean() ? "https://www." : "https://";
+            String path = random.nextInt(3) == 0 ? "/" + WORDS[random.nextInt(WORDS.length)] : "";
+            urls.add(prefix + host + path);
+        }
+        return urls;
+    }
+
+}
@@ -0,0 +1,86 @@
+package browser;
+
+import javafx.application.Platform;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Бенчмарк массового открытия вкладок: время построения интерфейса одной вкладки (BrowserTab.resume)
+ * и прирост занятой кучи без кэша изображений панели инструментов и с ResourceCache.
+ * <p>
+ * Запуск: java -cp out:lib/* browser.TabCreationBenchmark [число вкладок] [число повторов]
+ */
+public class TabCreationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int tabs = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        CountDownLatch started = new CountDownLatch(1);
+        Platform.startup(started::countDown);
+        started.await();
+
+        //Первый проход прогревает JIT и загрузку классов WebKit
+        runOnFxThread(() -> openTabs(tabs, false));
+
+        for (boolean cached : new boolean[]{false, true}) {
+            long bestNanos = Long.MAX_VALUE;
+            long heapBytes = 0;
+            for (int round = 0; round < rounds; round++) {
+                long[] result = new long[2];
+                runOnFxThread(() -> {
+                    long[] measured = openTabs(tabs, cached);
+                    result[0] = measured[0];
+                    result[1] = measured[1];
+                });
+                bestNanos = Math.min(bestNanos, result[0]);
+                heapBytes = result[1];
+            }
+            System.out.printf("%-9s tabs=%d  %.3f ms/tab  heap +%s/tab  cache hits=%d misses=%d%n",
+                    cached ? "cached" : "uncached", tabs, bestNanos / 1e6 / tabs,
+                    DownloadsPanel.formatBytes(Math.max(0, heapBytes) / tabs), ResourceCache.getHits(), ResourceCache.getMisses());
+        }
+        Platform.exit();
+    }
+
+    /**
+     * Открытие count вкладок. Возвращает затраченное время в наносекундах и прирост занятой кучи в байтах
+     */
+    private static long[] openTabs(int count, boolean cached) {
+        ResourceCache.clear();
+        ResourceCache.setEnabled(cached);
+        long heapBefore = usedHeap();
+        long start = System.nanoTime();
+        List<BrowserTab> opened = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            BrowserTab tab = BrowserTab.createNewTab();
+            tab.resume();
+            opened.add(tab);
+        }
+        long elapsed = System.nanoTime() - start;
+        long heapAfter = usedHeap();
+        opened.forEach(TabLifecycleManager::unregister);
+        return new long[]{elapsed, heapAfter - heapBefore};
+    }
+
+    private static long usedHeap() {
+        System.gc();
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void runOnFxThread(Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+}
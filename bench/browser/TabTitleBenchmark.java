@@ -0,0 +1,160 @@
+package browser;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.TabPane;
+import javafx.scene.image.ImageView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.stage.Stage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Бенчмарк частой смены названий страниц: каждая из открытых вкладок меняет document.title несколько раз
+ * за импульс (счётчики непрочитанных сообщений, часы в заголовке). Сравнивается время потока FX на импульс
+ * (обработчики названий, CSS и раскладка) для прежнего обновления, которое на каждое название строило новые
+ * HBox и Label, и для обновления, объединённого до одного раза за импульс (BrowserTab.titleChanged).
+ * <p>
+ * Запуск: java -cp out:lib/* browser.TabTitleBenchmark [число вкладок] [смен названия за импульс] [секунд замера]
+ */
+public class TabTitleBenchmark {
+
+    private static final int WARMUP_SECONDS = 2;
+
+    public static void main(String[] args) throws Exception {
+        int tabs = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int changesPerPulse = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        CountDownLatch started = new CountDownLatch(1);
+        Platform.startup(started::countDown);
+        started.await();
+
+        TabPane tabPane = new TabPane();
+        Stage[] stage = new Stage[1];
+        runOnFxThread(() -> {
+            stage[0] = new Stage();
+            stage[0].setScene(new Scene(tabPane, 1280, 800));
+            stage[0].show();
+        });
+
+        for (boolean coalesced : new boolean[]{false, true}) {
+            List<BrowserTab> opened = new ArrayList<>();
+            runOnFxThread(() -> {
+                for (int i = 0; i < tabs; i++) {
+                    BrowserTab tab = BrowserTab.createTab("https://example.com/" + i, "Tab " + i);
+                    opened.add(tab);
+                }
+                tabPane.getTabs().setAll(opened);
+            });
+
+            TitleSpam spam = new TitleSpam(opened, changesPerPulse, coalesced);
+            Runnable pulseFinished = spam::pulseFinished;
+            runOnFxThread(() -> {
+                tabPane.getScene().addPostLayoutPulseListener(pulseFinished);
+                spam.start();
+            });
+            Thread.sleep(WARMUP_SECONDS * 1000L);
+            runOnFxThread(spam::reset);
+            Thread.sleep(seconds * 1000L);
+            runOnFxThread(() -> {
+                spam.stop();
+                tabPane.getScene().removePostLayoutPulseListener(pulseFinished);
+            });
+
+            System.out.printf("%-9s tabs=%d  titles/pulse=%d  %.1f ms FX per second  %s%n",
+                    coalesced ? "coalesced" : "per-event", tabs, tabs * changesPerPulse,
+                    spam.pulseTime.getMeanNanos() * spam.pulseTime.getCount() / 1e6 / seconds, spam.pulseTime);
+            runOnFxThread(() -> {
+                tabPane.getTabs().clear();
+                opened.forEach(TabLifecycleManager::unregister);
+            });
+        }
+        runOnFxThread(() -> stage[0].close());
+        Platform.exit();
+    }
+
+    /**
+     * Таймер, который в начале каждого импульса меняет названия всех вкладок. Время потока FX считается
+     * от начала импульса до конца раскладки сцены, включая применение накопленных изменений
+     */
+    private static final class TitleSpam extends AnimationTimer {
+
+        private final List<BrowserTab> tabs;
+
+        private final int changesPerPulse;
+
+        private final boolean coalesced;
+
+        private final List<ImageView> icons = new ArrayList<>();
+
+        private final LatencyHistogram pulseTime = new LatencyHistogram("FX pulse (titles + CSS + layout)");
+
+        private long counter;
+
+        private long pulseStart;
+
+        TitleSpam(List<BrowserTab> tabs, int changesPerPulse, boolean coalesced) {
+            this.tabs = tabs;
+            this.changesPerPulse = changesPerPulse;
+            this.coalesced = coalesced;
+            for (int i = 0; i < tabs.size(); i++)
+                icons.add(new ImageView());
+        }
+
+        @Override
+        public void handle(long now) {
+            pulseStart = System.nanoTime();
+            for (int change = 0; change < changesPerPulse; change++) {
+                for (int i = 0; i < tabs.size(); i++) {
+                    String title = "(" + (counter++ % 100) + ") Inbox " + i;
+                    if (coalesced)
+                        tabs.get(i).titleChanged(title);
+                    else
+                        rebuildTabGraphic(tabs.get(i), icons.get(i), title);
+                }
+            }
+        }
+
+        /**
+         * Прежний обработчик titleProperty: новые HBox и Label на каждое название
+         */
+        private static void rebuildTabGraphic(BrowserTab tab, ImageView icon, String title) {
+            tab.setLabelText(title);
+            HBox tabGraphic = new HBox();
+            Label tabName = new Label(tab.getLabel().getText());
+            HBox.setHgrow(tabName, Priority.ALWAYS);
+            tabGraphic.getChildren().addAll(icon, tabName);
+            tab.setGraphic(tabGraphic);
+        }
+
+        void pulseFinished() {
+            if (pulseStart == 0)
+                return;
+            pulseTime.recordSince(pulseStart);
+            pulseStart = 0;
+        }
+
+        void reset() {
+            pulseTime.reset();
+        }
+    }
+
+    private static void runOnFxThread(Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+
+}
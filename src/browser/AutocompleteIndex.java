@@ -0,0 +1,514 @@
+package browser;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Класс AutocompleteIndex - индекс для автозаполнения адресной строки.
+ * <p>
+ * Записи приводятся к нижнему регистру один раз при добавлении. Поиск по префиксу выполняется
+ * двоичным поиском по отсортированному массиву ключей (полный адрес и адрес без схемы и "www."),
+ * а лучшие K записей диапазона извлекаются из дерева отрезков максимумов за O(K log n).
+ * Поиск по подстроке использует индекс триграмм. Записи ранжируются по frecency -
+ * оценке, которая растёт с каждым посещением и тем сильнее, чем посещение новее.
+ * Новые записи сначала попадают в небольшой буфер и периодически сливаются с основным массивом.
+ * Класс потокобезопасен
+ */
+public class AutocompleteIndex {
+
+    /**
+     * Период, за который вклад посещения в оценку frecency уменьшается в e раз
+     */
+    private static final double DECAY_MILLIS = 7 * 24 * 3600 * 1000.0;
+
+    /**
+     * Точка отсчёта для оценки frecency (1 января 2020 года)
+     */
+    private static final long EPOCH_MILLIS = 1_577_836_800_000L;
+
+    /**
+     * Оценка записи, которая ещё ни разу не посещалась
+     */
+    private static final double BASE_SCORE = -1_000;
+
+    /**
+     * Размер буфера новых записей, после которого они сливаются с основным массивом
+     */
+    private static final int DELTA_LIMIT = 1_024;
+
+    /**
+     * Максимальное количество кандидатов, проверяемых при поиске по подстроке
+     */
+    private static final int MAX_SUBSTRING_CANDIDATES = 20_000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<Entry> entries = new ArrayList<>();
+
+    private final Map<String, Entry> entriesByText = new HashMap<>();
+
+    /**
+     * Отсортированные ключи, номера их записей и дерево отрезков максимумов оценок по позициям ключей
+     */
+    private String[] keys = new String[0];
+
+    private int[] keyEntries = new int[0];
+
+    private double[] tree = new double[2];
+
+    private int leaves = 1;
+
+    /**
+     * Записи, ещё не слитые с отсортированным массивом ключей
+     */
+    private final List<Entry> delta = new ArrayList<>();
+
+    /**
+     * Индекс триграмм: три символа, упакованные в long -> номера записей по возрастанию
+     */
+    private final TrigramTable trigrams = new TrigramTable();
+
+    /**
+     * При массовом добавлении слияние буфера откладывается до конца загрузки
+     */
+    private boolean bulkLoading;
+
+    /**
+     * Добавление записей без посещений (например, списка популярных сайтов)
+     */
+    public void addAll(Collection<String> texts) {
+        lock.writeLock().lock();
+        try {
+            bulkLoading = true;
+            for (String text : texts) {
+                getOrCreate(text);
+            }
+        } finally {
+            bulkLoading = false;
+            rebuild();
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Добавление записи без посещений
+     */
+    public void add(String text) {
+        lock.writeLock().lock();
+        try {
+            getOrCreate(text);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Учёт посещения адреса: запись добавляется при необходимости, её оценка frecency увеличивается
+     */
+    public void recordVisit(String text, long timeMillis) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = getOrCreate(text);
+            double visit = (timeMillis - EPOCH_MILLIS) / DECAY_MILLIS;
+            entry.score = entry.score == BASE_SCORE ? visit : logAddExp(entry.score, visit);
+            for (int position : entry.positions) {
+                updateScore(position, entry.score);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Установка оценки frecency напрямую (например, при загрузке сохранённой истории)
+     */
+    public void setScore(String text, double score) {
+        lock.writeLock().lock();
+        try {
+            Entry entry = getOrCreate(text);
+            if (score > entry.score) {
+                entry.score = score;
+                for (int position : entry.positions) {
+                    updateScore(position, score);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Получение оценки frecency записи (или NaN, если записи нет)
+     */
+    public double getScore(String text) {
+        lock.readLock().lock();
+        try {
+            Entry entry = entriesByText.get(text);
+            return entry == null ? Double.NaN : entry.score;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Поиск не более limit записей для введённого текста: сначала совпадения по префиксу,
+     * затем по подстроке, каждая группа упорядочена по убыванию оценки frecency
+     */
+    public List<String> query(String input, int limit) {
+        String text = input.trim().toLowerCase(Locale.ROOT);
+        if (text.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        lock.readLock().lock();
+        try {
+            LinkedHashSet<Entry> result = new LinkedHashSet<>();
+            queryPrefix(text, limit, result);
+            if (result.size() < limit && text.length() >= 3) {
+                querySubstring(text, limit, result);
+            }
+            List<String> texts = new ArrayList<>(result.size());
+            for (Entry entry : result) {
+                texts.add(entry.text);
+            }
+            return texts;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void queryPrefix(String text, int limit, Set<Entry> result) {
+        PriorityQueue<long[]> queue = new PriorityQueue<>(this::compareNodes);
+        addRange(text, queue);
+        String stripped = strip(text);
+        if (!stripped.equals(text) && !stripped.isEmpty()) {
+            addRange(stripped, queue);
+        }
+
+        //Кандидаты из буфера новых записей проверяются перебором
+        List<Entry> fresh = new ArrayList<>();
+        for (Entry entry : delta) {
+            if (entry.lower.startsWith(text) || entry.stripped.startsWith(text)
+                    || !stripped.isEmpty() && entry.stripped.startsWith(stripped)) {
+                fresh.add(entry);
+            }
+        }
+        fresh.sort(Comparator.comparingDouble((Entry entry) -> entry.score).reversed());
+        int freshIndex = 0;
+
+        //Извлечение лучших записей из дерева отрезков с приоритетом по максимальной оценке узла
+        while (result.size() < limit && (!queue.isEmpty() || freshIndex < fresh.size())) {
+            long[] node = queue.peek();
+            if (freshIndex < fresh.size() && (node == null || fresh.get(freshIndex).score >= tree[(int) node[0]])) {
+                result.add(fresh.get(freshIndex++));
+                continue;
+            }
+            queue.poll();
+            int index = (int) node[0];
+            if (index >= leaves) {
+                result.add(entries.get(keyEntries[index - leaves]));
+            } else {
+                queue.add(new long[]{2L * index, node[1]});
+                queue.add(new long[]{2L * index + 1, leftmost(2 * index + 1)});
+            }
+        }
+    }
+
+    private void querySubstring(String text, int limit, Set<Entry> result) {
+        //Берётся самый короткий список записей среди триграмм запроса
+        IntList candidates = null;
+        for (int i = 0; i + 3 <= text.length(); i++) {
+            IntList list = trigrams.get(trigram(text, i));
+            if (list == null) {
+                return;
+            }
+            if (candidates == null || list.size < candidates.size) {
+                candidates = list;
+            }
+        }
+        if (candidates == null) {
+            return;
+        }
+        int needed = limit - result.size();
+        PriorityQueue<Entry> best = new PriorityQueue<>(Comparator.comparingDouble((Entry entry) -> entry.score)
+                .thenComparing((Entry entry) -> entry.lower, Comparator.reverseOrder()));
+        //Список просматривается с конца: более новые записи проверяются первыми
+        int last = Math.max(0, candidates.size - MAX_SUBSTRING_CANDIDATES);
+        for (int i = candidates.size - 1; i >= last; i--) {
+            Entry entry = entries.get(candidates.values[i]);
+            if (result.contains(entry) || !entry.lower.contains(text)) {
+                continue;
+            }
+            if (best.size() < needed) {
+                best.add(entry);
+            } else if (best.comparator().compare(entry, best.peek()) > 0) {
+                best.poll();
+                best.add(entry);
+            }
+        }
+        List<Entry> found = new ArrayList<>(best);
+        found.sort(best.comparator().reversed());
+        result.addAll(found);
+    }
+
+    /**
+     * Добавление в очередь канонических узлов дерева отрезков, покрывающих ключи с префиксом prefix
+     */
+    private void addRange(String prefix, PriorityQueue<long[]> queue) {
+        int from = lowerBound(prefix);
+        int to = lowerBound(prefix + Character.MAX_VALUE);
+        for (int lo = from + leaves, hi = to + leaves; lo < hi; lo >>= 1, hi >>= 1) {
+            if ((lo & 1) == 1) {
+                queue.add(new long[]{lo, leftmost(lo)});
+                lo++;
+            }
+            if ((hi & 1) == 1) {
+                hi--;
+                queue.add(new long[]{hi, leftmost(hi)});
+            }
+        }
+    }
+
+    /**
+     * Узлы сравниваются по убыванию оценки, при равенстве - по алфавиту ключей
+     */
+    private int compareNodes(long[] a, long[] b) {
+        int byScore = Double.compare(tree[(int) b[0]], tree[(int) a[0]]);
+        return byScore != 0 ? byScore : Long.compare(a[1], b[1]);
+    }
+
+    private int leftmost(int index) {
+        while (index < leaves) {
+            index *= 2;
+        }
+        return index - leaves;
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private void updateScore(int position, double score) {
+        int index = position + leaves;
+        tree[index] = score;
+        for (index >>= 1; index > 0; index >>= 1) {
+            tree[index] = Math.max(tree[2 * index], tree[2 * index + 1]);
+        }
+    }
+
+    private Entry getOrCreate(String text) {
+        Entry entry = entriesByText.get(text);
+        if (entry != null) {
+            return entry;
+        }
+        entry = new Entry(entries.size(), text);
+        entries.add(entry);
+        entriesByText.put(text, entry);
+        for (int i = 0; i + 3 <= entry.lower.length(); i++) {
+            IntList list = trigrams.getOrCreate(trigram(entry.lower, i));
+            //Одна и та же триграмма может встречаться в записи несколько раз
+            if (list.size == 0 || list.values[list.size - 1] != entry.id) {
+                list.add(entry.id);
+            }
+        }
+        delta.add(entry);
+        if (delta.size() > DELTA_LIMIT && !bulkLoading) {
+            rebuild();
+        }
+        return entry;
+    }
+
+    /**
+     * Слияние буфера новых записей с отсортированным массивом ключей и перестроение дерева отрезков
+     */
+    private void rebuild() {
+        if (delta.isEmpty()) {
+            return;
+        }
+        List<Object[]> newKeys = new ArrayList<>();
+        for (Entry entry : delta) {
+            newKeys.add(new Object[]{entry.lower, entry});
+            if (!entry.stripped.equals(entry.lower)) {
+                newKeys.add(new Object[]{entry.stripped, entry});
+            }
+        }
+        newKeys.sort(Comparator.comparing(key -> (String) key[0]));
+        delta.clear();
+
+        String[] mergedKeys = new String[keys.length + newKeys.size()];
+        int[] mergedEntries = new int[mergedKeys.length];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < mergedKeys.length; k++) {
+            if (j >= newKeys.size() || i < keys.length && keys[i].compareTo((String) newKeys.get(j)[0]) <= 0) {
+                mergedKeys[k] = keys[i];
+                mergedEntries[k] = keyEntries[i++];
+            } else {
+                mergedKeys[k] = (String) newKeys.get(j)[0];
+                mergedEntries[k] = ((Entry) newKeys.get(j++)[1]).id;
+            }
+        }
+        keys = mergedKeys;
+        keyEntries = mergedEntries;
+
+        leaves = Integer.highestOneBit(Math.max(1, keys.length - 1)) * 2;
+        tree = new double[2 * leaves];
+        Arrays.fill(tree, Double.NEGATIVE_INFINITY);
+        for (Entry entry : entries) {
+            entry.positions = new int[0];
+        }
+        for (int position = 0; position < keys.length; position++) {
+            Entry entry = entries.get(keyEntries[position]);
+            entry.positions = Arrays.copyOf(entry.positions, entry.positions.length + 1);
+            entry.positions[entry.positions.length - 1] = position;
+            tree[position + leaves] = entry.score;
+        }
+        for (int index = leaves - 1; index > 0; index--) {
+            tree[index] = Math.max(tree[2 * index], tree[2 * index + 1]);
+        }
+    }
+
+    /**
+     * Адрес без схемы и префикса "www." - пользователи обычно начинают ввод с имени сайта
+     */
+    static String strip(String lower) {
+        String result = lower;
+        int scheme = result.indexOf("://");
+        if (scheme >= 0) {
+            result = result.substring(scheme + 3);
+        }
+        if (result.startsWith("www.")) {
+            result = result.substring(4);
+        }
+        return result;
+    }
+
+    private static long trigram(String text, int offset) {
+        return ((long) text.charAt(offset) << 32) | ((long) text.charAt(offset + 1) << 16) | text.charAt(offset + 2);
+    }
+
+    private static double logAddExp(double a, double b) {
+        double max = Math.max(a, b);
+        return max + Math.log1p(Math.exp(-Math.abs(a - b)));
+    }
+
+    /**
+     * Запись индекса
+     */
+    private static final class Entry {
+
+        private final int id;
+        private final String text;
+        private final String lower;
+        private final String stripped;
+        private double score = BASE_SCORE;
+        private int[] positions = new int[0];
+
+        Entry(int id, String text) {
+            this.id = id;
+            this.text = text;
+            this.lower = text.toLowerCase(Locale.ROOT);
+            this.stripped = strip(lower);
+        }
+
+    }
+
+    /**
+     * Растущий массив целых чисел без упаковки в Integer
+     */
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+    }
+
+    /**
+     * Хеш-таблица с открытой адресацией: триграмма -> список записей (без упаковки ключей в Long)
+     */
+    private static final class TrigramTable {
+
+        private long[] keys = new long[1024];
+        private IntList[] values = new IntList[1024];
+        private int size;
+
+        IntList get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = hash(key) & mask; values[slot] != null; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return null;
+        }
+
+        IntList getOrCreate(long key) {
+            IntList list = get(key);
+            if (list != null) {
+                return list;
+            }
+            if (2 * (size + 1) > keys.length) {
+                resize();
+            }
+            list = new IntList();
+            insert(key, list);
+            size++;
+            return list;
+        }
+
+        private void insert(long key, IntList list) {
+            int mask = keys.length - 1;
+            int slot = hash(key) & mask;
+            while (values[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            values[slot] = list;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            IntList[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new IntList[oldValues.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null) {
+                    insert(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+
+    }
+
+}
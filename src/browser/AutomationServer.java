@@ -0,0 +1,641 @@
+package browser;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Worker;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.control.TabPane;
+import javafx.scene.web.WebEngine;
+import javafx.scene.web.WebView;
+import javafx.util.Duration;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Класс AutomationServer - управление браузером из программ (например, из тестов) через сокет на петлевом интерфейсе.
+ * <p>
+ * Протокол - строки JSON: команда {"id": 1, "method": "navigate", "params": {"tab": 3, "url": "..."}},
+ * ответ {"id": 1, "result": {...}} либо {"id": 1, "error": "..."}. Строка может содержать и массив команд.
+ * Команды можно отправлять, не дожидаясь ответов: все команды, прочитанные из соединения за один проход,
+ * выполняются одной задачей в потоке JavaFX по порядку, а их ответы отправляются одной записью. Ответы долгих команд
+ * (waitForLoad, screenshot) приходят по мере готовности, поэтому тест может вести десятки вкладок одновременно.
+ * <p>
+ * Команды: authenticate {token}, listTabs, newTab {url}, navigate {tab, url}, waitForLoad {tab, timeout},
+ * evaluate {tab, expression}, screenshot {tab} (PNG в base64), selectTab {tab}, closeTab {tab}.
+ * Вкладки загружаются без выбора. Первой командой соединения должна быть authenticate с ключом из файла
+ * automation.token в каталоге данных (новый ключ при каждом запуске, файл доступен только владельцу): без него
+ * команды могли бы прийти от веб-страницы, отправившей запрос на локальный порт. Ключ проверяется потоком сервера
+ * до разбора остальных команд; до проверки соединение может передать не больше 4 КБ, а после неверного ключа
+ * закрывается.
+ * Сервер запускается, если задан порт jwebbrowser.automation.port. Соединения обслуживает один поток на NIO
+ */
+public final class AutomationServer {
+
+    private static final int PORT = BrowserSettings.getInt("jwebbrowser.automation.port", 0);
+
+    private static final int MAX_LINE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Предел входных данных соединения до проверки ключа: неизвестный клиент не может занять память сервера
+     */
+    private static final int MAX_AUTHENTICATION_BYTES = 4096;
+
+    private static final long DEFAULT_TIMEOUT_MILLIS = 30_000;
+
+    private static final LatencyHistogram COMMAND_TIME = new LatencyHistogram("Automation command");
+
+    /**
+     * Признак ответа, который будет отправлен позже
+     */
+    private static final Object PENDING = new Object();
+
+    private static Selector selector;
+
+    private static ServerSocketChannel serverChannel;
+
+    private static Path tokenFile;
+
+    private static byte[] token;
+
+    /**
+     * Панель вкладок, в которую добавляются новые вкладки
+     */
+    private static TabPane defaultPane;
+
+    /**
+     * Соединения, ожидающие записи ответов (обрабатываются потоком сервера)
+     */
+    private static final ConcurrentLinkedQueue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Вкладки, переход на которых начат командой navigate и ещё не закончен. Используется из потока JavaFX
+     */
+    private static final Set<BrowserTab> navigating = new HashSet<>();
+
+    private static final AtomicLong connections = new AtomicLong();
+
+    private static final AtomicLong commands = new AtomicLong();
+
+    private static final AtomicLong errors = new AtomicLong();
+
+    private AutomationServer() {
+    }
+
+    /**
+     * Запуск сервера, если задан порт jwebbrowser.automation.port. pane - панель вкладок для новых вкладок
+     */
+    public static synchronized void start(TabPane pane) {
+        if (PORT <= 0 || selector != null) {
+            return;
+        }
+        defaultPane = pane;
+        try {
+            String key = new BigInteger(128, new SecureRandom()).toString(16);
+            token = key.getBytes(StandardCharsets.UTF_8);
+            tokenFile = BrowserSettings.getDataDirectory().resolve("automation.token");
+            writeToken(tokenFile, token);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), PORT));
+            serverChannel.configureBlocking(false);
+            selector = Selector.open();
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            System.err.println("Unable to start automation server: " + e);
+            return;
+        }
+        Thread thread = new Thread(AutomationServer::serve, "automation-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Запись ключа в новый файл, который создаётся сразу с правами только для владельца: между созданием файла
+     * и сменой прав его мог бы прочитать другой пользователь
+     */
+    private static void writeToken(Path file, byte[] key) throws IOException {
+        Files.deleteIfExists(file);
+        Set<StandardOpenOption> options = EnumSet.of(StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        SeekableByteChannel channel;
+        try {
+            channel = Files.newByteChannel(file, options,
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            //Файловая система без прав POSIX
+            channel = Files.newByteChannel(file, options);
+        }
+        try (SeekableByteChannel out = channel) {
+            ByteBuffer buffer = ByteBuffer.wrap(key);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Остановка сервера и удаление файла ключа
+     */
+    public static synchronized void stop() {
+        if (selector == null) {
+            return;
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+            Files.deleteIfExists(tokenFile);
+        } catch (IOException e) {
+            System.err.println("Unable to stop automation server: " + e);
+        }
+    }
+
+    /**
+     * Цикл потока сервера: приём соединений, чтение команд и запись ответов
+     */
+    private static void serve() {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                for (Connection connection; (connection = pendingWrites.poll()) != null; ) {
+                    if (connection.key.isValid()) {
+                        connection.key.interestOpsOr(SelectionKey.OP_WRITE);
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.read(buffer);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        connection.close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            } catch (IOException | RuntimeException e) {
+                if (selector.isOpen()) {
+                    System.err.println("Automation server error: " + e);
+                }
+            }
+        }
+    }
+
+    private static void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        connections.incrementAndGet();
+    }
+
+    /**
+     * Выполнение пачки команд соединения в потоке JavaFX. Ответы команд, выполненных сразу, отправляются вместе
+     */
+    private static void execute(Connection connection, List<Object> batch) {
+        StringBuilder responses = new StringBuilder();
+        for (Object item : batch) {
+            long start = System.nanoTime();
+            commands.incrementAndGet();
+            Object id = item instanceof Map ? ((Map<?, ?>) item).get("id") : null;
+            try {
+                if (!(item instanceof Map)) {
+                    throw new IllegalArgumentException("Command must be an object");
+                }
+                Map<?, ?> command = (Map<?, ?>) item;
+                Object params = command.get("params");
+                Object result = dispatch(connection, id, String.valueOf(command.get("method")),
+                        params instanceof Map ? (Map<?, ?>) params : Map.of());
+                if (result != PENDING) {
+                    appendResponse(responses, id, result, null);
+                }
+            } catch (RuntimeException e) {
+                errors.incrementAndGet();
+                appendResponse(responses, id, null, e.getMessage() != null ? e.getMessage() : e.toString());
+            }
+            COMMAND_TIME.recordSince(start);
+        }
+        if (responses.length() > 0) {
+            connection.send(responses.toString());
+        }
+    }
+
+    private static Object dispatch(Connection connection, Object id, String method, Map<?, ?> params) {
+        if (!connection.authenticated && !method.equals("authenticate")) {
+            throw new IllegalStateException("Not authenticated");
+        }
+        switch (method) {
+            case "authenticate": {
+                byte[] key = String.valueOf(params.get("token")).getBytes(StandardCharsets.UTF_8);
+                if (!MessageDigest.isEqual(key, token)) {
+                    throw new IllegalArgumentException("Invalid token");
+                }
+                connection.authenticated = true;
+                return Map.of();
+            }
+            case "listTabs": {
+                List<Object> tabs = new ArrayList<>();
+                for (BrowserTab tab : TabLifecycleManager.getTabs()) {
+                    Map<String, Object> info = new LinkedHashMap<>();
+                    info.put("tab", tab.getSessionId());
+                    info.put("url", tab.getLocation());
+                    info.put("title", tab.getTitle());
+                    info.put("loading", tab.isLoading());
+                    info.put("suspended", tab.isSuspended());
+                    tabs.add(info);
+                }
+                return tabs;
+            }
+            case "newTab": {
+                BrowserTab tab = BrowserTab.createNewTab();
+                defaultPane.getTabs().add(tab);
+                Object url = params.get("url");
+                if (url != null) {
+                    navigate(tab, String.valueOf(url));
+                }
+                return Map.of("tab", tab.getSessionId());
+            }
+            case "navigate":
+                navigate(getTab(params), getString(params, "url"));
+                return Map.of();
+            case "waitForLoad": {
+                BrowserTab tab = getTab(params);
+                WebEngine engine = tab.getEngine();
+                if (!navigating.contains(tab) && !engine.getLoadWorker().isRunning()) {
+                    return getLoadState(engine);
+                }
+                Object timeout = params.get("timeout");
+                whenLoaded(engine, timeout instanceof Number ? ((Number) timeout).longValue() : DEFAULT_TIMEOUT_MILLIS,
+                        state -> connection.send(response(id, state == null ? null : getLoadState(engine),
+                                state == null ? "Timed out waiting for load" : null)));
+                return PENDING;
+            }
+            case "evaluate":
+                return toJsonValue(getTab(params).getEngine().executeScript(getString(params, "expression")));
+            case "screenshot": {
+                WebView view = getTab(params).getWebView();
+                BufferedImage image = SwingFXUtils.fromFXImage(view.snapshot(null, null), null);
+                //Кодирование PNG выполняется в фоне, чтобы не задерживать поток JavaFX
+                TaskScheduler.run(TaskScheduler.global(), "automation.screenshot", () -> {
+                    try {
+                        ByteArrayOutputStream png = new ByteArrayOutputStream();
+                        ImageIO.write(image, "png", png);
+                        connection.send(response(id, Map.of("width", image.getWidth(), "height", image.getHeight(),
+                                "data", Base64.getEncoder().encodeToString(png.toByteArray())), null));
+                    } catch (IOException e) {
+                        connection.send(response(id, null, e.toString()));
+                    }
+                });
+                return PENDING;
+            }
+            case "selectTab": {
+                BrowserTab tab = getTab(params);
+                if (tab.getTabPane() != null) {
+                    tab.getTabPane().getSelectionModel().select(tab);
+                }
+                return Map.of();
+            }
+            case "closeTab":
+                getTab(params).close();
+                return Map.of();
+            default:
+                throw new IllegalArgumentException("Unknown method " + method);
+        }
+    }
+
+    /**
+     * Переход вкладки по адресу. До окончания загрузки waitForLoad ждёт именно её,
+     * даже если движок ещё не перешёл в SCHEDULED
+     */
+    private static void navigate(BrowserTab tab, String input) {
+        navigating.add(tab);
+        tab.navigate(OmniboxClassifier.toAddress(input));
+        whenLoaded(tab.getEngine(), 0, state -> navigating.remove(tab));
+    }
+
+    /**
+     * Вызов action с конечным состоянием загрузки (SUCCEEDED, FAILED, CANCELLED) либо с null по истечении
+     * timeoutMillis (0 - без ограничения времени)
+     */
+    private static void whenLoaded(WebEngine engine, long timeoutMillis, Consumer<Worker.State> action) {
+        PauseTransition timeout = new PauseTransition(Duration.millis(timeoutMillis));
+        ChangeListener<Worker.State> listener = new ChangeListener<>() {
+            @Override
+            public void changed(ObservableValue<? extends Worker.State> observable, Worker.State oldState,
+                                Worker.State newState) {
+                if (newState == Worker.State.SUCCEEDED || newState == Worker.State.FAILED
+                        || newState == Worker.State.CANCELLED) {
+                    observable.removeListener(this);
+                    timeout.stop();
+                    action.accept(newState);
+                }
+            }
+        };
+        engine.getLoadWorker().stateProperty().addListener(listener);
+        if (timeoutMillis > 0) {
+            timeout.setOnFinished(event -> {
+                engine.getLoadWorker().stateProperty().removeListener(listener);
+                action.accept(null);
+            });
+            timeout.play();
+        }
+    }
+
+    private static Map<String, Object> getLoadState(WebEngine engine) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("state", engine.getLoadWorker().getState().name());
+        state.put("url", engine.getLocation());
+        state.put("title", engine.getTitle());
+        return state;
+    }
+
+    /**
+     * Значение, возвращённое скриптом: строки, числа и логические значения передаются как есть,
+     * объекты JS - строкой (для структур удобнее вернуть JSON.stringify(...))
+     */
+    private static Object toJsonValue(Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            return value;
+        }
+        if (value instanceof String) {
+            return "undefined".equals(value) ? null : value;
+        }
+        return String.valueOf(value);
+    }
+
+    private static BrowserTab getTab(Map<?, ?> params) {
+        Object id = params.get("tab");
+        if (!(id instanceof Number)) {
+            throw new IllegalArgumentException("Missing parameter tab");
+        }
+        for (BrowserTab tab : TabLifecycleManager.getTabs()) {
+            if (tab.getSessionId() == ((Number) id).longValue()) {
+                return tab;
+            }
+        }
+        throw new IllegalArgumentException("No tab " + id);
+    }
+
+    private static String getString(Map<?, ?> params, String name) {
+        Object value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing parameter " + name);
+        }
+        return String.valueOf(value);
+    }
+
+    private static String response(Object id, Object result, String error) {
+        StringBuilder response = new StringBuilder();
+        appendResponse(response, id, result, error);
+        return response.toString();
+    }
+
+    private static void appendResponse(StringBuilder response, Object id, Object result, String error) {
+        response.append("{\"id\":");
+        Json.write(response, id);
+        if (error != null) {
+            response.append(",\"error\":");
+            Json.write(response, error);
+        } else {
+            response.append(",\"result\":");
+            Json.write(response, result);
+        }
+        response.append("}\n");
+    }
+
+    /**
+     * Сводка для вкладки диагностики
+     */
+    public static String getStatistics() {
+        return String.format("automation %s: connections=%d commands=%d errors=%d",
+                selector == null ? "off" : "on port " + PORT, connections.get(), commands.get(), errors.get());
+    }
+
+    public static LatencyHistogram getCommandTime() {
+        return COMMAND_TIME;
+    }
+
+    /**
+     * Соединение клиента. Чтение и запись выполняются потоком сервера, ответы ставятся в очередь из любого потока
+     */
+    private static final class Connection {
+
+        private final SocketChannel channel;
+
+        private final ConcurrentLinkedQueue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+
+        private SelectionKey key;
+
+        private byte[] input = new byte[4096];
+
+        private int inputLength;
+
+        /**
+         * Устанавливается потоком сервера до передачи команд соединения в поток JavaFX
+         */
+        private volatile boolean authenticated;
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Чтение доступных данных и передача всех полных строк одной задачей в поток JavaFX.
+         * До проверки ключа читается не больше MAX_AUTHENTICATION_BYTES
+         */
+        private void read(ByteBuffer buffer) throws IOException {
+            List<Object> batch = new ArrayList<>();
+            int read;
+            do {
+                buffer.clear();
+                if (!authenticated) {
+                    buffer.limit(Math.min(buffer.capacity(), MAX_AUTHENTICATION_BYTES + 1 - inputLength));
+                }
+                read = channel.read(buffer);
+                if (read <= 0) {
+                    break;
+                }
+                if (inputLength + read > input.length) {
+                    if (inputLength + read > MAX_LINE_BYTES) {
+                        throw new IOException("Command too long");
+                    }
+                    input = Arrays.copyOf(input, Math.max(input.length * 2, inputLength + read));
+                }
+                System.arraycopy(buffer.array(), 0, input, inputLength, read);
+                inputLength += read;
+                if (!parseLines(batch)) {
+                    return;
+                }
+                if (!authenticated && inputLength > MAX_AUTHENTICATION_BYTES) {
+                    throw new IOException("Authentication command too long");
+                }
+            } while (true);
+            if (!batch.isEmpty()) {
+                Platform.runLater(() -> execute(this, batch));
+            }
+            if (read < 0) {
+                close();
+            }
+        }
+
+        /**
+         * Разбор полных строк буфера. false - соединение закрыто после неверного ключа
+         */
+        private boolean parseLines(List<Object> batch) {
+            int lineStart = 0;
+            for (int i = 0; i < inputLength; i++) {
+                if (input[i] == '\n') {
+                    String line = new String(input, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                    lineStart = i + 1;
+                    if (authenticated) {
+                        parseLine(line, batch);
+                    } else if (!line.isBlank() && !authenticate(line, batch)) {
+                        return false;
+                    }
+                }
+            }
+            System.arraycopy(input, lineStart, input, 0, inputLength - lineStart);
+            inputLength -= lineStart;
+            return true;
+        }
+
+        /**
+         * Проверка первой команды соединения: это должна быть authenticate с ключом сервера. Остальные команды
+         * строки (если строка - массив) добавляются в пачку. При ошибке ответ отправляется сразу,
+         * и соединение закрывается
+         */
+        private boolean authenticate(String line, List<Object> batch) {
+            commands.incrementAndGet();
+            Object id = null;
+            String error = "Not authenticated";
+            try {
+                Object value = Json.parse(line);
+                List<?> items = value instanceof List ? (List<?>) value : Collections.singletonList(value);
+                Object first = items.isEmpty() ? null : items.get(0);
+                if (first instanceof Map) {
+                    Map<?, ?> command = (Map<?, ?>) first;
+                    id = command.get("id");
+                    Object params = command.get("params");
+                    if ("authenticate".equals(command.get("method"))) {
+                        error = "Invalid token";
+                        Object key = params instanceof Map ? ((Map<?, ?>) params).get("token") : null;
+                        if (MessageDigest.isEqual(String.valueOf(key).getBytes(StandardCharsets.UTF_8), token)) {
+                            authenticated = true;
+                            send(response(id, Map.of(), null));
+                            batch.addAll(items.subList(1, items.size()));
+                            return true;
+                        }
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                error = "Invalid JSON: " + e.getMessage();
+            }
+            errors.incrementAndGet();
+            try {
+                channel.write(ByteBuffer.wrap(response(id, null, error).getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException e) {
+                //Клиент уже отключился
+            }
+            close();
+            return false;
+        }
+
+        private void parseLine(String line, List<Object> batch) {
+            if (line.isBlank()) {
+                return;
+            }
+            try {
+                Object value = Json.parse(line);
+                if (value instanceof List) {
+                    batch.addAll((List<?>) value);
+                } else {
+                    batch.add(value);
+                }
+            } catch (IllegalArgumentException e) {
+                errors.incrementAndGet();
+                send(response(null, null, "Invalid JSON: " + e.getMessage()));
+            }
+        }
+
+        /**
+         * Отправка ответа из любого потока
+         */
+        private void send(String text) {
+            output.add(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+            pendingWrites.add(this);
+            selector.wakeup();
+        }
+
+        private void write() throws IOException {
+            for (ByteBuffer buffer; (buffer = output.peek()) != null; output.poll()) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            //Ответ мог быть поставлен в очередь после проверки
+            if (!output.isEmpty()) {
+                key.interestOpsOr(SelectionKey.OP_WRITE);
+            }
+        }
+
+        private void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                //Соединение уже закрыто
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,382 @@
+package browser;
+
+import javafx.animation.PauseTransition;
+import javafx.application.Platform;
+import javafx.concurrent.Worker;
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.Scene;
+import javafx.scene.image.WritableImage;
+import javafx.scene.web.WebEngine;
+import javafx.scene.web.WebView;
+import javafx.stage.Stage;
+import javafx.stage.StageStyle;
+import javafx.util.Duration;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс BatchRenderer - пакетная отрисовка страниц без интерфейса браузера (Launcher --render).
+ * <p>
+ * Адреса читаются построчно из файла заданий (строка: адрес и, через табуляцию, имя результата; пустые строки
+ * и строки с # пропускаются) и раздаются пулу из -c страниц вне экрана. Для каждой страницы: загрузка до SUCCEEDED,
+ * ожидание отрисовки (-d мс), выполнение скриптов (-s), снимок в PNG и дамп DOM. Изображения и HTML записываются
+ * в каталог -o отдельным потоком, пока страницы загружают следующие адреса; по каждой странице сразу дописывается
+ * строка в results.jsonl. Одновременно обрабатывается не больше -c страниц (включая запись результатов),
+ * поэтому файл заданий может быть сколь угодно длинным. В конце печатается и сохраняется в summary.json сводка:
+ * страниц в минуту и время загрузки и обработки страницы (p50/p90/p99).
+ * <p>
+ * Параметры: файл заданий, -o каталог результатов (render-output), -c число страниц (4), -w и -h размер страницы
+ * (1280x800), -t тайм-аут страницы в мс (30000), -d задержка перед снимком в мс (250), -s файл скрипта
+ * (можно несколько), -f форматы результатов (png,dom). Страницам нужен графический инструментарий JavaFX:
+ * без дисплея запускается с -Dglass.platform=Monocle -Dmonocle.platform=Headless -Dprism.order=sw
+ * (модуль openjfx-monocle) либо под xvfb-run
+ */
+public final class BatchRenderer {
+
+    private final Path output;
+
+    private final int concurrency;
+
+    private final int width;
+
+    private final int height;
+
+    private final long timeoutMillis;
+
+    private final long settleMillis;
+
+    private final List<String> scripts = new ArrayList<>();
+
+    private final boolean png;
+
+    private final boolean dom;
+
+    /**
+     * Свободные страницы. Используются только из потока JavaFX
+     */
+    private final ArrayDeque<Slot> idle = new ArrayDeque<>();
+
+    /**
+     * Разрешения на обработку страниц: освобождаются после записи результатов страницы
+     */
+    private final Semaphore permits;
+
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "batch-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LatencyHistogram loadTime = new LatencyHistogram("Page load");
+
+    private final LatencyHistogram pageTime = new LatencyHistogram("Page total");
+
+    private final AtomicLong succeeded = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private BufferedWriter results;
+
+    private long startedAt;
+
+    private long reportedAt;
+
+    private BatchRenderer(String[] args) throws IOException {
+        if (args.length == 0 || args[0].startsWith("-")) {
+            throw new IllegalArgumentException("Usage: --render jobs.txt [-o dir] [-c pages] [-w width] [-h height]"
+                    + " [-t timeout ms] [-d delay ms] [-s script.js]... [-f png,dom]");
+        }
+        Path output = Path.of("render-output");
+        int concurrency = 4;
+        int width = 1280;
+        int height = 800;
+        long timeoutMillis = 30_000;
+        long settleMillis = 250;
+        String formats = "png,dom";
+        for (int i = 1; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "-o" -> output = Path.of(args[i + 1]);
+                case "-c" -> concurrency = Math.max(1, Integer.parseInt(args[i + 1]));
+                case "-w" -> width = Integer.parseInt(args[i + 1]);
+                case "-h" -> height = Integer.parseInt(args[i + 1]);
+                case "-t" -> timeoutMillis = Long.parseLong(args[i + 1]);
+                case "-d" -> settleMillis = Long.parseLong(args[i + 1]);
+                case "-s" -> scripts.add(Files.readString(Path.of(args[i + 1]), StandardCharsets.UTF_8));
+                case "-f" -> formats = args[i + 1];
+                default -> throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        this.output = output;
+        this.concurrency = concurrency;
+        this.width = width;
+        this.height = height;
+        this.timeoutMillis = timeoutMillis;
+        this.settleMillis = settleMillis;
+        this.png = formats.contains("png");
+        this.dom = formats.contains("dom");
+        this.permits = new Semaphore(concurrency);
+    }
+
+    /**
+     * Запуск пакетной отрисовки: args[0] - файл заданий, далее параметры. Код завершения 1, если хотя бы
+     * одна страница не отрисована
+     */
+    public static void main(String[] args) throws Exception {
+        BatchRenderer renderer;
+        try {
+            renderer = new BatchRenderer(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+            return;
+        }
+        System.exit(renderer.run(Path.of(args[0])) ? 0 : 1);
+    }
+
+    private boolean run(Path jobs) throws Exception {
+        Files.createDirectories(output);
+        results = Files.newBufferedWriter(output.resolve("results.jsonl"), StandardCharsets.UTF_8);
+        //Страницы загружаются через кэширующий прокси: общие ресурсы отчётов берутся с диска
+        CachingProxy.install();
+        CountDownLatch started = new CountDownLatch(1);
+        Platform.startup(() -> {
+            Platform.setImplicitExit(false);
+            for (int i = 0; i < concurrency; i++) {
+                idle.add(new Slot(i));
+            }
+            started.countDown();
+        });
+        started.await();
+
+        startedAt = System.nanoTime();
+        reportedAt = startedAt;
+        int index = 0;
+        try (BufferedReader reader = Files.newBufferedReader(jobs, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int tab = line.indexOf('\t');
+                String url = OmniboxClassifier.toAddress(tab < 0 ? line : line.substring(0, tab).strip());
+                String name = tab < 0 ? String.format("%06d", index) : line.substring(tab + 1).strip();
+                Job job = new Job(index++, url, name);
+                permits.acquire();
+                Platform.runLater(() -> idle.poll().render(job));
+            }
+        }
+        permits.acquire(concurrency);
+        writer.shutdown();
+        writer.awaitTermination(1, TimeUnit.MINUTES);
+        results.close();
+        Platform.exit();
+
+        String summary = getSummary();
+        System.out.println(summary);
+        Files.writeString(output.resolve("summary.json"), summary + "\n", StandardCharsets.UTF_8);
+        return failed.get() == 0;
+    }
+
+    /**
+     * Сводка в JSON: число страниц, страницы в минуту и время загрузки и обработки страницы в миллисекундах
+     */
+    private String getSummary() {
+        double minutes = (System.nanoTime() - startedAt) / 60e9;
+        long pages = succeeded.get() + failed.get();
+        return String.format(Locale.ROOT, "{\"pages\": %d, \"succeeded\": %d, \"failed\": %d, \"concurrency\": %d,"
+                        + " \"minutes\": %.3f, \"pagesPerMinute\": %.1f, \"load\": %s, \"total\": %s}",
+                pages, succeeded.get(), failed.get(), concurrency, minutes, minutes > 0 ? pages / minutes : 0.0,
+                toJson(loadTime), toJson(pageTime));
+    }
+
+    private static String toJson(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "{\"mean\": %.1f, \"p50\": %.1f, \"p90\": %.1f, \"p99\": %.1f, \"max\": %.1f}",
+                histogram.getMeanNanos() / 1e6, histogram.getPercentileNanos(50) / 1e6,
+                histogram.getPercentileNanos(90) / 1e6, histogram.getPercentileNanos(99) / 1e6,
+                histogram.getMaxNanos() / 1e6);
+    }
+
+    /**
+     * Запись результатов страницы в потоке записи, затем освобождение разрешения
+     */
+    private void complete(Job job, BufferedImage image, String html, List<String> scriptResults, String error) {
+        writer.execute(() -> {
+            try {
+                String imageFile = null;
+                String domFile = null;
+                if (error == null && image != null) {
+                    imageFile = job.name + ".png";
+                    ImageIO.write(image, "png", output.resolve(imageFile).toFile());
+                }
+                if (error == null && html != null) {
+                    domFile = job.name + ".html";
+                    Files.writeString(output.resolve(domFile), html, StandardCharsets.UTF_8);
+                }
+                writeResult(job, imageFile, domFile, scriptResults, error);
+            } catch (IOException e) {
+                System.err.println("Unable to write results for " + job.url + ": " + e);
+            } finally {
+                permits.release();
+            }
+        });
+    }
+
+    private void writeResult(Job job, String imageFile, String domFile, List<String> scriptResults, String error)
+            throws IOException {
+        long now = System.nanoTime();
+        pageTime.record(now - job.startedAt);
+        (error == null ? succeeded : failed).incrementAndGet();
+        StringBuilder line = new StringBuilder("{\"index\": ").append(job.index)
+                .append(", \"url\": ").append(Json.quote(job.url))
+                .append(", \"status\": ").append(Json.quote(error == null ? "SUCCEEDED" : "FAILED"))
+                .append(", \"loadMillis\": ").append(job.loadedAt == 0 ? -1 : (job.loadedAt - job.startedAt) / 1_000_000)
+                .append(", \"totalMillis\": ").append((now - job.startedAt) / 1_000_000);
+        if (imageFile != null) {
+            line.append(", \"png\": ").append(Json.quote(imageFile));
+        }
+        if (domFile != null) {
+            line.append(", \"dom\": ").append(Json.quote(domFile));
+        }
+        if (!scriptResults.isEmpty()) {
+            line.append(", \"scripts\": [");
+            for (int i = 0; i < scriptResults.size(); i++) {
+                line.append(i > 0 ? ", " : "").append(Json.quote(scriptResults.get(i)));
+            }
+            line.append(']');
+        }
+        if (error != null) {
+            line.append(", \"error\": ").append(Json.quote(error));
+        }
+        results.write(line.append("}\n").toString());
+        results.flush();
+
+        //Ход работы раз в 10 секунд
+        if (now - reportedAt > 10_000_000_000L) {
+            reportedAt = now;
+            long pages = succeeded.get() + failed.get();
+            System.err.printf("%d pages (%d failed), %.1f pages/min, %s%n", pages, failed.get(),
+                    pages / ((now - startedAt) / 60e9), pageTime);
+        }
+    }
+
+    /**
+     * Задание: адрес и имя файлов результата
+     */
+    private static final class Job {
+
+        private final int index;
+
+        private final String url;
+
+        private final String name;
+
+        private long startedAt;
+
+        private long loadedAt;
+
+        private Job(int index, String url, String name) {
+            this.index = index;
+            this.url = url;
+            this.name = name;
+        }
+
+    }
+
+    /**
+     * Страница вне экрана: WebView из WebViewPool в собственном окне без рамки за пределами экрана
+     * (снимок WebView вне окна может остаться пустым). Используется только из потока JavaFX
+     */
+    private final class Slot {
+
+        private final WebView view = WebViewPool.acquire();
+
+        private final WebEngine engine = view.getEngine();
+
+        private final PauseTransition timeout = new PauseTransition(Duration.millis(timeoutMillis));
+
+        private final PauseTransition settle = new PauseTransition(Duration.millis(settleMillis));
+
+        private final Subscriptions subscriptions = new Subscriptions();
+
+        private Slot(int number) {
+            Stage stage = new Stage(StageStyle.UNDECORATED);
+            stage.setTitle("render-" + number);
+            stage.setScene(new Scene(view, width, height));
+            stage.setX(-width - 100.0);
+            stage.setY(0);
+            stage.show();
+        }
+
+        private void render(Job job) {
+            job.startedAt = System.nanoTime();
+            subscriptions.listen(engine.getLoadWorker().stateProperty(), (observable, oldState, newState) -> {
+                if (newState == Worker.State.SUCCEEDED) {
+                    job.loadedAt = System.nanoTime();
+                    loadTime.record(job.loadedAt - job.startedAt);
+                    timeout.stop();
+                    //Задержка перед снимком: страница должна быть отрисована хотя бы один раз
+                    settle.setOnFinished(event -> capture(job));
+                    settle.playFromStart();
+                } else if (newState == Worker.State.FAILED || newState == Worker.State.CANCELLED) {
+                    Throwable exception = engine.getLoadWorker().getException();
+                    finish(job, null, null, List.of(), exception != null ? exception.toString() : newState.name());
+                }
+            });
+            subscriptions.onRelease(timeout::stop);
+            subscriptions.onRelease(settle::stop);
+            timeout.setOnFinished(event -> finish(job, null, null, List.of(), "Timed out after " + timeoutMillis + " ms"));
+            timeout.playFromStart();
+            engine.load(job.url);
+        }
+
+        private void capture(Job job) {
+            List<String> scriptResults = new ArrayList<>();
+            try {
+                for (String script : scripts) {
+                    scriptResults.add(String.valueOf(engine.executeScript(script)));
+                }
+                BufferedImage image = null;
+                if (png) {
+                    WritableImage snapshot = view.snapshot(null, null);
+                    image = SwingFXUtils.fromFXImage(snapshot, null);
+                }
+                String html = dom ? (String) engine.executeScript("document.documentElement.outerHTML") : null;
+                finish(job, image, html, scriptResults, null);
+            } catch (RuntimeException e) {
+                finish(job, null, null, scriptResults, "Script error: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Снятие слушателей задания, остановка загрузки и возврат страницы в пул до записи результатов
+         */
+        private void finish(Job job, BufferedImage image, String html, List<String> scriptResults, String error) {
+            subscriptions.release();
+            if (error != null) {
+                engine.getLoadWorker().cancel();
+            }
+            idle.add(this);
+            complete(job, image, html, scriptResults, error);
+        }
+
+    }
+
+}
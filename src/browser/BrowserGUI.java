@@ -38,13 +38,20 @@ public class BrowserGUI extends Node {
      * Конструктор класса графического интерфейса приложения
      */
     public BrowserGUI() {
+        this(new WebView());
+    }
+
+    /**
+     * Интерфейс вокруг готового WebView (например, взятого из WebViewPool)
+     */
+    public BrowserGUI(WebView webView) {
 
         this.buttonBack = new Button();
         this.buttonForward = new Button();
         this.buttonRefresh = new Button();
         this.buttonHome = new Button();
         this.goButton = new Button();
-        this.webView = new WebView();
+        this.webView = webView;
         this.progressBar = new ProgressBar();
 
     }
@@ -0,0 +1,73 @@
+package browser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Класс BrowserSettings - общие настройки браузера.
+ * Значения по умолчанию могут быть переопределены системными свойствами JVM (-Dключ=значение)
+ */
+public final class BrowserSettings {
+
+    /**
+     * Каталог для хранения данных браузера (кэши, сессии и т.д.)
+     */
+    private static final Path DATA_DIRECTORY = Paths.get(System.getProperty("jwebbrowser.home",
+            System.getProperty("user.home") + "/.jwebbrowser"));
+
+    private BrowserSettings() {
+    }
+
+    /**
+     * Получение каталога данных браузера. Каталог создаётся при первом обращении
+     */
+    public static Path getDataDirectory() {
+        return getDirectory(DATA_DIRECTORY);
+    }
+
+    /**
+     * Получение подкаталога в каталоге данных браузера (например, "favicons")
+     */
+    public static Path getDataDirectory(String name) {
+        return getDirectory(DATA_DIRECTORY.resolve(name));
+    }
+
+    /**
+     * Чтение целочисленной настройки из системных свойств
+     */
+    static int getInt(String key, int defaultValue) {
+        try {
+            return Integer.parseInt(System.getProperty(key, String.valueOf(defaultValue)).trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Чтение логической настройки из системных свойств
+     */
+    static boolean getBoolean(String key, boolean defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+
+    /**
+     * Чтение строковой настройки из системных свойств
+     */
+    static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return value == null ? defaultValue : value.trim();
+    }
+
+    private static Path getDirectory(Path directory) {
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            System.err.println("Unable to create directory " + directory + ": " + e);
+        }
+        return directory;
+    }
+
+}
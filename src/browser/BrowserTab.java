@@ -1,11 +1,13 @@
 package browser;
 
+import javafx.animation.AnimationTimer;
 import javafx.animation.FadeTransition;
-import javafx.application.Platform;
+import javafx.animation.PauseTransition;
 import javafx.beans.binding.Bindings;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
 import javafx.collections.ObservableList;
 import javafx.concurrent.Worker;
-import javafx.embed.swing.SwingFXUtils;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.scene.control.*;
@@ -20,61 +22,208 @@ import javafx.scene.web.WebHistory;
 import javafx.scene.web.WebView;
 import javafx.stage.FileChooser;
 import javafx.util.Duration;
-import net.sf.image4j.codec.ico.ICODecoder;
-import org.apache.commons.validator.routines.UrlValidator;
 
-import java.awt.image.BufferedImage;
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 
 public class BrowserTab extends DraggableTab {
 
     /**
-     * Схемы возможных протоколов для проверки URL адреса
+     * Пауза после загрузки страницы перед извлечением её текста для поиска по истории:
+     * страница успевает догрузить ресурсы и отрисоваться, а быстро пролистанные страницы не индексируются
      */
-    private String[] schemes = {"http", "https", "ftp"};
+    private static final int TEXT_INDEX_DELAY_MILLIS = 3_000;
+
+    /**
+     * Видимый текст страницы, обрезанный до PageIndex.MAX_TEXT_LENGTH символов
+     */
+    private static final String TEXT_SCRIPT = "(function() {"
+            + "var t = document.body ? document.body.innerText : '';"
+            + "return t ? t.substring(0, " + PageIndex.MAX_TEXT_LENGTH + ") : '';"
+            + "})()";
+
+    /**
+     * Состояние вкладки, которое сохраняется при её выгрузке из памяти:
+     * адрес, название, позиция прокрутки и снимок истории посещений (WebHistory)
+     */
+    private String location;
+
+    private String title;
+
+    private double scrollX;
+
+    private double scrollY;
+
+    private final List<String> historySnapshot = new ArrayList<>();
+
+    private int historyIndex;
+
+    /**
+     * Страницы снимка истории до текущей, которые не попадают в WebHistory нового движка после загрузки вкладки.
+     * Они сохраняются, чтобы история вкладки не терялась между выгрузками и перезапусками браузера
+     */
+    private final List<String> historyPrefix = new ArrayList<>();
+
+    /**
+     * Номер вкладки в сохранённой сессии (0 - вкладка в сессию не записывается)
+     */
+    private long sessionId;
+
+    private static long nextSessionId = 1;
+
+    /**
+     * Фавиконка вкладки (сохраняется и у выгруженной вкладки)
+     */
+    private final ImageView favIconImageView = new ImageView();
+
+    private Image favIcon;
+
+    /**
+     * Вкладки, у которых изменились название или фавиконка, и таймер, применяющий изменения раз за импульс.
+     * Таймер создаётся при первом изменении, чтобы класс можно было использовать без запущенного FX
+     */
+    private static final Set<BrowserTab> chromeUpdates = new LinkedHashSet<>();
+
+    private static AnimationTimer chromeUpdater;
+
+    /**
+     * Фоновые задачи вкладки (фавиконка, проверка адреса на скачивание). Отменяются при закрытии вкладки
+     */
+    private final TaskScheduler.Scope tasks = TaskScheduler.newScope("tab");
+
+    /**
+     * Показатели загрузки и ресурсов вкладки для диспетчера задач
+     */
+    private final TabMetrics metrics = new TabMetrics();
+
+    /**
+     * Текущая загрузка начата из адресной строки; speculatedLoad - переход был подготовлен SpeculativeLoader
+     */
+    private boolean omniboxLoad;
+
+    private boolean speculatedLoad;
+
+    /**
+     * Движок загруженной вкладки (null, если вкладка выгружена)
+     */
+    private WebEngine webEngine;
+
+    /**
+     * WebView загруженной вкладки, взятый из WebViewPool, и слушатели вкладки на нём и на его движке
+     */
+    private WebView webView;
+
+    private Subscriptions subscriptions;
+
+    private boolean suspended;
+
+    /**
+     * Время последнего выбора вкладки пользователем, используется для вытеснения по LRU
+     */
+    private long lastAccessTime = System.currentTimeMillis();
 
     /**
      * Конструктор вкладки браузера
      */
     public BrowserTab(String text) {
         super(text);
+        favIconImageView.setFitWidth(15);
+        favIconImageView.setFitHeight(15);
+        favIconImageView.setSmooth(true);
+        //Графика вкладки строится один раз: надпись DraggableTab (с обработчиками перетаскивания) и фавиконка.
+        //Пока фавиконки нет, она не занимает места в HBox
+        favIconImageView.managedProperty().bind(favIconImageView.imageProperty().isNotNull());
+        HBox tabGraphic = new HBox(favIconImageView, getLabel());
+        HBox.setHgrow(getLabel(), Priority.ALWAYS);
+        setGraphic(tabGraphic);
     }
 
     /**
      * Метод для создания новой вкладки
      */
     public static BrowserTab createNewTab() {
-        BrowserTab tab = new BrowserTab("New Tab");
+        return createTab(null, null);
+    }
+
+    /**
+     * Создание вкладки-заготовки для адреса url (может быть null). Графический интерфейс и WebEngine
+     * строятся только при первом выборе вкладки, поэтому восстановление множества вкладок обходится дёшево,
+     * а страницы загружаются только на тех вкладках, которые пользователь действительно открыл
+     */
+    public static BrowserTab createTab(String url, String title) {
+        BrowserTab tab = new BrowserTab(title != null ? title : "New Tab");
         tab.setClosable(true);
         tab.setDetachable(true);
+        tab.location = url;
+        tab.title = title;
+        tab.suspended = true;
+        tab.sessionId = nextSessionId++;
+        tab.setContent(tab.createPlaceholder());
+        if (url != null) {
+            //Фавиконка берётся только из кэша, без обращения к сети
+            FaviconService.requestCachedFavicon(url, tab.tasks.bind(image -> {
+                if (image != null && tab.favIcon == null)
+                    tab.iconChanged(image);
+            }));
+        }
 
-        BrowserGUI gui = new BrowserGUI();
+        //Вкладка-заготовка или выгруженная вкладка загружается при её выборе
+        tab.selectedProperty().addListener((observable, wasSelected, isSelected) -> {
+            if (isSelected) {
+                tab.lastAccessTime = System.currentTimeMillis();
+                if (tab.suspended)
+                    tab.resume();
+            }
+        });
+        tab.setOnCloseRequest(event -> tab.release());
+        TabLifecycleManager.register(tab);
+
+        return tab;
+
+    }
+
+    /**
+     * Построение графического интерфейса вкладки и движка WebEngine
+     */
+    private void materialize() {
+        //WebView берётся из пула уже настроенным (имя клиента, отключённое встроенное меню)
+        WebView webView = WebViewPool.acquire();
+        BrowserGUI gui = new BrowserGUI(webView);
+        Subscriptions subscriptions = new Subscriptions();
 
-        WebView webView = gui.getWebView();
-        webView.setContextMenuEnabled(false);
         createContextMenu(webView);
         WebEngine webEngine = webView.getEngine();
-        /* Установка имени клиента для подключения к вебсайтам */
-        webEngine.setUserAgent("JFXWeb Browser by Miyo - AppleWebKit/555.99");
+        this.webEngine = webEngine;
+        this.webView = webView;
+        this.subscriptions = subscriptions;
+        this.suspended = false;
 
         Button btnGo = gui.getGoButton();
-        ImageView goImg = new ImageView(new Image("rsc/img/btnGo.png"));
-        goImg.setFitHeight(20);
-        goImg.setFitWidth(20);
+        ImageView goImg = ResourceCache.createImageView("rsc/img/btnGo.png", 20);
         btnGo.setGraphic(goImg);
 
         URLTextField urlTextField = new URLTextField();
         urlTextField.setUrlTextField(new TextField());
 
         //Установка URL адреса в дресную строку браузера при переходе на сайт
-        webEngine.locationProperty().addListener((observableValue, oldValue, newValue) -> urlTextField.getUrlTextField().setText(newValue));
+        subscriptions.listen(webEngine.locationProperty(), metrics.timed("tab.location", (observableValue, oldValue, newValue) -> {
+            if (this.webEngine != webEngine)
+                return;
+            location = newValue;
+            ContentFilter.pageStarted(this, newValue);
+            urlTextField.showAddress(newValue);
+            SessionStore.tabChanged(this);
+        }));
 
         //Обработка ошибки, если не получилось загрузить страницу
-        webEngine.getLoadWorker().exceptionProperty().addListener((observableValue, oldValue, nextValue) ->
+        subscriptions.listen(webEngine.getLoadWorker().exceptionProperty(), (observableValue, oldValue, nextValue) ->
         {
             if (webEngine.getLoadWorker().getState() == Worker.State.FAILED) {
                 System.err.println("Some errors!");
@@ -85,15 +234,25 @@ public class BrowserTab extends DraggableTab {
          * Анимация всплывания окна отображения веб-страницы:
          */
 
-        webEngine.getLoadWorker().stateProperty().addListener((ov, old, next) -> {
-            if (next == Worker.State.SCHEDULED) {
-                FadeTransition fadeOut = new FadeTransition(Duration.millis(1_000), webView);
-                fadeOut.setToValue(0.0);
-                fadeOut.play();
-            } else if (next == Worker.State.SUCCEEDED) {
-                FadeTransition fadeIn = new FadeTransition(Duration.millis(1_000), webView);
-                fadeIn.setToValue(1.0);
-                fadeIn.play();
+        subscriptions.listen(webEngine.getLoadWorker().stateProperty(), (observable, oldState, newState) -> {
+            if (this.webEngine != webEngine)
+                return;
+            metrics.stateChanged(newState);
+            //Время загрузки страниц из адресной строки учитывается в статистике предварительной подготовки
+            if (newState == Worker.State.SUCCEEDED && omniboxLoad)
+                SpeculativeLoader.recordLoad(speculatedLoad, metrics.getLoadMillis());
+            if (newState == Worker.State.SUCCEEDED || newState == Worker.State.FAILED || newState == Worker.State.CANCELLED)
+                omniboxLoad = false;
+        });
+
+        //Одна анимация на вкладку: она останавливается при возврате WebView в пул и не меняет его прозрачность после
+        FadeTransition fade = new FadeTransition(Duration.millis(1_000), webView);
+        subscriptions.onRelease(fade::stop);
+        subscriptions.listen(webEngine.getLoadWorker().stateProperty(), (ov, old, next) -> {
+            if (next == Worker.State.SCHEDULED || next == Worker.State.SUCCEEDED) {
+                fade.stop();
+                fade.setToValue(next == Worker.State.SCHEDULED ? 0.0 : 1.0);
+                fade.play();
             }
         });
 
@@ -101,65 +260,61 @@ public class BrowserTab extends DraggableTab {
          * Привязывание фавиконок (иконок вебсайтов) на каждую создаваемую вкладку:
          */
 
-        final ImageView favIconImageView = new ImageView();
-        favIconImageView.setFitWidth(15);
-        favIconImageView.setFitHeight(15);
-        favIconImageView.setSmooth(true);
-        webEngine.getLoadWorker().stateProperty().addListener((observableValue, oldState, newState) -> {
+        //Текст страницы индексируется после паузы: одна пауза на вкладку перезапускается при каждой загрузке
+        //и останавливается, как только вкладка уходит со страницы
+        PauseTransition textDelay = new PauseTransition(Duration.millis(TEXT_INDEX_DELAY_MILLIS));
+        subscriptions.onRelease(textDelay::stop);
+        textDelay.setOnFinished(metrics.timedHandler("tab.indexText", event -> {
+            String location = webEngine.getLocation();
+            if (this.webEngine == webEngine && location != null && !"about:blank".equals(location) && !isLoading())
+                PageIndex.getDefault().submit(location, webEngine.getTitle(), extractText(webEngine));
+        }));
+
+        subscriptions.listen(webEngine.getLoadWorker().stateProperty(), metrics.timed("tab.favicon", (observableValue, oldState, newState) -> {
+            if (newState == Worker.State.SCHEDULED)
+                textDelay.stop();
             if (newState == Worker.State.SUCCEEDED) {
-                try {
-                    if ("about:blank".equals(webEngine.getLocation()))
-                        return;
-
-                    //Распознавание полного URL адреса сайта для нахождения фавиконки
-                    String favIconFullURL = getHostName(webEngine.getLocation()) + "favicon.ico";
-
-                    //Установка HTTP соединения
-                    HttpURLConnection http = (HttpURLConnection) new URL(favIconFullURL).openConnection();
-                    http.addRequestProperty("User-Agent", "Mozilla/5.0");
-                    List<BufferedImage> img = ICODecoder.read(http.getInputStream());
-
-                    //Установка фавиконки
-                    favIconImageView.setImage(SwingFXUtils.toFXImage(img.get(0), null));
-
-                } catch (Exception exception) {
-                    exception.printStackTrace();
-                    favIconImageView.setImage(null);
-                }
+                if (this.webEngine != webEngine || "about:blank".equals(webEngine.getLocation()))
+                    return;
+
+                //Загрузка фавиконки выполняется в фоне, результат устанавливается, только если страница не сменилась
+                String location = webEngine.getLocation();
+                HistoryStore.getDefault().recordVisit(location, webEngine.getTitle());
+                FaviconService.requestFavicon(webEngine, tasks.bind(image -> {
+                    if (location.equals(webEngine.getLocation()))
+                        iconChanged(image);
+                }));
+
+                textDelay.playFromStart();
             }
-        });
+        }));
 
         //Смена названия вкладки, исходя из названия страницы
-        webEngine.titleProperty().addListener((observable2, oldValue, newValue) -> {
-            tab.setLabelText(newValue);
-            HBox tabGraphic = new HBox();
-            Label tabName = new Label(tab.getLabel().getText());
-            HBox.setHgrow(tabName, Priority.ALWAYS); //must test
-            tabGraphic.getChildren().addAll(favIconImageView, tabName);
-            tab.setGraphic(tabGraphic);
-        });
+        subscriptions.listen(webEngine.titleProperty(), metrics.timed("tab.title", (observable2, oldValue, newValue) -> {
+            if (this.webEngine != webEngine)
+                return;
+            titleChanged(newValue);
+        }));
 
         /**
          * Загрузка страниц с помощью webEngine.load(url)
          */
 
-        EventHandler<ActionEvent> goAction = event -> Platform.runLater(() -> {
-
-            String url = urlTextField.getUrlTextField().getText();
-            String tmp = toURL(url);
-            //UrlValidator - объект для проверки URL адреса на корректность
-            UrlValidator urlValidator = new UrlValidator(tab.schemes);
-
-            //Проверка если адрес введён без указания протокола (полного адреса)
-            if (tmp == null) {
-                tmp = toURL("http://" + url);
-            }
-
-            //Проверка если введённое значение не является URL адресом. В таком случае совершаем поиск в Google
-            if (urlValidator.isValid(tmp)) {
-                webEngine.load(tmp);
-            } else {
-                webEngine.load("https://google.com/search?q=" + url);
+        EventHandler<ActionEvent> goAction = metrics.timedHandler("tab.go", event -> {
+            String input = urlTextField.getUrlTextField().getText();
+            //Скрытая вкладка диагностики открывается рядом с текущей
+            if (DiagnosticsTab.ADDRESS.equalsIgnoreCase(input.strip()) && getTabPane() != null)
+                DiagnosticsTab.open(getTabPane());
+            else if (SearchTab.isSearchAddress(input) && getTabPane() != null)
+                SearchTab.open(getTabPane(), SearchTab.getQuery(input));
+            else {
+                String address = OmniboxClassifier.toAddress(input);
+                metrics.loadRequested();
+                speculatedLoad = SpeculativeLoader.navigationStarted(address);
+                omniboxLoad = true;
+                //Адрес отмечается до загрузки: основной документ не должен попасть под фильтр
+                ContentFilter.pageStarted(this, address);
+                webEngine.load(address);
             }
         });
 
@@ -168,52 +323,28 @@ public class BrowserTab extends DraggableTab {
 
         /* Реализация загрузки файла с сайта */
 
-        webEngine.locationProperty().addListener((observableValue, oldLoc, newLoc) -> {
-
-            String downloadableExtension = null;  // todo I wonder how to find out from WebView which documents it could not process so that I could trigger a save as for them?
-            //Возможные расширения файлов для скачивания
-            String[] downloadableExtensions = {".doc", ".xls", ".zip", ".tgz", ".jar", ".mp3", ".txt", ".mp4", ".exe",
-                    ".msi", ".pdf", ".docx", ".css", ".js", ".psd", ".svg", ".jpg", ".png", ".bmp", ".gif",
-                    ".dmg", ".bat", ".dll", ".xml", ".xlsx", ".rar", ".7z", ".htm", ".avi", ".torrent", ".bin", ".iso",
-                    ".ini", ".midi", ".ppt", ".pptx", ".wav", ".sai"};
-            for (String ext : downloadableExtensions) {
-                /*Если адрес заканчивается на одно из вышеперечисленных расширений,
-                то присваеваем его к объекту downloadableExtension */
-                if (newLoc.endsWith(ext)) {
-                    downloadableExtension = ext;
-                    break;
-                }
-            }
-            if (downloadableExtension != null) {
-                // Создлание всплывающешго меню для сохранения файла на компьютер
-                FileChooser chooser = new FileChooser();
-                chooser.setTitle("Save " + newLoc);
-                chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Downloadable File",
-                        downloadableExtension));
-                int filenameIdx = newLoc.lastIndexOf("/") + 1;
-                if (filenameIdx != 0) {
-                    File saveFile = chooser.showSaveDialog(webView.getScene().getWindow());
-                    //Считываем файл с помощью потока байт из указанного URL адреса
-                    if (saveFile != null) {
-                        try (BufferedInputStream is = new BufferedInputStream(new URL(newLoc).openStream());
-                             BufferedOutputStream os = new BufferedOutputStream(new FileOutputStream(saveFile))) {
-                            int b = is.read();
-                            while (b != -1) {
-                                os.write(b);
-                                b = is.read();
-                            }
-                            //saveFile.renameTo(new File(saveFile.getName() + downloadableExtension));
-                        } catch (IOException e) {
-                            System.out.println("Unable to save file: " + e);
-                        }
+        subscriptions.listen(webEngine.locationProperty(), metrics.timed("tab.downloadCheck", (observableValue, oldLoc, newLoc) -> {
+            if (this.webEngine != webEngine || newLoc == null || newLoc.isEmpty())
+                return;
+
+            //Файл определяется по расширению сразу, и WebEngine не пытается его отобразить
+            if (DownloadDetector.isDownloadableExtension(newLoc)) {
+                webEngine.getLoadWorker().cancel();
+                saveFile(webView, newLoc, DownloadDetector.getFileName(newLoc, null));
+            } else if (DownloadDetector.needsProbe(newLoc)) {
+                //Адрес без расширения проверяется запросом HEAD по заголовкам Content-Type и Content-Disposition
+                DownloadDetector.probe(newLoc, tasks, fileName -> {
+                    if (fileName != null && this.webEngine == webEngine && newLoc.equals(webEngine.getLocation())) {
+                        webEngine.getLoadWorker().cancel();
+                        saveFile(webView, newLoc, fileName);
                     }
-                }
+                });
             }
-        });
+        }));
 
         ProgressBar progressBar = gui.getProgressBar();
         progressBar.setStyle("-fx-accent: red;");
-        progressBar.progressProperty().bind(webEngine.getLoadWorker().progressProperty());
+        subscriptions.bind(progressBar.progressProperty(), webEngine.getLoadWorker().progressProperty());
         progressBar.visibleProperty().bind(
                 Bindings.when(progressBar.progressProperty().lessThan(0).or(
                                 progressBar.progressProperty().isEqualTo(1)))
@@ -225,36 +356,28 @@ public class BrowserTab extends DraggableTab {
 
         Button btnHome = gui.getButtonHome();
         btnHome.setPrefSize(10, 10);
-        ImageView homeImg = new ImageView(new Image("rsc/img/homepage.png"));
-        homeImg.setFitHeight(20);
-        homeImg.setFitWidth(20);
+        ImageView homeImg = ResourceCache.createImageView("rsc/img/homepage.png", 20);
         btnHome.setGraphic(homeImg);
         btnHome.setOnAction(event -> webEngine.load("https://mirea.ru"));
 
         Button btnBack = gui.getButtonBack();
         btnBack.setPrefSize(10, 10);
-        ImageView backImg = new ImageView(new Image("rsc/img/backward.png"));
-        backImg.setFitHeight(20);
-        backImg.setFitWidth(20);
+        ImageView backImg = ResourceCache.createImageView("rsc/img/backward.png", 20);
         btnBack.setGraphic(backImg);
         btnBack.setOnAction(event -> goBack(webEngine.getHistory()));
-        btnBack.disableProperty().bind(webEngine.getHistory().currentIndexProperty().isEqualTo(0));
+        subscriptions.bind(btnBack.disableProperty(), webEngine.getHistory().currentIndexProperty().isEqualTo(0));
 
         Button btnForward = gui.getButtonForward();
         btnForward.setPrefSize(10, 10);
-        ImageView forwardImg = new ImageView(new Image("rsc/img/forward.png"));
-        forwardImg.setFitHeight(20);
-        forwardImg.setFitWidth(20);
+        ImageView forwardImg = ResourceCache.createImageView("rsc/img/forward.png", 20);
         btnForward.setGraphic(forwardImg);
         btnForward.setOnAction(event -> goForward(webEngine.getHistory()));
-        btnForward.disableProperty().bind(webEngine.getHistory().currentIndexProperty().greaterThanOrEqualTo(
+        subscriptions.bind(btnForward.disableProperty(), webEngine.getHistory().currentIndexProperty().greaterThanOrEqualTo(
                 Bindings.size(webEngine.getHistory().getEntries()).subtract(1)));
 
         Button btnRefresh = gui.getButtonRefresh();
         btnRefresh.setPrefSize(10, 10);
-        ImageView refreshImg = new ImageView(new Image("rsc/img/refresh.png"));
-        refreshImg.setFitHeight(20);
-        refreshImg.setFitWidth(20);
+        ImageView refreshImg = ResourceCache.createImageView("rsc/img/refresh.png", 20);
         btnRefresh.setGraphic(refreshImg);
         btnRefresh.setOnAction(event -> {
             if (!(webEngine.getHistory().getEntries().isEmpty()))
@@ -273,40 +396,324 @@ public class BrowserTab extends DraggableTab {
 
         final VBox vBox = new VBox(5);
         browserPane.setContent(webView);
+        subscriptions.onRelease(() -> browserPane.setContent(null));
         vBox.getChildren().setAll(searchBar, browserPane);
         VBox.setVgrow(browserPane, Priority.ALWAYS);
 
-        tab.setContent(vBox);
+        setContent(vBox);
 
-        tab.setOnCloseRequest(event -> webEngine.load(""));
+    }
 
-        return tab;
+    /**
+     * Создание всплывающего меню для сохранения файла на компьютер и запуск загрузки
+     */
+    private static void saveFile(WebView webView, String url, String fileName) {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Save " + url);
+        chooser.setInitialFileName(fileName);
+        int dot = fileName.lastIndexOf('.');
+        if (dot > 0) {
+            chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("Downloadable File", "*" + fileName.substring(dot)));
+        }
+        File saveFile = chooser.showSaveDialog(webView.getScene() != null ? webView.getScene().getWindow() : null);
+        //Файл загружается в фоне, прогресс отображается в окне загрузок
+        if (saveFile != null) {
+            DownloadManager.start(url, saveFile.toPath());
+            DownloadsPanel.show();
+        }
+    }
+
+    /**
+     * Выгрузка вкладки из памяти: сохраняются адрес, название, позиция прокрутки и снимок истории,
+     * после чего WebView, WebEngine и панель инструментов освобождаются. Фавиконка и название остаются на вкладке
+     */
+    public void suspend() {
+        if (suspended || webEngine == null)
+            return;
+        WebEngine engine = webEngine;
+        location = engine.getLocation();
+        title = engine.getTitle() != null ? engine.getTitle() : title;
+        try {
+            scrollX = ((Number) engine.executeScript("window.scrollX")).doubleValue();
+            scrollY = ((Number) engine.executeScript("window.scrollY")).doubleValue();
+        } catch (RuntimeException e) {
+            scrollX = scrollY = 0;
+        }
+        List<String> history = getHistoryUrls();
+        historyIndex = getCurrentHistoryIndex();
+        historySnapshot.clear();
+        historySnapshot.addAll(history);
+
+        suspended = true;
+        ContentFilter.tabClosed(this);
+        metrics.clearSample();
+        returnWebView();
+        setContent(createPlaceholder());
+    }
+
+    /**
+     * Лёгкое содержимое выгруженной вкладки или вкладки-заготовки
+     */
+    private Label createPlaceholder() {
+        Label placeholder = new Label(title != null ? title : location);
+        placeholder.setMaxSize(Double.MAX_VALUE, Double.MAX_VALUE);
+        return placeholder;
+    }
+
+    /**
+     * Новое название страницы. Надпись вкладки и сессия обновляются не чаще одного раза за импульс FX,
+     * поэтому страницы, меняющие document.title по таймеру, не нагружают поток FX
+     */
+    void titleChanged(String newTitle) {
+        title = newTitle;
+        scheduleChromeUpdate();
+    }
+
+    /**
+     * Новая фавиконка вкладки, применяется вместе с названием в ближайший импульс
+     */
+    void iconChanged(Image image) {
+        favIcon = image;
+        scheduleChromeUpdate();
+    }
+
+    private void scheduleChromeUpdate() {
+        if (chromeUpdates.add(this) && chromeUpdates.size() == 1) {
+            if (chromeUpdater == null) {
+                chromeUpdater = new AnimationTimer() {
+                    @Override
+                    public void handle(long now) {
+                        flushChromeUpdates();
+                    }
+                };
+            }
+            chromeUpdater.start();
+        }
+    }
+
+    /**
+     * Применение накопленных изменений всех вкладок. Вызывается в начале импульса, до CSS и раскладки,
+     * так что новые надписи попадают в тот же кадр
+     */
+    private static void flushChromeUpdates() {
+        chromeUpdater.stop();
+        if (chromeUpdates.isEmpty())
+            return;
+        List<BrowserTab> tabs = new ArrayList<>(chromeUpdates);
+        chromeUpdates.clear();
+        for (BrowserTab tab : tabs) {
+            if (!Objects.equals(tab.getLabel().getText(), tab.title))
+                tab.setLabelText(tab.title);
+            if (tab.favIconImageView.getImage() != tab.favIcon)
+                tab.favIconImageView.setImage(tab.favIcon);
+            SessionStore.tabChanged(tab);
+        }
+    }
+
+    /**
+     * Число вкладок, ожидающих обновления надписи или фавиконки
+     */
+    static int getPendingChromeUpdates() {
+        return chromeUpdates.size();
+    }
+
+    /**
+     * Построение вкладки-заготовки при первом выборе либо повторная загрузка выгруженной вкладки
+     * с восстановлением позиции прокрутки
+     */
+    public void resume() {
+        if (!suspended)
+            return;
+        double x = scrollX;
+        double y = scrollY;
+        historyPrefix.clear();
+        if (historyIndex > 0 && historyIndex < historySnapshot.size())
+            historyPrefix.addAll(historySnapshot.subList(0, historyIndex));
+        materialize();
+        if (location != null && !location.isEmpty()) {
+            WebEngine engine = webEngine;
+            subscriptions.listen(engine.getLoadWorker().stateProperty(), new ChangeListener<>() {
+                @Override
+                public void changed(ObservableValue<? extends Worker.State> observable, Worker.State oldState, Worker.State newState) {
+                    if (newState == Worker.State.SUCCEEDED || newState == Worker.State.FAILED || newState == Worker.State.CANCELLED) {
+                        observable.removeListener(this);
+                        if (newState == Worker.State.SUCCEEDED && (x != 0 || y != 0))
+                            engine.executeScript("window.scrollTo(" + x + ", " + y + ")");
+                    }
+                }
+            });
+            engine.load(location);
+        }
+    }
+
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Движок вкладки для AutomationServer: выгруженная вкладка или вкладка-заготовка загружается без выбора
+     */
+    WebEngine getEngine() {
+        resume();
+        return webEngine;
+    }
+
+    WebView getWebView() {
+        resume();
+        return webView;
+    }
+
+    /**
+     * Переход по адресу без выбора вкладки (AutomationServer). Выгруженная вкладка загружается сразу с новым адресом
+     */
+    void navigate(String address) {
+        metrics.loadRequested();
+        ContentFilter.pageStarted(this, address);
+        if (suspended) {
+            location = address;
+            resume();
+        } else {
+            webEngine.load(address);
+        }
+    }
+
+    /**
+     * Закрытие вкладки (например, из диспетчера задач): освобождаются её движок и фоновые задачи
+     */
+    public void close() {
+        release();
+        if (getTabPane() != null)
+            getTabPane().getTabs().remove(this);
+    }
+
+    /**
+     * Освобождение ресурсов закрываемой вкладки: WebView возвращается в пул, фоновые задачи отменяются
+     */
+    void release() {
+        TabLifecycleManager.unregister(this);
+        ContentFilter.tabClosed(this);
+        tasks.cancel();
+        returnWebView();
+    }
+
+    /**
+     * Снятие слушателей вкладки и возврат WebView в пул (движок очищается пулом)
+     */
+    private void returnWebView() {
+        if (webView == null)
+            return;
+        WebView view = webView;
+        subscriptions.release();
+        subscriptions = null;
+        webView = null;
+        webEngine = null;
+        WebViewPool.release(view);
+    }
+
+    /**
+     * Замер страницы загруженной вкладки (число узлов DOM, память JS, переданные байты)
+     */
+    public void sampleMetrics() {
+        if (webEngine != null)
+            metrics.sample(webEngine);
+    }
+
+    public TabMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Признак того, что на вкладке идёт загрузка страницы (такие вкладки не выгружаются)
+     */
+    public boolean isLoading() {
+        return webEngine != null && webEngine.getLoadWorker().isRunning();
+    }
+
+    public long getLastAccessTime() {
+        return lastAccessTime;
+    }
+
+    public String getLocation() {
+        return webEngine != null ? webEngine.getLocation() : location;
+    }
+
+    public String getTitle() {
+        return webEngine != null && webEngine.getTitle() != null ? webEngine.getTitle() : title;
+    }
+
+    /**
+     * Снимок истории посещений, сохранённый при последней выгрузке вкладки
+     */
+    public List<String> getHistorySnapshot() {
+        return Collections.unmodifiableList(historySnapshot);
+    }
 
+    public int getHistoryIndex() {
+        return historyIndex;
+    }
+
+    /**
+     * Восстановление истории посещений вкладки из сохранённой сессии (до первой загрузки вкладки)
+     */
+    public void restoreHistory(List<String> history, int index) {
+        if (!suspended || history.isEmpty())
+            return;
+        historySnapshot.clear();
+        historySnapshot.addAll(history);
+        historyIndex = Math.max(0, Math.min(index, history.size() - 1));
+        location = history.get(historyIndex);
+    }
+
+    /**
+     * Текущая история посещений вкладки: история движка загруженной вкладки и страницы, сохранённые до её загрузки
+     */
+    public List<String> getHistoryUrls() {
+        List<String> history = new ArrayList<>();
+        if (webEngine != null && !webEngine.getHistory().getEntries().isEmpty()) {
+            history.addAll(historyPrefix);
+            webEngine.getHistory().getEntries().forEach(entry -> history.add(entry.getUrl()));
+        } else if (!historySnapshot.isEmpty()) {
+            history.addAll(historySnapshot);
+        } else if (location != null && !location.isEmpty()) {
+            history.add(location);
+        }
+        return history;
+    }
+
+    /**
+     * Индекс текущей страницы в списке getHistoryUrls()
+     */
+    public int getCurrentHistoryIndex() {
+        if (webEngine != null && !webEngine.getHistory().getEntries().isEmpty())
+            return historyPrefix.size() + webEngine.getHistory().getCurrentIndex();
+        return historySnapshot.isEmpty() ? 0 : historyIndex;
+    }
+
+    public long getSessionId() {
+        return sessionId;
     }
 
     private static void goBack(WebHistory history) {
         ObservableList<WebHistory.Entry> entryList = history.getEntries();
         int currentIndex = history.getCurrentIndex();
 
-        Platform.runLater(() ->
-                history.go(entryList.size() > 1
-                        && currentIndex > 0
-                        ? -1
-                        : 0));
+        history.go(entryList.size() > 1
+                && currentIndex > 0
+                ? -1
+                : 0);
     }
 
     private static void goForward(WebHistory history) {
         ObservableList<WebHistory.Entry> entryList = history.getEntries();
         int currentIndex = history.getCurrentIndex();
 
-        Platform.runLater(() ->
-                history.go(entryList.size() > 1
-                        && currentIndex < entryList.size() - 1
-                        ? 1
-                        : 0));
+        history.go(entryList.size() > 1
+                && currentIndex < entryList.size() - 1
+                ? 1
+                : 0);
     }
 
-    private static String getHostName(String urlInput) {
+    static String getHostName(String urlInput) {
         try {
             URL url = new URL(urlInput);
             return url.getProtocol() + "://" + url.getHost() + "/";
@@ -316,7 +723,7 @@ public class BrowserTab extends DraggableTab {
         }
     }
 
-    private static String toURL(String str) {
+    static String toURL(String str) {
         try {
             return new URL(str).toExternalForm();
         } catch (MalformedURLException exception) {
@@ -324,6 +731,23 @@ public class BrowserTab extends DraggableTab {
         }
     }
 
+    /**
+     * Извлечение видимого текста загруженной страницы для PageIndex (в потоке JavaFX).
+     * Текст собирает сам WebKit одним вызовом: обход узлов getDocument() из Java занял бы поток JavaFX
+     * на время, пропорциональное размеру DOM, а textContent включает код скриптов и стилей
+     */
+    private static String extractText(WebEngine engine) {
+        if (engine.getDocument() == null)
+            return null;
+        try {
+            Object text = engine.executeScript(TEXT_SCRIPT);
+            return text instanceof String ? (String) text : null;
+        } catch (RuntimeException e) {
+            //Скрипты на странице недоступны
+            return null;
+        }
+    }
+
     private static void createContextMenu(WebView webView) {
         ContextMenu contextMenu = new ContextMenu();
         MenuItem zoomIn = new MenuItem("Zoom In");
@@ -333,7 +757,10 @@ public class BrowserTab extends DraggableTab {
         MenuItem stopLoading = new MenuItem("Stop Loading");
         stopLoading.setOnAction(event -> webView.getEngine().getLoadWorker().cancel());
 
-        contextMenu.getItems().addAll(stopLoading, zoomIn, zoomOut);
+        MenuItem taskManager = new MenuItem("Task Manager");
+        taskManager.setOnAction(event -> TaskManagerWindow.show());
+
+        contextMenu.getItems().addAll(stopLoading, zoomIn, zoomOut, taskManager);
 
         webView.setOnMousePressed(event -> {
             if (event.getButton() == MouseButton.SECONDARY)
@@ -348,11 +775,15 @@ public class BrowserTab extends DraggableTab {
         BrowserTab firstTab = new BrowserTab(" Welcome ");
         firstTab.setClosable(true);
         firstTab.setDetachable(true);
-        WebView view = new WebView();
+        WebView view = WebViewPool.acquire();
         WebEngine engine = view.getEngine();
         File f = new File("/Users/miyo/IdeaProjects/MyWeb Updated/src/rsc/WelcomePage/index.html");
         engine.load(f.toURI().toString());
         firstTab.setContent(view);
+        firstTab.setOnClosed(event -> {
+            firstTab.setContent(null);
+            WebViewPool.release(view);
+        });
         tb.getTabs().add(firstTab);
         tb.getSelectionModel().select(firstTab);
     }
@@ -0,0 +1,341 @@
+package browser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Класс CachingProxy - локальный HTTP-прокси на петлевом интерфейсе, через который WebEngine загружает
+ * страницы и ресурсы по http. Запросы выполняются через HttpCache, поэтому повторные загрузки страниц
+ * и их ресурсов берутся с диска.
+ * <p>
+ * WebEngine по умолчанию загружает http и https через HttpClient, который не использует ProxySelector,
+ * поэтому при установке прокси включается загрузчик на основе URLConnection (com.sun.webkit.useHTTP2Loader=false).
+ * Адреса https идут напрямую: их содержимое зашифровано и не может быть сохранено в кэше.
+ * Запросы http проверяются ContentFilter перед обращением к кэшу, адреса https - при выборе прокси
+ */
+public final class CachingProxy {
+
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final int IDLE_TIMEOUT = BrowserSettings.getInt("jwebbrowser.cache.proxyIdleTimeout", 30_000);
+
+    /**
+     * Системный выбор прокси до установки локального прокси. Через него идут запросы к серверам
+     */
+    private static volatile ProxySelector upstreamSelector;
+
+    private static volatile ServerSocket serverSocket;
+
+    private static final int MAX_TRACKED_SITES = 256;
+
+    /**
+     * Байты тел ответов, полученных из сети (не из кэша), по источнику страницы (схема, хост и порт).
+     * Страница определяется по заголовку Referer, для самой страницы - по её адресу
+     */
+    private static final Map<String, Long> siteBytes = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_SITES;
+        }
+    };
+
+    private CachingProxy() {
+    }
+
+    /**
+     * Запуск прокси и установка его для адресов http. Должен вызываться до создания первого WebView.
+     * Отключается настройкой jwebbrowser.cache.proxy=false
+     */
+    public static synchronized void install() {
+        if (serverSocket != null || !BrowserSettings.getBoolean("jwebbrowser.cache.proxy", true)) {
+            return;
+        }
+        try {
+            serverSocket = new ServerSocket(0, 64, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            System.err.println("Unable to start caching proxy: " + e);
+            return;
+        }
+        System.setProperty("com.sun.webkit.useHTTP2Loader", "false");
+
+        //Каждое соединение обслуживается своим (по возможности виртуальным) потоком
+        ExecutorService executor = TaskScheduler.newVirtualThreadExecutor("caching-proxy");
+        Thread acceptor = new Thread(() -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    executor.execute(() -> serve(socket));
+                } catch (IOException e) {
+                    if (!serverSocket.isClosed()) {
+                        System.err.println("Caching proxy error: " + e);
+                    }
+                }
+            }
+        }, "caching-proxy");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        ProxySelector previous = ProxySelector.getDefault();
+        upstreamSelector = previous;
+        Proxy local = new Proxy(Proxy.Type.HTTP, serverSocket.getLocalSocketAddress());
+        ProxySelector.setDefault(new ProxySelector() {
+            @Override
+            public List<Proxy> select(URI uri) {
+                if ("http".equalsIgnoreCase(uri.getScheme()) && uri.getHost() != null) {
+                    return List.of(local);
+                }
+                //Заголовков запроса здесь нет, но адрес полный: заблокированные адреса https направляются
+                //в локальный прокси, который отклоняет туннель
+                if ("https".equalsIgnoreCase(uri.getScheme()) && ContentFilter.shouldBlock(uri.toString(), null, null)) {
+                    return List.of(local);
+                }
+                return previous != null ? previous.select(uri) : List.of(Proxy.NO_PROXY);
+            }
+
+            @Override
+            public void connectFailed(URI uri, SocketAddress address, IOException e) {
+                if (previous != null && !address.equals(serverSocket.getLocalSocketAddress())) {
+                    previous.connectFailed(uri, address, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Запущен ли прокси (тогда WebEngine загружает страницы через URLConnection, а адреса http - через HttpCache)
+     */
+    static boolean isInstalled() {
+        return serverSocket != null;
+    }
+
+    /**
+     * Выбор прокси для запросов к серверам в обход локального прокси (системные настройки прокси).
+     * Может вернуть null, если выбор прокси в JVM не установлен
+     */
+    static ProxySelector getUpstreamSelector() {
+        return serverSocket == null ? ProxySelector.getDefault() : upstreamSelector;
+    }
+
+    /**
+     * Байты, полученные из сети через прокси для сайта страницы pageUrl, либо -1, если их нет
+     */
+    static long getTransferredBytes(String pageUrl) {
+        String site = getOrigin(pageUrl);
+        synchronized (siteBytes) {
+            return site == null ? -1 : siteBytes.getOrDefault(site, -1L);
+        }
+    }
+
+    /**
+     * Обработка соединения: запросы читаются и выполняются по очереди, пока клиент не закроет соединение
+     */
+    private static void serve(Socket socket) {
+        try (socket) {
+            socket.setSoTimeout(IDLE_TIMEOUT);
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+            boolean keepAlive = true;
+            while (keepAlive) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    return;
+                }
+                Map<String, List<String>> headers = readHeaders(in);
+                String[] parts = requestLine.split(" ");
+                if (parts.length == 3 && parts[0].equals("CONNECT")) {
+                    //Туннели запрашиваются только для адресов https, заблокированных ContentFilter
+                    writeError(out, 403, "Forbidden");
+                    return;
+                }
+                if (parts.length != 3 || !parts[1].regionMatches(true, 0, "http://", 0, 7)) {
+                    //Запросы к самому прокси не поддерживаются
+                    writeError(out, 501, "Not Implemented");
+                    return;
+                }
+                String method = parts[0];
+                byte[] body = readBody(in, headers);
+                keepAlive = !"close".equalsIgnoreCase(HttpCache.getHeader(headers, "Proxy-Connection"))
+                        && !"close".equalsIgnoreCase(HttpCache.getHeader(headers, "Connection"))
+                        && !parts[2].equals("HTTP/1.0");
+                String referer = HttpCache.getHeader(headers, "Referer");
+                if (ContentFilter.shouldBlock(parts[1], referer, HttpCache.getHeader(headers, "Accept"))) {
+                    writeError(out, 403, "Forbidden");
+                    continue;
+                }
+
+                HttpCache.Response response;
+                try {
+                    response = HttpCache.send(method, parts[1], headers, body);
+                } catch (IOException e) {
+                    writeError(out, 502, "Bad Gateway");
+                    keepAlive = false;
+                    continue;
+                }
+                try (response) {
+                    keepAlive &= writeResponse(out, method, response, getOrigin(referer != null ? referer : parts[1]));
+                }
+            }
+        } catch (IOException e) {
+            //Клиент закрыл соединение или истекло время ожидания
+        }
+    }
+
+    /**
+     * Передача ответа клиенту. Если длина тела неизвестна, соединение закрывается после ответа
+     */
+    private static boolean writeResponse(OutputStream out, String method, HttpCache.Response response, String site)
+            throws IOException {
+        int status = response.getStatus();
+        boolean noBody = method.equals("HEAD") || status == 204 || status == 304 || status < 200;
+        long length = noBody ? 0 : response.getLength();
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(status).append(' ')
+                .append(response.getReason() == null ? "" : response.getReason()).append("\r\n");
+        response.getHeaders().forEach((name, values) -> {
+            if (!name.equalsIgnoreCase("Content-Length") || method.equals("HEAD")) {
+                values.forEach(value -> head.append(name).append(": ").append(value).append("\r\n"));
+            }
+        });
+        if (!method.equals("HEAD")) {
+            if (length >= 0) {
+                head.append("Content-Length: ").append(length).append("\r\n");
+            } else {
+                head.append("Connection: close\r\n");
+            }
+        }
+        head.append("X-Cache: ").append(response.getCacheStatus()).append("\r\n\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (!noBody) {
+            long sent = response.getBody().transferTo(out);
+            String cacheStatus = response.getCacheStatus();
+            if (site != null && (cacheStatus.equals("MISS") || cacheStatus.equals("BYPASS"))) {
+                synchronized (siteBytes) {
+                    siteBytes.merge(site, sent, Long::sum);
+                }
+            }
+        }
+        out.flush();
+        return length >= 0 || method.equals("HEAD");
+    }
+
+    /**
+     * Источник адреса (схема, хост и порт в нижнем регистре) либо null
+     */
+    static String getOrigin(String url) {
+        if (url == null) {
+            return null;
+        }
+        int scheme = url.indexOf("://");
+        if (scheme <= 0) {
+            return null;
+        }
+        int end = scheme + 3;
+        while (end < url.length() && "/?#".indexOf(url.charAt(end)) < 0) {
+            end++;
+        }
+        return url.substring(0, end).toLowerCase();
+    }
+
+    private static void writeError(OutputStream out, int status, String reason) throws IOException {
+        byte[] body = (status + " " + reason).getBytes(StandardCharsets.ISO_8859_1);
+        out.write(("HTTP/1.1 " + status + " " + reason + "\r\nContent-Type: text/plain\r\nContent-Length: "
+                + body.length + "\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+
+    private static Map<String, List<String>> readHeaders(InputStream in) throws IOException {
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        int total = 0;
+        String line;
+        while ((line = readLine(in)) != null && !line.isEmpty()) {
+            total += line.length();
+            if (total > MAX_HEADER_BYTES) {
+                throw new IOException("Request headers too large");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.computeIfAbsent(line.substring(0, colon).strip(), name -> new ArrayList<>())
+                        .add(line.substring(colon + 1).strip());
+            }
+        }
+        return headers;
+    }
+
+    /**
+     * Тело запроса по заголовку Content-Length либо в кодировке chunked
+     */
+    private static byte[] readBody(InputStream in, Map<String, List<String>> headers) throws IOException {
+        String length = HttpCache.getHeader(headers, "Content-Length");
+        if (length != null) {
+            return in.readNBytes(parseLength(length.strip(), 10));
+        }
+        if (!"chunked".equalsIgnoreCase(HttpCache.getHeader(headers, "Transfer-Encoding"))) {
+            return null;
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String size = readLine(in);
+            if (size == null) {
+                throw new IOException("Unexpected end of chunked body");
+            }
+            int extension = size.indexOf(';');
+            int chunk = parseLength((extension < 0 ? size : size.substring(0, extension)).strip(), 16);
+            if (chunk == 0) {
+                readHeaders(in);
+                return body.toByteArray();
+            }
+            body.write(in.readNBytes(chunk));
+            readLine(in);
+        }
+    }
+
+    /**
+     * Длина тела или части chunked. Некорректное значение - ошибка протокола, а не NumberFormatException
+     */
+    private static int parseLength(String value, int radix) throws IOException {
+        try {
+            int length = Integer.parseInt(value, radix);
+            if (length < 0) {
+                throw new IOException("Negative length: " + value);
+            }
+            return length;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid length: " + value);
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int end = line.length();
+                return end > 0 && line.charAt(end - 1) == '\r' ? line.substring(0, end - 1) : line.toString();
+            }
+            if (line.length() > MAX_HEADER_BYTES) {
+                throw new IOException("Request line too long");
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+}
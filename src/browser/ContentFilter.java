@@ -0,0 +1,1119 @@
+package browser;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс ContentFilter - блокировка рекламы и трекеров по спискам правил в формате EasyList (Adblock Plus).
+ * <p>
+ * Правила компилируются в два индекса. Правила вида ||host^ (весь домен) хранятся в хеш-таблице по хосту:
+ * хеши всех суффиксов хоста адреса считаются за один проход справа налево, на каждую метку хоста - одна проба.
+ * Для остальных правил из шаблона выбирается ключевое слово ([a-z0-9%] длиной от 3 символов), которое в любом
+ * подходящем адресе стоит целым словом, и правило попадает в корзину этого слова (из нескольких слов выбирается
+ * слово с наименьшей корзиной). Адрес разбивается на слова за один проход, хеш каждого слова - одна проба в таблицу,
+ * и шаблон сверяется только у правил из найденных корзин. Правила-исключения (@@) хранятся в отдельных индексах
+ * и проверяются только для заблокированных адресов; исключения с $document разрешают все запросы страницы.
+ * Косметические правила (##), регулярные выражения и параметры, которые меняют страницу, а не загрузку
+ * ($csp, $redirect, $popup и т.п.), пропускаются.
+ * <p>
+ * Запросы проверяются в CachingProxy: адреса http - при обработке запроса (страница определяется по Referer),
+ * адреса https - при выборе прокси (ProxySelector получает полный адрес, но не заголовки и не вкладку). Все WebEngine
+ * работают через общий сетевой стек, поэтому запрос https относится к странице, только если все открытые вкладки
+ * показывают один сайт; иначе страница неизвестна и правила $third-party и $domain= к нему не применяются.
+ * Заблокированные запросы считаются по сайту страницы, а не по вкладке: вкладки одного сайта видят общий счётчик,
+ * а запросы с неизвестной страницей входят только в общую сводку. Основной документ вкладки не блокируется.
+ * Списки (jwebbrowser.filter.lists) сохраняются в каталог данных filters и обновляются раз в
+ * jwebbrowser.filter.updateHours часов; все файлы *.txt каталога, в том числе собственные правила пользователя,
+ * компилируются в фоне. Отключается настройкой jwebbrowser.filter=false
+ */
+public final class ContentFilter {
+
+    static final int SCRIPT = 1;
+
+    static final int IMAGE = 1 << 1;
+
+    static final int STYLESHEET = 1 << 2;
+
+    static final int OBJECT = 1 << 3;
+
+    static final int XMLHTTPREQUEST = 1 << 4;
+
+    static final int SUBDOCUMENT = 1 << 5;
+
+    static final int PING = 1 << 6;
+
+    static final int MEDIA = 1 << 7;
+
+    static final int FONT = 1 << 8;
+
+    static final int WEBSOCKET = 1 << 9;
+
+    static final int OTHER = 1 << 10;
+
+    static final int ALL_TYPES = (1 << 11) - 1;
+
+    /**
+     * Основной документ вкладки: не блокируется, в исключениях $document разрешает все запросы страницы
+     */
+    static final int DOCUMENT = 1 << 11;
+
+    /**
+     * Тип запроса неизвестен: правила с ограничением типа к нему применяются
+     */
+    static final int UNKNOWN = 0;
+
+    private static final int MIN_KEYWORD_LENGTH = 3;
+
+    private static final String[] NO_DOMAINS = new String[0];
+
+    private static final boolean ENABLED = BrowserSettings.getBoolean("jwebbrowser.filter", true);
+
+    private static final String LISTS = BrowserSettings.getString("jwebbrowser.filter.lists",
+            "https://easylist.to/easylist/easylist.txt https://easylist.to/easylist/easyprivacy.txt");
+
+    private static final int UPDATE_HOURS = BrowserSettings.getInt("jwebbrowser.filter.updateHours", 96);
+
+    private static final int MAX_TRACKED_SITES = 256;
+
+    private static final int MAX_TRACKED_PAGES = 32;
+
+    private static volatile ContentFilter active;
+
+    private static Thread loader;
+
+    /**
+     * Заблокированные запросы по источнику страницы (схема, хост и порт), как байты сайтов в CachingProxy
+     */
+    private static final Map<String, Long> siteBlocked = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > MAX_TRACKED_SITES;
+        }
+    };
+
+    /**
+     * Адреса, недавно открытые во вкладках: основной документ не блокируется, даже если подходит под правило
+     */
+    private static final Set<String> pages = Collections.newSetFromMap(new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_TRACKED_PAGES;
+        }
+    });
+
+    /**
+     * Адреса страниц открытых вкладок по вкладке
+     */
+    private static final Map<Object, String> tabPages = new HashMap<>();
+
+    /**
+     * Страница запросов без Referer: адрес, если все открытые вкладки на одном сайте, иначе null
+     */
+    private static volatile String openPage;
+
+    private static final AtomicLong checkedRequests = new AtomicLong();
+
+    private static final AtomicLong blockedRequests = new AtomicLong();
+
+    private static final AtomicLong checkNanos = new AtomicLong();
+
+    private final RuleIndex blocking;
+
+    private final RuleIndex exceptions;
+
+    private final RuleIndex pageExceptions;
+
+    private final int ruleCount;
+
+    private final int skippedCount;
+
+    /**
+     * Компиляция правил из строк списков (комментарии и неподдерживаемые правила пропускаются)
+     */
+    public ContentFilter(Iterable<String> lines) {
+        List<Rule> blockingRules = new ArrayList<>();
+        List<Rule> exceptionRules = new ArrayList<>();
+        List<Rule> pageRules = new ArrayList<>();
+        int skipped = 0;
+        for (String line : lines) {
+            String text = line.strip();
+            if (text.isEmpty() || text.charAt(0) == '!' || text.charAt(0) == '[') {
+                continue;
+            }
+            Rule rule = parse(text);
+            if (rule == null) {
+                skipped++;
+            } else if (!rule.exception) {
+                blockingRules.add(rule);
+            } else if ((rule.types & DOCUMENT) != 0) {
+                pageRules.add(rule);
+            } else {
+                exceptionRules.add(rule);
+            }
+        }
+        blocking = new RuleIndex(blockingRules);
+        exceptions = new RuleIndex(exceptionRules);
+        pageExceptions = new RuleIndex(pageRules);
+        ruleCount = blockingRules.size() + exceptionRules.size() + pageRules.size();
+        skippedCount = skipped;
+    }
+
+    /**
+     * Фильтр браузера: правила из каталога данных загружаются и компилируются в фоне, затем устаревшие списки
+     * обновляются. Работает только вместе с CachingProxy, через который проходят запросы WebEngine
+     */
+    public static synchronized void start() {
+        if (loader != null || !ENABLED || !CachingProxy.isInstalled()) {
+            return;
+        }
+        loader = new Thread(() -> {
+            Path directory = BrowserSettings.getDataDirectory("filters");
+            if (hasLists(directory)) {
+                active = load(directory);
+            }
+            if (update(directory) || active == null) {
+                active = load(directory);
+            }
+        }, "content-filter");
+        loader.setDaemon(true);
+        loader.setPriority(Thread.MIN_PRIORITY);
+        loader.start();
+    }
+
+    /**
+     * Должен ли быть заблокирован запрос url со страницы pageUrl (null - страница неизвестна, тогда ею считается
+     * страница открытых вкладок, если все они на одном сайте). accept - заголовок Accept запроса либо null.
+     * Заблокированный запрос учитывается в счётчике сайта страницы, если она известна
+     */
+    static boolean shouldBlock(String url, String pageUrl, String accept) {
+        ContentFilter filter = active;
+        if (filter == null) {
+            return false;
+        }
+        long start = System.nanoTime();
+        int type = getRequestType(url, pageUrl, accept);
+        String page = pageUrl != null ? pageUrl : openPage;
+        boolean blocked = type != DOCUMENT && !isPage(url) && filter.matches(url, page, type);
+        checkNanos.addAndGet(System.nanoTime() - start);
+        checkedRequests.incrementAndGet();
+        if (blocked) {
+            blockedRequests.incrementAndGet();
+            String site = page != null ? CachingProxy.getOrigin(page) : null;
+            if (site != null) {
+                synchronized (siteBlocked) {
+                    siteBlocked.merge(site, 1L, Long::sum);
+                }
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Отметка адреса, открытого во вкладке tab (основной документ не блокируется, а запросы https без Referer
+     * относятся к этой странице, пока другие вкладки не открыли другие сайты)
+     */
+    public static void pageStarted(Object tab, String url) {
+        if (url == null || url.isEmpty()) {
+            return;
+        }
+        synchronized (pages) {
+            pages.add(url);
+        }
+        synchronized (tabPages) {
+            tabPages.put(tab, url);
+            openPage = findOpenPage();
+        }
+    }
+
+    /**
+     * Вкладка tab закрыта или выгружена и больше не загружает страницу
+     */
+    public static void tabClosed(Object tab) {
+        synchronized (tabPages) {
+            if (tabPages.remove(tab) != null) {
+                openPage = findOpenPage();
+            }
+        }
+    }
+
+    /**
+     * Страница запросов без Referer (null, если вкладок нет или они на разных сайтах)
+     */
+    static String getOpenPage() {
+        return openPage;
+    }
+
+    private static String findOpenPage() {
+        String page = null;
+        String site = null;
+        for (String url : tabPages.values()) {
+            String origin = CachingProxy.getOrigin(url);
+            if (origin == null) {
+                continue;
+            }
+            if (site == null) {
+                page = url;
+                site = origin;
+            } else if (!site.equals(origin)) {
+                return null;
+            }
+        }
+        return page;
+    }
+
+    private static boolean isPage(String url) {
+        synchronized (pages) {
+            return pages.contains(url);
+        }
+    }
+
+    /**
+     * Число заблокированных запросов страниц сайта pageUrl (общее для всех вкладок этого сайта)
+     * либо -1, если фильтр не работает
+     */
+    static long getBlockedCount(String pageUrl) {
+        if (active == null) {
+            return -1;
+        }
+        String site = CachingProxy.getOrigin(pageUrl);
+        synchronized (siteBlocked) {
+            return site == null ? 0 : siteBlocked.getOrDefault(site, 0L);
+        }
+    }
+
+    /**
+     * Сводка для вкладки диагностики
+     */
+    public static String getStatistics() {
+        ContentFilter filter = active;
+        long checked = checkedRequests.get();
+        return String.format("content filter %s: rules=%d skipped=%d checked=%d blocked=%d mean check=%.0fns",
+                !ENABLED ? "off" : filter == null ? "loading" : "on", filter == null ? 0 : filter.ruleCount,
+                filter == null ? 0 : filter.skippedCount, checked, blockedRequests.get(),
+                checked == 0 ? 0.0 : (double) checkNanos.get() / checked);
+    }
+
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    public int getSkippedCount() {
+        return skippedCount;
+    }
+
+    /**
+     * Подходит ли запрос url типа type со страницы pageUrl (может быть null) под правило блокировки,
+     * не отменённое исключением
+     */
+    public boolean matches(String url, String pageUrl, int type) {
+        Request request = new Request(url, pageUrl, type);
+        if (blocking.find(request) == null || exceptions.find(request) != null) {
+            return false;
+        }
+        if (pageUrl == null || pageExceptions.isEmpty()) {
+            return true;
+        }
+        return pageExceptions.find(new Request(pageUrl, pageUrl, UNKNOWN)) == null;
+    }
+
+    /**
+     * Тип запроса по расширению файла в адресе и заголовку Accept. Запрос страницы (text/html) без Referer -
+     * основной документ вкладки, с Referer - документ фрейма
+     */
+    static int getRequestType(String url, String pageUrl, String accept) {
+        if (accept != null && accept.startsWith("text/html")) {
+            return pageUrl == null ? DOCUMENT : SUBDOCUMENT;
+        }
+        int end = url.length();
+        for (int i = url.indexOf("://") + 3; i > 2 && i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                end = i;
+                break;
+            }
+        }
+        int dot = url.lastIndexOf('.', end - 1);
+        if (dot > 0 && dot > url.lastIndexOf('/', end - 1) && end - dot <= 6) {
+            switch (url.substring(dot + 1, end).toLowerCase(Locale.ROOT)) {
+                case "js":
+                case "mjs":
+                    return SCRIPT;
+                case "css":
+                    return STYLESHEET;
+                case "png":
+                case "jpg":
+                case "jpeg":
+                case "gif":
+                case "webp":
+                case "svg":
+                case "ico":
+                case "bmp":
+                case "avif":
+                    return IMAGE;
+                case "woff":
+                case "woff2":
+                case "ttf":
+                case "otf":
+                case "eot":
+                    return FONT;
+                case "mp4":
+                case "webm":
+                case "mp3":
+                case "ogg":
+                case "m3u8":
+                    return MEDIA;
+                case "html":
+                case "htm":
+                    return SUBDOCUMENT;
+                default:
+                    break;
+            }
+        }
+        if (accept != null) {
+            if (accept.startsWith("text/css")) {
+                return STYLESHEET;
+            }
+            if (accept.startsWith("image/")) {
+                return IMAGE;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * Разбор правила. Возвращает null для косметических правил, регулярных выражений и правил
+     * с неподдерживаемыми параметрами
+     */
+    static Rule parse(String text) {
+        if (text.contains("##") || text.contains("#@#") || text.contains("#?#") || text.contains("#$#")
+                || text.contains("#%#")) {
+            return null;
+        }
+        boolean exception = text.startsWith("@@");
+        String pattern = exception ? text.substring(2) : text;
+
+        int positiveTypes = 0;
+        int negativeTypes = 0;
+        int party = 0;
+        boolean matchCase = false;
+        List<String> domains = new ArrayList<>();
+        List<String> excludedDomains = new ArrayList<>();
+        int dollar = pattern.lastIndexOf('$');
+        if (dollar >= 0) {
+            for (String option : pattern.substring(dollar + 1).split(",")) {
+                String name = option.strip().toLowerCase(Locale.ROOT);
+                boolean negated = name.startsWith("~");
+                if (negated) {
+                    name = name.substring(1);
+                }
+                if (name.equals("third-party") || name.equals("3p")) {
+                    party = negated ? -1 : 1;
+                } else if (name.equals("first-party") || name.equals("1p")) {
+                    party = negated ? 1 : -1;
+                } else if (name.equals("match-case")) {
+                    matchCase = true;
+                } else if (name.startsWith("domain=") && !negated) {
+                    for (String domain : name.substring(7).split("\\|")) {
+                        if (domain.startsWith("~")) {
+                            excludedDomains.add(domain.substring(1));
+                        } else if (!domain.isEmpty()) {
+                            domains.add(domain);
+                        }
+                    }
+                } else if (!name.equals("important")) {
+                    int type = getOptionType(name);
+                    if (type == 0) {
+                        return null;
+                    }
+                    if (negated) {
+                        negativeTypes |= type;
+                    } else {
+                        positiveTypes |= type;
+                    }
+                }
+            }
+            pattern = pattern.substring(0, dollar);
+        }
+        int types = (positiveTypes != 0 ? positiveTypes : ALL_TYPES) & ~negativeTypes;
+        //$document поддерживается только в исключениях (разрешение страницы), блокировать документы фильтр не должен
+        if (!exception) {
+            types &= ~DOCUMENT;
+        } else if ((types & DOCUMENT) != 0 && positiveTypes != 0) {
+            types = DOCUMENT;
+        }
+        if (types == 0) {
+            return null;
+        }
+
+        if (pattern.length() > 1 && pattern.startsWith("/") && pattern.endsWith("/")) {
+            return null;
+        }
+        boolean hostAnchor = false;
+        boolean startAnchor = false;
+        boolean endAnchor = false;
+        if (pattern.startsWith("||")) {
+            hostAnchor = true;
+            pattern = pattern.substring(2);
+        } else if (pattern.startsWith("|")) {
+            startAnchor = true;
+            pattern = pattern.substring(1);
+        }
+        if (pattern.endsWith("|")) {
+            endAnchor = true;
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        if (!matchCase) {
+            pattern = pattern.toLowerCase(Locale.ROOT);
+        }
+        if (pattern.startsWith("*")) {
+            hostAnchor = false;
+            startAnchor = false;
+        }
+        if (pattern.endsWith("*")) {
+            endAnchor = false;
+        }
+        List<String> parts = new ArrayList<>();
+        for (String part : pattern.split("\\*")) {
+            if (!part.isEmpty()) {
+                parts.add(part);
+            }
+        }
+        //Правило без шаблона и без доменов блокировало бы все запросы
+        if (parts.isEmpty() && domains.isEmpty()) {
+            return null;
+        }
+        return new Rule(text, exception, parts.toArray(new String[0]), hostAnchor && !parts.isEmpty(),
+                startAnchor && !parts.isEmpty(), endAnchor && !parts.isEmpty(), matchCase, types, party,
+                domains.toArray(NO_DOMAINS), excludedDomains.toArray(NO_DOMAINS));
+    }
+
+    private static int getOptionType(String name) {
+        switch (name) {
+            case "script":
+                return SCRIPT;
+            case "image":
+                return IMAGE;
+            case "stylesheet":
+            case "css":
+                return STYLESHEET;
+            case "object":
+                return OBJECT;
+            case "xmlhttprequest":
+            case "xhr":
+                return XMLHTTPREQUEST;
+            case "subdocument":
+            case "frame":
+                return SUBDOCUMENT;
+            case "ping":
+            case "beacon":
+                return PING;
+            case "media":
+                return MEDIA;
+            case "font":
+                return FONT;
+            case "websocket":
+                return WEBSOCKET;
+            case "other":
+                return OTHER;
+            case "all":
+                return ALL_TYPES;
+            case "document":
+            case "doc":
+                return DOCUMENT;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Символ-разделитель для ^ в шаблоне: всё, кроме букв, цифр и символов _ - . %
+     */
+    private static boolean isSeparator(char c) {
+        return !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9'
+                || c == '_' || c == '-' || c == '.' || c == '%');
+    }
+
+    /**
+     * Символ ключевого слова ([a-z0-9%] после приведения к нижнему регистру)
+     */
+    private static boolean isKeywordChar(char c) {
+        return c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '%';
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    /**
+     * Правило фильтра. Шаблон разбит по * на части; ^ в частях - разделитель либо конец адреса
+     */
+    static final class Rule {
+
+        private final String text;
+
+        private final boolean exception;
+
+        private final String[] parts;
+
+        /**
+         * Начало каждой части до первого ^ (для поиска части в адресе через indexOf)
+         */
+        private final String[] leads;
+
+        private final boolean hostAnchor;
+
+        private final boolean startAnchor;
+
+        private final boolean endAnchor;
+
+        private final boolean matchCase;
+
+        private final int types;
+
+        /**
+         * 1 - только сторонние запросы, -1 - только запросы к сайту страницы, 0 - любые
+         */
+        private final int party;
+
+        private final String[] domains;
+
+        private final String[] excludedDomains;
+
+        /**
+         * Хост правила вида ||host^ (для индекса по хосту) либо null
+         */
+        private final String host;
+
+        /**
+         * Следующее правило с тем же хешем хоста
+         */
+        private Rule next;
+
+        private Rule(String text, boolean exception, String[] parts, boolean hostAnchor, boolean startAnchor,
+                     boolean endAnchor, boolean matchCase, int types, int party, String[] domains,
+                     String[] excludedDomains) {
+            this.text = text;
+            this.exception = exception;
+            this.parts = parts;
+            this.hostAnchor = hostAnchor;
+            this.startAnchor = startAnchor;
+            this.endAnchor = endAnchor;
+            this.matchCase = matchCase;
+            this.types = types;
+            this.party = party;
+            this.domains = domains;
+            this.excludedDomains = excludedDomains;
+            this.leads = new String[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                int separator = parts[i].indexOf('^');
+                leads[i] = separator < 0 ? parts[i] : parts[i].substring(0, separator);
+            }
+            this.host = hostAnchor && parts.length == 1 && !endAnchor ? getHost(parts[0]) : null;
+        }
+
+        /**
+         * Хост из шаблона вида host^ либо null
+         */
+        private static String getHost(String part) {
+            if (part.length() < 2 || part.charAt(part.length() - 1) != '^') {
+                return null;
+            }
+            for (int i = 0; i < part.length() - 1; i++) {
+                char c = part.charAt(i);
+                if (!(c >= 'a' && c <= 'z' || c >= '0' && c <= '9' || c == '.' || c == '-')) {
+                    return null;
+                }
+            }
+            return part.substring(0, part.length() - 1);
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * Хеш ключевого слова, по которому правило можно найти, либо 0. Слово должно стоять в адресе целым:
+         * слева и справа от него в шаблоне - не символ слова и не *, либо привязка к началу, хосту или концу
+         */
+        private int selectKeyword(Map<Integer, List<Rule>> buckets) {
+            int best = 0;
+            int bestSize = Integer.MAX_VALUE;
+            int bestLength = 0;
+            for (int k = 0; k < parts.length; k++) {
+                String part = parts[k];
+                int i = 0;
+                while (i < part.length()) {
+                    if (!isKeywordChar(toLower(part.charAt(i)))) {
+                        i++;
+                        continue;
+                    }
+                    int start = i;
+                    int hash = 0;
+                    while (i < part.length() && isKeywordChar(toLower(part.charAt(i)))) {
+                        hash = 31 * hash + toLower(part.charAt(i));
+                        i++;
+                    }
+                    boolean left = start > 0 || k == 0 && (hostAnchor || startAnchor);
+                    boolean right = i < part.length() || k == parts.length - 1 && endAnchor;
+                    int length = i - start;
+                    if (!left || !right || length < MIN_KEYWORD_LENGTH) {
+                        continue;
+                    }
+                    hash = hash == 0 ? 1 : hash;
+                    List<Rule> bucket = buckets.get(hash);
+                    int size = bucket == null ? 0 : bucket.size();
+                    if (size < bestSize || size == bestSize && length > bestLength) {
+                        best = hash;
+                        bestSize = size;
+                        bestLength = length;
+                    }
+                }
+            }
+            return best;
+        }
+
+        /**
+         * Проверка параметров правила (тип, сторонний запрос, домены страницы), затем шаблона
+         */
+        private boolean matches(Request request) {
+            if (request.type != UNKNOWN && (types & request.type) == 0) {
+                return false;
+            }
+            if (party != 0 || domains.length > 0 || excludedDomains.length > 0) {
+                String pageHost = request.getPageHost();
+                if (party != 0 && (pageHost == null || (party > 0) != request.isThirdParty())) {
+                    return false;
+                }
+                if (domains.length > 0 && (pageHost == null || !matchesDomain(pageHost, domains))) {
+                    return false;
+                }
+                if (pageHost != null && matchesDomain(pageHost, excludedDomains)) {
+                    return false;
+                }
+            }
+            if (host != null) {
+                return true;
+            }
+            String url = matchCase ? request.url : request.getLowerUrl();
+            if (hostAnchor) {
+                for (int p = request.hostStart; p >= 0 && p < request.hostEnd; p++) {
+                    if ((p == request.hostStart || url.charAt(p - 1) == '.') && matchFrom(url, p, true)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return matchFrom(url, 0, startAnchor);
+        }
+
+        private static boolean matchesDomain(String host, String[] domains) {
+            for (String domain : domains) {
+                if (host.endsWith(domain) && (host.length() == domain.length()
+                        || host.charAt(host.length() - domain.length() - 1) == '.')) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Сопоставление частей шаблона по порядку начиная с позиции pos: каждая часть ищется левее всего
+         * (для шаблонов с * этого достаточно), последняя часть при привязке к концу - в конце адреса
+         */
+        private boolean matchFrom(String url, int pos, boolean anchored) {
+            int last = parts.length - 1;
+            for (int k = 0; k <= last; k++) {
+                boolean atPos = anchored && k == 0;
+                if (k == last && endAnchor) {
+                    return matchesEnd(parts[k], url, pos, atPos);
+                }
+                pos = atPos ? matchAt(parts[k], url, pos) : find(k, url, pos);
+                if (pos < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean matchesEnd(String part, String url, int from, boolean atPos) {
+            int start = url.length() - part.length();
+            if (matchesAt(part, url, start, from, atPos)) {
+                return true;
+            }
+            //^ в конце части может совпасть с концом адреса, не занимая символа
+            return part.charAt(part.length() - 1) == '^' && matchesAt(part, url, start + 1, from, atPos);
+        }
+
+        private static boolean matchesAt(String part, String url, int p, int from, boolean atPos) {
+            return p >= from && (!atPos || p == from) && matchAt(part, url, p) == url.length();
+        }
+
+        private int find(int k, String url, int from) {
+            String part = parts[k];
+            String lead = leads[k];
+            if (lead.isEmpty()) {
+                for (int p = from; p <= url.length(); p++) {
+                    int end = matchAt(part, url, p);
+                    if (end >= 0) {
+                        return end;
+                    }
+                }
+                return -1;
+            }
+            for (int p = url.indexOf(lead, from); p >= 0; p = url.indexOf(lead, p + 1)) {
+                int end = matchAt(part, url, p);
+                if (end >= 0) {
+                    return end;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Совпадение части шаблона с адресом с позиции pos: позиция после совпадения либо -1
+         */
+        private static int matchAt(String part, String url, int pos) {
+            int length = url.length();
+            int j = pos;
+            for (int i = 0; i < part.length(); i++, j++) {
+                char c = part.charAt(i);
+                if (j >= length) {
+                    return c == '^' && i == part.length() - 1 && j == length ? length : -1;
+                }
+                if (c == '^' ? !isSeparator(url.charAt(j)) : url.charAt(j) != c) {
+                    return -1;
+                }
+            }
+            return j;
+        }
+
+    }
+
+    /**
+     * Проверяемый запрос: границы хоста находятся один раз, адрес в нижнем регистре и хост страницы -
+     * только если они понадобились правилу
+     */
+    private static final class Request {
+
+        private final String url;
+
+        private final String pageUrl;
+
+        private final int type;
+
+        private final int hostStart;
+
+        private final int hostEnd;
+
+        private String lowerUrl;
+
+        private String pageHost;
+
+        private Request(String url, String pageUrl, int type) {
+            this.url = url;
+            this.pageUrl = pageUrl;
+            this.type = type;
+            int scheme = url.indexOf("://");
+            int start = scheme < 0 ? -1 : scheme + 3;
+            int end = start;
+            if (start >= 0) {
+                while (end < url.length() && "/?#:".indexOf(url.charAt(end)) < 0) {
+                    end++;
+                }
+            }
+            this.hostStart = start;
+            this.hostEnd = end;
+        }
+
+        private String getLowerUrl() {
+            if (lowerUrl == null) {
+                lowerUrl = url.toLowerCase(Locale.ROOT);
+            }
+            return lowerUrl;
+        }
+
+        private String getPageHost() {
+            if (pageHost == null && pageUrl != null) {
+                String origin = CachingProxy.getOrigin(pageUrl);
+                if (origin != null) {
+                    int start = origin.indexOf("://") + 3;
+                    int port = origin.indexOf(':', start);
+                    pageHost = origin.substring(start, port < 0 ? origin.length() : port);
+                }
+            }
+            return pageHost;
+        }
+
+        /**
+         * Сторонний ли запрос: сайты (последние две метки хоста, три - для доменов вида co.uk) различаются
+         */
+        private boolean isThirdParty() {
+            String page = getPageHost();
+            if (hostStart < 0 || page == null) {
+                return false;
+            }
+            int siteStart = getSiteStart(getLowerUrl(), hostStart, hostEnd);
+            int pageSiteStart = getSiteStart(page, 0, page.length());
+            int length = hostEnd - siteStart;
+            return length != page.length() - pageSiteStart
+                    || !getLowerUrl().regionMatches(siteStart, page, pageSiteStart, length);
+        }
+
+        private static int getSiteStart(String host, int start, int end) {
+            int last = host.lastIndexOf('.', end - 1);
+            if (last <= start) {
+                return start;
+            }
+            int second = host.lastIndexOf('.', last - 1);
+            if (second < start) {
+                return start;
+            }
+            //Домены второго уровня вида co.uk и com.au: сайт включает ещё одну метку
+            if (end - last - 1 == 2 && last - second - 1 <= 3) {
+                int third = host.lastIndexOf('.', second - 1);
+                return third < start ? start : third + 1;
+            }
+            return second + 1;
+        }
+
+    }
+
+    /**
+     * Индекс правил: хеш-таблица правил ||host^ по хешу хоста, хеш-таблица корзин по хешу ключевого слова
+     * и список правил без ключевого слова, которые проверяются для каждого адреса
+     */
+    private static final class RuleIndex {
+
+        private final int[] keywordHashes;
+
+        private final int[] bucketStarts;
+
+        private final int[] bucketEnds;
+
+        private final Rule[] bucketRules;
+
+        private final Rule[] genericRules;
+
+        private final int[] hostHashes;
+
+        private final Rule[] hostRules;
+
+        private final boolean empty;
+
+        private RuleIndex(List<Rule> rules) {
+            Map<Integer, List<Rule>> buckets = new HashMap<>();
+            List<Rule> generic = new ArrayList<>();
+            List<Rule> hosts = new ArrayList<>();
+            for (Rule rule : rules) {
+                if (rule.host != null) {
+                    hosts.add(rule);
+                    continue;
+                }
+                int keyword = rule.selectKeyword(buckets);
+                if (keyword == 0) {
+                    generic.add(rule);
+                } else {
+                    buckets.computeIfAbsent(keyword, key -> new ArrayList<>()).add(rule);
+                }
+            }
+
+            int capacity = getCapacity(buckets.size());
+            keywordHashes = new int[capacity];
+            bucketStarts = new int[capacity];
+            bucketEnds = new int[capacity];
+            bucketRules = new Rule[rules.size() - generic.size() - hosts.size()];
+            int offset = 0;
+            for (Map.Entry<Integer, List<Rule>> bucket : buckets.entrySet()) {
+                int slot = getSlot(keywordHashes, bucket.getKey());
+                keywordHashes[slot] = bucket.getKey();
+                bucketStarts[slot] = offset;
+                for (Rule rule : bucket.getValue()) {
+                    bucketRules[offset++] = rule;
+                }
+                bucketEnds[slot] = offset;
+            }
+            genericRules = generic.toArray(new Rule[0]);
+
+            hostHashes = new int[getCapacity(hosts.size())];
+            hostRules = new Rule[hostHashes.length];
+            for (Rule rule : hosts) {
+                int hash = 0;
+                for (int i = rule.host.length() - 1; i >= 0; i--) {
+                    hash = 31 * hash + rule.host.charAt(i);
+                }
+                hash = hash == 0 ? 1 : hash;
+                int slot = getSlot(hostHashes, hash);
+                hostHashes[slot] = hash;
+                rule.next = hostRules[slot];
+                hostRules[slot] = rule;
+            }
+            empty = rules.isEmpty();
+        }
+
+        private static int getCapacity(int size) {
+            return Integer.highestOneBit(Math.max(4, size * 2 - 1)) << 1;
+        }
+
+        /**
+         * Ячейка таблицы с хешем hash либо первая свободная ячейка на пути пробы (0 - свободная ячейка)
+         */
+        private static int getSlot(int[] hashes, int hash) {
+            int mask = hashes.length - 1;
+            int slot = (hash ^ (hash >>> 16)) & mask;
+            while (hashes[slot] != 0 && hashes[slot] != hash) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private boolean isEmpty() {
+            return empty;
+        }
+
+        /**
+         * Первое подходящее правило либо null
+         */
+        private Rule find(Request request) {
+            if (empty) {
+                return null;
+            }
+            String url = request.url;
+            //Правила ||host^: хеш суффикса хоста считается справа налево и проверяется на каждой границе метки
+            if (hostRules.length > 0 && request.hostStart >= 0) {
+                int hash = 0;
+                for (int i = request.hostEnd - 1; i >= request.hostStart; i--) {
+                    hash = 31 * hash + toLower(url.charAt(i));
+                    if (i == request.hostStart || url.charAt(i - 1) == '.') {
+                        int slot = getSlot(hostHashes, hash == 0 ? 1 : hash);
+                        for (Rule rule = hostRules[slot]; rule != null; rule = rule.next) {
+                            int length = request.hostEnd - i;
+                            if (rule.host.length() == length && url.regionMatches(true, i, rule.host, 0, length)
+                                    && rule.matches(request)) {
+                                return rule;
+                            }
+                        }
+                    }
+                }
+            }
+            //Правила по ключевым словам: адрес разбивается на слова, каждое слово - одна проба в таблицу
+            if (bucketRules.length > 0) {
+                int hash = 0;
+                int length = 0;
+                for (int i = 0; i <= url.length(); i++) {
+                    char c = i < url.length() ? toLower(url.charAt(i)) : ' ';
+                    if (isKeywordChar(c)) {
+                        hash = 31 * hash + c;
+                        length++;
+                        continue;
+                    }
+                    if (length >= MIN_KEYWORD_LENGTH) {
+                        int slot = getSlot(keywordHashes, hash == 0 ? 1 : hash);
+                        for (int r = bucketStarts[slot]; r < bucketEnds[slot]; r++) {
+                            if (bucketRules[r].matches(request)) {
+                                return bucketRules[r];
+                            }
+                        }
+                    }
+                    hash = 0;
+                    length = 0;
+                }
+            }
+            for (Rule rule : genericRules) {
+                if (rule.matches(request)) {
+                    return rule;
+                }
+            }
+            return null;
+        }
+
+    }
+
+    /**
+     * Есть ли в каталоге списки правил
+     */
+    private static boolean hasLists(Path directory) {
+        return !getListFiles(directory).isEmpty();
+    }
+
+    private static List<Path> getListFiles(Path directory) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.txt")) {
+            stream.forEach(files::add);
+        } catch (IOException e) {
+            System.err.println("Unable to list filter rules in " + directory + ": " + e);
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    /**
+     * Компиляция всех списков каталога
+     */
+    private static ContentFilter load(Path directory) {
+        List<String> lines = new ArrayList<>();
+        for (Path file : getListFiles(directory)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                reader.lines().forEach(lines::add);
+            } catch (IOException | UncheckedIOException e) {
+                System.err.println("Unable to read filter list " + file + ": " + e);
+            }
+        }
+        return new ContentFilter(lines);
+    }
+
+    /**
+     * Загрузка списков, которых нет в каталоге или которые старше jwebbrowser.filter.updateHours часов.
+     * Возвращает true, если хотя бы один список обновился
+     */
+    private static boolean update(Path directory) {
+        boolean updated = false;
+        for (String url : LISTS.split("[\\s,]+")) {
+            if (url.isEmpty()) {
+                continue;
+            }
+            String name = url.substring(url.lastIndexOf('/') + 1);
+            Path file = directory.resolve(name.endsWith(".txt") ? name : name + ".txt");
+            try {
+                if (Files.exists(file) && Files.getLastModifiedTime(file).toMillis()
+                        > System.currentTimeMillis() - TimeUnit.HOURS.toMillis(UPDATE_HOURS)) {
+                    continue;
+                }
+                HttpResponse<InputStream> response = NetworkClient.send(NetworkClient.newRequest(url).build());
+                try (InputStream body = response.body()) {
+                    if (response.statusCode() != 200) {
+                        System.err.println("Unable to update filter list " + url + ": HTTP " + response.statusCode());
+                        continue;
+                    }
+                    Path temporary = directory.resolve(file.getFileName() + ".tmp");
+                    Files.copy(body, temporary, StandardCopyOption.REPLACE_EXISTING);
+                    Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+                    updated = true;
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to update filter list " + url + ": " + e);
+            }
+        }
+        return updated;
+    }
+
+}
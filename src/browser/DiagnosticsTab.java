@@ -0,0 +1,112 @@
+package browser;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.scene.control.TabPane;
+import javafx.scene.control.TextArea;
+import javafx.util.Duration;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Класс DiagnosticsTab - скрытая вкладка диагностики, открывается вводом about:diagnostics в адресной строке.
+ * Показывает время кадров и зависания потока JavaFX (FxMonitor), время работы обработчиков,
+ * состояние фоновых задач и HTTP-кэша. Данные обновляются раз в секунду, пока вкладка выбрана
+ */
+public class DiagnosticsTab extends DraggableTab {
+
+    public static final String ADDRESS = "about:diagnostics";
+
+    private static final int REFRESH_MILLIS = 1_000;
+
+    private final TextArea text = new TextArea();
+
+    private final Timeline refresh = new Timeline(new KeyFrame(Duration.millis(REFRESH_MILLIS), event -> update()));
+
+    public DiagnosticsTab() {
+        super(" Diagnostics ");
+        setClosable(true);
+        setDetachable(true);
+        text.setEditable(false);
+        text.setStyle("-fx-font-family: monospace;");
+        setContent(text);
+
+        refresh.setCycleCount(Timeline.INDEFINITE);
+        selectedProperty().addListener((observable, wasSelected, isSelected) -> {
+            if (isSelected) {
+                update();
+                refresh.play();
+            } else {
+                refresh.stop();
+            }
+        });
+        setOnClosed(event -> refresh.stop());
+    }
+
+    /**
+     * Открытие вкладки диагностики в панели pane (если вкладка уже открыта, она выбирается)
+     */
+    public static void open(TabPane pane) {
+        DiagnosticsTab tab = (DiagnosticsTab) pane.getTabs().stream()
+                .filter(DiagnosticsTab.class::isInstance).findFirst().orElse(null);
+        if (tab == null) {
+            tab = new DiagnosticsTab();
+            pane.getTabs().add(tab);
+        }
+        pane.getSelectionModel().select(tab);
+    }
+
+    private void update() {
+        StringBuilder report = new StringBuilder();
+        if (!FxMonitor.isEnabled()) {
+            report.append("FX monitor is disabled (jwebbrowser.fx.monitor=false)\n");
+        }
+        report.append("== JavaFX thread ==\n")
+                .append(FxMonitor.getFrameTime()).append('\n')
+                .append(String.format("  frames over 16 ms: %.1f%%%n", (1 - FxMonitor.getFrameTime().getFractionBelow(16_000_000)) * 100))
+                .append(FxMonitor.getHeartbeatDelay()).append('\n')
+                .append(FxMonitor.getStallTime()).append('\n');
+
+        report.append("\n== Listeners (by total time) ==\n");
+        for (LatencyHistogram histogram : FxMonitor.getListenerTimes()) {
+            report.append(String.format("%-28s n=%-7d total=%9.1fms mean=%7.2fms p99=%7.2fms max=%7.2fms%n",
+                    histogram.getName(), histogram.getCount(), histogram.getMeanNanos() * histogram.getCount() / 1e6,
+                    histogram.getMeanNanos() / 1e6, histogram.getPercentileNanos(99) / 1e6, histogram.getMaxNanos() / 1e6));
+        }
+
+        report.append("\n== Background tasks ==\n")
+                .append(TaskScheduler.getStatistics()).append('\n')
+                .append(TaskScheduler.getQueueWait()).append('\n')
+                .append(TaskScheduler.getRunTime()).append('\n');
+
+        report.append("\n== HTTP cache ==\n").append(HttpCache.getStatistics()).append('\n');
+        report.append("\n== WebView pool ==\n").append(WebViewPool.getStatistics()).append('\n');
+        report.append("\n== Content filter ==\n").append(ContentFilter.getStatistics()).append('\n');
+        report.append("\n== Automation ==\n")
+                .append(AutomationServer.getStatistics()).append('\n')
+                .append(AutomationServer.getCommandTime()).append('\n');
+
+        report.append("\n== Speculative loading ==\n")
+                .append(SpeculativeLoader.getStatistics()).append('\n')
+                .append(SpeculativeLoader.getSavedTime()).append('\n')
+                .append(SpeculativeLoader.getWarmLoads()).append('\n')
+                .append(SpeculativeLoader.getColdLoads()).append('\n');
+
+        List<FxMonitor.Stall> stalls = FxMonitor.getRecentStalls();
+        report.append("\n== Recent stalls (").append(FxMonitor.getStallCount()).append(" total) ==\n");
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+        for (FxMonitor.Stall stall : stalls) {
+            report.append(String.format("%s %.0f ms%s%n", format.format(new Date(stall.getTime())), stall.getDurationNanos() / 1e6,
+                    stall.getListener() != null ? " in " + stall.getListener() : ""));
+            report.append(stall.getStack()).append('\n');
+        }
+
+        //Позиция прокрутки сохраняется при обновлении текста
+        double scrollTop = text.getScrollTop();
+        text.setText(report.toString());
+        text.setScrollTop(scrollTop);
+    }
+
+}
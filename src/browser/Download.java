@@ -0,0 +1,148 @@
+package browser;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Класс Download описывает одну загрузку файла: адрес, путь сохранения, состояние и прогресс.
+ * Счётчики обновляются фоновыми потоками загрузки, а панель загрузок периодически считывает их
+ * в потоке JavaFX, поэтому все изменяемые поля потокобезопасны
+ */
+public class Download {
+
+    /**
+     * Возможные состояния загрузки
+     */
+    public enum State {
+        QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED
+    }
+
+    private final String url;
+
+    private final Path target;
+
+    private final long startTime = System.currentTimeMillis();
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.QUEUED);
+
+    private volatile String error;
+
+    private volatile int segments = 1;
+
+    private volatile boolean stopRequested;
+
+    /**
+     * Внутренняя остановка частей загрузки после ошибки одной из них. В отличие от stopRequested
+     * не означает паузу или отмену пользователем
+     */
+    private volatile boolean aborted;
+
+    /**
+     * Количество скачанных байт и общий размер файла (-1, если сервер его не сообщил)
+     */
+    private final AtomicLong bytesDownloaded = new AtomicLong();
+
+    private final AtomicLong totalBytes = new AtomicLong(-1);
+
+    public Download(String url, Path target) {
+        this.url = url;
+        this.target = target;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public Path getTarget() {
+        return target;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    /**
+     * Смена состояния, только если загрузка находится в состоянии expected: переходы потока загрузки
+     * не должны затирать отмену, выполненную пользователем в это же время
+     */
+    boolean compareAndSetState(State expected, State state) {
+        return this.state.compareAndSet(expected, state);
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    void setError(String error) {
+        this.error = error;
+    }
+
+    public int getSegments() {
+        return segments;
+    }
+
+    void setSegments(int segments) {
+        this.segments = segments;
+    }
+
+    public long getBytesDownloaded() {
+        return bytesDownloaded.get();
+    }
+
+    void setBytesDownloaded(long bytes) {
+        bytesDownloaded.set(bytes);
+    }
+
+    void addBytesDownloaded(long bytes) {
+        bytesDownloaded.addAndGet(bytes);
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    void setTotalBytes(long bytes) {
+        totalBytes.set(bytes);
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Прогресс загрузки от 0 до 1 либо -1, если размер файла неизвестен
+     */
+    public double getProgress() {
+        long total = getTotalBytes();
+        return total > 0 ? Math.min(1.0, (double) getBytesDownloaded() / total) : -1;
+    }
+
+    /**
+     * Флаг остановки проверяется потоками загрузки после каждого прочитанного блока
+     */
+    boolean isStopRequested() {
+        return stopRequested;
+    }
+
+    void setStopRequested(boolean stopRequested) {
+        this.stopRequested = stopRequested;
+    }
+
+    void setAborted(boolean aborted) {
+        this.aborted = aborted;
+    }
+
+    /**
+     * Части загрузки прекращают работу как по запросу пользователя, так и после ошибки другой части
+     */
+    boolean shouldStop() {
+        return stopRequested || aborted;
+    }
+
+    public boolean isActive() {
+        State current = state.get();
+        return current == State.QUEUED || current == State.RUNNING;
+    }
+
+}
@@ -0,0 +1,244 @@
+package browser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Класс DownloadDetector - распознавание адресов, которые нужно не отображать, а скачивать.
+ * <p>
+ * Сначала проверяется расширение файла в пути адреса (без строки запроса и фрагмента) по хэш-таблицам
+ * расширений файлов для скачивания и расширений страниц. Если по расширению ничего сказать нельзя
+ * (расширение неизвестно либо его нет, но одна из частей пути или параметр запроса указывает на скачивание),
+ * в фоне выполняется запрос HEAD и проверяются заголовки Content-Type и Content-Disposition.
+ * Результат запроса передаётся в поток JavaFX, если вкладка к этому времени не закрыта
+ */
+public final class DownloadDetector {
+
+    private static final int CONNECT_TIMEOUT = BrowserSettings.getInt("jwebbrowser.download.probeTimeout", 3_000);
+
+    /**
+     * Расширения файлов для скачивания
+     */
+    private static final Set<String> DOWNLOADABLE_EXTENSIONS = new HashSet<>(Arrays.asList("doc", "docx", "xls",
+            "xlsx", "ppt", "pptx", "pdf", "zip", "rar", "7z", "tgz", "gz", "tar", "jar", "exe", "msi", "dll", "bat",
+            "dmg", "iso", "bin", "torrent", "apk", "deb", "rpm", "psd", "sai", "mp3", "wav", "midi", "mp4", "avi",
+            "ini", "txt", "xml", "css", "js", "svg", "jpg", "png", "bmp", "gif"));
+
+    /**
+     * Типы MIME, которые WebView не отображает
+     */
+    private static final Set<String> DOWNLOADABLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/octet-stream", "application/pdf", "application/zip", "application/x-zip-compressed", "application/vnd.rar", "application/x-rar-compressed",
+            "application/x-7z-compressed", "application/gzip", "application/x-gzip", "application/x-tar",
+            "application/x-bzip2", "application/x-xz", "application/java-archive", "application/x-msdownload",
+            "application/x-msi", "application/x-apple-diskimage", "application/x-iso9660-image",
+            "application/x-bittorrent", "application/vnd.android.package-archive",
+            "application/vnd.debian.binary-package", "application/x-rpm", "application/msword",
+            "application/vnd.ms-excel", "application/vnd.ms-powerpoint", "application/rtf", "application/epub+zip",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.oasis.opendocument.text", "application/vnd.oasis.opendocument.spreadsheet",
+            "image/vnd.adobe.photoshop", "text/csv"));
+
+    /**
+     * Расширения страниц, для которых запрос HEAD не нужен
+     */
+    private static final Set<String> PAGE_EXTENSIONS = new HashSet<>(Arrays.asList("html", "htm", "xhtml",
+            "shtml", "php", "asp", "aspx", "jsp", "jspx", "cgi", "pl", "cfm", "do", "action", "md"));
+
+    /**
+     * Части пути адреса (целиком, между символами '/'), указывающие на ссылку для скачивания
+     */
+    private static final Set<String> DOWNLOAD_HINTS = new HashSet<>(Arrays.asList("download", "downloads",
+            "attachment", "attachments", "export", "file", "getfile", "dl"));
+
+    /**
+     * Имена и значения параметров строки запроса, указывающие на скачивание (?download=1, export=download,
+     * disposition=attachment). Строка запроса без таких параметров - обычно страница, и запрос HEAD не нужен
+     */
+    private static final Set<String> QUERY_HINTS = new HashSet<>(Arrays.asList("download", "attachment"));
+
+    private DownloadDetector() {
+    }
+
+    /**
+     * Признак файла для скачивания по расширению в пути адреса (только для адресов http и https,
+     * которые может загрузить DownloadManager)
+     */
+    public static boolean isDownloadableExtension(String url) {
+        if (!isHttp(url)) {
+            return false;
+        }
+        String extension = getExtension(url);
+        return extension != null && DOWNLOADABLE_EXTENSIONS.contains(extension);
+    }
+
+    /**
+     * Признак файла для скачивания по значению заголовка Content-Type (параметры вроде charset не учитываются)
+     */
+    public static boolean isDownloadableType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int end = contentType.indexOf(';');
+        String type = (end < 0 ? contentType : contentType.substring(0, end)).strip().toLowerCase(Locale.ROOT);
+        return DOWNLOADABLE_TYPES.contains(type) || type.startsWith("audio/") || type.startsWith("video/")
+                || type.startsWith("font/");
+    }
+
+    /**
+     * Нужен ли запрос HEAD, чтобы определить, является ли адрес файлом для скачивания
+     */
+    public static boolean needsProbe(String url) {
+        if (!isHttp(url)) {
+            return false;
+        }
+        String extension = getExtension(url);
+        if (extension != null) {
+            return !PAGE_EXTENSIONS.contains(extension) && !DOWNLOADABLE_EXTENSIONS.contains(extension);
+        }
+        int pathStart = getPathStart(url);
+        int pathEnd = getPathEnd(url, pathStart);
+        for (String segment : url.substring(pathStart, pathEnd).split("/")) {
+            if (DOWNLOAD_HINTS.contains(segment.toLowerCase(Locale.ROOT))) {
+                return true;
+            }
+        }
+        if (pathEnd < url.length() && url.charAt(pathEnd) == '?') {
+            int queryEnd = url.indexOf('#', pathEnd);
+            String query = url.substring(pathEnd + 1, queryEnd < 0 ? url.length() : queryEnd).toLowerCase(Locale.ROOT);
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                String name = equals < 0 ? parameter : parameter.substring(0, equals);
+                String value = equals < 0 ? "" : parameter.substring(equals + 1);
+                if (QUERY_HINTS.contains(name) || QUERY_HINTS.contains(value) || parameter.equals("dl=1")) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Фоновый запрос HEAD в области задач вкладки. В поток JavaFX передаётся предлагаемое имя файла,
+     * если по адресу находится файл для скачивания, либо null
+     */
+    public static void probe(String url, TaskScheduler.Scope scope, Consumer<String> callback) {
+        TaskScheduler.submit(scope, "download probe", () -> {
+            String fileName = null;
+            try {
+                HttpResponse<InputStream> response = NetworkClient.send(NetworkClient.newRequest(url)
+                        .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                        .timeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                        .build());
+                response.body().close();
+                if (response.statusCode() == 200) {
+                    String disposition = response.headers().firstValue("Content-Disposition").orElse(null);
+                    boolean attachment = disposition != null && disposition.strip().toLowerCase(Locale.ROOT).startsWith("attachment");
+                    if (attachment || isDownloadableType(response.headers().firstValue("Content-Type").orElse(null))) {
+                        fileName = getFileName(response.uri().toString(), disposition);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                //Сервер недоступен или не поддерживает HEAD - страница загружается как обычно
+            }
+            return fileName;
+        }, callback);
+    }
+
+    /**
+     * Имя файла из заголовка Content-Disposition (filename* или filename) либо из последней части пути адреса
+     */
+    public static String getFileName(String url, String contentDisposition) {
+        if (contentDisposition != null) {
+            for (String part : contentDisposition.split(";")) {
+                String parameter = part.strip();
+                try {
+                    if (parameter.regionMatches(true, 0, "filename*=", 0, 10)) {
+                        //filename*=UTF-8''имя%20файла.zip
+                        String value = parameter.substring(10);
+                        int quote = value.indexOf("''");
+                        return sanitize(URLDecoder.decode(quote >= 0 ? value.substring(quote + 2) : value, StandardCharsets.UTF_8));
+                    }
+                    if (parameter.regionMatches(true, 0, "filename=", 0, 9)) {
+                        return sanitize(parameter.substring(9).replace("\"", ""));
+                    }
+                } catch (IllegalArgumentException e) {
+                    //Некорректное кодирование имени - используется имя из адреса
+                }
+            }
+        }
+        int pathStart = getPathStart(url);
+        int pathEnd = getPathEnd(url, pathStart);
+        String name = pathStart < pathEnd ? url.substring(url.lastIndexOf('/', pathEnd - 1) + 1, pathEnd) : "";
+        try {
+            name = URLDecoder.decode(name, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            //Имя остаётся в закодированном виде
+        }
+        return sanitize(name.isEmpty() ? "download" : name);
+    }
+
+    /**
+     * Расширение файла в пути адреса в нижнем регистре (без точки) либо null
+     */
+    static String getExtension(String url) {
+        int pathStart = getPathStart(url);
+        int pathEnd = getPathEnd(url, pathStart);
+        for (int i = pathEnd - 1; i >= pathStart; i--) {
+            char c = url.charAt(i);
+            if (c == '.') {
+                return i + 1 < pathEnd ? url.substring(i + 1, pathEnd).toLowerCase(Locale.ROOT) : null;
+            }
+            if (c == '/') {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Начало пути адреса (после схемы и хоста)
+     */
+    private static int getPathStart(String url) {
+        int scheme = url.indexOf("://");
+        if (scheme < 0) {
+            return 0;
+        }
+        int slash = url.indexOf('/', scheme + 3);
+        return slash < 0 ? url.length() : slash;
+    }
+
+    /**
+     * Конец пути адреса (начало строки запроса или фрагмента)
+     */
+    private static int getPathEnd(String url, int pathStart) {
+        for (int i = pathStart; i < url.length(); i++) {
+            char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
+            }
+        }
+        return url.length();
+    }
+
+    private static boolean isHttp(String url) {
+        return url.regionMatches(true, 0, "http:", 0, 5) || url.regionMatches(true, 0, "https:", 0, 6);
+    }
+
+    private static String sanitize(String name) {
+        return name.replaceAll("[\\\\/:*?\"<>|\\x00-\\x1F]", "_").strip();
+    }
+
+}
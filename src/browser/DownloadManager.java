@@ -0,0 +1,478 @@
+package browser;
+
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Класс DownloadManager - подсистема загрузки файлов.
+ * Файл потоково записывается на диск в фоновых потоках через FileChannel с большими переиспользуемыми буферами.
+ * Поддерживаются докачка прерванных загрузок (HTTP Range) и параллельная загрузка больших файлов по частям.
+ * Данные пишутся во временный файл *.part, а состояние частей - в *.part.meta, поэтому приостановленная
+ * или оборвавшаяся загрузка продолжается с того же места
+ */
+public final class DownloadManager {
+
+    /**
+     * Размер буфера чтения одного потока загрузки
+     */
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Файлы больше этого размера загружаются по частям (если сервер поддерживает Range)
+     */
+    private static final long SEGMENT_THRESHOLD = 16L * 1024 * 1024;
+
+    private static final int MAX_SEGMENTS = BrowserSettings.getInt("jwebbrowser.download.segments", 4);
+
+    private static final int MAX_PARALLEL_DOWNLOADS = BrowserSettings.getInt("jwebbrowser.download.parallel", 3);
+
+    private static final int READ_TIMEOUT = BrowserSettings.getInt("jwebbrowser.download.readTimeout", 30_000);
+
+    private static final int HTTP_OK = 200;
+
+    private static final int HTTP_PARTIAL = 206;
+
+    /**
+     * Список всех загрузок (изменяется только в потоке JavaFX)
+     */
+    private static final ObservableList<Download> downloads = FXCollections.observableArrayList();
+
+    /**
+     * Пул потоков для загрузок целиком: его очередь - очередь загрузок в состоянии QUEUED.
+     * Части загружаются в отдельном пуле, чтобы задача загрузки не ожидала свои же части в том же пуле
+     */
+    private static final ExecutorService downloadExecutor = Executors.newFixedThreadPool(MAX_PARALLEL_DOWNLOADS,
+            daemonFactory("download"));
+
+    /**
+     * Пул потоков для частей загрузок. Части занимают поток на всё время передачи, поэтому они не выполняются
+     * в общем пуле TaskScheduler, где иначе ждали бы своей очереди фавиконки, история и другие короткие задачи.
+     * Размер пула рассчитан на все части всех одновременных загрузок
+     */
+    private static final ExecutorService segmentExecutor = createSegmentExecutor();
+
+    /**
+     * Буферы переиспользуются каждым потоком между загрузками
+     */
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private DownloadManager() {
+    }
+
+    public static ObservableList<Download> getDownloads() {
+        return downloads;
+    }
+
+    /**
+     * Запуск новой загрузки файла по адресу url в файл target
+     */
+    public static Download start(String url, Path target) {
+        Download download = new Download(url, target);
+        downloads.add(0, download);
+        downloadExecutor.execute(() -> run(download));
+        return download;
+    }
+
+    /**
+     * Приостановка загрузки. Уже скачанные данные сохраняются для последующей докачки
+     */
+    public static void pause(Download download) {
+        if (download.isActive()) {
+            download.setStopRequested(true);
+        }
+    }
+
+    /**
+     * Возобновление приостановленной или завершившейся с ошибкой загрузки
+     */
+    public static void resume(Download download) {
+        Download.State previous = download.getState();
+        if (previous != Download.State.PAUSED && previous != Download.State.FAILED) {
+            return;
+        }
+        download.setStopRequested(false);
+        download.setError(null);
+        if (download.compareAndSetState(previous, Download.State.QUEUED)) {
+            downloadExecutor.execute(() -> run(download));
+        }
+    }
+
+    /**
+     * Отмена загрузки с удалением временных файлов. Завершённая загрузка не отменяется.
+     * Временные файлы остановленной загрузки удаляются сразу, а загрузки в очереди или в работе - её потоком
+     */
+    public static void cancel(Download download) {
+        Download.State previous;
+        //Смена состояния и перенос готового файла в run() не должны пересекаться
+        synchronized (download) {
+            do {
+                previous = download.getState();
+                if (previous == Download.State.COMPLETED || previous == Download.State.CANCELLED) {
+                    return;
+                }
+            } while (!download.compareAndSetState(previous, Download.State.CANCELLED));
+        }
+        download.setStopRequested(true);
+        if (previous == Download.State.PAUSED || previous == Download.State.FAILED) {
+            deletePartFiles(download);
+        }
+    }
+
+    private static void run(Download download) {
+        //Загрузка, отменённая в очереди, не запускается; её временные файлы (после возобновления) удаляются
+        if (!download.compareAndSetState(Download.State.QUEUED, Download.State.RUNNING)) {
+            if (download.getState() == Download.State.CANCELLED) {
+                deletePartFiles(download);
+            }
+            return;
+        }
+        Path partFile = getPartFile(download, ".part");
+        try {
+            Probe probe = probe(download.getUrl());
+            download.setTotalBytes(probe.length);
+            List<Segment> segments = loadSegments(download, probe);
+            if (segments == null) {
+                segments = planSegments(probe);
+                Files.deleteIfExists(partFile);
+            }
+            download.setSegments(segments.size());
+            download.setBytesDownloaded(segments.stream().mapToLong(Segment::getDone).sum());
+
+            try (FileChannel out = FileChannel.open(partFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                if (segments.size() == 1) {
+                    downloadSegment(download, probe, segments.get(0), out);
+                } else {
+                    downloadSegments(download, probe, segments, out);
+                }
+            }
+
+            if (download.isStopRequested()) {
+                saveSegments(download, probe, segments);
+                finishStopped(download);
+                return;
+            }
+            //Отмена после проверки выше не должна опубликовать файл: состояние проверяется вместе с переносом
+            synchronized (download) {
+                if (download.getState() != Download.State.RUNNING) {
+                    finishStopped(download);
+                    return;
+                }
+                Files.move(partFile, download.getTarget(), StandardCopyOption.REPLACE_EXISTING);
+                download.setTotalBytes(download.getBytesDownloaded());
+                download.compareAndSetState(Download.State.RUNNING, Download.State.COMPLETED);
+            }
+            Files.deleteIfExists(getPartFile(download, ".part.meta"));
+        } catch (Exception e) {
+            if (download.isStopRequested()) {
+                finishStopped(download);
+                return;
+            }
+            download.setError(e.getMessage() == null ? e.toString() : e.getMessage());
+            download.compareAndSetState(Download.State.RUNNING, Download.State.FAILED);
+            System.err.println("Unable to save file: " + e);
+        } catch (Error e) {
+            download.setError(e.toString());
+            download.compareAndSetState(Download.State.RUNNING, Download.State.FAILED);
+            throw e;
+        }
+    }
+
+    private static void finishStopped(Download download) {
+        if (!download.compareAndSetState(Download.State.RUNNING, Download.State.PAUSED)
+                && download.getState() == Download.State.CANCELLED) {
+            deletePartFiles(download);
+        }
+    }
+
+    /**
+     * Параллельная загрузка частей файла. Раз в секунду состояние частей сохраняется на диск
+     */
+    private static void downloadSegments(Download download, Probe probe, List<Segment> segments, FileChannel out)
+            throws Exception {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Segment segment : segments) {
+            futures.add(segmentExecutor.submit(() -> {
+                downloadSegment(download, probe, segment, out);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                while (true) {
+                    try {
+                        future.get(1, TimeUnit.SECONDS);
+                        break;
+                    } catch (TimeoutException e) {
+                        saveSegments(download, probe, segments);
+                    }
+                }
+            }
+        } catch (ExecutionException e) {
+            //Ошибка одной части останавливает остальные, уже скачанное сохраняется для докачки
+            //Пауза или отмена, запрошенные пользователем в это время, сохраняются
+            download.setAborted(true);
+            try {
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException ignored) {
+                        //Ошибка уже обрабатывается
+                    }
+                }
+            } finally {
+                download.setAborted(false);
+            }
+            saveSegments(download, probe, segments);
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof Exception ? (Exception) cause : new IOException(cause);
+        }
+    }
+
+    /**
+     * Потоковая загрузка одной части файла с позиционной записью в общий FileChannel
+     */
+    private static void downloadSegment(Download download, Probe probe, Segment segment, FileChannel out)
+            throws IOException {
+        if (segment.isComplete()) {
+            return;
+        }
+        boolean ranged = segment.position > 0 || segment.end >= 0 && probe.acceptRanges;
+        HttpRequest.Builder request = newRequest(download.getUrl());
+        if (ranged) {
+            request.header("Range", "bytes=" + segment.position + "-" + (segment.end >= 0 ? segment.end : ""));
+            if (probe.validator != null) {
+                request.header("If-Range", probe.validator);
+            }
+        }
+        HttpResponse<InputStream> response = NetworkClient.send(request.build());
+        int code = response.statusCode();
+        if (ranged && code == HTTP_OK) {
+            //Сервер проигнорировал Range: начать заново можно только при загрузке в один поток
+            if (segment.start != 0 || segment.end >= 0 && segment.end != probe.length - 1) {
+                response.body().close();
+                throw new IOException("Server does not support ranged requests");
+            }
+            download.addBytesDownloaded(-segment.getDone());
+            segment.position = 0;
+        } else if (code != HTTP_OK && code != HTTP_PARTIAL) {
+            response.body().close();
+            throw new IOException("HTTP " + code + " " + HttpCache.getReasonPhrase(code));
+        }
+
+        ByteBuffer buffer = buffers.get();
+        try (ReadableByteChannel in = Channels.newChannel(response.body())) {
+            while (!download.shouldStop()) {
+                buffer.clear();
+                if (segment.end >= 0) {
+                    long remaining = segment.end - segment.position + 1;
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                }
+                int read = in.read(buffer);
+                if (read == -1) {
+                    break;
+                }
+                buffer.flip();
+                long position = segment.position;
+                while (buffer.hasRemaining()) {
+                    position += out.write(buffer, position);
+                }
+                segment.position = position;
+                download.addBytesDownloaded(read);
+            }
+        }
+        if (!download.shouldStop() && segment.end >= 0 && !segment.isComplete()) {
+            throw new IOException("Connection closed after " + segment.position + " of " + (segment.end + 1) + " bytes");
+        }
+    }
+
+    /**
+     * Предварительный HEAD-запрос: размер файла, поддержка Range и валидатор для If-Range
+     */
+    private static Probe probe(String url) {
+        Probe probe = new Probe();
+        try {
+            HttpResponse<InputStream> response = NetworkClient.send(newRequest(url)
+                    .method("HEAD", HttpRequest.BodyPublishers.noBody()).build());
+            response.body().close();
+            if (response.statusCode() == HTTP_OK) {
+                HttpHeaders headers = response.headers();
+                probe.length = NetworkClient.getContentLength(response);
+                probe.acceptRanges = "bytes".equalsIgnoreCase(headers.firstValue("Accept-Ranges").orElse(null));
+                String etag = headers.firstValue("ETag").orElse(null);
+                //If-Range допускает только строгие ETag
+                probe.validator = etag != null && !etag.startsWith("W/") ? etag : headers.firstValue("Last-Modified").orElse(null);
+            }
+        } catch (IOException e) {
+            //Сервер не поддерживает HEAD - загружаем в один поток без докачки
+        }
+        return probe;
+    }
+
+    private static List<Segment> planSegments(Probe probe) {
+        List<Segment> segments = new ArrayList<>();
+        if (probe.length >= SEGMENT_THRESHOLD && probe.acceptRanges && MAX_SEGMENTS > 1) {
+            int count = (int) Math.min(MAX_SEGMENTS, probe.length / (SEGMENT_THRESHOLD / 2));
+            long size = probe.length / count;
+            for (int i = 0; i < count; i++) {
+                long start = i * size;
+                long end = i == count - 1 ? probe.length - 1 : start + size - 1;
+                segments.add(new Segment(start, end, start));
+            }
+        } else {
+            segments.add(new Segment(0, probe.length > 0 ? probe.length - 1 : -1, 0));
+        }
+        return segments;
+    }
+
+    /**
+     * Чтение состояния частей ранее прерванной загрузки. Возвращает null, если докачка невозможна
+     * (файл на сервере изменился, сервер не поддерживает Range или временные файлы отсутствуют)
+     */
+    private static List<Segment> loadSegments(Download download, Probe probe) {
+        Path metaFile = getPartFile(download, ".part.meta");
+        if (!probe.acceptRanges || probe.validator == null
+                || !Files.isRegularFile(metaFile) || !Files.isRegularFile(getPartFile(download, ".part"))) {
+            return null;
+        }
+        try {
+            List<String> lines = Files.readAllLines(metaFile, StandardCharsets.UTF_8);
+            if (lines.size() < 4 || !lines.get(0).equals(download.getUrl()) || !lines.get(1).equals(probe.validator)
+                    || Long.parseLong(lines.get(2)) != probe.length) {
+                return null;
+            }
+            List<Segment> segments = new ArrayList<>();
+            for (String line : lines.subList(3, lines.size())) {
+                String[] fields = line.split(" ");
+                segments.add(new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+            return segments;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static void saveSegments(Download download, Probe probe, List<Segment> segments) {
+        if (!probe.acceptRanges || probe.validator == null || probe.length <= 0) {
+            return;
+        }
+        StringBuilder meta = new StringBuilder();
+        meta.append(download.getUrl()).append('\n').append(probe.validator).append('\n').append(probe.length).append('\n');
+        for (Segment segment : segments) {
+            meta.append(segment.start).append(' ').append(segment.end).append(' ').append(segment.position).append('\n');
+        }
+        Path metaFile = getPartFile(download, ".part.meta");
+        Path tmp = getPartFile(download, ".part.meta.tmp");
+        try {
+            Files.writeString(tmp, meta, StandardCharsets.UTF_8);
+            Files.move(tmp, metaFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to save download state: " + e);
+        }
+    }
+
+    private static void deletePartFiles(Download download) {
+        try {
+            Files.deleteIfExists(getPartFile(download, ".part"));
+            Files.deleteIfExists(getPartFile(download, ".part.meta"));
+        } catch (IOException e) {
+            System.err.println("Unable to delete temporary files: " + e);
+        }
+    }
+
+    private static Path getPartFile(Download download, String suffix) {
+        return download.getTarget().resolveSibling(download.getTarget().getFileName() + suffix);
+    }
+
+    /**
+     * Загрузки идут через NetworkClient в обход HTTP-кэша: большие ответы и запросы Range не кэшируются
+     */
+    private static HttpRequest.Builder newRequest(String url) throws IOException {
+        return NetworkClient.newRequest(url)
+                .timeout(Duration.ofMillis(READ_TIMEOUT))
+                //Сжатие сделало бы смещения Range бессмысленными
+                .header("Accept-Encoding", "identity");
+    }
+
+    /**
+     * Потоки пула частей завершаются после минуты простоя, так что без загрузок пул не держит потоков
+     */
+    private static ExecutorService createSegmentExecutor() {
+        int threads = MAX_PARALLEL_DOWNLOADS * Math.max(1, MAX_SEGMENTS);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonFactory("download-segment"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Результат предварительного запроса к серверу
+     */
+    private static class Probe {
+
+        private long length = -1;
+        private boolean acceptRanges;
+        private String validator;
+
+    }
+
+    /**
+     * Часть файла: границы [start, end] (end = -1, если размер неизвестен) и позиция следующего байта
+     */
+    private static class Segment {
+
+        private final long start;
+        private final long end;
+        private volatile long position;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        long getDone() {
+            return position - start;
+        }
+
+        boolean isComplete() {
+            return end >= 0 && position > end;
+        }
+
+    }
+
+}
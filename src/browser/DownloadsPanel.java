@@ -0,0 +1,160 @@
+package browser;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.collections.ListChangeListener;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Класс DownloadsPanel - окно со списком загрузок, их прогрессом и скоростью.
+ * Состояние загрузок считывается по таймеру, поэтому фоновые потоки не нагружают поток JavaFX
+ */
+public final class DownloadsPanel {
+
+    private static Stage stage;
+
+    private static final Map<Download, Row> rows = new HashMap<>();
+
+    private DownloadsPanel() {
+    }
+
+    /**
+     * Отображение окна загрузок (окно создаётся при первом вызове)
+     */
+    public static void show() {
+        if (stage == null) {
+            stage = createStage();
+        }
+        stage.show();
+        stage.toFront();
+    }
+
+    private static Stage createStage() {
+        VBox list = new VBox(5);
+        ScrollPane scrollPane = new ScrollPane(list);
+        scrollPane.setFitToWidth(true);
+
+        DownloadManager.getDownloads().forEach(download -> addRow(list, download, list.getChildren().size()));
+        DownloadManager.getDownloads().addListener((ListChangeListener<Download>) change -> {
+            while (change.next()) {
+                for (Download download : change.getRemoved()) {
+                    Row row = rows.remove(download);
+                    if (row != null) {
+                        list.getChildren().remove(row.box);
+                    }
+                }
+                for (int i = 0; i < change.getAddedSize(); i++) {
+                    addRow(list, change.getAddedSubList().get(i), change.getFrom() + i);
+                }
+            }
+        });
+
+        //Обновление прогресса и скорости два раза в секунду
+        Timeline refresh = new Timeline(new KeyFrame(Duration.millis(500),
+                FxMonitor.timedHandler("downloads.refresh", event -> rows.values().forEach(Row::update))));
+        refresh.setCycleCount(Timeline.INDEFINITE);
+
+        Stage downloadsStage = new Stage();
+        downloadsStage.setTitle("Downloads");
+        downloadsStage.setScene(new Scene(scrollPane, 600, 300));
+        downloadsStage.setOnShown(event -> refresh.play());
+        downloadsStage.setOnHidden(event -> refresh.stop());
+        return downloadsStage;
+    }
+
+    private static void addRow(VBox list, Download download, int index) {
+        Row row = new Row(download);
+        rows.put(download, row);
+        list.getChildren().add(Math.min(index, list.getChildren().size()), row.box);
+    }
+
+    /**
+     * Строка списка загрузок
+     */
+    private static class Row {
+
+        private final Download download;
+        private final HBox box = new HBox(5);
+        private final ProgressBar progressBar = new ProgressBar(0);
+        private final Label status = new Label();
+        private final Button pauseButton = new Button("Pause");
+        private long lastBytes;
+        private long lastTime = System.nanoTime();
+        private double speed;
+
+        Row(Download download) {
+            this.download = download;
+            this.lastBytes = download.getBytesDownloaded();
+            Label name = new Label(download.getTarget().getFileName().toString());
+            name.setPrefWidth(160);
+            progressBar.setPrefWidth(150);
+            HBox.setHgrow(status, Priority.ALWAYS);
+            status.setMaxWidth(Double.MAX_VALUE);
+            pauseButton.setOnAction(event -> {
+                if (download.isActive()) {
+                    DownloadManager.pause(download);
+                } else {
+                    DownloadManager.resume(download);
+                }
+            });
+            Button cancelButton = new Button("Cancel");
+            cancelButton.setOnAction(event -> DownloadManager.cancel(download));
+            box.getChildren().addAll(name, progressBar, status, pauseButton, cancelButton);
+            update();
+        }
+
+        void update() {
+            long now = System.nanoTime();
+            long bytes = download.getBytesDownloaded();
+            double seconds = (now - lastTime) / 1e9;
+            if (seconds > 0) {
+                //Сглаживание мгновенной скорости
+                speed = speed * 0.5 + Math.max(0, bytes - lastBytes) / seconds * 0.5;
+            }
+            lastBytes = bytes;
+            lastTime = now;
+
+            progressBar.setProgress(download.getProgress());
+            Download.State state = download.getState();
+            String text = formatBytes(bytes) + (download.getTotalBytes() > 0 ? " / " + formatBytes(download.getTotalBytes()) : "");
+            if (state == Download.State.RUNNING) {
+                text += ", " + formatBytes((long) speed) + "/s";
+                if (download.getSegments() > 1) {
+                    text += ", " + download.getSegments() + " parts";
+                }
+            } else if (state == Download.State.COMPLETED) {
+                long elapsed = Math.max(1, System.currentTimeMillis() - download.getStartTime());
+                text += ", done (avg " + formatBytes(bytes * 1000 / elapsed) + "/s)";
+            } else if (state == Download.State.FAILED) {
+                text += ", failed: " + download.getError();
+            } else {
+                text += ", " + state.name().toLowerCase();
+            }
+            status.setText(text);
+            pauseButton.setText(download.isActive() ? "Pause" : "Resume");
+            pauseButton.setDisable(state == Download.State.COMPLETED || state == Download.State.CANCELLED);
+        }
+
+    }
+
+    static String formatBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %sB", bytes / (double) (1L << (unit * 10)), "KMGTPE".charAt(unit - 1));
+    }
+
+}
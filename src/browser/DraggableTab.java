@@ -1,13 +1,17 @@
 package browser;
 
-import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
 
+import javafx.beans.InvalidationListener;
 import javafx.collections.ListChangeListener;
+import javafx.collections.ObservableList;
 import javafx.event.EventHandler;
 import javafx.geometry.Point2D;
 import javafx.geometry.Pos;
 import javafx.geometry.Rectangle2D;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.Control;
 import javafx.scene.control.Label;
@@ -20,6 +24,7 @@ import javafx.scene.shape.Rectangle;
 import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
+import javafx.stage.Window;
 import javafx.stage.WindowEvent;
 
 /**
@@ -30,22 +35,20 @@ import javafx.stage.WindowEvent;
  */
 public class DraggableTab extends Tab {
 
-    private static final Set<TabPane> tabPanes = new HashSet<>();
+    private static final Set<TabPane> tabPanes = new LinkedHashSet<>();
+
+    /**
+     * Индекс мест вставки, построенный на начало перетаскивания (null - нужно построить заново),
+     * и слушатели окон и раскладки панелей, которые сбрасывают индекс
+     */
+    private static TabDropIndex<TabPane> dropIndex;
+    private static final Subscriptions dropIndexListeners = new Subscriptions();
     private Label nameLabel;
     private Text dragText;
-    private static final Stage markerStage;
+    private static Stage markerStage;
     private Stage dragStage;
     private boolean detachable;
 
-    static {
-        markerStage = new Stage();
-        markerStage.initStyle(StageStyle.UNDECORATED);
-        Rectangle dummy = new Rectangle(3, 10, Color.RED);
-        StackPane markerStack = new StackPane();
-        markerStack.getChildren().add(dummy);
-        markerStage.setScene(new Scene(markerStack));
-    }
-
     /**
      * Создание конструктора для перетаскиваемой вкладки.
      * <p>
@@ -56,43 +59,31 @@ public class DraggableTab extends Tab {
         nameLabel = new Label(text);
         setGraphic(nameLabel);
         detachable = true;
-        dragStage = new Stage();
-        dragStage.initStyle(StageStyle.UNDECORATED);
-        StackPane dragStagePane = new StackPane();
-        dragStagePane.setStyle("-fx-background-color:#DDDDDD;");
-        dragText = new Text(text);
-        StackPane.setAlignment(dragText, Pos.CENTER);
-        dragStagePane.getChildren().add(dragText);
-        dragStage.setScene(new Scene(dragStagePane));
         nameLabel.setOnMouseDragged(new EventHandler<>() {
 
             @Override
             public void handle(MouseEvent t) {
+                Stage dragStage = getDragStage();
                 dragStage.setWidth(nameLabel.getWidth() + 10);
                 dragStage.setHeight(nameLabel.getHeight() + 10);
                 dragStage.setX(t.getScreenX());
                 dragStage.setY(t.getScreenY());
                 dragStage.show();
                 Point2D screenPoint = new Point2D(t.getScreenX(), t.getScreenY());
-                tabPanes.add(getTabPane());
+                addTabPane(getTabPane());
                 InsertData data = getInsertData(screenPoint);
-                if (data == null || data.getInsertPane().getTabs().isEmpty()) {
-                    markerStage.hide();
+                if (data == null || data.getTabRect() == null) {
+                    getMarkerStage().hide();
                 } else {
-                    int index = data.getIndex();
-                    boolean end = false;
-                    if (index == data.getInsertPane().getTabs().size()) {
-                        end = true;
-                        index--;
-                    }
-                    Rectangle2D rect = getAbsoluteRect(data.getInsertPane().getTabs().get(index));
+                    Rectangle2D rect = data.getTabRect();
+                    boolean end = data.getIndex() == data.getInsertPane().getTabs().size();
                     if (end) {
-                        markerStage.setX(rect.getMaxX() + 13);
+                        getMarkerStage().setX(rect.getMaxX() + 13);
                     } else {
-                        markerStage.setX(rect.getMinX());
+                        getMarkerStage().setX(rect.getMinX());
                     }
-                    markerStage.setY(rect.getMaxY() + 10);
-                    markerStage.show();
+                    getMarkerStage().setY(rect.getMaxY() + 10);
+                    getMarkerStage().show();
                 }
             }
         });
@@ -100,14 +91,20 @@ public class DraggableTab extends Tab {
 
             @Override
             public void handle(MouseEvent t) {
-                markerStage.hide();
-                dragStage.hide();
+                getMarkerStage().hide();
+                if (t.isStillSincePress()) {
+                    invalidateDropIndex();
+                }
+                if (dragStage != null) {
+                    dragStage.hide();
+                }
                 if (!t.isStillSincePress()) {
                     Point2D screenPoint = new Point2D(t.getScreenX(), t.getScreenY());
                     TabPane oldTabPane = getTabPane();
                     int oldIndex = oldTabPane.getTabs().indexOf(DraggableTab.this);
-                    tabPanes.add(oldTabPane);
+                    addTabPane(oldTabPane);
                     InsertData insertData = getInsertData(screenPoint);
+                    invalidateDropIndex();
                     if (insertData != null) {
                         int addIndex = insertData.getIndex();
                         if (oldTabPane == insertData.getInsertPane() && oldTabPane.getTabs().size() == 1) {
@@ -127,22 +124,8 @@ public class DraggableTab extends Tab {
                     if (!detachable) {
                         return;
                     }
-                    final Stage newStage = new Stage();
-                    final TabPane pane = new TabPane();
-                    tabPanes.add(pane);
-                    newStage.setOnHiding(t1 -> tabPanes.remove(pane));
                     getTabPane().getTabs().remove(DraggableTab.this);
-                    pane.getTabs().add(DraggableTab.this);
-                    pane.getTabs().addListener((ListChangeListener<Tab>) change -> {
-                        if (pane.getTabs().isEmpty()) {
-                            newStage.hide();
-                        }
-                    });
-                    newStage.setScene(new Scene(pane));
-                    newStage.initStyle(StageStyle.UTILITY);
-                    newStage.setX(t.getScreenX());
-                    newStage.setY(t.getScreenY());
-                    newStage.show();
+                    TabPane pane = openWindow(List.of(DraggableTab.this), t.getScreenX(), t.getScreenY(), 0, 0);
                     pane.requestLayout();
                     pane.requestFocus();
                 }
@@ -151,6 +134,42 @@ public class DraggableTab extends Tab {
         });
     }
 
+    /**
+     * Создание отдельного окна с панелью, содержащей вкладки tabs. Окно закрывается, когда в нём не остаётся вкладок.
+     * <p>
+     *
+     * @параметр x, y - положение окна на экране; width, height - размер окна (0 - по размеру содержимого).
+     */
+    public static TabPane openWindow(List<? extends Tab> tabs, double x, double y, double width, double height) {
+        final Stage newStage = new Stage();
+        final TabPane pane = new TabPane();
+        addTabPane(pane);
+        newStage.setOnHiding(t1 -> {
+            tabPanes.remove(pane);
+            invalidateDropIndex();
+            //Окно закрыто целиком (кнопкой окна): вкладки, оставшиеся в нём, освобождают WebView и фоновые задачи.
+            //Вкладки не удаляются из панели, чтобы сессия сохранила последнее окно при выходе из браузера
+            for (Tab tab : pane.getTabs()) {
+                if (tab instanceof BrowserTab) {
+                    ((BrowserTab) tab).release();
+                }
+            }
+        });
+        pane.getTabs().addAll(tabs);
+        pane.getTabs().addListener((ListChangeListener<Tab>) change -> {
+            if (pane.getTabs().isEmpty()) {
+                newStage.hide();
+            }
+        });
+        newStage.setScene(width > 0 && height > 0 ? new Scene(pane, width, height) : new Scene(pane));
+        newStage.initStyle(StageStyle.UTILITY);
+        newStage.setX(x);
+        newStage.setY(y);
+        SessionStore.trackWindow(newStage, pane);
+        newStage.show();
+        return pane;
+    }
+
     /**
      * Установления специального флага, который даёт понять, можно ли открепить вкладку или нет.
      * Значение по умолчанию - true
@@ -171,75 +190,133 @@ public class DraggableTab extends Tab {
      */
     public void setLabelText(String text) {
         nameLabel.setText(text);
-        dragText.setText(text);
+        if (dragText != null) {
+            dragText.setText(text);
+        }
+    }
+
+    /**
+     * Маркер места вставки вкладки. Создаётся при первом перетаскивании, чтобы статические методы вкладок
+     * можно было использовать без запущенного JavaFX (в бенчмарках)
+     */
+    private static Stage getMarkerStage() {
+        if (markerStage == null) {
+            markerStage = new Stage();
+            markerStage.initStyle(StageStyle.UNDECORATED);
+            Rectangle dummy = new Rectangle(3, 10, Color.RED);
+            StackPane markerStack = new StackPane();
+            markerStack.getChildren().add(dummy);
+            markerStage.setScene(new Scene(markerStack));
+        }
+        return markerStage;
+    }
+
+    /**
+     * Окно, отображаемое под курсором при перетаскивании. Создаётся при первом перетаскивании,
+     * чтобы создание вкладки (например, при восстановлении сессии) не порождало лишних окон
+     */
+    private Stage getDragStage() {
+        if (dragStage == null) {
+            dragStage = new Stage();
+            dragStage.initStyle(StageStyle.UNDECORATED);
+            StackPane dragStagePane = new StackPane();
+            dragStagePane.setStyle("-fx-background-color:#DDDDDD;");
+            dragText = new Text(nameLabel.getText());
+            StackPane.setAlignment(dragText, Pos.CENTER);
+            dragStagePane.getChildren().add(dragText);
+            dragStage.setScene(new Scene(dragStagePane));
+        }
+        return dragStage;
     }
 
     private InsertData getInsertData(Point2D screenPoint) {
+        TabDropIndex.Entry<TabPane> entry = getDropIndex().paneAt(screenPoint.getX(), screenPoint.getY());
+        if (entry == null) {
+            return null;
+        }
+        int index = entry.insertIndex(screenPoint.getX(), screenPoint.getY());
+        if (index < 0) {
+            return null;
+        }
+        int tabCount = entry.getPane().getTabs().size();
+        Rectangle2D tabRect = tabCount == 0 ? null : entry.getTabRect(Math.min(index, tabCount - 1));
+        return new InsertData(index, entry.getPane(), tabRect);
+    }
+
+    private static void addTabPane(TabPane tabPane) {
+        if (tabPanes.add(tabPane)) {
+            invalidateDropIndex();
+        }
+    }
+
+    /**
+     * Индекс мест вставки. Строится при первом движении перетаскиваемой вкладки, затем используется
+     * до отпускания кнопки мыши, пока окна не сдвинутся и раскладка вкладок не изменится
+     */
+    private static TabDropIndex<TabPane> getDropIndex() {
+        if (dropIndex != null) {
+            return dropIndex;
+        }
+        TabDropIndex<TabPane> index = new TabDropIndex<>();
         for (TabPane tabPane : tabPanes) {
-            Rectangle2D tabAbsolute = getAbsoluteRect(tabPane);
-            if (tabAbsolute.contains(screenPoint)) {
-                int tabInsertIndex = 0;
-                if (!tabPane.getTabs().isEmpty()) {
-                    Rectangle2D firstTabRect = getAbsoluteRect(tabPane.getTabs().get(0));
-                    if (firstTabRect.getMaxY() + 60 < screenPoint.getY() || firstTabRect.getMinY() > screenPoint.getY()) {
-                        return null;
-                    }
-                    Rectangle2D lastTabRect = getAbsoluteRect(tabPane.getTabs().get(tabPane.getTabs().size() - 1));
-                    if (screenPoint.getX() < (firstTabRect.getMinX() + firstTabRect.getWidth() / 2)) {
-                        tabInsertIndex = 0;
-                    } else if (screenPoint.getX() > (lastTabRect.getMaxX() - lastTabRect.getWidth() / 2)) {
-                        tabInsertIndex = tabPane.getTabs().size();
-                    } else {
-                        for (int i = 0; i < tabPane.getTabs().size() - 1; i++) {
-                            Tab leftTab = tabPane.getTabs().get(i);
-                            Tab rightTab = tabPane.getTabs().get(i + 1);
-                            if (leftTab instanceof DraggableTab && rightTab instanceof DraggableTab) {
-                                Rectangle2D leftTabRect = getAbsoluteRect(leftTab);
-                                Rectangle2D rightTabRect = getAbsoluteRect(rightTab);
-                                if (betweenX(leftTabRect, rightTabRect, screenPoint.getX())) {
-                                    tabInsertIndex = i + 1;
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                }
-                return new InsertData(tabInsertIndex, tabPane);
+            Scene scene = tabPane.getScene();
+            if (scene == null || scene.getWindow() == null || !scene.getWindow().isShowing()) {
+                continue;
+            }
+            Window window = scene.getWindow();
+            ObservableList<Tab> tabs = tabPane.getTabs();
+            Rectangle2D[] tabRects = new Rectangle2D[tabs.size()];
+            boolean laidOut = true;
+            for (int i = 0; i < tabRects.length && laidOut; i++) {
+                Control label = ((DraggableTab) tabs.get(i)).getLabel();
+                laidOut = label.getScene() == scene;
+                tabRects[i] = laidOut ? getAbsoluteRect(label) : null;
             }
+            if (!laidOut) {
+                continue;
+            }
+            index.add(tabPane, getAbsoluteRect(tabPane), tabRects);
+
+            InvalidationListener invalidate = observable -> invalidateDropIndex();
+            dropIndexListeners.listen(window.xProperty(), invalidate);
+            dropIndexListeners.listen(window.yProperty(), invalidate);
+            dropIndexListeners.listen(window.widthProperty(), invalidate);
+            dropIndexListeners.listen(window.heightProperty(), invalidate);
+            dropIndexListeners.listen(tabs, invalidate);
+            //Ширины вкладок меняются вместе с шириной области заголовков (например, при смене названия)
+            Node headers = tabPane.lookup(".headers-region");
+            dropIndexListeners.listen((headers != null ? headers : tabPane).layoutBoundsProperty(), invalidate);
         }
-        return null;
+        dropIndex = index;
+        return index;
+    }
+
+    private static void invalidateDropIndex() {
+        dropIndex = null;
+        dropIndexListeners.release();
     }
 
-    private Rectangle2D getAbsoluteRect(Control node) {
+    private static Rectangle2D getAbsoluteRect(Control node) {
         return new Rectangle2D(node.localToScene(node.getLayoutBounds().getMinX(), node.getLayoutBounds().getMinY()).getX() + node.getScene().getWindow().getX(),
                 node.localToScene(node.getLayoutBounds().getMinX(), node.getLayoutBounds().getMinY()).getY() + node.getScene().getWindow().getY(),
                 node.getWidth(),
                 node.getHeight());
     }
 
-    private Rectangle2D getAbsoluteRect(Tab tab) {
-        Control node = ((DraggableTab) tab).getLabel();
-        return getAbsoluteRect(node);
-    }
-
     public Label getLabel() {
         return nameLabel;
     }
 
-    private boolean betweenX(Rectangle2D r1, Rectangle2D r2, double xPoint) {
-        double lowerBound = r1.getMinX() + r1.getWidth() / 2;
-        double upperBound = r2.getMaxX() - r2.getWidth() / 2;
-        return xPoint >= lowerBound && xPoint <= upperBound;
-    }
-
     private static class InsertData {
 
         private final int index;
         private final TabPane insertPane;
+        private final Rectangle2D tabRect;
 
-        public InsertData(int index, TabPane insertPane) {
+        public InsertData(int index, TabPane insertPane, Rectangle2D tabRect) {
             this.index = index;
             this.insertPane = insertPane;
+            this.tabRect = tabRect;
         }
 
         public int getIndex() {
@@ -250,5 +327,12 @@ public class DraggableTab extends Tab {
             return insertPane;
         }
 
+        /**
+         * Вкладка, у которой ставится маркер места вставки (последняя - при вставке в конец), либо null для пустой панели
+         */
+        public Rectangle2D getTabRect() {
+            return tabRect;
+        }
+
     }
 }
\ No newline at end of file
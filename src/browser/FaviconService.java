@@ -0,0 +1,317 @@
+package browser;
+
+import javafx.embed.swing.SwingFXUtils;
+import javafx.scene.image.Image;
+import javafx.scene.web.WebEngine;
+import net.sf.image4j.codec.ico.ICODecoder;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Класс FaviconService - служба загрузки фавиконок (иконок вебсайтов).
+ * Загрузка и декодирование выполняются в задачах TaskScheduler, готовые изображения кэшируются
+ * в памяти (LRU по имени хоста) и на диске, а результат передаётся в поток JavaFX.
+ * Повторное посещение того же хоста не приводит к сетевым запросам
+ */
+public final class FaviconService {
+
+    /**
+     * Максимальное количество хостов в кэше в памяти
+     */
+    private static final int MEMORY_CACHE_SIZE = 256;
+
+    /**
+     * Время жизни фавиконки в кэше на диске
+     */
+    private static final long DISK_CACHE_TTL = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Максимальный размер загружаемой фавиконки
+     */
+    private static final int MAX_ICON_BYTES = 512 * 1024;
+
+    private static final int CONNECT_TIMEOUT = BrowserSettings.getInt("jwebbrowser.favicon.connectTimeout", 3_000);
+
+    private static final int READ_TIMEOUT = BrowserSettings.getInt("jwebbrowser.favicon.readTimeout", 5_000);
+
+    /**
+     * Время, в течение которого не повторяется загрузка иконки хоста после неудачи.
+     * Неудача может быть временной (нет сети, таймаут), поэтому она не запоминается на весь сеанс
+     */
+    private static final long MISSING_ICON_TTL = TimeUnit.MINUTES.toMillis(10);
+
+    /**
+     * Кэш декодированных фавиконок: хост -> изображение
+     */
+    private static final Map<String, Optional<Image>> memoryCache = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Optional<Image>> eldest) {
+                    return size() > MEMORY_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Хосты, иконку которых не удалось получить: хост -> время неудачи
+     */
+    private static final Map<String, Long> missingIcons = Collections.synchronizedMap(
+            new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                    return size() > MEMORY_CACHE_SIZE;
+                }
+            });
+
+    /**
+     * Ожидающие результата получатели (доступ только из потока JavaFX).
+     * Одновременные запросы к одному хосту объединяются в одну загрузку
+     */
+    private static final Map<String, List<Consumer<Image>>> pending = new HashMap<>();
+
+    private FaviconService() {
+    }
+
+    /**
+     * Запрос фавиконки для страницы, загруженной в webEngine. Метод вызывается из потока JavaFX
+     * после успешной загрузки страницы; callback также вызывается в потоке JavaFX
+     * (с null, если иконку получить не удалось)
+     */
+    public static void requestFavicon(WebEngine webEngine, Consumer<Image> callback) {
+        String location = webEngine.getLocation();
+        String host = getHostKey(location);
+        if (host == null) {
+            callback.accept(null);
+            return;
+        }
+
+        Optional<Image> cached = memoryCache.get(host);
+        if (cached != null) {
+            callback.accept(cached.orElse(null));
+            return;
+        }
+        Long missingSince = missingIcons.get(host);
+        if (missingSince != null && System.currentTimeMillis() - missingSince < MISSING_ICON_TTL) {
+            callback.accept(null);
+            return;
+        }
+
+        List<Consumer<Image>> callbacks = pending.get(host);
+        if (callbacks != null) {
+            callbacks.add(callback);
+            return;
+        }
+        callbacks = new ArrayList<>();
+        callbacks.add(callback);
+        pending.put(host, callbacks);
+
+        //Ссылки из <link rel="icon"> читаются здесь, так как DOM доступен только из потока JavaFX
+        List<String> candidates = findIconLinks(webEngine.getDocument(), location);
+        candidates.add(getOrigin(location) + "/favicon.ico");
+
+        TaskScheduler.submit(TaskScheduler.global(), "favicon", () -> load(host, candidates),
+                image -> deliver(host, image, true));
+    }
+
+    /**
+     * Получение фавиконки только из кэша в памяти или на диске, без обращения к сети
+     * (например, для вкладок восстановленной сессии, страницы которых ещё не загружены).
+     * Вызывается из потока JavaFX, callback также вызывается в потоке JavaFX
+     */
+    public static void requestCachedFavicon(String location, Consumer<Image> callback) {
+        String host = getHostKey(location);
+        if (host == null) {
+            callback.accept(null);
+            return;
+        }
+        Optional<Image> cached = memoryCache.get(host);
+        if (cached != null) {
+            callback.accept(cached.orElse(null));
+            return;
+        }
+        TaskScheduler.submit(TaskScheduler.global(), "cached favicon", () -> readCached(host, Long.MAX_VALUE), image -> {
+            if (image != null) {
+                memoryCache.putIfAbsent(host, Optional.of(image));
+            }
+            callback.accept(image);
+        });
+    }
+
+    private static void deliver(String host, Image image, boolean cache) {
+        if (cache && image != null) {
+            memoryCache.put(host, Optional.of(image));
+            missingIcons.remove(host);
+        } else if (cache) {
+            missingIcons.put(host, System.currentTimeMillis());
+        }
+        List<Consumer<Image>> callbacks = pending.remove(host);
+        if (callbacks != null) {
+            callbacks.forEach(callback -> callback.accept(image));
+        }
+    }
+
+    /**
+     * Загрузка фавиконки: сначала из кэша на диске, затем из сети по списку кандидатов
+     */
+    private static Image load(String host, List<String> candidates) {
+        Image cached = readCached(host, DISK_CACHE_TTL);
+        if (cached != null) {
+            return cached;
+        }
+
+        Path cacheFile = getCacheFile(host);
+
+        for (String candidate : candidates) {
+            try {
+                BufferedImage image = decode(download(candidate));
+                if (image != null) {
+                    store(cacheFile, image);
+                    return SwingFXUtils.toFXImage(image, null);
+                }
+            } catch (Exception ignored) {
+                //Переходим к следующему кандидату
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Чтение фавиконки из кэша на диске, если файл не старше maxAge миллисекунд
+     */
+    private static Image readCached(String host, long maxAge) {
+        Path cacheFile = getCacheFile(host);
+        try {
+            if (Files.isRegularFile(cacheFile)
+                    && System.currentTimeMillis() - Files.getLastModifiedTime(cacheFile).toMillis() < maxAge) {
+                BufferedImage image = ImageIO.read(cacheFile.toFile());
+                if (image != null) {
+                    return SwingFXUtils.toFXImage(image, null);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //Повреждённый файл не должен срывать задачу: иначе получатели в pending не дождутся результата
+            System.err.println("Unable to read cached favicon for " + host + ": " + e);
+        }
+        return null;
+    }
+
+    private static Path getCacheFile(String host) {
+        return BrowserSettings.getDataDirectory("favicons").resolve(host + ".png");
+    }
+
+    /**
+     * Загрузка иконки через HttpCache: повторные запросы той же иконки берутся с диска или проверяются условным запросом
+     */
+    private static byte[] download(String iconURL) throws IOException {
+        try (HttpCache.Response response = HttpCache.get(iconURL, CONNECT_TIMEOUT + READ_TIMEOUT)) {
+            if (response.getStatus() != HttpURLConnection.HTTP_OK || response.getLength() > MAX_ICON_BYTES) {
+                return null;
+            }
+            InputStream is = response.getBody();
+            ByteArrayOutputStream os = new ByteArrayOutputStream(8 * 1024);
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                if (os.size() + read > MAX_ICON_BYTES) {
+                    return null;
+                }
+                os.write(buffer, 0, read);
+            }
+            return os.toByteArray();
+        }
+    }
+
+    /**
+     * Декодирование иконки в формате ICO (с выбором изображения наибольшего размера)
+     * либо в любом формате, поддерживаемом ImageIO (PNG, GIF, JPEG, BMP)
+     */
+    static BufferedImage decode(byte[] data) throws IOException {
+        if (data == null || data.length < 4) {
+            return null;
+        }
+        if (data[0] == 0 && data[1] == 0 && data[2] == 1 && data[3] == 0) {
+            List<BufferedImage> images = ICODecoder.read(new ByteArrayInputStream(data));
+            return images.stream().max(Comparator.comparingInt(BufferedImage::getWidth)).orElse(null);
+        }
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    private static void store(Path cacheFile, BufferedImage image) {
+        try {
+            Path tmp = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+            ImageIO.write(image, "png", tmp.toFile());
+            Files.move(tmp, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Unable to cache favicon " + cacheFile + ": " + e);
+        }
+    }
+
+    /**
+     * Поиск ссылок на иконку в <link rel="icon"> / <link rel="shortcut icon"> загруженной страницы
+     */
+    private static List<String> findIconLinks(Document document, String location) {
+        List<String> links = new ArrayList<>();
+        if (document == null) {
+            return links;
+        }
+        NodeList nodes = document.getElementsByTagName("link");
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Element link = (Element) nodes.item(i);
+            String rel = link.getAttribute("rel").toLowerCase(Locale.ROOT);
+            String href = link.getAttribute("href").trim();
+            if (href.isEmpty() || !Arrays.asList(rel.split("\\s+")).contains("icon")) {
+                continue;
+            }
+            try {
+                String resolved = new URL(new URL(location), href).toExternalForm();
+                if (resolved.startsWith("http")) {
+                    links.add(resolved);
+                }
+            } catch (IOException ignored) {
+                //Некорректная ссылка пропускается
+            }
+        }
+        return links;
+    }
+
+    /**
+     * Ключ кэша - имя хоста с портом (если он указан), пригодное для имени файла
+     */
+    private static String getHostKey(String location) {
+        try {
+            URL url = new URL(location);
+            if (!url.getProtocol().startsWith("http") || url.getHost().isEmpty()) {
+                return null;
+            }
+            String host = url.getHost().toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9.\\-]", "_");
+            return url.getPort() == -1 ? host : host + "_" + url.getPort();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String getOrigin(String location) {
+        try {
+            URL url = new URL(location);
+            return url.getProtocol() + "://" + url.getAuthority();
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+}
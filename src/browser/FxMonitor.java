@@ -0,0 +1,430 @@
+package browser;
+
+import javafx.application.Platform;
+import javafx.beans.InvalidationListener;
+import javafx.beans.value.ChangeListener;
+import javafx.collections.ListChangeListener;
+import javafx.event.Event;
+import javafx.event.EventHandler;
+import javafx.scene.Scene;
+import javafx.stage.Stage;
+import javafx.stage.Window;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс FxMonitor - наблюдение за потоком JavaFX: обнаружение зависаний, время кадров и время работы обработчиков.
+ * <p>
+ * Фоновый поток раз в HEARTBEAT_MILLIS передаёт в поток JavaFX контрольное действие. Если оно не выполнено дольше
+ * порога (jwebbrowser.fx.stallMillis), поток JavaFX считается зависшим: снимается его стек и запоминается обработчик,
+ * который выполнялся в этот момент. Время кадра (CSS и компоновка сцены) измеряется слушателями импульсов каждого окна.
+ * Тяжёлые обработчики оборачиваются методами timed и timedHandler, время их работы собирается в гистограммы по имени.
+ * <p>
+ * Данные доступны во вкладке диагностики (about:diagnostics) и как события JFR (browser.FxStall, browser.FxFrame,
+ * browser.FxListener), например при запуске с -XX:StartFlightRecording. Отключается настройкой jwebbrowser.fx.monitor=false
+ */
+public final class FxMonitor {
+
+    private static final boolean ENABLED = BrowserSettings.getBoolean("jwebbrowser.fx.monitor", true);
+
+    private static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(BrowserSettings.getInt("jwebbrowser.fx.stallMillis", 200));
+
+    private static final int HEARTBEAT_MILLIS = 50;
+
+    /**
+     * Сколько последних зависаний хранится для вкладки диагностики
+     */
+    private static final int MAX_STALLS = 50;
+
+    private static final int MAX_STACK_DEPTH = 40;
+
+    private static final LatencyHistogram FRAME_TIME = new LatencyHistogram("FX frame (CSS + layout)");
+
+    private static final LatencyHistogram HEARTBEAT_DELAY = new LatencyHistogram("FX event queue delay");
+
+    private static final LatencyHistogram STALL_TIME = new LatencyHistogram("FX stalls");
+
+    private static final Map<String, LatencyHistogram> listeners = new ConcurrentHashMap<>();
+
+    private static final ArrayDeque<Stall> stalls = new ArrayDeque<>();
+
+    private static final AtomicLong stallCount = new AtomicLong();
+
+    /**
+     * Обработчик, который сейчас выполняется в потоке JavaFX (null - вне обёрнутых обработчиков)
+     */
+    private static volatile String currentListener;
+
+    private static volatile Thread fxThread;
+
+    private static volatile long heartbeatPostedAt;
+
+    private static volatile long heartbeatDoneAt;
+
+    private static volatile boolean heartbeatPending;
+
+    private static boolean started;
+
+    static {
+        if (Boolean.getBoolean("jwebbrowser.stats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(getStatistics())));
+        }
+    }
+
+    private FxMonitor() {
+    }
+
+    /**
+     * Запуск наблюдения (вызывается из потока JavaFX). Слушатели импульсов устанавливаются на все окна,
+     * в том числе открытые позже (окна откреплённых вкладок, окно загрузок)
+     */
+    public static void start() {
+        if (!ENABLED || started) {
+            return;
+        }
+        started = true;
+        fxThread = Thread.currentThread();
+        Window.getWindows().forEach(FxMonitor::watch);
+        Window.getWindows().addListener((ListChangeListener<Window>) change -> {
+            while (change.next()) {
+                change.getAddedSubList().forEach(FxMonitor::watch);
+            }
+        });
+
+        Thread watchdog = new Thread(FxMonitor::runWatchdog, "fx-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    /**
+     * Обёртка слушателя изменений с измерением времени работы под именем name
+     */
+    public static <T> ChangeListener<T> timed(String name, ChangeListener<T> listener) {
+        if (!ENABLED) {
+            return listener;
+        }
+        LatencyHistogram histogram = getListenerHistogram(name);
+        return (observable, oldValue, newValue) -> measure(name, histogram, () -> listener.changed(observable, oldValue, newValue));
+    }
+
+    public static InvalidationListener timed(String name, InvalidationListener listener) {
+        if (!ENABLED) {
+            return listener;
+        }
+        LatencyHistogram histogram = getListenerHistogram(name);
+        return observable -> measure(name, histogram, () -> listener.invalidated(observable));
+    }
+
+    public static <E extends Event> EventHandler<E> timedHandler(String name, EventHandler<E> handler) {
+        if (!ENABLED) {
+            return handler;
+        }
+        LatencyHistogram histogram = getListenerHistogram(name);
+        return event -> measure(name, histogram, () -> handler.handle(event));
+    }
+
+    /**
+     * Выполнение действия в потоке JavaFX с измерением времени его работы под именем name
+     */
+    public static void measure(String name, Runnable action) {
+        if (!ENABLED) {
+            action.run();
+            return;
+        }
+        measure(name, getListenerHistogram(name), action);
+    }
+
+    public static boolean isEnabled() {
+        return ENABLED;
+    }
+
+    public static LatencyHistogram getFrameTime() {
+        return FRAME_TIME;
+    }
+
+    public static LatencyHistogram getHeartbeatDelay() {
+        return HEARTBEAT_DELAY;
+    }
+
+    public static LatencyHistogram getStallTime() {
+        return STALL_TIME;
+    }
+
+    public static long getStallCount() {
+        return stallCount.get();
+    }
+
+    /**
+     * Гистограммы обработчиков, отсортированные по суммарному времени работы (по убыванию)
+     */
+    public static List<LatencyHistogram> getListenerTimes() {
+        List<LatencyHistogram> result = new ArrayList<>(listeners.values());
+        result.sort(Comparator.comparingDouble((LatencyHistogram h) -> h.getMeanNanos() * h.getCount()).reversed());
+        return result;
+    }
+
+    /**
+     * Последние зависания, начиная с самого нового
+     */
+    public static List<Stall> getRecentStalls() {
+        synchronized (stalls) {
+            List<Stall> result = new ArrayList<>(stalls);
+            Collections.reverse(result);
+            return result;
+        }
+    }
+
+    /**
+     * Сводка: время кадров, задержка очереди событий, зависания и самые затратные обработчики
+     */
+    public static String getStatistics() {
+        StringBuilder text = new StringBuilder();
+        text.append(FRAME_TIME).append('\n').append(HEARTBEAT_DELAY).append('\n').append(STALL_TIME).append('\n');
+        List<LatencyHistogram> top = getListenerTimes();
+        for (LatencyHistogram histogram : top.subList(0, Math.min(10, top.size()))) {
+            text.append(String.format("  %s total=%.1fms%n", histogram, histogram.getMeanNanos() * histogram.getCount() / 1e6));
+        }
+        return text.toString();
+    }
+
+    private static LatencyHistogram getListenerHistogram(String name) {
+        return listeners.computeIfAbsent(name, LatencyHistogram::new);
+    }
+
+    private static void measure(String name, LatencyHistogram histogram, Runnable action) {
+        String outer = currentListener;
+        currentListener = name;
+        ListenerEvent event = new ListenerEvent();
+        event.listener = name;
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            action.run();
+        } finally {
+            histogram.recordSince(start);
+            event.commit();
+            currentListener = outer;
+        }
+    }
+
+    /**
+     * Измерение времени кадра окна: от начала CSS и компоновки до их окончания в каждом импульсе
+     */
+    private static void watch(Window window) {
+        if (!(window instanceof Stage)) {
+            //Всплывающие окна (меню, подсказки) обрабатываются в тех же импульсах, что и их владельцы
+            return;
+        }
+        PulseListener listener = new PulseListener();
+        if (window.getScene() != null) {
+            listener.attach(window.getScene());
+        }
+        window.sceneProperty().addListener((observable, oldScene, newScene) -> {
+            if (oldScene != null) {
+                listener.detach(oldScene);
+            }
+            if (newScene != null) {
+                listener.attach(newScene);
+            }
+        });
+    }
+
+    /**
+     * Цикл сторожевого потока: отправка контрольного действия и проверка, что поток JavaFX его выполнил
+     */
+    private static void runWatchdog() {
+        Stall stall = null;
+        while (true) {
+            try {
+                Thread.sleep(HEARTBEAT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (!heartbeatPending) {
+                if (stall != null) {
+                    finishStall(stall, heartbeatDoneAt - heartbeatPostedAt);
+                    stall = null;
+                }
+                long postedAt = now;
+                heartbeatPostedAt = postedAt;
+                heartbeatPending = true;
+                Platform.runLater(() -> {
+                    heartbeatDoneAt = System.nanoTime();
+                    HEARTBEAT_DELAY.record(heartbeatDoneAt - postedAt);
+                    heartbeatPending = false;
+                });
+            } else if (stall == null && now - heartbeatPostedAt > STALL_NANOS) {
+                stall = new Stall(currentListener, sampleStack());
+            }
+        }
+    }
+
+    /**
+     * Учёт завершившегося зависания: длительность - от отправки контрольного действия до его выполнения
+     */
+    private static void finishStall(Stall stall, long durationNanos) {
+        stall.durationNanos = durationNanos;
+        STALL_TIME.record(stall.durationNanos);
+        stallCount.incrementAndGet();
+        synchronized (stalls) {
+            if (stalls.size() == MAX_STALLS) {
+                stalls.removeFirst();
+            }
+            stalls.addLast(stall);
+        }
+
+        StallEvent event = new StallEvent();
+        event.stallDuration = stall.durationNanos;
+        event.listener = stall.listener;
+        event.stackSample = stall.stack;
+        event.commit();
+
+        System.err.println(String.format("JavaFX Application Thread stalled for %.0f ms%s%n%s", stall.durationNanos / 1e6,
+                stall.listener != null ? " in " + stall.listener : "", stall.stack));
+    }
+
+    private static String sampleStack() {
+        Thread thread = fxThread;
+        if (thread == null) {
+            return "";
+        }
+        StackTraceElement[] stack = thread.getStackTrace();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < Math.min(stack.length, MAX_STACK_DEPTH); i++) {
+            text.append("\tat ").append(stack[i]).append('\n');
+        }
+        if (stack.length > MAX_STACK_DEPTH) {
+            text.append("\t... ").append(stack.length - MAX_STACK_DEPTH).append(" more\n");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Зависание потока JavaFX
+     */
+    public static final class Stall {
+
+        private final long time = System.currentTimeMillis();
+        private final String listener;
+        private final String stack;
+        private volatile long durationNanos;
+
+        Stall(String listener, String stack) {
+            this.listener = listener;
+            this.stack = stack;
+        }
+
+        /**
+         * Время обнаружения зависания (System.currentTimeMillis())
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+
+        /**
+         * Обработчик, выполнявшийся в момент снятия стека, либо null
+         */
+        public String getListener() {
+            return listener;
+        }
+
+        /**
+         * Стек потока JavaFX, снятый после превышения порога
+         */
+        public String getStack() {
+            return stack;
+        }
+
+    }
+
+    /**
+     * Слушатель импульсов сцены: событие кадра начинается перед CSS и компоновкой и завершается после них
+     */
+    private static class PulseListener {
+
+        private final Runnable before = this::before;
+        private final Runnable after = this::after;
+        private FrameEvent event;
+        private long start;
+
+        void attach(Scene scene) {
+            scene.addPreLayoutPulseListener(before);
+            scene.addPostLayoutPulseListener(after);
+        }
+
+        void detach(Scene scene) {
+            scene.removePreLayoutPulseListener(before);
+            scene.removePostLayoutPulseListener(after);
+        }
+
+        private void before() {
+            event = new FrameEvent();
+            event.begin();
+            start = System.nanoTime();
+        }
+
+        private void after() {
+            if (event != null) {
+                FRAME_TIME.recordSince(start);
+                event.commit();
+                event = null;
+            }
+        }
+
+    }
+
+    @Name("browser.FxStall")
+    @Label("JavaFX Thread Stall")
+    @Category({"JWebBrowser", "JavaFX"})
+    @Description("JavaFX Application Thread did not process events longer than the stall threshold")
+    static class StallEvent extends jdk.jfr.Event {
+
+        @Label("Stall Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long stallDuration;
+
+        @Label("Listener")
+        String listener;
+
+        @Label("Stack Sample")
+        String stackSample;
+
+    }
+
+    @Name("browser.FxFrame")
+    @Label("JavaFX Frame")
+    @Category({"JWebBrowser", "JavaFX"})
+    @Description("CSS and layout pass of a JavaFX pulse")
+    static class FrameEvent extends jdk.jfr.Event {
+    }
+
+    @Name("browser.FxListener")
+    @Label("JavaFX Listener")
+    @Category({"JWebBrowser", "JavaFX"})
+    @Description("Execution of an instrumented listener on the JavaFX Application Thread")
+    static class ListenerEvent extends jdk.jfr.Event {
+
+        @Label("Listener")
+        String listener;
+
+    }
+
+}
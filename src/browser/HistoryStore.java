@@ -0,0 +1,489 @@
+package browser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Класс HistoryStore - глобальная история посещений браузера, которая сохраняется между запусками
+ * и закрытием вкладок. По истории строится индекс автозаполнения адресной строки.
+ * <p>
+ * Посещения записываются в журнал (visits.log) только добавлением: запись - длина, время, адрес и название страницы.
+ * Сводка по адресам (число посещений, последнее посещение, название, оценка frecency) периодически сохраняется
+ * в компактный индекс (index.dat: адреса по алфавиту с общим префиксом предыдущего адреса), который атомарно
+ * заменяет предыдущий, после чего журнал очищается. При запуске читается индекс и журнал после него;
+ * незавершённая последняя запись журнала отбрасывается.
+ * <p>
+ * Поток JavaFX только ставит посещения в очередь: чтение, учёт посещений в AutocompleteIndex, запись журнала
+ * (fsync не чаще раза в секунду) и сжатие выполняет фоновый поток. Поиск по префиксу и лучшие K записей
+ * по frecency берутся из AutocompleteIndex за O(log n + K log n), поэтому время поиска почти не зависит
+ * от размера истории
+ */
+public class HistoryStore {
+
+    private static final int LOG_MAGIC = 0x4A57484C;
+
+    private static final int INDEX_MAGIC = 0x4A574849;
+
+    private static final int INDEX_VERSION = 1;
+
+    private static final long FSYNC_INTERVAL_MILLIS = 1_000;
+
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 300_000;
+
+    private static final int CHECKPOINT_RECORDS = 50_000;
+
+    /**
+     * Слишком длинные адреса (обычно data: и адреса с большими параметрами) в историю не попадают
+     */
+    private static final int MAX_URL_LENGTH = 2_048;
+
+    private static final int MAX_TITLE_LENGTH = 512;
+
+    private static HistoryStore instance;
+
+    private final Path directory;
+
+    private final Path logFile;
+
+    private final Path indexFile;
+
+    private final AutocompleteIndex index;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final BlockingQueue<Visit> queue = new LinkedBlockingQueue<>();
+
+    private Thread writer;
+
+    public HistoryStore(Path directory, AutocompleteIndex index) {
+        this.directory = directory;
+        this.logFile = directory.resolve("visits.log");
+        this.indexFile = directory.resolve("index.dat");
+        this.index = index;
+    }
+
+    /**
+     * История браузера в каталоге данных, которая пополняет индекс подсказок адресной строки.
+     * Фоновый писатель запускается при первом обращении
+     */
+    public static synchronized HistoryStore getDefault() {
+        if (instance == null) {
+            instance = new HistoryStore(BrowserSettings.getDataDirectory("history"), URLTextField.getAutocompleteIndex());
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Закрытие истории браузера, если она открывалась
+     */
+    public static synchronized void closeDefault() {
+        if (instance != null) {
+            instance.close();
+        }
+    }
+
+    /**
+     * Запуск фонового потока: чтение сохранённой истории, затем запись новых посещений
+     */
+    public synchronized void start() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(this::writeLoop, "history-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Учёт посещения страницы (вызывается из любого потока, не блокирует его)
+     */
+    public void recordVisit(String url, String title) {
+        recordVisit(url, title, System.currentTimeMillis());
+    }
+
+    void recordVisit(String url, String title, long timeMillis) {
+        if (url == null || url.isEmpty() || url.length() > MAX_URL_LENGTH || !isRecorded(url)) {
+            return;
+        }
+        if (title != null && title.length() > MAX_TITLE_LENGTH) {
+            title = title.substring(0, MAX_TITLE_LENGTH);
+        }
+        queue.add(new Visit(url, title, timeMillis));
+    }
+
+    /**
+     * Не более limit адресов для введённого текста по убыванию frecency (сначала совпадения по префиксу)
+     */
+    public List<String> query(String input, int limit) {
+        return index.query(input, limit);
+    }
+
+    /**
+     * Сводка по адресу либо null, если адрес не посещался
+     */
+    public Entry getEntry(String url) {
+        return entries.get(url);
+    }
+
+    /**
+     * Число различных посещённых адресов
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Ожидание чтения сохранённой истории и записи на диск всех поставленных в очередь посещений
+     */
+    public void flush() {
+        if (writer == null) {
+            return;
+        }
+        Marker marker = new Marker(false);
+        queue.add(marker);
+        try {
+            marker.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Запись последних посещений, сжатие журнала и остановка писателя (при закрытии браузера)
+     */
+    public synchronized void close() {
+        if (writer == null) {
+            return;
+        }
+        Marker marker = new Marker(true);
+        queue.add(marker);
+        try {
+            marker.done.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /**
+     * Адреса служебных и встроенных страниц в историю не попадают
+     */
+    private static boolean isRecorded(String url) {
+        return url.regionMatches(true, 0, "http:", 0, 5) || url.regionMatches(true, 0, "https:", 0, 6)
+                || url.regionMatches(true, 0, "ftp:", 0, 4) || url.regionMatches(true, 0, "file:", 0, 5);
+    }
+
+    /**
+     * Цикл фонового писателя: пачки посещений учитываются в сводке и индексе и записываются в журнал одним вызовом
+     */
+    private void writeLoop() {
+        long validLength = load();
+        try (FileChannel log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            //Незавершённая последняя запись отбрасывается
+            log.truncate(validLength);
+            log.position(validLength);
+            if (validLength == 0) {
+                writeFully(log, ByteBuffer.allocate(4).putInt(0, LOG_MAGIC));
+            }
+            long lastForce = System.currentTimeMillis();
+            long lastCheckpoint = lastForce;
+            boolean unsynced = false;
+            int sinceCheckpoint = 0;
+            boolean closing = false;
+            while (!closing) {
+                long wait = unsynced ? Math.max(1, FSYNC_INTERVAL_MILLIS - (System.currentTimeMillis() - lastForce)) : 5_000;
+                Visit first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                List<Visit> batch = new ArrayList<>();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                List<Marker> markers = new ArrayList<>();
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                for (Visit visit : batch) {
+                    if (visit instanceof Marker) {
+                        markers.add((Marker) visit);
+                        closing |= ((Marker) visit).close;
+                    } else {
+                        apply(visit);
+                        writeVisit(out, visit);
+                        sinceCheckpoint++;
+                    }
+                }
+                if (bytes.size() > 0) {
+                    writeFully(log, ByteBuffer.wrap(bytes.toByteArray()));
+                    unsynced = true;
+                }
+
+                long now = System.currentTimeMillis();
+                if (unsynced && (closing || !markers.isEmpty() || now - lastForce >= FSYNC_INTERVAL_MILLIS)) {
+                    log.force(false);
+                    unsynced = false;
+                    lastForce = now;
+                }
+                if (sinceCheckpoint >= CHECKPOINT_RECORDS
+                        || sinceCheckpoint > 0 && (closing || now - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS)) {
+                    checkpoint(log);
+                    sinceCheckpoint = 0;
+                    lastCheckpoint = now;
+                }
+                markers.forEach(marker -> marker.done.countDown());
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write history: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            //Ожидающие flush и close не должны зависнуть, если писатель остановился
+            List<Visit> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            rest.stream().filter(Marker.class::isInstance).forEach(visit -> ((Marker) visit).done.countDown());
+        }
+    }
+
+    /**
+     * Чтение индекса и журнала. Возвращает длину журнала без незавершённой последней записи
+     */
+    private long load() {
+        List<String> urls = new ArrayList<>();
+        List<Double> scores = new ArrayList<>();
+        if (Files.isRegularFile(indexFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile), 1 << 16))) {
+                if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                    throw new IOException("Unknown history index format");
+                }
+                int count = in.readInt();
+                String previous = "";
+                for (int i = 0; i < count; i++) {
+                    int shared = in.readUnsignedShort();
+                    String url = previous.substring(0, shared) + in.readUTF();
+                    String title = in.readUTF();
+                    Entry entry = new Entry(url, title.isEmpty() ? null : title, in.readInt(), in.readLong());
+                    double score = in.readDouble();
+                    entries.put(url, entry);
+                    urls.add(url);
+                    scores.add(score);
+                    previous = url;
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Unable to read history index: " + e);
+                entries.clear();
+                urls.clear();
+                scores.clear();
+            }
+        }
+        //Адреса добавляются в индекс одной пачкой, затем восстанавливаются их оценки
+        index.addAll(urls);
+        for (int i = 0; i < urls.size(); i++) {
+            index.setScore(urls.get(i), scores.get(i));
+        }
+
+        long length = 0;
+        if (Files.isRegularFile(logFile)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile), 1 << 16))) {
+                if (in.readInt() == LOG_MAGIC) {
+                    length = 4;
+                    Visit visit;
+                    while ((visit = readVisit(in)) != null) {
+                        apply(visit);
+                        length += 4 + visit.recordLength;
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to read history log: " + e);
+            }
+        }
+        return length;
+    }
+
+    private void apply(Visit visit) {
+        entries.compute(visit.url, (url, entry) -> entry == null
+                ? new Entry(url, visit.title, 1, visit.time)
+                : new Entry(url, visit.title != null && !visit.title.isEmpty() ? visit.title : entry.title,
+                entry.visitCount + 1, Math.max(entry.lastVisit, visit.time)));
+        index.recordVisit(visit.url, visit.time);
+    }
+
+    /**
+     * Сохранение сводки во временный файл, fsync, атомарная замена индекса и очистка журнала.
+     * При сбое между заменой индекса и очисткой журнала посещения журнала будут учтены повторно
+     * (не более CHECKPOINT_RECORDS последних посещений)
+     */
+    private void checkpoint(FileChannel log) throws IOException {
+        List<String> urls = new ArrayList<>(entries.keySet());
+        Collections.sort(urls);
+        Path tmp = directory.resolve("index.tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeInt(urls.size());
+            String previous = "";
+            for (String url : urls) {
+                Entry entry = entries.get(url);
+                int shared = Math.min(sharedPrefix(previous, url), 0xFFFF);
+                out.writeShort(shared);
+                out.writeUTF(url.substring(shared));
+                out.writeUTF(entry.title != null ? entry.title : "");
+                out.writeInt(entry.visitCount);
+                out.writeLong(entry.lastVisit);
+                out.writeDouble(index.getScore(url));
+                previous = url;
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.truncate(4);
+        log.position(4);
+        log.force(true);
+    }
+
+    private static void writeVisit(DataOutputStream out, Visit visit) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(64 + visit.url.length());
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeLong(visit.time);
+        data.writeUTF(visit.url);
+        data.writeUTF(visit.title != null ? visit.title : "");
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    /**
+     * Чтение записи журнала либо null в конце журнала или на незавершённой записи
+     */
+    private static Visit readVisit(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > 4 * (MAX_URL_LENGTH + MAX_TITLE_LENGTH) + 16) {
+                return null;
+            }
+            byte[] record = in.readNBytes(length);
+            if (record.length < length) {
+                return null;
+            }
+            DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+            long time = data.readLong();
+            String url = data.readUTF();
+            String title = data.readUTF();
+            Visit visit = new Visit(url, title.isEmpty() ? null : title, time);
+            visit.recordLength = length;
+            return visit;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static int sharedPrefix(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < length && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Сводка по посещённому адресу
+     */
+    public static final class Entry {
+
+        private final String url;
+        private final String title;
+        private final int visitCount;
+        private final long lastVisit;
+
+        Entry(String url, String title, int visitCount, long lastVisit) {
+            this.url = url;
+            this.title = title;
+            this.visitCount = visitCount;
+            this.lastVisit = lastVisit;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Последнее известное название страницы либо null
+         */
+        public String getTitle() {
+            return title;
+        }
+
+        public int getVisitCount() {
+            return visitCount;
+        }
+
+        /**
+         * Время последнего посещения (System.currentTimeMillis())
+         */
+        public long getLastVisit() {
+            return lastVisit;
+        }
+
+    }
+
+    /**
+     * Посещение в очереди писателя
+     */
+    private static class Visit {
+
+        private final String url;
+        private final String title;
+        private final long time;
+        private int recordLength;
+
+        Visit(String url, String title, long time) {
+            this.url = url;
+            this.title = title;
+            this.time = time;
+        }
+
+    }
+
+    /**
+     * Служебные записи очереди: ожидание записи на диск и завершение писателя
+     */
+    private static final class Marker extends Visit {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final boolean close;
+
+        Marker(boolean close) {
+            super(null, null, 0);
+            this.close = close;
+        }
+
+    }
+
+}
@@ -0,0 +1,885 @@
+package browser;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс HttpCache - дисковый HTTP-кэш браузера с учётом заголовков Cache-Control, Expires, ETag и Last-Modified.
+ * <p>
+ * Каждый ответ хранится в отдельном файле (адрес, статус, заголовки и тело). Индекс - отображённый в память
+ * файл index.dat из записей фиксированного размера (ключ, размер, время последнего обращения, срок свежести),
+ * поэтому проверка свежести и учёт LRU не требуют чтения файлов ответов, а индекс переживает перезапуск.
+ * При превышении размера кэша (jwebbrowser.cache.megabytes) удаляются записи, к которым дольше всего не обращались.
+ * <p>
+ * Свежий ответ отдаётся с диска, устаревший ответ с валидаторами проверяется условным запросом
+ * (If-None-Match, If-Modified-Since), и при ответе 304 тело снова берётся с диска. Кэш используется загрузчиком
+ * фавиконок и локальным прокси CachingProxy, через который WebEngine загружает страницы по http
+ */
+public final class HttpCache {
+
+    private static final long MAX_CACHE_BYTES = BrowserSettings.getInt("jwebbrowser.cache.megabytes", 256) * 1024L * 1024L;
+
+    private static final long MAX_ENTRY_BYTES = BrowserSettings.getInt("jwebbrowser.cache.maxEntryMegabytes", 16) * 1024L * 1024L;
+
+    private static final int CAPACITY = BrowserSettings.getInt("jwebbrowser.cache.entries", 16_384);
+
+    /**
+     * Эвристическая свежесть ответа без явного срока: 10% возраста документа, но не более суток
+     */
+    private static final long MAX_HEURISTIC_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final int INDEX_MAGIC = 0x4A574843;
+
+    private static final int ENTRY_MAGIC = 0x4A574845;
+
+    private static final int INDEX_HEADER_SIZE = 16;
+
+    /**
+     * Запись индекса: ключ (8), размер файла (8), время обращения (8), срок свежести (8), резерв (8)
+     */
+    private static final int SLOT_SIZE = 40;
+
+    /**
+     * Заголовки одного соединения, которые не передаются дальше и не сохраняются
+     */
+    static final Set<String> HOP_BY_HOP = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        HOP_BY_HOP.addAll(Arrays.asList("Connection", "Keep-Alive", "Proxy-Connection", "Proxy-Authenticate",
+                "Proxy-Authorization", "TE", "Trailer", "Transfer-Encoding", "Upgrade"));
+    }
+
+    /**
+     * Заголовки, которые HttpClient устанавливает сам и не позволяет задать
+     */
+    private static final Set<String> RESTRICTED = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        RESTRICTED.addAll(Arrays.asList("Host", "Content-Length", "Expect"));
+    }
+
+    private static final int HTTP_OK = 200;
+
+    private static final int HTTP_NOT_MODIFIED = 304;
+
+    private static final Path DIRECTORY = BrowserSettings.getDataDirectory("http-cache");
+
+    private static final Path ENTRIES = DIRECTORY.resolve("entries");
+
+    private static final AtomicLong requests = new AtomicLong();
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong revalidations = new AtomicLong();
+
+    private static final AtomicLong bytesSaved = new AtomicLong();
+
+    private static final AtomicLong stores = new AtomicLong();
+
+    private static final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Записи в порядке обращения (LRU), доступ под блокировкой класса
+     */
+    private static final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private static final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+
+    private static MappedByteBuffer index;
+
+    private static long totalBytes;
+
+    static {
+        openIndex();
+        if (Boolean.getBoolean("jwebbrowser.stats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(getStatistics())));
+        }
+    }
+
+    private HttpCache() {
+    }
+
+    /**
+     * Запрос GET через кэш без дополнительных заголовков
+     */
+    public static Response get(String url) throws IOException {
+        return send("GET", url, Collections.emptyMap(), null, null);
+    }
+
+    /**
+     * Запрос GET через кэш с переходом по перенаправлениям (не более 5) и заданным тайм-аутом в миллисекундах
+     */
+    public static Response get(String url, int timeout) throws IOException {
+        for (int redirects = 0; ; redirects++) {
+            Response response = send("GET", url, Collections.emptyMap(), null, Duration.ofMillis(timeout));
+            String location = response.getHeader("Location");
+            if (response.getStatus() / 100 != 3 || location == null || redirects == 5) {
+                return response;
+            }
+            response.close();
+            url = new URL(new URL(url), location).toString();
+        }
+    }
+
+    /**
+     * Выполнение запроса через кэш. Кэшируются только ответы 200 на запросы GET без Range и Authorization.
+     * Запросы, изменяющие данные (POST, PUT, DELETE), удаляют сохранённый ответ по этому адресу
+     */
+    public static Response send(String method, String url, Map<String, List<String>> requestHeaders, byte[] body)
+            throws IOException {
+        return send(method, url, requestHeaders, body, null);
+    }
+
+    private static Response send(String method, String url, Map<String, List<String>> requestHeaders, byte[] body,
+                                 Duration timeout) throws IOException {
+        requests.incrementAndGet();
+        boolean cacheable = "GET".equals(method) && getHeader(requestHeaders, "Range") == null
+                && getHeader(requestHeaders, "Authorization") == null && index != null;
+        String acceptEncoding = getHeader(requestHeaders, "Accept-Encoding");
+        String key = url + '\n' + (acceptEncoding == null ? "" : acceptEncoding);
+        long hash = hash(key);
+        if (!cacheable) {
+            if (!"GET".equals(method) && !"HEAD".equals(method) && !"OPTIONS".equals(method)) {
+                remove(hash);
+            }
+            return fromResponse(open(method, url, requestHeaders, body, timeout), null);
+        }
+
+        String cacheControl = getHeader(requestHeaders, "Cache-Control");
+        boolean forceRevalidate = containsDirective(cacheControl, "no-cache")
+                || containsDirective(getHeader(requestHeaders, "Pragma"), "no-cache");
+
+        Stored stored = lookup(hash, key);
+        if (stored != null) {
+            if (!forceRevalidate && System.currentTimeMillis() < stored.entry.expiresAt) {
+                hits.incrementAndGet();
+                bytesSaved.addAndGet(stored.bodyLength);
+                return stored.toResponse("HIT");
+            }
+            String etag = stored.getHeader("ETag");
+            String lastModified = stored.getHeader("Last-Modified");
+            if (etag != null || lastModified != null) {
+                Map<String, List<String>> conditional = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                conditional.putAll(requestHeaders);
+                conditional.keySet().removeAll(Arrays.asList("If-None-Match", "If-Modified-Since"));
+                if (etag != null) {
+                    conditional.put("If-None-Match", List.of(etag));
+                }
+                if (lastModified != null) {
+                    conditional.put("If-Modified-Since", List.of(lastModified));
+                }
+                HttpResponse<InputStream> response;
+                try {
+                    response = open(method, url, conditional, null, timeout);
+                } catch (IOException e) {
+                    stored.close();
+                    throw e;
+                }
+                if (response.statusCode() == HTTP_NOT_MODIFIED) {
+                    response.body().close();
+                    Map<String, List<String>> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                    merged.putAll(stored.headers);
+                    response.headers().map().forEach((name, values) -> {
+                        if (!name.startsWith(":") && !HOP_BY_HOP.contains(name) && !name.equalsIgnoreCase("Content-Length")) {
+                            merged.put(name, values);
+                        }
+                    });
+                    long expiresAt = getExpiresAt(merged, System.currentTimeMillis());
+                    updateExpiry(stored.entry, Math.max(0, expiresAt));
+                    revalidations.incrementAndGet();
+                    bytesSaved.addAndGet(stored.bodyLength);
+                    return stored.toResponse("REVALIDATED");
+                }
+                stored.close();
+                return fromResponse(response, key);
+            }
+            stored.close();
+        }
+        return fromResponse(open(method, url, requestHeaders, null, timeout), key);
+    }
+
+    public static long getRequests() {
+        return requests.get();
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getRevalidations() {
+        return revalidations.get();
+    }
+
+    public static long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Доля запросов, тело ответа на которые взято с диска (свежие и подтверждённые ответом 304)
+     */
+    public static double getHitRate() {
+        long total = requests.get();
+        return total == 0 ? 0 : (double) (hits.get() + revalidations.get()) / total;
+    }
+
+    public static synchronized long getSize() {
+        return totalBytes;
+    }
+
+    public static synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Сводка статистики кэша
+     */
+    public static String getStatistics() {
+        return String.format("http cache: requests=%d hits=%d revalidated=%d hit rate=%.1f%% saved=%s stored=%d evicted=%d size=%s in %d entries",
+                getRequests(), getHits(), getRevalidations(), getHitRate() * 100, DownloadsPanel.formatBytes(getBytesSaved()),
+                stores.get(), evictions.get(), DownloadsPanel.formatBytes(getSize()), getEntryCount());
+    }
+
+    /**
+     * Запрос к серверу через NetworkClient в обход локального прокси
+     */
+    private static HttpResponse<InputStream> open(String method, String url, Map<String, List<String>> headers,
+                                                  byte[] body, Duration timeout) throws IOException {
+        HttpRequest.Builder request = NetworkClient.newRequest(url);
+        if (timeout != null) {
+            request.timeout(timeout);
+        }
+        headers.forEach((name, values) -> {
+            if (!HOP_BY_HOP.contains(name) && !RESTRICTED.contains(name)) {
+                try {
+                    if (name.equalsIgnoreCase("User-Agent")) {
+                        request.setHeader(name, String.join(", ", values));
+                    } else {
+                        values.forEach(value -> request.header(name, value));
+                    }
+                } catch (IllegalArgumentException e) {
+                    //Некорректный заголовок не передаётся
+                }
+            }
+        });
+        request.method(method, body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofByteArray(body));
+        return NetworkClient.sendRaw(request.build());
+    }
+
+    /**
+     * Ответ сервера. Если key не null и ответ можно кэшировать, тело сохраняется на диск по мере чтения
+     */
+    private static Response fromResponse(HttpResponse<InputStream> response, String key) throws IOException {
+        int status = response.statusCode();
+        Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        response.headers().map().forEach((name, values) -> {
+            if (!name.startsWith(":") && !HOP_BY_HOP.contains(name)) {
+                headers.put(name, values);
+            }
+        });
+        InputStream body = response.body();
+        long length = NetworkClient.getContentLength(response);
+        String reason = getReasonPhrase(status);
+
+        long expiresAt = getExpiresAt(headers, System.currentTimeMillis());
+        if (key != null && status == HTTP_OK && expiresAt >= 0 && length <= MAX_ENTRY_BYTES && isStorable(headers)) {
+            body = new StoringInputStream(body, key, status, reason, headers, expiresAt, length);
+        }
+        return new Response(status, reason, headers, body, length, key == null ? "BYPASS" : "MISS");
+    }
+
+    /**
+     * Текст статуса ответа (HttpClient его не сообщает)
+     */
+    static String getReasonPhrase(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 201: return "Created";
+            case 204: return "No Content";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 303: return "See Other";
+            case 304: return "Not Modified";
+            case 307: return "Temporary Redirect";
+            case 308: return "Permanent Redirect";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 429: return "Too Many Requests";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return "";
+        }
+    }
+
+    /**
+     * Срок свежести ответа: время в мс, 0 - хранить, но проверять при каждом обращении, -1 - не хранить
+     */
+    static long getExpiresAt(Map<String, List<String>> headers, long now) {
+        String cacheControl = getHeader(headers, "Cache-Control");
+        if (containsDirective(cacheControl, "no-store")) {
+            return -1;
+        }
+        boolean hasValidator = getHeader(headers, "ETag") != null || getHeader(headers, "Last-Modified") != null;
+        if (containsDirective(cacheControl, "no-cache")) {
+            return hasValidator ? 0 : -1;
+        }
+        long age = parseLong(getHeader(headers, "Age"), 0) * 1000;
+        long maxAge = getDirectiveValue(cacheControl, "max-age");
+        if (maxAge >= 0) {
+            long expiresAt = now + maxAge * 1000 - age;
+            return expiresAt > now || hasValidator ? Math.max(0, expiresAt) : -1;
+        }
+        long date = parseDate(getHeader(headers, "Date"), now);
+        String expires = getHeader(headers, "Expires");
+        if (expires != null) {
+            long expiresAt = now + parseDate(expires, 0) - date - age;
+            return expiresAt > now || hasValidator ? Math.max(0, expiresAt) : -1;
+        }
+        long lastModified = parseDate(getHeader(headers, "Last-Modified"), -1);
+        if (lastModified > 0 && lastModified < date) {
+            return now + Math.min((date - lastModified) / 10, MAX_HEURISTIC_MILLIS);
+        }
+        return hasValidator ? 0 : -1;
+    }
+
+    static boolean isStorable(Map<String, List<String>> headers) {
+        if (headers.containsKey("Set-Cookie")) {
+            return false;
+        }
+        String vary = getHeader(headers, "Vary");
+        //Ключ записи учитывает только Accept-Encoding, поэтому ответы, зависящие от других заголовков, не хранятся
+        return vary == null || vary.isBlank() || vary.strip().equalsIgnoreCase("Accept-Encoding");
+    }
+
+    static String getHeader(Map<String, List<String>> headers, String name) {
+        List<String> values = headers.get(name);
+        if (values == null) {
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    values = header.getValue();
+                    break;
+                }
+            }
+        }
+        return values == null || values.isEmpty() ? null : String.join(", ", values);
+    }
+
+    private static boolean containsDirective(String header, String directive) {
+        if (header == null) {
+            return false;
+        }
+        for (String part : header.split(",")) {
+            String name = part.strip();
+            int equals = name.indexOf('=');
+            if ((equals < 0 ? name : name.substring(0, equals).strip()).equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long getDirectiveValue(String header, String directive) {
+        if (header == null) {
+            return -1;
+        }
+        for (String part : header.split(",")) {
+            String[] pair = part.strip().split("=", 2);
+            if (pair.length == 2 && pair[0].strip().equalsIgnoreCase(directive)) {
+                return parseLong(pair[1].strip().replace("\"", ""), -1);
+            }
+        }
+        return -1;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.strip());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static long parseDate(String value, long defaultValue) {
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            return format.parse(value.strip()).getTime();
+        } catch (java.text.ParseException e) {
+            //Некорректная дата заменяется значением по умолчанию: для Expires (например, Expires: 0) это 0 -
+            //срок уже наступил, для Date - текущее время
+            return defaultValue;
+        }
+    }
+
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = hash << 8 | (digest[i] & 0xFF);
+            }
+            return hash == 0 ? 1 : hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Path getEntryFile(long hash) {
+        return ENTRIES.resolve(String.format("%016x", hash));
+    }
+
+    /**
+     * Открытие индекса. При несовпадении формата кэш очищается
+     */
+    private static void openIndex() {
+        Path indexFile = DIRECTORY.resolve("index.dat");
+        try {
+            Files.createDirectories(ENTRIES);
+            long size = INDEX_HEADER_SIZE + (long) CAPACITY * SLOT_SIZE;
+            try (FileChannel channel = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                boolean valid = channel.size() == size;
+                if (channel.size() > size) {
+                    channel.truncate(size);
+                }
+                index = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                index.order(ByteOrder.LITTLE_ENDIAN);
+                valid = valid && index.getInt(0) == INDEX_MAGIC && index.getInt(4) == CAPACITY;
+                if (!valid) {
+                    clearEntries();
+                    for (int i = 0; i < size; i += 8) {
+                        index.putLong(i, 0);
+                    }
+                    index.putInt(0, INDEX_MAGIC);
+                    index.putInt(4, CAPACITY);
+                }
+            }
+
+            //Восстановление порядка LRU по времени последнего обращения
+            List<Entry> loaded = new ArrayList<>();
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                int offset = slotOffset(slot);
+                long key = index.getLong(offset);
+                if (key == 0) {
+                    freeSlots.add(slot);
+                    continue;
+                }
+                Entry entry = new Entry(key, slot, index.getLong(offset + 8), index.getLong(offset + 16), index.getLong(offset + 24));
+                if (Files.isRegularFile(getEntryFile(key))) {
+                    loaded.add(entry);
+                } else {
+                    index.putLong(offset, 0);
+                    freeSlots.add(slot);
+                }
+            }
+            loaded.sort(Comparator.comparingLong(entry -> entry.lastAccess));
+            for (Entry entry : loaded) {
+                entries.put(entry.key, entry);
+                totalBytes += entry.size;
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to open http cache: " + e);
+            index = null;
+        }
+    }
+
+    private static void clearEntries() throws IOException {
+        try (var files = Files.list(ENTRIES)) {
+            for (Path file : files.toList()) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private static int slotOffset(int slot) {
+        return INDEX_HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    /**
+     * Поиск сохранённого ответа. Обращение обновляет порядок LRU
+     */
+    private static Stored lookup(long hash, String key) {
+        Entry entry;
+        synchronized (HttpCache.class) {
+            entry = entries.get(hash);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastAccess = System.currentTimeMillis();
+            index.putLong(slotOffset(entry.slot) + 16, entry.lastAccess);
+        }
+        try {
+            Stored stored = Stored.read(entry, getEntryFile(hash));
+            if (stored != null && stored.key.equals(key)) {
+                return stored;
+            }
+            if (stored != null) {
+                stored.close();
+            }
+        } catch (IOException e) {
+            //Повреждённая запись удаляется
+        }
+        remove(hash);
+        return null;
+    }
+
+    private static synchronized void updateExpiry(Entry entry, long expiresAt) {
+        entry.expiresAt = expiresAt;
+        if (entries.get(entry.key) == entry) {
+            index.putLong(slotOffset(entry.slot) + 24, expiresAt);
+        }
+    }
+
+    private static synchronized void remove(long hash) {
+        Entry entry = entries.remove(hash);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    private static void release(Entry entry) {
+        totalBytes -= entry.size;
+        index.putLong(slotOffset(entry.slot), 0);
+        freeSlots.add(entry.slot);
+        try {
+            Files.deleteIfExists(getEntryFile(entry.key));
+        } catch (IOException e) {
+            System.err.println("Unable to delete cache entry: " + e);
+        }
+    }
+
+    /**
+     * Добавление записи после полного сохранения файла ответа и вытеснение по LRU
+     */
+    private static void commit(long hash, Path tmp, long size, long expiresAt) throws IOException {
+        synchronized (HttpCache.class) {
+            Entry old = entries.remove(hash);
+            if (old != null) {
+                totalBytes -= old.size;
+                freeSlots.add(old.slot);
+                index.putLong(slotOffset(old.slot), 0);
+            }
+            Iterator<Entry> eldest = entries.values().iterator();
+            while ((freeSlots.isEmpty() || totalBytes + size > MAX_CACHE_BYTES) && eldest.hasNext()) {
+                Entry entry = eldest.next();
+                eldest.remove();
+                release(entry);
+                evictions.incrementAndGet();
+            }
+            if (freeSlots.isEmpty()) {
+                Files.deleteIfExists(tmp);
+                return;
+            }
+            Files.move(tmp, getEntryFile(hash), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Entry entry = new Entry(hash, freeSlots.poll(), size, System.currentTimeMillis(), expiresAt);
+            int offset = slotOffset(entry.slot);
+            index.putLong(offset + 8, entry.size);
+            index.putLong(offset + 16, entry.lastAccess);
+            index.putLong(offset + 24, entry.expiresAt);
+            index.putLong(offset, hash);
+            entries.put(hash, entry);
+            totalBytes += size;
+        }
+        stores.incrementAndGet();
+    }
+
+    /**
+     * Ответ на запрос: статус, заголовки (без заголовков соединения) и поток тела, который нужно закрыть
+     */
+    public static final class Response implements Closeable {
+
+        private final int status;
+        private final String reason;
+        private final Map<String, List<String>> headers;
+        private final InputStream body;
+        private final long length;
+        private final String cacheStatus;
+
+        Response(int status, String reason, Map<String, List<String>> headers, InputStream body, long length, String cacheStatus) {
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.length = length;
+            this.cacheStatus = cacheStatus;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        public Map<String, List<String>> getHeaders() {
+            return headers;
+        }
+
+        public String getHeader(String name) {
+            return HttpCache.getHeader(headers, name);
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        /**
+         * Длина тела в байтах либо -1, если она неизвестна
+         */
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Источник ответа: HIT (с диска), REVALIDATED (с диска после ответа 304), MISS (из сети) или BYPASS
+         */
+        public String getCacheStatus() {
+            return cacheStatus;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+
+    }
+
+    /**
+     * Запись индекса
+     */
+    private static class Entry {
+
+        private final long key;
+        private final int slot;
+        private final long size;
+        private long lastAccess;
+        private long expiresAt;
+
+        Entry(long key, int slot, long size, long lastAccess, long expiresAt) {
+            this.key = key;
+            this.slot = slot;
+            this.size = size;
+            this.lastAccess = lastAccess;
+            this.expiresAt = expiresAt;
+        }
+
+    }
+
+    /**
+     * Прочитанный с диска ответ, поток которого установлен на начало тела
+     */
+    private static class Stored implements Closeable {
+
+        private final Entry entry;
+        private final String key;
+        private final int status;
+        private final String reason;
+        private final Map<String, List<String>> headers;
+        private final InputStream body;
+        private final long bodyLength;
+
+        private Stored(Entry entry, String key, int status, String reason, Map<String, List<String>> headers,
+                       InputStream body, long bodyLength) {
+            this.entry = entry;
+            this.key = key;
+            this.status = status;
+            this.reason = reason;
+            this.headers = headers;
+            this.body = body;
+            this.bodyLength = bodyLength;
+        }
+
+        static Stored read(Entry entry, Path file) throws IOException {
+            InputStream in = Files.newInputStream(file);
+            try {
+                DataInputStream data = new DataInputStream(in);
+                if (data.readInt() != ENTRY_MAGIC) {
+                    in.close();
+                    return null;
+                }
+                byte[] header = new byte[data.readInt()];
+                data.readFully(header);
+                String[] lines = new String(header, StandardCharsets.UTF_8).split("\r\n");
+                String key = lines[0] + '\n' + lines[1];
+                int space = lines[2].indexOf(' ');
+                int status = Integer.parseInt(space < 0 ? lines[2] : lines[2].substring(0, space));
+                String reason = space < 0 ? "" : lines[2].substring(space + 1);
+                Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                for (int i = 3; i < lines.length; i++) {
+                    int colon = lines[i].indexOf(':');
+                    if (colon > 0) {
+                        headers.computeIfAbsent(lines[i].substring(0, colon), name -> new ArrayList<>())
+                                .add(lines[i].substring(colon + 1).strip());
+                    }
+                }
+                long bodyLength = Files.size(file) - 8 - header.length;
+                return new Stored(entry, key, status, reason, headers, in, bodyLength);
+            } catch (IOException | RuntimeException e) {
+                in.close();
+                throw e instanceof IOException ? (IOException) e : new IOException(e);
+            }
+        }
+
+        String getHeader(String name) {
+            return HttpCache.getHeader(headers, name);
+        }
+
+        Response toResponse(String cacheStatus) {
+            Map<String, List<String>> responseHeaders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            responseHeaders.putAll(headers);
+            responseHeaders.put("Content-Length", List.of(String.valueOf(bodyLength)));
+            return new Response(status, reason, responseHeaders, body, bodyLength, cacheStatus);
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+
+    }
+
+    /**
+     * Поток тела ответа, который по мере чтения сохраняет данные во временный файл. Запись добавляется в кэш,
+     * только если тело прочитано полностью; при закрытии потока раньше времени временный файл удаляется
+     */
+    private static class StoringInputStream extends FilterInputStream {
+
+        private final long hash;
+        private final long expiresAt;
+        private final long expectedLength;
+        private final Path tmp;
+        private OutputStream out;
+        private long written;
+        private boolean finished;
+
+        StoringInputStream(InputStream in, String key, int status, String reason, Map<String, List<String>> headers,
+                           long expiresAt, long expectedLength) throws IOException {
+            super(in);
+            this.hash = hash(key);
+            this.expiresAt = expiresAt;
+            this.expectedLength = expectedLength;
+            this.tmp = Files.createTempFile(ENTRIES, String.format("%016x", hash), ".tmp");
+            StringBuilder header = new StringBuilder(key.replace("\n", "\r\n")).append("\r\n")
+                    .append(status).append(' ').append(reason == null ? "" : reason).append("\r\n");
+            headers.forEach((name, values) -> {
+                if (!name.equalsIgnoreCase("Content-Length")) {
+                    values.forEach(value -> header.append(name).append(": ").append(value).append("\r\n"));
+                }
+            });
+            byte[] headerBytes = header.toString().getBytes(StandardCharsets.UTF_8);
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024));
+            data.writeInt(ENTRY_MAGIC);
+            data.writeInt(headerBytes.length);
+            data.write(headerBytes);
+            out = data;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+            if (value < 0) {
+                finish();
+            } else {
+                store(new byte[]{(byte) value}, 0, 1);
+            }
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read < 0) {
+                finish();
+            } else {
+                store(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            abort();
+        }
+
+        private void store(byte[] buffer, int offset, int length) {
+            if (out == null) {
+                return;
+            }
+            written += length;
+            try {
+                if (written > MAX_ENTRY_BYTES) {
+                    abort();
+                } else {
+                    out.write(buffer, offset, length);
+                }
+            } catch (IOException e) {
+                abort();
+            }
+        }
+
+        private void finish() {
+            if (out == null || finished) {
+                return;
+            }
+            finished = true;
+            try {
+                out.close();
+                out = null;
+                if (expectedLength < 0 || expectedLength == written) {
+                    commit(hash, tmp, Files.size(tmp), expiresAt);
+                } else {
+                    Files.deleteIfExists(tmp);
+                }
+            } catch (IOException e) {
+                System.err.println("Unable to store cache entry: " + e);
+                abort();
+            }
+        }
+
+        private void abort() {
+            try {
+                if (out != null) {
+                    out.close();
+                    out = null;
+                }
+                Files.deleteIfExists(tmp);
+            } catch (IOException e) {
+                //Временный файл будет удалён при очистке кэша
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+package browser;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Класс LatencyHistogram - потокобезопасная гистограмма задержек с логарифмическими корзинами
+ * (четыре корзины на каждую степень двойки микросекунд, относительная погрешность не более 25%).
+ * Запись значения не выделяет память и не блокирует поток
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 4;
+
+    private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+    private final String name;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong totalNanos = new AtomicLong();
+
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    public LatencyHistogram(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Запись одного измерения в наносекундах
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        totalNanos.addAndGet(value);
+        maxNanos.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * Запись времени, прошедшего с момента startNanos (значение System.nanoTime())
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.get();
+        return n == 0 ? 0 : (double) totalNanos.get() / n;
+    }
+
+    /**
+     * Оценка перцентиля (0 < percentile <= 100) в наносекундах по верхней границе корзины
+     */
+    public long getPercentileNanos(double percentile) {
+        long n = count.get();
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Доля измерений, не превысивших limitNanos (с точностью до корзины)
+     */
+    public double getFractionBelow(long limitNanos) {
+        long n = count.get();
+        if (n == 0) {
+            return 1;
+        }
+        long below = 0;
+        for (int i = 0; i < BUCKETS && upperBound(i) <= limitNanos; i++) {
+            below += counts.get(i);
+        }
+        return (double) below / n;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: n=%d mean=%.2fms p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                name, getCount(), getMeanNanos() / 1e6, getPercentileNanos(50) / 1e6, getPercentileNanos(90) / 1e6,
+                getPercentileNanos(99) / 1e6, getMaxNanos() / 1e6);
+    }
+
+    private static int bucket(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        if (micros < 1) {
+            return 0;
+        }
+        int power = 63 - Long.numberOfLeadingZeros(micros);
+        int sub = power >= 2 ? (int) ((micros >> (power - 2)) & (SUB_BUCKETS - 1)) : (int) (micros & (SUB_BUCKETS - 1));
+        return Math.min(BUCKETS - 1, 1 + power * SUB_BUCKETS + sub);
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return TimeUnit.MICROSECONDS.toNanos(1);
+        }
+        int power = (bucket - 1) / SUB_BUCKETS;
+        int sub = (bucket - 1) % SUB_BUCKETS;
+        long base = 1L << power;
+        long upperMicros = power >= 2 ? base + (base / SUB_BUCKETS) * (sub + 1) : base * 2;
+        return TimeUnit.MICROSECONDS.toNanos(upperMicros);
+    }
+
+}
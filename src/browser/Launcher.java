@@ -1,11 +1,18 @@
 package browser;
 
+import java.util.Arrays;
+
 /**
- * Класс для запуска приложения JavaFX
+ * Класс для запуска приложения JavaFX.
+ * С первым аргументом --render запускается пакетная отрисовка страниц без интерфейса (BatchRenderer)
  */
 
 public class Launcher {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--render")) {
+            BatchRenderer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
         WebBrowser.main(args);
     }
 }
@@ -0,0 +1,331 @@
+package browser;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.CookieHandler;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Класс NetworkClient - общий сетевой слой браузера для запросов вне WebEngine (фавиконки, загрузки, HTTP-кэш).
+ * <p>
+ * Все запросы выполняются общими экземплярами HttpClient, поэтому соединения переиспользуются (keep-alive),
+ * а к серверам https с поддержкой HTTP/2 запросы мультиплексируются в одном соединении без повторного
+ * TLS-рукопожатия. Число одновременных запросов к одному хосту ограничено (jwebbrowser.net.maxRequestsPerHost),
+ * время соединения и ожидания данных задаётся настройками jwebbrowser.net.connectTimeout и jwebbrowser.net.readTimeout.
+ * Потоки HttpClient - виртуальные, если их поддерживает JVM (Java 21+), иначе обычные потоки-демоны.
+ * Запросы блокируют вызывающий поток, поэтому выполняются в задачах TaskScheduler, а не в потоке JavaFX
+ */
+public final class NetworkClient {
+
+    private static final int CONNECT_TIMEOUT = BrowserSettings.getInt("jwebbrowser.net.connectTimeout", 10_000);
+
+    private static final int READ_TIMEOUT = BrowserSettings.getInt("jwebbrowser.net.readTimeout", 30_000);
+
+    private static final int MAX_REQUESTS_PER_HOST = BrowserSettings.getInt("jwebbrowser.net.maxRequestsPerHost", 6);
+
+    private static final String USER_AGENT = "Mozilla/5.0";
+
+    private static final ExecutorService executor = TaskScheduler.newVirtualThreadExecutor("network");
+
+    /**
+     * Запросы от имени браузера (загрузки): с cookies страниц и переходом по перенаправлениям
+     */
+    private static final HttpClient browserClient = newClient()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .cookieHandler(new DefaultCookieHandler())
+            .build();
+
+    /**
+     * Запросы HttpCache и CachingProxy: заголовки (включая Cookie) передаются как есть, перенаправления
+     * возвращаются вызывающему коду
+     */
+    private static final HttpClient rawClient = newClient()
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+
+    /**
+     * Ограничения числа одновременных запросов к хосту, отдельно для каждого клиента,
+     * чтобы долгие загрузки не задерживали ресурсы страниц
+     */
+    private static final Map<String, Semaphore> browserLimits = new ConcurrentHashMap<>();
+
+    private static final Map<String, Semaphore> rawLimits = new ConcurrentHashMap<>();
+
+    /**
+     * Потоки тел ответов, которые сейчас читаются, для проверки тайм-аута ожидания данных
+     */
+    private static final Set<BodyStream> activeStreams = ConcurrentHashMap.newKeySet();
+
+    private static final ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "network-watchdog");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        watchdog.scheduleWithFixedDelay(() -> activeStreams.forEach(BodyStream::checkTimeout), 1, 1, TimeUnit.SECONDS);
+    }
+
+    private NetworkClient() {
+    }
+
+    /**
+     * Заготовка запроса с User-Agent браузера и тайм-аутом по умолчанию. Для http используется HTTP/1.1
+     * (попытка перехода на HTTP/2 без шифрования ломает часть серверов), для https - HTTP/2 с откатом на HTTP/1.1
+     */
+    public static HttpRequest.Builder newRequest(String url) throws IOException {
+        URI uri = toURI(url);
+        HttpRequest.Builder builder = HttpRequest.newBuilder(uri)
+                .timeout(Duration.ofMillis(READ_TIMEOUT))
+                .header("User-Agent", USER_AGENT);
+        if ("http".equalsIgnoreCase(uri.getScheme())) {
+            builder.version(HttpClient.Version.HTTP_1_1);
+        }
+        return builder;
+    }
+
+    /**
+     * Запрос от имени браузера с cookies страниц и переходом по перенаправлениям.
+     * Тело ответа нужно закрыть: до этого запрос учитывается в ограничении числа запросов к хосту
+     */
+    public static HttpResponse<InputStream> send(HttpRequest request) throws IOException {
+        return send(browserClient, browserLimits, request);
+    }
+
+    /**
+     * Запрос без cookies и без перехода по перенаправлениям (для HttpCache и CachingProxy)
+     */
+    static HttpResponse<InputStream> sendRaw(HttpRequest request) throws IOException {
+        return send(rawClient, rawLimits, request);
+    }
+
+    /**
+     * Длина тела ответа из заголовка Content-Length либо -1
+     */
+    public static long getContentLength(HttpResponse<?> response) {
+        return response.headers().firstValueAsLong("Content-Length").orElse(-1);
+    }
+
+    private static HttpResponse<InputStream> send(HttpClient client, Map<String, Semaphore> limits, HttpRequest request)
+            throws IOException {
+        TaskScheduler.checkNotFxThread("HTTP request to " + request.uri());
+        String host = request.uri().getHost() == null ? "" : request.uri().getHost().toLowerCase();
+        Semaphore limit = limits.computeIfAbsent(host, key -> new Semaphore(MAX_REQUESTS_PER_HOST, true));
+        try {
+            limit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+        }
+        AtomicBoolean released = new AtomicBoolean();
+        Runnable release = () -> {
+            if (released.compareAndSet(false, true)) {
+                limit.release();
+            }
+        };
+        long timeout = request.timeout().orElse(Duration.ofMillis(READ_TIMEOUT)).toMillis();
+        try {
+            return client.send(request, info -> HttpResponse.BodySubscribers.mapping(
+                    HttpResponse.BodySubscribers.ofInputStream(), in -> new BodyStream(in, timeout, release)));
+        } catch (InterruptedException e) {
+            release.run();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Request to " + request.uri() + " interrupted");
+        } catch (IOException | RuntimeException e) {
+            release.run();
+            throw e;
+        }
+    }
+
+    /**
+     * Преобразование адреса в URI с кодированием символов, которые WebEngine допускает в адресах,
+     * а URI - нет (пробелы, не-ASCII символы, | и т.п.)
+     */
+    static URI toURI(String url) throws IOException {
+        try {
+            return new URI(url);
+        } catch (URISyntaxException e) {
+            StringBuilder encoded = new StringBuilder(url.length() + 16);
+            for (byte b : url.getBytes(StandardCharsets.UTF_8)) {
+                int c = b & 0xFF;
+                if (c <= 0x20 || c >= 0x7F || "\"<>\\^`{|}".indexOf(c) >= 0) {
+                    encoded.append('%').append(Character.toUpperCase(Character.forDigit(c >> 4, 16)))
+                            .append(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+                } else {
+                    encoded.append((char) c);
+                }
+            }
+            try {
+                return new URI(encoded.toString());
+            } catch (URISyntaxException ex) {
+                throw new IOException("Invalid URL: " + url, ex);
+            }
+        }
+    }
+
+    private static HttpClient.Builder newClient() {
+        return HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(CONNECT_TIMEOUT))
+                .proxy(new UpstreamProxySelector())
+                .executor(executor);
+    }
+
+    /**
+     * Выбор прокси для запросов к серверам: системные настройки без локального кэширующего прокси
+     */
+    private static class UpstreamProxySelector extends ProxySelector {
+
+        @Override
+        public List<Proxy> select(URI uri) {
+            ProxySelector upstream = CachingProxy.getUpstreamSelector();
+            return upstream == null ? List.of(Proxy.NO_PROXY) : upstream.select(uri);
+        }
+
+        @Override
+        public void connectFailed(URI uri, SocketAddress address, IOException e) {
+            ProxySelector upstream = CachingProxy.getUpstreamSelector();
+            if (upstream != null) {
+                upstream.connectFailed(uri, address, e);
+            }
+        }
+
+    }
+
+    /**
+     * Хранилище cookies WebView (устанавливается как CookieHandler по умолчанию при создании первого WebView)
+     */
+    private static class DefaultCookieHandler extends CookieHandler {
+
+        @Override
+        public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) throws IOException {
+            CookieHandler handler = CookieHandler.getDefault();
+            return handler == null ? Collections.emptyMap() : handler.get(uri, requestHeaders);
+        }
+
+        @Override
+        public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException {
+            CookieHandler handler = CookieHandler.getDefault();
+            if (handler != null) {
+                handler.put(uri, responseHeaders);
+            }
+        }
+
+    }
+
+    /**
+     * Тело ответа. Освобождает место в ограничении числа запросов к хосту после полного чтения или закрытия
+     * и прерывает чтение, если данные не поступают дольше тайм-аута (HttpClient не ограничивает время чтения тела)
+     */
+    private static class BodyStream extends FilterInputStream {
+
+        private final long timeout;
+        private final Runnable release;
+        private volatile Thread reader;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private boolean timedOut;
+
+        BodyStream(InputStream in, long timeout, Runnable release) {
+            super(in);
+            this.timeout = timeout;
+            this.release = release;
+            activeStreams.add(this);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            lastActivity = System.currentTimeMillis();
+            reader = Thread.currentThread();
+            try {
+                int read = super.read(buffer, offset, length);
+                if (read < 0) {
+                    finish();
+                }
+                return read;
+            } catch (IOException e) {
+                if (clearTimeout()) {
+                    throw new HttpTimeoutException("Read timed out");
+                }
+                throw e;
+            } finally {
+                reader = null;
+                lastActivity = System.currentTimeMillis();
+                clearTimeout();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                finish();
+            }
+        }
+
+        private void finish() {
+            activeStreams.remove(this);
+            release.run();
+        }
+
+        /**
+         * Сброс признака тайм-аута и прерывания, выставленного проверкой. Возвращает true, если тайм-аут истёк
+         */
+        private synchronized boolean clearTimeout() {
+            if (!timedOut) {
+                return false;
+            }
+            timedOut = false;
+            Thread.interrupted();
+            return true;
+        }
+
+        /**
+         * Поток HttpClient игнорирует прерывание ожидающего чтения, пока поток не закрыт,
+         * поэтому при истечении тайм-аута он сначала закрывается
+         */
+        synchronized void checkTimeout() {
+            Thread thread = reader;
+            if (thread != null && !timedOut && System.currentTimeMillis() - lastActivity > timeout) {
+                timedOut = true;
+                try {
+                    close();
+                } catch (IOException e) {
+                    //Чтение всё равно будет прервано
+                }
+                thread.interrupt();
+            }
+        }
+
+    }
+
+}
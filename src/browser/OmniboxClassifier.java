@@ -0,0 +1,379 @@
+package browser;
+
+import org.apache.commons.validator.routines.DomainValidator;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Класс OmniboxClassifier - определение смысла введённого в адресную строку текста: полный адрес со схемой,
+ * имя хоста (к которому добавляется http://) или поисковый запрос.
+ * <p>
+ * Разбор выполняется за один проход по строке без исключений и регулярных выражений. Хост считается адресом,
+ * если это localhost, IPv4 или IPv6 адрес, имя с известным доменом верхнего уровня (список IANA из commons-validator),
+ * имя во внутренней сети (.local, .lan, .internal и т.п. или хост из jwebbrowser.omnibox.intranetHosts),
+ * а также одно слово с портом или путём (intranet/, router:8080). Схемы file: и about: принимаются как есть.
+ * Класс потокобезопасен: всё его состояние неизменяемо
+ */
+public final class OmniboxClassifier {
+
+    /**
+     * Результат разбора введённого текста
+     */
+    public enum Kind {
+        /**
+         * Полный адрес со схемой
+         */
+        URL,
+        /**
+         * Хост (с портом и путём) без схемы
+         */
+        HOST,
+        /**
+         * Поисковый запрос
+         */
+        SEARCH
+    }
+
+    private static final String SEARCH_URL = "https://google.com/search?q=";
+
+    private static final int MAX_HOST_LENGTH = 253;
+
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    /**
+     * Домены верхнего уровня: общие, национальные и инфраструктурные (arpa)
+     */
+    private static final Set<String> TOP_LEVEL_DOMAINS = loadTopLevelDomains();
+
+    /**
+     * Публичные суффиксы второго уровня: такой текст сам по себе не является хостом
+     */
+    private static final Set<String> PUBLIC_SUFFIXES = new HashSet<>(Arrays.asList("co.uk", "org.uk", "ac.uk", "gov.uk",
+            "com.au", "net.au", "org.au", "co.jp", "ne.jp", "or.jp", "com.br", "com.cn", "com.tw", "co.kr", "co.in",
+            "com.mx", "com.tr", "com.ru", "msk.ru", "spb.ru", "co.za", "co.nz", "com.ar", "com.ua", "com.pk", "co.id"));
+
+    /**
+     * Суффиксы внутренних сетей, которых нет в списке IANA
+     */
+    private static final String[] INTRANET_SUFFIXES = {".local", ".lan", ".internal", ".intranet", ".corp", ".home",
+            ".home.arpa", ".localdomain", ".test", ".localhost"};
+
+    private static final Set<String> INTRANET_HOSTS = loadIntranetHosts();
+
+    private OmniboxClassifier() {
+    }
+
+    /**
+     * Адрес для загрузки по введённому тексту: сам адрес, http:// + хост либо адрес поиска
+     */
+    public static String toAddress(String input) {
+        String text = input == null ? "" : input.strip();
+        return switch (classify(text)) {
+            case URL -> text;
+            case HOST -> "http://" + text;
+            case SEARCH -> SEARCH_URL + URLEncoder.encode(text, StandardCharsets.UTF_8);
+        };
+    }
+
+    /**
+     * Определение вида введённого текста (пробелы по краям не учитываются)
+     */
+    public static Kind classify(String input) {
+        if (input == null) {
+            return Kind.SEARCH;
+        }
+        int start = 0;
+        int end = input.length();
+        while (start < end && Character.isWhitespace(input.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(input.charAt(end - 1))) {
+            end--;
+        }
+        if (start == end) {
+            return Kind.SEARCH;
+        }
+
+        //Схема: буква, затем буквы, цифры, '+', '-', '.' до двоеточия
+        int colon = -1;
+        if (isLetter(input.charAt(start))) {
+            int i = start + 1;
+            while (i < end && isSchemeChar(input.charAt(i))) {
+                i++;
+            }
+            if (i < end && input.charAt(i) == ':') {
+                colon = i;
+            }
+        }
+        if (colon > 0) {
+            if (regionEquals(input, start, colon, "file") || regionEquals(input, start, colon, "about")) {
+                return colon + 1 < end ? Kind.URL : Kind.SEARCH;
+            }
+            if (regionEquals(input, start, colon, "http") || regionEquals(input, start, colon, "https")
+                    || regionEquals(input, start, colon, "ftp")) {
+                boolean slashes = colon + 2 < end && input.charAt(colon + 1) == '/' && input.charAt(colon + 2) == '/';
+                return slashes && !containsWhitespace(input, colon + 3, end) && isAuthority(input, colon + 3, end, true)
+                        ? Kind.URL : Kind.SEARCH;
+            }
+            //Иначе двоеточие может отделять порт хоста (localhost:8080)
+        }
+
+        if (containsWhitespace(input, start, end)) {
+            return Kind.SEARCH;
+        }
+        return isAuthority(input, start, end, false) ? Kind.HOST : Kind.SEARCH;
+    }
+
+    /**
+     * Проверка части [start, end) вида хост[:порт][/путь|?запрос|#фрагмент].
+     * При явно указанной схеме (explicit) принимается любое синтаксически верное имя хоста
+     */
+    private static boolean isAuthority(String text, int start, int end, boolean explicit) {
+        int hostEnd = start;
+        while (hostEnd < end) {
+            char c = text.charAt(hostEnd);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            hostEnd++;
+        }
+        boolean hasPath = hostEnd < end;
+
+        //Данные пользователя user:password@host
+        int at = text.lastIndexOf('@', hostEnd - 1);
+        if (at >= start) {
+            if (!explicit) {
+                return false;
+            }
+            start = at + 1;
+        }
+
+        int portStart = -1;
+        int hostStop = hostEnd;
+        if (start < hostEnd && text.charAt(start) == '[') {
+            int close = text.indexOf(']', start);
+            if (close < 0 || close >= hostEnd || !isIpv6(text, start + 1, close)) {
+                return false;
+            }
+            if (close + 1 < hostEnd) {
+                if (text.charAt(close + 1) != ':') {
+                    return false;
+                }
+                portStart = close + 2;
+            }
+            return portStart < 0 || isPort(text, portStart, hostEnd);
+        }
+        for (int i = start; i < hostEnd; i++) {
+            if (text.charAt(i) == ':') {
+                hostStop = i;
+                portStart = i + 1;
+                break;
+            }
+        }
+        if (portStart >= 0 && !isPort(text, portStart, hostEnd)) {
+            return false;
+        }
+        int length = hostStop - start;
+        if (length == 0 || length > MAX_HOST_LENGTH) {
+            return false;
+        }
+        if (isIpv4(text, start, hostStop)) {
+            return true;
+        }
+
+        //Проверка меток имени и поиск последней точки
+        int labelStart = start;
+        int lastDot = -1;
+        int labels = 0;
+        for (int i = start; i <= hostStop; i++) {
+            if (i == hostStop || text.charAt(i) == '.') {
+                int labelLength = i - labelStart;
+                //Завершающая точка полного имени (example.com.) допускается
+                if (labelLength == 0 && !(i == hostStop && labels > 0)) {
+                    return false;
+                }
+                if (labelLength > MAX_LABEL_LENGTH || labelLength > 0
+                        && (text.charAt(labelStart) == '-' || text.charAt(i - 1) == '-')) {
+                    return false;
+                }
+                if (labelLength > 0) {
+                    labels++;
+                    if (i < hostStop) {
+                        lastDot = i;
+                    }
+                }
+                labelStart = i + 1;
+            } else if (!isHostChar(text.charAt(i))) {
+                return false;
+            }
+        }
+        if (hostStop > start && text.charAt(hostStop - 1) == '.') {
+            hostStop--;
+            lastDot = text.lastIndexOf('.', hostStop - 1);
+            lastDot = lastDot < start ? -1 : lastDot;
+        }
+
+        if (explicit) {
+            return true;
+        }
+        if (regionEquals(text, start, hostStop, "localhost")) {
+            return true;
+        }
+        if (lastDot < 0) {
+            //Одно слово: адрес во внутренней сети, если указан порт или путь либо хост известен
+            return portStart >= 0 || hasPath || INTRANET_HOSTS.contains(text.substring(start, hostStop).toLowerCase(Locale.ROOT));
+        }
+        for (String suffix : INTRANET_SUFFIXES) {
+            if (regionEndsWith(text, start, hostStop, suffix)) {
+                return true;
+            }
+        }
+        String host = text.substring(start, hostStop).toLowerCase(Locale.ROOT);
+        if (PUBLIC_SUFFIXES.contains(host) || INTRANET_HOSTS.contains(host)) {
+            return INTRANET_HOSTS.contains(host);
+        }
+        String tld = host.substring(lastDot - start + 1);
+        return TOP_LEVEL_DOMAINS.contains(tld) && !isAllDigits(tld);
+    }
+
+    private static boolean isIpv4(String text, int start, int end) {
+        int parts = 0;
+        int value = -1;
+        int digits = 0;
+        for (int i = start; i <= end; i++) {
+            if (i == end || text.charAt(i) == '.') {
+                if (digits == 0 || value > 255) {
+                    return false;
+                }
+                parts++;
+                value = -1;
+                digits = 0;
+            } else {
+                char c = text.charAt(i);
+                if (c < '0' || c > '9' || ++digits > 3) {
+                    return false;
+                }
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            }
+        }
+        return parts == 4;
+    }
+
+    private static boolean isIpv6(String text, int start, int end) {
+        int groups = 0;
+        int groupLength = 0;
+        boolean compressed = false;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c == ':') {
+                if (i + 1 < end && text.charAt(i + 1) == ':') {
+                    if (compressed) {
+                        return false;
+                    }
+                    compressed = true;
+                    i++;
+                } else if (groupLength == 0 && i != start) {
+                    return false;
+                }
+                if (groupLength > 0) {
+                    groups++;
+                }
+                groupLength = 0;
+            } else if (Character.digit(c, 16) >= 0 && ++groupLength <= 4) {
+                continue;
+            } else if (c == '.') {
+                //Встроенный IPv4 адрес в конце (::ffff:192.168.0.1)
+                int groupStart = i - groupLength;
+                return isIpv4(text, groupStart, end) && (compressed ? groups <= 5 : groups == 6);
+            } else {
+                return false;
+            }
+        }
+        if (groupLength > 0) {
+            groups++;
+        }
+        return compressed ? groups <= 7 : groups == 8;
+    }
+
+    private static boolean isPort(String text, int start, int end) {
+        if (start >= end || end - start > 5) {
+            return false;
+        }
+        int port = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            port = port * 10 + (c - '0');
+        }
+        return port <= 65535;
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean isSchemeChar(char c) {
+        return isLetter(c) || c >= '0' && c <= '9' || c == '+' || c == '-' || c == '.';
+    }
+
+    /**
+     * Символы имени хоста: латиница, цифры, дефис, подчёркивание и символы национальных доменов (IDN)
+     */
+    private static boolean isHostChar(char c) {
+        return isLetter(c) || c >= '0' && c <= '9' || c == '-' || c == '_' || c > 0x7F && Character.isLetterOrDigit(c);
+    }
+
+    private static boolean isAllDigits(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < '0' || text.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean containsWhitespace(String text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.isWhitespace(text.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(String text, int start, int end, String value) {
+        return end - start == value.length() && text.regionMatches(true, start, value, 0, value.length());
+    }
+
+    private static boolean regionEndsWith(String text, int start, int end, String suffix) {
+        return end - start > suffix.length() && text.regionMatches(true, end - suffix.length(), suffix, 0, suffix.length());
+    }
+
+    private static Set<String> loadTopLevelDomains() {
+        Set<String> domains = new HashSet<>();
+        domains.addAll(Arrays.asList(DomainValidator.getTLDEntries(DomainValidator.ArrayType.GENERIC_RO)));
+        domains.addAll(Arrays.asList(DomainValidator.getTLDEntries(DomainValidator.ArrayType.COUNTRY_CODE_RO)));
+        domains.addAll(Arrays.asList(DomainValidator.getTLDEntries(DomainValidator.ArrayType.INFRASTRUCTURE_RO)));
+        //Национальные домены на кириллице
+        domains.addAll(Arrays.asList("рф", "рус", "москва", "дети", "сайт", "онлайн", "укр", "бел", "қаз", "срб"));
+        return domains;
+    }
+
+    private static Set<String> loadIntranetHosts() {
+        Set<String> hosts = new HashSet<>();
+        for (String host : System.getProperty("jwebbrowser.omnibox.intranetHosts", "").split(",")) {
+            if (!host.isBlank()) {
+                hosts.add(host.strip().toLowerCase(Locale.ROOT));
+            }
+        }
+        return hosts;
+    }
+
+}
@@ -0,0 +1,1365 @@
+package browser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Класс PageIndex - полнотекстовый индекс посещённых страниц для поиска по истории.
+ * <p>
+ * Индекс инвертированный: для каждого слова хранится список документов (страниц) с числом вхождений слова.
+ * Новые страницы попадают в буфер в памяти, который при заполнении записывается на диск неизменяемым
+ * сегментом (seg-N.idx: списки документов со сжатыми разностями номеров, затем словарь слов по алфавиту).
+ * Сегменты образуют уровни: MERGE_FACTOR последних сегментов одного уровня сливаются в один сегмент
+ * следующего уровня, поэтому число сегментов растёт логарифмически, а слияние не переписывает весь индекс.
+ * При слиянии удаляются устаревшие версии страниц (страница, проиндексированная повторно, получает новый номер).
+ * Когда устаревшие версии составляют заметную долю номеров, индекс уплотняется: все сегменты сливаются в один
+ * с новыми сплошными номерами документов, а журнал документов переписывается без удалённых записей.
+ * Список действующих сегментов и журнала (segments.lst) атомарно заменяется после каждой записи; адреса, названия
+ * и длины документов дописываются в журнал документов (docs.log или docs-N.log после уплотнения).
+ * <p>
+ * Результаты поиска ранжируются по BM25. Словари сегментов хранятся в памяти, списки документов читаются
+ * из отображённых в память файлов, поэтому запрос из нескольких слов по сотням тысяч страниц занимает миллисекунды.
+ * <p>
+ * Поток JavaFX только ставит текст страницы в очередь ограниченного размера (при переполнении отбрасываются
+ * самые старые страницы). Разбор, запись и слияние выполняет фоновый поток с низким приоритетом,
+ * который индексирует не больше jwebbrowser.search.pagesPerSecond страниц в секунду
+ */
+public class PageIndex {
+
+    private static final int SEGMENT_MAGIC = 0x4A575053;
+
+    private static final int DOCS_MAGIC = 0x4A575044;
+
+    private static final int VERSION = 1;
+
+    private static final int FLUSH_DOCS = 2_000;
+
+    private static final long FLUSH_INTERVAL_MILLIS = 60_000;
+
+    private static final int MERGE_FACTOR = 8;
+
+    /**
+     * Уплотнение выполняется, когда устаревших версий страниц не меньше COMPACT_MIN_DELETED
+     * и не меньше 1/COMPACT_RATIO всех номеров документов
+     */
+    private static final int COMPACT_MIN_DELETED = 256;
+
+    private static final int COMPACT_RATIO = 4;
+
+    private static final int QUEUE_LIMIT = 64;
+
+    /**
+     * Текст страницы и число слов в ней ограничиваются: конец очень длинных страниц не индексируется
+     */
+    static final int MAX_TEXT_LENGTH = 200_000;
+
+    private static final int MAX_TOKENS = 20_000;
+
+    private static final int MIN_TOKEN_LENGTH = 2;
+
+    private static final int MAX_TOKEN_LENGTH = 40;
+
+    private static final int MAX_URL_LENGTH = 2_048;
+
+    private static final int MAX_TITLE_LENGTH = 512;
+
+    private static final byte RECORD_ADD = 1;
+
+    private static final byte RECORD_DELETE = 2;
+
+    /**
+     * Строка списка сегментов с именем текущего журнала документов
+     */
+    private static final String DOCS_ENTRY = "docs ";
+
+    /**
+     * Параметры ранжирования BM25
+     */
+    private static final double K1 = 1.2;
+
+    private static final double B = 0.75;
+
+    private static PageIndex instance;
+
+    private final Path directory;
+
+    /**
+     * Текущий журнал документов (заменяется при уплотнении)
+     */
+    private Path docsFile;
+
+    private final Path manifestFile;
+
+    private final int pagesPerSecond;
+
+    /**
+     * Блокировка документов и буфера: поиск читает их, фоновый поток изменяет коротко под блокировкой записи
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<Doc> docs = new ArrayList<>();
+
+    private final Map<String, Integer> docsByUrl = new HashMap<>();
+
+    /**
+     * Номера устаревших версий страниц (дублирует Doc.deleted в компактном виде для поиска и слияния)
+     */
+    private final BitSet deletedDocs = new BitSet();
+
+    private long totalLength;
+
+    private int liveDocs;
+
+    /**
+     * Буфер ещё не записанных страниц: слово -> пары (номер документа, число вхождений)
+     */
+    private final Map<String, IntList> buffer = new HashMap<>();
+
+    private int bufferedDocs;
+
+    private volatile List<Segment> segments = List.of();
+
+    private int nextSegment;
+
+    private FileChannel docsLog;
+
+    private final BlockingDeque<Page> queue = new LinkedBlockingDeque<>();
+
+    private volatile Thread indexer;
+
+    /**
+     * Открытие индекса фоновым потоком: поиск ждёт его, чтобы не вернуть пустой результат сразу после запуска
+     */
+    private final CountDownLatch opened = new CountDownLatch(1);
+
+    public PageIndex(Path directory, int pagesPerSecond) {
+        this.directory = directory;
+        this.docsFile = directory.resolve("docs.log");
+        this.manifestFile = directory.resolve("segments.lst");
+        this.pagesPerSecond = pagesPerSecond;
+    }
+
+    /**
+     * Индекс страниц в каталоге данных браузера. Фоновый поток запускается при первом обращении
+     */
+    public static synchronized PageIndex getDefault() {
+        if (instance == null) {
+            instance = new PageIndex(BrowserSettings.getDataDirectory("search"),
+                    BrowserSettings.getInt("jwebbrowser.search.pagesPerSecond", 2));
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Закрытие индекса браузера, если он открывался
+     */
+    public static synchronized void closeDefault() {
+        if (instance != null) {
+            instance.close();
+        }
+    }
+
+    /**
+     * Запуск фонового потока: открытие индекса, затем разбор страниц из очереди
+     */
+    public synchronized void start() {
+        if (indexer != null) {
+            return;
+        }
+        indexer = new Thread(this::indexLoop, "page-indexer");
+        indexer.setDaemon(true);
+        indexer.setPriority(Thread.MIN_PRIORITY);
+        indexer.start();
+    }
+
+    /**
+     * Постановка текста страницы в очередь индексации (вызывается из любого потока, не блокирует его)
+     */
+    public void submit(String url, String title, String text) {
+        if (url == null || url.length() > MAX_URL_LENGTH || text == null || text.isBlank() || !isIndexed(url)) {
+            return;
+        }
+        if (text.length() > MAX_TEXT_LENGTH) {
+            text = text.substring(0, MAX_TEXT_LENGTH);
+        }
+        queue.add(new Page(url, title, text));
+        //Очередь ограничена: при переполнении теряются самые старые страницы, а не новые
+        while (queue.size() > QUEUE_LIMIT) {
+            Page oldest = queue.pollFirst();
+            if (oldest instanceof Marker) {
+                queue.addFirst(oldest);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Не более limit страниц, содержащих слова запроса, по убыванию оценки BM25.
+     * Сразу после запуска ждёт чтения индекса с диска, поэтому не вызывается из потока JavaFX
+     */
+    public List<Result> search(String query, int limit) {
+        Set<String> terms = new LinkedHashSet<>(tokenize(query, MAX_TOKENS));
+        if (terms.isEmpty() || limit <= 0) {
+            return List.of();
+        }
+        if (indexer != null) {
+            try {
+                opened.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return List.of();
+            }
+        }
+        lock.readLock().lock();
+        try {
+            if (liveDocs == 0) {
+                return List.of();
+            }
+            double averageLength = Math.max(1.0, (double) totalLength / liveDocs);
+            List<Segment> current = segments;
+            float[] scores = new float[docs.size()];
+            IntList touched = new IntList();
+            IntList postings = new IntList();
+            boolean hasDeleted = liveDocs < docs.size();
+            for (String term : terms) {
+                if (!hasDeleted) {
+                    scoreAll(term, current, scores, touched, averageLength);
+                    continue;
+                }
+                //Число документов слова считается только по действующим версиям страниц,
+                //иначе списки устаревших версий до их слияния занижали бы вес слова
+                postings.size = 0;
+                for (Segment segment : current) {
+                    int entry = segment.find(term);
+                    if (entry < 0) {
+                        continue;
+                    }
+                    int position = segment.offsets[entry];
+                    int doc = 0;
+                    for (int i = 0; i < segment.df[entry]; i++) {
+                        long delta = segment.readVarint(position);
+                        position += (int) (delta >>> 32);
+                        doc += (int) delta;
+                        long tf = segment.readVarint(position);
+                        position += (int) (tf >>> 32);
+                        if (!deletedDocs.get(doc)) {
+                            postings.add(doc);
+                            postings.add((int) tf);
+                        }
+                    }
+                }
+                IntList buffered = buffer.get(term);
+                if (buffered != null) {
+                    for (int i = 0; i < buffered.size; i += 2) {
+                        if (!deletedDocs.get(buffered.values[i])) {
+                            postings.add(buffered.values[i]);
+                            postings.add(buffered.values[i + 1]);
+                        }
+                    }
+                }
+                int df = postings.size / 2;
+                if (df == 0) {
+                    continue;
+                }
+                double idf = Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+                for (int i = 0; i < postings.size; i += 2) {
+                    score(scores, touched, postings.values[i], postings.values[i + 1], idf, averageLength);
+                }
+            }
+
+            //Лучшие limit документов выбираются кучей, без сортировки всех найденных
+            int[] heap = new int[Math.min(limit, touched.size)];
+            int heapSize = 0;
+            for (int i = 0; i < touched.size; i++) {
+                int doc = touched.values[i];
+                if (heapSize < heap.length) {
+                    heap[heapSize] = doc;
+                    siftUp(heap, heapSize++, scores);
+                } else if (scores[doc] > scores[heap[0]]) {
+                    heap[0] = doc;
+                    siftDown(heap, heapSize, scores);
+                }
+            }
+            List<Result> results = new ArrayList<>(heapSize);
+            while (heapSize > 0) {
+                int doc = heap[0];
+                heap[0] = heap[--heapSize];
+                siftDown(heap, heapSize, scores);
+                results.add(new Result(docs.get(doc).url, docs.get(doc).title, scores[doc]));
+            }
+            Collections.reverse(results);
+            return results;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static void siftUp(int[] heap, int index, float[] scores) {
+        int doc = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (scores[heap[parent]] <= scores[doc]) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = doc;
+    }
+
+    private static void siftDown(int[] heap, int size, float[] scores) {
+        if (size == 0) {
+            return;
+        }
+        int doc = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && scores[heap[child + 1]] < scores[heap[child]]) {
+                child++;
+            }
+            if (scores[heap[child]] >= scores[doc]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = doc;
+    }
+
+    /**
+     * Оценка документов слова, когда устаревших версий нет: число документов берётся из словарей сегментов
+     */
+    private void scoreAll(String term, List<Segment> current, float[] scores, IntList touched, double averageLength) {
+        int df = 0;
+        IntList buffered = buffer.get(term);
+        if (buffered != null) {
+            df += buffered.size / 2;
+        }
+        for (Segment segment : current) {
+            int entry = segment.find(term);
+            df += entry >= 0 ? segment.df[entry] : 0;
+        }
+        if (df == 0) {
+            return;
+        }
+        double idf = Math.log(1 + (liveDocs - df + 0.5) / (df + 0.5));
+        for (Segment segment : current) {
+            int entry = segment.find(term);
+            if (entry < 0) {
+                continue;
+            }
+            int position = segment.offsets[entry];
+            int doc = 0;
+            for (int i = 0; i < segment.df[entry]; i++) {
+                long delta = segment.readVarint(position);
+                position += (int) (delta >>> 32);
+                doc += (int) delta;
+                long tf = segment.readVarint(position);
+                position += (int) (tf >>> 32);
+                score(scores, touched, doc, (int) tf, idf, averageLength);
+            }
+        }
+        if (buffered != null) {
+            for (int i = 0; i < buffered.size; i += 2) {
+                score(scores, touched, buffered.values[i], buffered.values[i + 1], idf, averageLength);
+            }
+        }
+    }
+
+    private void score(float[] scores, IntList touched, int doc, int tf, double idf, double averageLength) {
+        Doc document = docs.get(doc);
+        if (scores[doc] == 0) {
+            touched.add(doc);
+        }
+        scores[doc] += (float) (idf * tf * (K1 + 1) / (tf + K1 * (1 - B + B * document.length / averageLength)));
+    }
+
+    /**
+     * Число проиндексированных страниц (без устаревших версий)
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return liveDocs;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Число сегментов на диске
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Число страниц, ожидающих индексации
+     */
+    public int getPendingCount() {
+        return (int) queue.stream().filter(page -> !(page instanceof Marker)).count();
+    }
+
+    /**
+     * Ожидание индексации и записи на диск всех поставленных в очередь страниц
+     */
+    public void flush() {
+        if (indexer == null) {
+            return;
+        }
+        Marker marker = new Marker(false);
+        queue.add(marker);
+        try {
+            marker.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Запись буфера и остановка фонового потока (при закрытии браузера). Страницы, не успевшие
+     * попасть в индекс, отбрасываются
+     */
+    public synchronized void close() {
+        if (indexer == null) {
+            return;
+        }
+        queue.removeIf(page -> !(page instanceof Marker));
+        Marker marker = new Marker(true);
+        queue.add(marker);
+        try {
+            marker.done.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        indexer = null;
+    }
+
+    /**
+     * Индексируются только страницы, загруженные по сети
+     */
+    private static boolean isIndexed(String url) {
+        return url.regionMatches(true, 0, "http:", 0, 5) || url.regionMatches(true, 0, "https:", 0, 6);
+    }
+
+    /**
+     * Цикл фонового потока. Между страницами выдерживается пауза, чтобы индексация
+     * не занимала процессор во время загрузки следующих страниц
+     */
+    private void indexLoop() {
+        long pause = pagesPerSecond > 0 ? 1_000 / pagesPerSecond : 0;
+        try {
+            try {
+                open();
+            } finally {
+                opened.countDown();
+            }
+            long lastFlush = System.currentTimeMillis();
+            boolean closing = false;
+            while (!closing) {
+                Page page = queue.poll(FLUSH_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                if (page instanceof Marker) {
+                    Marker marker = (Marker) page;
+                    closing = marker.close;
+                    try {
+                        commit();
+                        lastFlush = System.currentTimeMillis();
+                    } finally {
+                        marker.done.countDown();
+                    }
+                    continue;
+                }
+                if (page != null) {
+                    long start = System.currentTimeMillis();
+                    add(page.url, page.title, page.text);
+                    long elapsed = System.currentTimeMillis() - start;
+                    if (elapsed < pause) {
+                        Thread.sleep(pause - elapsed);
+                    }
+                }
+                if (bufferedDocs >= FLUSH_DOCS
+                        || bufferedDocs > 0 && System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL_MILLIS) {
+                    commit();
+                    lastFlush = System.currentTimeMillis();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to update page index: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                if (docsLog != null) {
+                    docsLog.close();
+                }
+            } catch (IOException ignored) {
+            }
+            //Ожидающие flush и close не должны зависнуть, если поток остановился
+            List<Page> rest = new ArrayList<>();
+            queue.drainTo(rest);
+            rest.stream().filter(Marker.class::isInstance).forEach(page -> ((Marker) page).done.countDown());
+        }
+    }
+
+    /**
+     * Чтение журнала документов и действующих сегментов; файлы сегментов вне списка
+     * (остатки прерванной записи или слияния) удаляются
+     */
+    void open() throws IOException {
+        if (docsLog != null) {
+            return;
+        }
+        Files.createDirectories(directory);
+        List<String> manifest = Files.isRegularFile(manifestFile)
+                ? Files.readAllLines(manifestFile, StandardCharsets.UTF_8) : List.of();
+        //Журнал документов, записанный при последнем уплотнении (в прежних версиях - всегда docs.log)
+        for (String line : manifest) {
+            if (line.startsWith(DOCS_ENTRY)) {
+                docsFile = directory.resolve(line.substring(DOCS_ENTRY.length()));
+            }
+        }
+        long validLength = loadDocs();
+        docsLog = FileChannel.open(docsFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        docsLog.truncate(validLength);
+        docsLog.position(validLength);
+        if (validLength == 0) {
+            writeFully(docsLog, ByteBuffer.allocate(4).putInt(0, DOCS_MAGIC));
+        }
+
+        List<Segment> loaded = new ArrayList<>();
+        Set<String> names = new LinkedHashSet<>();
+        names.add(docsFile.getFileName().toString());
+        for (String line : manifest) {
+            String[] parts = line.split(" ");
+            if (parts.length != 2 || line.startsWith(DOCS_ENTRY)) {
+                continue;
+            }
+            try {
+                loaded.add(Segment.open(directory.resolve(parts[0]), Integer.parseInt(parts[1])));
+                names.add(parts[0]);
+            } catch (IOException | RuntimeException e) {
+                //Повреждённый сегмент пропускается: его страницы будут проиндексированы при следующем посещении
+                System.err.println("Unable to read index segment " + parts[0] + ": " + e);
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "{seg-*.idx,docs*.log}")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                nextSegment = Math.max(nextSegment, segmentNumber(name) + 1);
+                if (!names.contains(name)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+        segments = List.copyOf(loaded);
+    }
+
+    /**
+     * Разбор страницы и добавление её в буфер (только из фонового потока)
+     */
+    void add(String url, String title, String text) throws IOException {
+        if (title != null && title.length() > MAX_TITLE_LENGTH) {
+            title = title.substring(0, MAX_TITLE_LENGTH);
+        }
+        Map<String, int[]> frequencies = new HashMap<>();
+        List<String> tokens = tokenize(text, MAX_TOKENS);
+        for (String token : tokens) {
+            frequencies.computeIfAbsent(token, key -> new int[1])[0]++;
+        }
+        //Слова названия тоже ищутся
+        if (title != null) {
+            for (String token : tokenize(title, MAX_TOKENS)) {
+                frequencies.computeIfAbsent(token, key -> new int[1])[0]++;
+            }
+        }
+        if (frequencies.isEmpty()) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        lock.writeLock().lock();
+        try {
+            Integer previous = docsByUrl.get(url);
+            if (previous != null) {
+                delete(previous);
+                writeRecord(out, RECORD_DELETE, previous, null, null, 0);
+            }
+            int id = docs.size();
+            docs.add(new Doc(url, title, tokens.size()));
+            docsByUrl.put(url, id);
+            totalLength += tokens.size();
+            liveDocs++;
+            writeRecord(out, RECORD_ADD, id, url, title, tokens.size());
+            for (Map.Entry<String, int[]> entry : frequencies.entrySet()) {
+                IntList postings = buffer.computeIfAbsent(entry.getKey(), key -> new IntList());
+                postings.add(id);
+                postings.add(entry.getValue()[0]);
+            }
+            bufferedDocs++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeFully(docsLog, ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    /**
+     * Запись буфера в новый сегмент и слияние сегментов (только из фонового потока)
+     */
+    void commit() throws IOException {
+        if (bufferedDocs > 0) {
+            docsLog.force(false);
+            List<String> terms;
+            Map<String, IntList> postings;
+            lock.readLock().lock();
+            try {
+                terms = new ArrayList<>(buffer.keySet());
+                postings = new HashMap<>(buffer);
+            } finally {
+                lock.readLock().unlock();
+            }
+            Collections.sort(terms);
+            BitSet deleted = getDeleted();
+            Path file = directory.resolve(segmentName(nextSegment++));
+            try (SegmentWriter writer = new SegmentWriter(file)) {
+                for (String term : terms) {
+                    IntList list = postings.get(term);
+                    for (int i = 0; i < list.size; i += 2) {
+                        if (!deleted.get(list.values[i])) {
+                            writer.addPosting(list.values[i], list.values[i + 1]);
+                        }
+                    }
+                    writer.endTerm(term);
+                }
+            }
+            Segment segment = Segment.open(file, 0);
+            List<Segment> updated = new ArrayList<>(segments);
+            updated.add(segment);
+            lock.writeLock().lock();
+            try {
+                buffer.clear();
+                bufferedDocs = 0;
+                segments = List.copyOf(updated);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            writeManifest(updated);
+        }
+        merge();
+        compact();
+    }
+
+    /**
+     * Слияние MERGE_FACTOR последних сегментов одного уровня, пока такие есть
+     */
+    private void merge() throws IOException {
+        while (true) {
+            List<Segment> current = segments;
+            int size = current.size();
+            if (size < MERGE_FACTOR) {
+                return;
+            }
+            List<Segment> tail = current.subList(size - MERGE_FACTOR, size);
+            int level = tail.get(0).level;
+            if (tail.stream().anyMatch(segment -> segment.level != level)) {
+                return;
+            }
+
+            Path file = directory.resolve(segmentName(nextSegment++));
+            writeMerged(tail, file, getDeleted(), null);
+            Segment merged = Segment.open(file, level + 1);
+            List<Segment> updated = new ArrayList<>(current.subList(0, size - MERGE_FACTOR));
+            updated.add(merged);
+            lock.writeLock().lock();
+            try {
+                segments = List.copyOf(updated);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            writeManifest(updated);
+            retire(tail);
+        }
+    }
+
+    /**
+     * Уплотнение индекса, если устаревших версий страниц много: все сегменты сливаются в один, документы
+     * получают новые сплошные номера, журнал документов записывается заново без удалённых записей.
+     * Иначе номера устаревших версий навсегда остаются в журнале и в памяти, а журнал растёт с каждым
+     * повторным посещением страницы. Новые сегмент и журнал вступают в силу одной атомарной заменой segments.lst
+     */
+    private void compact() throws IOException {
+        List<Segment> current = segments;
+        int[] remap;
+        List<Doc> live;
+        lock.readLock().lock();
+        try {
+            int deleted = docs.size() - liveDocs;
+            if (bufferedDocs > 0 || deleted < COMPACT_MIN_DELETED || deleted * COMPACT_RATIO < docs.size()) {
+                return;
+            }
+            remap = new int[docs.size()];
+            live = new ArrayList<>(liveDocs);
+            for (int i = 0; i < docs.size(); i++) {
+                Doc doc = docs.get(i);
+                remap[i] = doc.deleted ? -1 : live.size();
+                if (!doc.deleted) {
+                    live.add(doc);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        int number = nextSegment++;
+        Path newDocsFile = directory.resolve(docsName(number));
+        Path tmp = newDocsFile.resolveSibling(newDocsFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(DOCS_MAGIC);
+            for (int i = 0; i < live.size(); i++) {
+                Doc doc = live.get(i);
+                writeRecord(out, RECORD_ADD, i, doc.url, doc.title, doc.length);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, newDocsFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Path file = directory.resolve(segmentName(number));
+        writeMerged(current, file, null, remap);
+        int level = current.stream().mapToInt(segment -> segment.level).max().orElse(0);
+        Segment compacted = Segment.open(file, level);
+        FileChannel newDocsLog = FileChannel.open(newDocsFile, StandardOpenOption.WRITE);
+        newDocsLog.position(newDocsLog.size());
+
+        Path oldDocsFile = docsFile;
+        FileChannel oldDocsLog = docsLog;
+        List<Segment> updated = List.of(compacted);
+        lock.writeLock().lock();
+        try {
+            docs.clear();
+            docs.addAll(live);
+            deletedDocs.clear();
+            docsByUrl.clear();
+            for (int i = 0; i < live.size(); i++) {
+                docsByUrl.put(live.get(i).url, i);
+            }
+            segments = updated;
+            docsFile = newDocsFile;
+            docsLog = newDocsLog;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        writeManifest(updated);
+        oldDocsLog.close();
+        retire(current);
+        try {
+            Files.deleteIfExists(oldDocsFile);
+        } catch (IOException e) {
+            System.err.println("Unable to delete page index file " + oldDocsFile + ": " + e);
+        }
+    }
+
+    /**
+     * Запись сегмента, объединяющего списки документов сегментов sources. Документы из deleted пропускаются;
+     * если задан remap, номера документов заменяются на remap[номер] (-1 - документ пропускается).
+     * Сегменты упорядочены по номерам документов, а remap сохраняет порядок, поэтому списки просто соединяются
+     */
+    private static void writeMerged(List<Segment> sources, Path file, BitSet deleted, int[] remap) throws IOException {
+        PriorityQueue<TermCursor> cursors = new PriorityQueue<>();
+        for (int i = 0; i < sources.size(); i++) {
+            TermCursor cursor = new TermCursor(sources.get(i), i);
+            if (cursor.advance()) {
+                cursors.add(cursor);
+            }
+        }
+        List<TermCursor> sameTerm = new ArrayList<>();
+        try (SegmentWriter writer = new SegmentWriter(file)) {
+            while (!cursors.isEmpty()) {
+                sameTerm.clear();
+                String term = cursors.peek().term();
+                while (!cursors.isEmpty() && cursors.peek().term().equals(term)) {
+                    sameTerm.add(cursors.poll());
+                }
+                sameTerm.sort((a, b) -> Integer.compare(a.order, b.order));
+                for (TermCursor cursor : sameTerm) {
+                    Segment segment = cursor.segment;
+                    int position = segment.offsets[cursor.entry];
+                    int doc = 0;
+                    for (int i = 0; i < segment.df[cursor.entry]; i++) {
+                        long delta = segment.readVarint(position);
+                        position += (int) (delta >>> 32);
+                        doc += (int) delta;
+                        long tf = segment.readVarint(position);
+                        position += (int) (tf >>> 32);
+                        int target = remap != null ? (doc < remap.length ? remap[doc] : -1) : doc;
+                        if (target >= 0 && (deleted == null || !deleted.get(doc))) {
+                            writer.addPosting(target, (int) tf);
+                        }
+                    }
+                    if (cursor.advance()) {
+                        cursors.add(cursor);
+                    }
+                }
+                writer.endTerm(term);
+            }
+        }
+    }
+
+    /**
+     * Удаление сегментов, замещённых слиянием. Поиск читает сегменты только под блокировкой чтения,
+     * а замена списка выполняется под блокировкой записи, поэтому к этому моменту их никто не читает
+     * и отображение в память можно снять (в Windows отображённый файл удалить нельзя).
+     * Неудаленный файл не останавливает индексацию: он удаляется при следующем открытии индекса
+     */
+    private static void retire(List<Segment> retired) {
+        for (Segment segment : retired) {
+            segment.unmap();
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                System.err.println("Unable to delete index segment " + segment.file + ": " + e);
+            }
+        }
+    }
+
+    private BitSet getDeleted() {
+        lock.readLock().lock();
+        try {
+            return (BitSet) deletedDocs.clone();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void delete(int id) {
+        Doc doc = docs.get(id);
+        if (!doc.deleted) {
+            doc.deleted = true;
+            deletedDocs.set(id);
+            totalLength -= doc.length;
+            liveDocs--;
+        }
+    }
+
+    private void writeManifest(List<Segment> list) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        manifest.append(DOCS_ENTRY).append(docsFile.getFileName()).append('\n');
+        for (Segment segment : list) {
+            manifest.append(segment.file.getFileName()).append(' ').append(segment.level).append('\n');
+        }
+        Path tmp = directory.resolve("segments.tmp");
+        Files.writeString(tmp, manifest, StandardCharsets.UTF_8);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, manifestFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Чтение журнала документов. Возвращает его длину без незавершённой последней записи
+     */
+    private long loadDocs() {
+        if (!Files.isRegularFile(docsFile)) {
+            return 0;
+        }
+        long length = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(docsFile), 1 << 16))) {
+            if (in.readInt() != DOCS_MAGIC) {
+                return 0;
+            }
+            length = 4;
+            while (true) {
+                int recordLength = in.readInt();
+                if (recordLength <= 0 || recordLength > 4 * (MAX_URL_LENGTH + MAX_TITLE_LENGTH) + 16) {
+                    break;
+                }
+                byte[] record = in.readNBytes(recordLength);
+                if (record.length < recordLength) {
+                    break;
+                }
+                DataInputStream data = new DataInputStream(new ByteArrayInputStream(record));
+                byte type = data.readByte();
+                int id = data.readInt();
+                if (type == RECORD_ADD && id == docs.size()) {
+                    String url = data.readUTF();
+                    String title = data.readUTF();
+                    int docLength = data.readInt();
+                    docs.add(new Doc(url, title.isEmpty() ? null : title, docLength));
+                    docsByUrl.put(url, id);
+                    totalLength += docLength;
+                    liveDocs++;
+                } else if (type == RECORD_DELETE && id < docs.size()) {
+                    delete(id);
+                } else {
+                    break;
+                }
+                length += 4 + recordLength;
+            }
+        } catch (EOFException e) {
+            //Конец журнала или незавершённая запись
+        } catch (IOException e) {
+            System.err.println("Unable to read page index: " + e);
+        }
+        return length;
+    }
+
+    private static void writeRecord(DataOutputStream out, byte type, int id, String url, String title, int length)
+            throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(32 + (url != null ? url.length() : 0));
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeByte(type);
+        data.writeInt(id);
+        if (type == RECORD_ADD) {
+            data.writeUTF(url);
+            data.writeUTF(title != null ? title : "");
+            data.writeInt(length);
+        }
+        out.writeInt(record.size());
+        record.writeTo(out);
+    }
+
+    /**
+     * Разбиение текста на слова: последовательности букв и цифр в нижнем регистре длиной
+     * от MIN_TOKEN_LENGTH до MAX_TOKEN_LENGTH символов
+     */
+    static List<String> tokenize(String text, int limit) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) {
+            return tokens;
+        }
+        int length = text.length();
+        int i = 0;
+        while (i < length && tokens.size() < limit) {
+            while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            int start = i;
+            while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                i++;
+            }
+            if (i - start >= MIN_TOKEN_LENGTH && i - start <= MAX_TOKEN_LENGTH) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+            }
+        }
+        return tokens;
+    }
+
+    private static String segmentName(int number) {
+        return String.format("seg-%06d.idx", number);
+    }
+
+    private static String docsName(int number) {
+        return String.format("docs-%06d.log", number);
+    }
+
+    /**
+     * Номер файла сегмента или журнала документов (-1 для docs.log и посторонних имён)
+     */
+    private static int segmentNumber(String name) {
+        try {
+            return Integer.parseInt(name.substring(name.indexOf('-') + 1, name.lastIndexOf('.')));
+        } catch (RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Найденная страница
+     */
+    public static final class Result {
+
+        private final String url;
+        private final String title;
+        private final double score;
+
+        Result(String url, String title, double score) {
+            this.url = url;
+            this.title = title;
+            this.score = score;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * Название страницы на момент индексации либо null
+         */
+        public String getTitle() {
+            return title;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+    }
+
+    /**
+     * Проиндексированный документ: адрес, название и число слов (для нормировки BM25 по длине)
+     */
+    private static final class Doc {
+
+        private final String url;
+        private final String title;
+        private final int length;
+        private boolean deleted;
+
+        Doc(String url, String title, int length) {
+            this.url = url;
+            this.title = title;
+            this.length = length;
+        }
+
+    }
+
+    /**
+     * Неизменяемый сегмент индекса. Файл: заголовок, списки документов слов (разность номеров и число вхождений
+     * в формате varint), словарь (слово, число документов, смещение списка) и смещение словаря в конце
+     */
+    private static final class Segment {
+
+        /**
+         * sun.misc.Unsafe.invokeCleaner (модуль jdk.unsupported) либо null, если он недоступен
+         */
+        private static final Object UNSAFE;
+        private static final Method UNMAPPER;
+
+        static {
+            Object unsafe = null;
+            Method unmapper = null;
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                Field field = unsafeClass.getDeclaredField("theUnsafe");
+                field.setAccessible(true);
+                unsafe = field.get(null);
+                unmapper = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                unsafe = null;
+                unmapper = null;
+            }
+            UNSAFE = unsafe;
+            UNMAPPER = unmapper;
+        }
+
+        private final Path file;
+        private final int level;
+        private final String[] terms;
+        private final int[] df;
+        private final int[] offsets;
+        private final MappedByteBuffer data;
+
+        private Segment(Path file, int level, String[] terms, int[] df, int[] offsets, MappedByteBuffer data) {
+            this.file = file;
+            this.level = level;
+            this.terms = terms;
+            this.df = df;
+            this.offsets = offsets;
+            this.data = data;
+        }
+
+        static Segment open(Path file, int level) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Segment is too large");
+                }
+                MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (size < 16 || data.getInt(0) != SEGMENT_MAGIC || data.getInt(4) != VERSION) {
+                    throw new IOException("Unknown segment format");
+                }
+                int dictionaryOffset = (int) data.getLong((int) size - 8);
+                byte[] dictionary = new byte[(int) size - 8 - dictionaryOffset];
+                data.get(dictionaryOffset, dictionary);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(dictionary));
+                int count = in.readInt();
+                String[] terms = new String[count];
+                int[] df = new int[count];
+                int[] offsets = new int[count];
+                for (int i = 0; i < count; i++) {
+                    terms[i] = in.readUTF();
+                    df[i] = in.readInt();
+                    offsets[i] = in.readInt();
+                }
+                return new Segment(file, level, terms, df, offsets, data);
+            }
+        }
+
+        int find(String term) {
+            return Arrays.binarySearch(terms, term);
+        }
+
+        /**
+         * Снятие отображения файла в память сразу, не дожидаясь сборки мусора. После вызова сегмент не читается
+         */
+        void unmap() {
+            if (UNMAPPER != null) {
+                try {
+                    UNMAPPER.invoke(UNSAFE, data);
+                } catch (ReflectiveOperationException | RuntimeException e) {
+                    //Отображение будет снято сборщиком мусора
+                }
+            }
+        }
+
+        /**
+         * Чтение числа varint по абсолютной позиции (без изменения позиции буфера, поэтому безопасно из разных потоков).
+         * Младшие 32 бита - значение, старшие - число прочитанных байт
+         */
+        long readVarint(int position) {
+            int value = 0;
+            int shift = 0;
+            int read = 0;
+            byte b;
+            do {
+                b = data.get(position + read++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return ((long) read << 32) | (value & 0xFFFFFFFFL);
+        }
+
+    }
+
+    /**
+     * Последовательная запись сегмента: списки документов по словам в алфавитном порядке, затем словарь
+     */
+    private static final class SegmentWriter implements AutoCloseable {
+
+        private final Path file;
+        private final Path tmp;
+        private final CountingOutputStream counter;
+        private final DataOutputStream out;
+        private final List<String> terms = new ArrayList<>();
+        private final IntList df = new IntList();
+        private final IntList offsets = new IntList();
+        private int termStart;
+        private int termDocs;
+        private int lastDoc;
+
+        SegmentWriter(Path file) throws IOException {
+            this.file = file;
+            this.tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            this.counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16));
+            this.out = new DataOutputStream(counter);
+            out.writeInt(SEGMENT_MAGIC);
+            out.writeInt(VERSION);
+            termStart = position();
+        }
+
+        void addPosting(int doc, int tf) throws IOException {
+            writeVarint(doc - lastDoc);
+            writeVarint(tf);
+            lastDoc = doc;
+            termDocs++;
+        }
+
+        /**
+         * Завершение списка документов слова; слово без документов (все удалены) в словарь не попадает
+         */
+        void endTerm(String term) {
+            if (termDocs > 0) {
+                terms.add(term);
+                df.add(termDocs);
+                offsets.add(termStart);
+            }
+            termStart = position();
+            termDocs = 0;
+            lastDoc = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            long dictionaryOffset = position();
+            out.writeInt(terms.size());
+            for (int i = 0; i < terms.size(); i++) {
+                out.writeUTF(terms.get(i));
+                out.writeInt(df.values[i]);
+                out.writeInt(offsets.values[i]);
+            }
+            out.writeLong(dictionaryOffset);
+            out.close();
+            if (counter.count > Integer.MAX_VALUE) {
+                Files.deleteIfExists(tmp);
+                throw new IOException("Segment is too large");
+            }
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private int position() {
+            return (int) counter.count;
+        }
+
+        private void writeVarint(int value) throws IOException {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count;
+
+        CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+    }
+
+    /**
+     * Позиция в словаре сливаемого сегмента
+     */
+    private static final class TermCursor implements Comparable<TermCursor> {
+
+        private final Segment segment;
+        private final int order;
+        private int entry = -1;
+
+        TermCursor(Segment segment, int order) {
+            this.segment = segment;
+            this.order = order;
+        }
+
+        boolean advance() {
+            return ++entry < segment.terms.length;
+        }
+
+        String term() {
+            return segment.terms[entry];
+        }
+
+        @Override
+        public int compareTo(TermCursor other) {
+            int result = term().compareTo(other.term());
+            return result != 0 ? result : Integer.compare(order, other.order);
+        }
+
+    }
+
+    /**
+     * Растущий массив целых чисел без упаковки в Integer
+     */
+    private static final class IntList {
+
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+    }
+
+    /**
+     * Страница в очереди индексации
+     */
+    private static class Page {
+
+        private final String url;
+        private final String title;
+        private final String text;
+
+        Page(String url, String title, String text) {
+            this.url = url;
+            this.title = title;
+            this.text = text;
+        }
+
+    }
+
+    /**
+     * Служебные записи очереди: ожидание записи на диск и завершение фонового потока
+     */
+    private static final class Marker extends Page {
+
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final boolean close;
+
+        Marker(boolean close) {
+            super(null, null, null);
+            this.close = close;
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+package browser;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс ResourceCache - общий кэш изображений из ресурсов (rsc/img/...) для кнопок панели инструментов.
+ * Каждое изображение декодируется один раз сразу в нужном размере, после чего объект Image используется
+ * всеми вкладками и окнами. Узлы ImageView создаются для каждой кнопки отдельно, так как узел сцены
+ * не может находиться в нескольких местах одновременно
+ */
+public final class ResourceCache {
+
+    private static final Map<String, Image> images = new ConcurrentHashMap<>();
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Отключение кэша (только для сравнения в бенчмарках): каждое обращение снова декодирует изображение
+     */
+    private static volatile boolean enabled = true;
+
+    private ResourceCache() {
+    }
+
+    /**
+     * Изображение ресурса path, декодированное в размере width x height с сохранением пропорций
+     */
+    public static Image getImage(String path, double width, double height) {
+        if (!enabled) {
+            misses.incrementAndGet();
+            return decode(path, width, height);
+        }
+        String key = path + '@' + width + 'x' + height;
+        Image image = images.get(key);
+        if (image != null) {
+            hits.incrementAndGet();
+            return image;
+        }
+        return images.computeIfAbsent(key, k -> {
+            misses.incrementAndGet();
+            return decode(path, width, height);
+        });
+    }
+
+    /**
+     * Новый узел ImageView размером size x size с общим изображением ресурса path
+     */
+    public static ImageView createImageView(String path, double size) {
+        ImageView imageView = new ImageView(getImage(path, size, size));
+        imageView.setFitWidth(size);
+        imageView.setFitHeight(size);
+        return imageView;
+    }
+
+    public static long getHits() {
+        return hits.get();
+    }
+
+    public static long getMisses() {
+        return misses.get();
+    }
+
+    public static int size() {
+        return images.size();
+    }
+
+    static void setEnabled(boolean value) {
+        enabled = value;
+    }
+
+    static void clear() {
+        images.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+    private static Image decode(String path, double width, double height) {
+        Image image = new Image(path, width, height, true, true);
+        if (image.isError()) {
+            System.err.println("Unable to load resource " + path + ": " + image.getException());
+        }
+        return image;
+    }
+
+}
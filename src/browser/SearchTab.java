@@ -0,0 +1,139 @@
+package browser;
+
+import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
+import javafx.scene.control.ListView;
+import javafx.scene.control.TabPane;
+import javafx.scene.control.TextField;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.MouseButton;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+
+import java.util.List;
+
+/**
+ * Класс SearchTab - вкладка поиска по тексту посещённых страниц (PageIndex). Открывается вводом
+ * about:search или about:search?запрос в адресной строке. Поиск выполняется в фоне при каждом изменении запроса,
+ * устаревшие результаты отбрасываются. Найденная страница открывается в новой вкладке двойным щелчком или Enter
+ */
+public class SearchTab extends DraggableTab {
+
+    public static final String ADDRESS = "about:search";
+
+    private static final int RESULT_LIMIT = 50;
+
+    private final TextField query = new TextField();
+
+    private final ListView<PageIndex.Result> results = new ListView<>();
+
+    private final Label status = new Label();
+
+    /**
+     * Фоновые запросы вкладки, отменяются при её закрытии
+     */
+    private final TaskScheduler.Scope tasks = TaskScheduler.newScope("search");
+
+    /**
+     * Номер последнего запроса: результаты более ранних запросов не отображаются
+     */
+    private long generation;
+
+    public SearchTab() {
+        super(" Search History ");
+        setClosable(true);
+        setDetachable(true);
+        query.setPromptText("Search visited pages");
+        query.textProperty().addListener(FxMonitor.timed("search.query", (observable, oldValue, newValue) -> search()));
+        query.setOnAction(event -> openSelected());
+
+        results.setCellFactory(list -> new ListCell<>() {
+            @Override
+            protected void updateItem(PageIndex.Result item, boolean empty) {
+                super.updateItem(item, empty);
+                if (empty || item == null) {
+                    setText(null);
+                } else {
+                    String title = item.getTitle() != null && !item.getTitle().isBlank() ? item.getTitle() : item.getUrl();
+                    setText(title + "\n" + item.getUrl());
+                }
+            }
+        });
+        results.setOnMouseClicked(event -> {
+            if (event.getButton() == MouseButton.PRIMARY && event.getClickCount() == 2)
+                openSelected();
+        });
+        results.setOnKeyPressed(event -> {
+            if (event.getCode() == KeyCode.ENTER)
+                openSelected();
+        });
+
+        VBox root = new VBox(5, query, status, results);
+        VBox.setVgrow(results, Priority.ALWAYS);
+        setContent(root);
+        setOnClosed(event -> tasks.cancel());
+    }
+
+    /**
+     * Открытие вкладки поиска в панели pane с запросом text (если вкладка уже открыта, она выбирается)
+     */
+    public static void open(TabPane pane, String text) {
+        SearchTab tab = (SearchTab) pane.getTabs().stream()
+                .filter(SearchTab.class::isInstance).findFirst().orElse(null);
+        if (tab == null) {
+            tab = new SearchTab();
+            pane.getTabs().add(tab);
+        }
+        pane.getSelectionModel().select(tab);
+        if (text != null && !text.isEmpty())
+            tab.query.setText(text);
+        tab.query.requestFocus();
+    }
+
+    /**
+     * Адрес вкладки поиска: about:search или about:search?запрос
+     */
+    public static boolean isSearchAddress(String input) {
+        String address = input.strip();
+        return address.equalsIgnoreCase(ADDRESS)
+                || address.length() > ADDRESS.length() && address.regionMatches(true, 0, ADDRESS, 0, ADDRESS.length())
+                && address.charAt(ADDRESS.length()) == '?';
+    }
+
+    /**
+     * Запрос из адреса about:search?запрос (пустая строка, если его нет)
+     */
+    public static String getQuery(String input) {
+        String address = input.strip();
+        return address.length() > ADDRESS.length() + 1 ? address.substring(ADDRESS.length() + 1) : "";
+    }
+
+    private void search() {
+        long current = ++generation;
+        String text = query.getText();
+        if (text.isBlank()) {
+            results.getItems().clear();
+            status.setText(null);
+            return;
+        }
+        TaskScheduler.submit(tasks, "history search", () -> PageIndex.getDefault().search(text, RESULT_LIMIT),
+                (List<PageIndex.Result> found) -> {
+                    if (current != generation)
+                        return;
+                    results.getItems().setAll(found);
+                    status.setText(found.isEmpty() ? "No pages found" : found.size() + " pages");
+                });
+    }
+
+    private void openSelected() {
+        PageIndex.Result result = results.getSelectionModel().getSelectedItem();
+        if (result == null && !results.getItems().isEmpty())
+            result = results.getItems().get(0);
+        if (result == null || getTabPane() == null)
+            return;
+        BrowserTab tab = BrowserTab.createTab(result.getUrl(), result.getTitle());
+        getTabPane().getTabs().add(tab);
+        getTabPane().getSelectionModel().select(tab);
+    }
+
+}
@@ -0,0 +1,549 @@
+package browser;
+
+import javafx.animation.PauseTransition;
+import javafx.beans.InvalidationListener;
+import javafx.collections.ListChangeListener;
+import javafx.scene.control.Tab;
+import javafx.scene.control.TabPane;
+import javafx.stage.Stage;
+import javafx.stage.WindowEvent;
+import javafx.util.Duration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Класс SessionStore - хранилище сессии браузера: открытые окна (включая открепленные вкладки в отдельных Stage),
+ * их вкладки и история посещений каждой вкладки.
+ * <p>
+ * Изменения записываются в журнал (journal.log) только добавлением строк. Каждая строка - полное состояние
+ * одного окна, раскладки вкладок окна или одной вкладки, поэтому повторное применение записей безопасно.
+ * Запись выполняет отдельный фоновый поток: он пишет накопившиеся строки одним вызовом через FileChannel,
+ * а fsync выполняет не чаще раза в секунду. Периодически состояние сжимается в снимок (snapshot.log),
+ * который атомарно заменяет предыдущий, после чего журнал очищается. Поток JavaFX на диск не обращается:
+ * изменения накапливаются и передаются писателю не чаще раза в 250 мс.
+ * <p>
+ * Форматы строк (поля разделены табуляцией):
+ * W окно x y ширина высота; L окно выбранная_вкладка вкладка...; T вкладка индекс название адрес...; X окно
+ */
+public final class SessionStore {
+
+    private static final long FSYNC_INTERVAL_MILLIS = 1_000;
+
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 60_000;
+
+    private static final int CHECKPOINT_RECORDS = 1_000;
+
+    private static final String CLOSE_MARKER = "\u0000close";
+
+    private static final Path DIRECTORY = BrowserSettings.getDataDirectory("session");
+
+    private static final Path JOURNAL = DIRECTORY.resolve("journal.log");
+
+    private static final Path SNAPSHOT = DIRECTORY.resolve("snapshot.log");
+
+    /**
+     * Очередь строк для фонового писателя
+     */
+    private static final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+
+    private static Thread writer;
+
+    /**
+     * Состояние на стороне потока JavaFX: номера окон и накопленные изменения
+     */
+    private static final Map<TabPane, Integer> windowIds = new HashMap<>();
+
+    private static final Map<TabPane, Stage> windowStages = new HashMap<>();
+
+    private static final Set<TabPane> dirtyWindows = new LinkedHashSet<>();
+
+    private static final Set<TabPane> dirtyLayouts = new LinkedHashSet<>();
+
+    private static final Set<BrowserTab> dirtyTabs = new LinkedHashSet<>();
+
+    private static int nextWindowId = 1;
+
+    private static boolean flushScheduled;
+
+    private SessionStore() {
+    }
+
+    /**
+     * Чтение сохранённой сессии: снимок и журнал изменений после него.
+     * Незавершённая последняя строка журнала (при аварийном завершении) отбрасывается
+     */
+    public static Session restore() {
+        Session session = new Session();
+        readRecords(SNAPSHOT).forEach(session::apply);
+        readRecords(JOURNAL).forEach(session::apply);
+        return session;
+    }
+
+    /**
+     * Запуск фонового писателя. Первым делом писатель сохраняет снимок текущей сессии,
+     * так что записи прошлого запуска заменяются только после того, как новое состояние сохранено
+     */
+    public static void start() {
+        if (writer != null) {
+            return;
+        }
+        writer = new Thread(SessionStore::writeLoop, "session-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Передача последних изменений писателю и ожидание их записи на диск (при закрытии браузера)
+     */
+    public static void close() {
+        if (writer == null) {
+            return;
+        }
+        flush();
+        queue.add(CLOSE_MARKER);
+        try {
+            writer.join(2_000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+    }
+
+    /**
+     * Отслеживание окна stage с панелью вкладок pane: изменения его положения, размера,
+     * набора и порядка вкладок, выбранной вкладки и закрытие окна
+     */
+    public static void trackWindow(Stage stage, TabPane pane) {
+        windowIds.put(pane, nextWindowId++);
+        windowStages.put(pane, stage);
+
+        pane.getTabs().addListener((ListChangeListener<Tab>) change -> {
+            while (change.next()) {
+                change.getAddedSubList().forEach(SessionStore::markTab);
+            }
+            markLayout(pane);
+        });
+        pane.getSelectionModel().selectedItemProperty().addListener(observable -> markLayout(pane));
+        InvalidationListener geometryListener = observable -> markWindow(pane);
+        stage.xProperty().addListener(geometryListener);
+        stage.yProperty().addListener(geometryListener);
+        stage.widthProperty().addListener(geometryListener);
+        stage.heightProperty().addListener(geometryListener);
+        stage.addEventHandler(WindowEvent.WINDOW_HIDING, event -> windowClosed(pane));
+
+        markWindow(pane);
+        markLayout(pane);
+        pane.getTabs().forEach(SessionStore::markTab);
+    }
+
+    /**
+     * Уведомление об изменении адреса, названия или истории вкладки
+     */
+    public static void tabChanged(BrowserTab tab) {
+        markTab(tab);
+    }
+
+    private static void markTab(Tab tab) {
+        if (tab instanceof BrowserTab && ((BrowserTab) tab).getSessionId() != 0) {
+            dirtyTabs.add((BrowserTab) tab);
+            scheduleFlush();
+        }
+    }
+
+    private static void markLayout(TabPane pane) {
+        dirtyLayouts.add(pane);
+        scheduleFlush();
+    }
+
+    private static void markWindow(TabPane pane) {
+        dirtyWindows.add(pane);
+        scheduleFlush();
+    }
+
+    /**
+     * Закрытие последнего окна означает выход из браузера - такое окно остаётся в сессии
+     */
+    private static void windowClosed(TabPane pane) {
+        Integer id = windowIds.get(pane);
+        if (id == null) {
+            return;
+        }
+        if (windowIds.size() == 1) {
+            flush();
+            return;
+        }
+        flush();
+        windowIds.remove(pane);
+        windowStages.remove(pane);
+        queue.add(record("X", id));
+    }
+
+    private static void scheduleFlush() {
+        if (flushScheduled) {
+            return;
+        }
+        flushScheduled = true;
+        PauseTransition delay = new PauseTransition(Duration.millis(250));
+        delay.setOnFinished(event -> flush());
+        delay.play();
+    }
+
+    /**
+     * Преобразование накопленных изменений в строки журнала и передача их писателю
+     */
+    private static void flush() {
+        flushScheduled = false;
+        if (writer == null) {
+            return;
+        }
+        for (TabPane pane : dirtyWindows) {
+            Integer id = windowIds.get(pane);
+            Stage stage = windowStages.get(pane);
+            if (id != null) {
+                queue.add(record("W", id, stage.getX(), stage.getY(), stage.getWidth(), stage.getHeight()));
+            }
+        }
+        for (TabPane pane : dirtyLayouts) {
+            Integer id = windowIds.get(pane);
+            if (id == null) {
+                continue;
+            }
+            List<Object> fields = new ArrayList<>();
+            fields.add(id);
+            Tab selected = pane.getSelectionModel().getSelectedItem();
+            fields.add(selected instanceof BrowserTab ? ((BrowserTab) selected).getSessionId() : 0);
+            for (Tab tab : pane.getTabs()) {
+                if (tab instanceof BrowserTab && ((BrowserTab) tab).getSessionId() != 0) {
+                    fields.add(((BrowserTab) tab).getSessionId());
+                }
+            }
+            queue.add(record("L", fields.toArray()));
+        }
+        for (BrowserTab tab : dirtyTabs) {
+            List<Object> fields = new ArrayList<>();
+            List<String> history = tab.getHistoryUrls();
+            fields.add(tab.getSessionId());
+            fields.add(tab.getCurrentHistoryIndex());
+            fields.add(tab.getTitle() == null ? "" : tab.getTitle());
+            fields.addAll(history);
+            queue.add(record("T", fields.toArray()));
+        }
+        dirtyWindows.clear();
+        dirtyLayouts.clear();
+        dirtyTabs.clear();
+    }
+
+    /**
+     * Цикл фонового писателя: запись пачек строк, fsync не чаще FSYNC_INTERVAL_MILLIS и периодическое сжатие
+     */
+    private static void writeLoop() {
+        Session state = new Session();
+        boolean checkpointed = false;
+        try (FileChannel journal = FileChannel.open(JOURNAL, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            long lastForce = System.currentTimeMillis();
+            long lastCheckpoint = lastForce;
+            boolean unsynced = false;
+            int sinceCheckpoint = 0;
+            boolean closing = false;
+            while (!closing) {
+                long wait = unsynced ? Math.max(1, FSYNC_INTERVAL_MILLIS - (System.currentTimeMillis() - lastForce)) : 5_000;
+                String first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                List<String> batch = new ArrayList<>();
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+                closing = batch.remove(CLOSE_MARKER);
+
+                if (!batch.isEmpty()) {
+                    batch.forEach(state::apply);
+                    if (!checkpointed) {
+                        //Первая пачка содержит полное состояние нового запуска - она заменяет прошлую сессию
+                        checkpoint(state, journal);
+                        checkpointed = true;
+                        lastCheckpoint = lastForce = System.currentTimeMillis();
+                        continue;
+                    }
+                    StringBuilder text = new StringBuilder();
+                    batch.forEach(line -> text.append(line).append('\n'));
+                    ByteBuffer buffer = StandardCharsets.UTF_8.encode(text.toString());
+                    while (buffer.hasRemaining()) {
+                        journal.write(buffer);
+                    }
+                    unsynced = true;
+                    sinceCheckpoint += batch.size();
+                }
+
+                long now = System.currentTimeMillis();
+                if (unsynced && (closing || now - lastForce >= FSYNC_INTERVAL_MILLIS)) {
+                    journal.force(false);
+                    unsynced = false;
+                    lastForce = now;
+                }
+                if (sinceCheckpoint >= CHECKPOINT_RECORDS
+                        || sinceCheckpoint > 0 && now - lastCheckpoint >= CHECKPOINT_INTERVAL_MILLIS) {
+                    checkpoint(state, journal);
+                    sinceCheckpoint = 0;
+                    lastCheckpoint = now;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to write session: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Сохранение снимка состояния во временный файл, fsync, атомарная замена снимка и очистка журнала.
+     * При сбое на любом шаге после восстановления получается то же состояние: записи журнала идемпотентны
+     */
+    private static void checkpoint(Session state, FileChannel journal) throws IOException {
+        Path tmp = DIRECTORY.resolve("snapshot.tmp");
+        StringBuilder text = new StringBuilder();
+        state.toRecords().forEach(line -> text.append(line).append('\n'));
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = StandardCharsets.UTF_8.encode(text.toString());
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tmp, SNAPSHOT, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        journal.truncate(0);
+        journal.force(true);
+    }
+
+    private static List<String> readRecords(Path file) {
+        List<String> records = new ArrayList<>();
+        try {
+            if (!Files.isRegularFile(file)) {
+                return records;
+            }
+            String text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+            int start = 0;
+            for (int end = text.indexOf('\n'); end >= 0; end = text.indexOf('\n', start)) {
+                records.add(text.substring(start, end));
+                start = end + 1;
+            }
+        } catch (IOException e) {
+            System.err.println("Unable to read session: " + e);
+        }
+        return records;
+    }
+
+    private static String record(String type, Object... fields) {
+        StringBuilder line = new StringBuilder(type);
+        for (Object field : fields) {
+            line.append('\t');
+            String value = String.valueOf(field);
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\' -> line.append("\\\\");
+                    case '\t' -> line.append("\\t");
+                    case '\n' -> line.append("\\n");
+                    case '\r' -> line.append("\\r");
+                    default -> line.append(c);
+                }
+            }
+        }
+        return line.toString();
+    }
+
+    private static List<String> parse(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\t') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\\' && i + 1 < line.length()) {
+                char next = line.charAt(++i);
+                field.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    /**
+     * Состояние сессии, полученное применением записей журнала
+     */
+    public static final class Session {
+
+        private final Map<Integer, WindowState> windows = new LinkedHashMap<>();
+
+        private final Map<Long, TabState> tabs = new HashMap<>();
+
+        /**
+         * Окна в порядке их открытия. Первое окно восстанавливается в главном окне браузера
+         */
+        public List<WindowState> getWindows() {
+            List<WindowState> result = new ArrayList<>();
+            for (WindowState window : windows.values()) {
+                if (!window.tabIds.isEmpty()) {
+                    result.add(window);
+                }
+            }
+            return result;
+        }
+
+        public TabState getTab(long id) {
+            return tabs.get(id);
+        }
+
+        public boolean isEmpty() {
+            return getWindows().isEmpty();
+        }
+
+        void apply(String line) {
+            try {
+                List<String> fields = parse(line);
+                switch (fields.get(0)) {
+                    case "W" -> {
+                        WindowState window = windows.computeIfAbsent(Integer.parseInt(fields.get(1)), id -> new WindowState());
+                        window.x = Double.parseDouble(fields.get(2));
+                        window.y = Double.parseDouble(fields.get(3));
+                        window.width = Double.parseDouble(fields.get(4));
+                        window.height = Double.parseDouble(fields.get(5));
+                    }
+                    case "L" -> {
+                        WindowState window = windows.computeIfAbsent(Integer.parseInt(fields.get(1)), id -> new WindowState());
+                        window.selectedTabId = Long.parseLong(fields.get(2));
+                        window.tabIds.clear();
+                        for (String id : fields.subList(3, fields.size())) {
+                            window.tabIds.add(Long.parseLong(id));
+                        }
+                    }
+                    case "T" -> {
+                        TabState tab = new TabState();
+                        tab.historyIndex = Integer.parseInt(fields.get(2));
+                        tab.title = fields.get(3).isEmpty() ? null : fields.get(3);
+                        tab.history.addAll(fields.subList(4, fields.size()));
+                        tabs.put(Long.parseLong(fields.get(1)), tab);
+                    }
+                    case "X" -> windows.remove(Integer.parseInt(fields.get(1)));
+                    default -> {
+                        //Неизвестная запись пропускается
+                    }
+                }
+            } catch (RuntimeException e) {
+                //Повреждённая запись пропускается
+            }
+        }
+
+        /**
+         * Минимальный набор записей, воспроизводящий текущее состояние (вкладки вне окон отбрасываются)
+         */
+        List<String> toRecords() {
+            List<String> records = new ArrayList<>();
+            Set<Long> liveTabs = new HashSet<>();
+            windows.forEach((id, window) -> {
+                records.add(record("W", id, window.x, window.y, window.width, window.height));
+                List<Object> fields = new ArrayList<>();
+                fields.add(id);
+                fields.add(window.selectedTabId);
+                fields.addAll(window.tabIds);
+                records.add(record("L", fields.toArray()));
+                liveTabs.addAll(window.tabIds);
+            });
+            tabs.keySet().retainAll(liveTabs);
+            tabs.forEach((id, tab) -> {
+                List<Object> fields = new ArrayList<>();
+                fields.add(id);
+                fields.add(tab.historyIndex);
+                fields.add(tab.title == null ? "" : tab.title);
+                fields.addAll(tab.history);
+                records.add(record("T", fields.toArray()));
+            });
+            return records;
+        }
+
+    }
+
+    /**
+     * Сохранённое окно: положение, размер и вкладки
+     */
+    public static final class WindowState {
+
+        private double x;
+        private double y;
+        private double width;
+        private double height;
+        private long selectedTabId;
+        private final List<Long> tabIds = new ArrayList<>();
+
+        public double getX() {
+            return x;
+        }
+
+        public double getY() {
+            return y;
+        }
+
+        public double getWidth() {
+            return width;
+        }
+
+        public double getHeight() {
+            return height;
+        }
+
+        public long getSelectedTabId() {
+            return selectedTabId;
+        }
+
+        public List<Long> getTabIds() {
+            return tabIds;
+        }
+
+    }
+
+    /**
+     * Сохранённая вкладка: название и история посещений с индексом текущей страницы
+     */
+    public static final class TabState {
+
+        private String title;
+        private int historyIndex;
+        private final List<String> history = new ArrayList<>();
+
+        public String getTitle() {
+            return title;
+        }
+
+        public int getHistoryIndex() {
+            return historyIndex;
+        }
+
+        public List<String> getHistory() {
+            return history;
+        }
+
+        /**
+         * Адрес текущей страницы вкладки (null для пустой вкладки)
+         */
+        public String getLocation() {
+            return history.isEmpty() ? null : history.get(Math.max(0, Math.min(historyIndex, history.size() - 1)));
+        }
+
+    }
+
+}
@@ -0,0 +1,456 @@
+package browser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URL;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Класс SpeculativeLoader - предварительная подготовка перехода по подсказке адресной строки, которую
+ * пользователь, скорее всего, выберет. Пока вводится адрес, для такой подсказки заранее разрешается имя хоста
+ * и открывается соединение, которое затем переиспользует WebEngine, а документ по http может быть заранее
+ * загружен в HttpCache.
+ * <p>
+ * Уверенность в подсказке (0..1) зависит от её доли в frecency среди первых двух подсказок, от того, какая
+ * часть имени хоста уже введена, и от того, посещался ли адрес. Соединение готовится при уверенности
+ * не ниже jwebbrowser.speculation.preconnectPercent, документ загружается при уверенности не ниже
+ * jwebbrowser.speculation.prefetchPercent и только если ответ можно хранить в кэше до перехода.
+ * <p>
+ * WebEngine с установленным CachingProxy загружает https через URLConnection, поэтому соединение к https
+ * открывается запросом HEAD через HttpURLConnection и остаётся в его пуле keep-alive (несколько секунд простоя);
+ * адреса http идут через прокси и HttpCache, поэтому HEAD выполняется общим клиентом NetworkClient.
+ * Без прокси WebEngine использует собственный пул соединений, и заранее разрешается только имя хоста.
+ * <p>
+ * Число подготовок соединений и объём загруженных заранее документов ограничены бюджетами, которые
+ * пополняются со временем. Сэкономленное время (работа, выполненная до нажатия Enter) и время загрузки
+ * страниц с подготовкой и без неё показываются во вкладке диагностики
+ */
+public final class SpeculativeLoader {
+
+    private static final boolean ENABLED = BrowserSettings.getBoolean("jwebbrowser.speculation", true);
+
+    private static final double PRECONNECT_CONFIDENCE = BrowserSettings.getInt("jwebbrowser.speculation.preconnectPercent", 50) / 100.0;
+
+    private static final double PREFETCH_CONFIDENCE = BrowserSettings.getInt("jwebbrowser.speculation.prefetchPercent", 80) / 100.0;
+
+    /**
+     * Бюджеты: подготовок соединений в минуту и килобайт документов в час
+     */
+    private static final Budget PRECONNECT_BUDGET = new Budget(
+            BrowserSettings.getInt("jwebbrowser.speculation.preconnectsPerMinute", 20), 60_000);
+
+    private static final Budget PREFETCH_BUDGET = new Budget(
+            BrowserSettings.getInt("jwebbrowser.speculation.prefetchKilobytesPerHour", 4_096) * 1024L, 3_600_000);
+
+    private static final int MAX_DOCUMENT_BYTES = 1024 * 1024;
+
+    private static final int TIMEOUT_MILLIS = 5_000;
+
+    /**
+     * Соединение к источнику не готовится повторно в течение этого времени; подготовка, после которой
+     * за это время не было перехода, считается напрасной
+     */
+    private static final long WARMUP_TTL_MILLIS = 10_000;
+
+    /**
+     * Документ загружается заранее, только если кэш будет считать его свежим ещё хотя бы столько
+     */
+    private static final long MIN_FRESH_MILLIS = 60_000;
+
+    /**
+     * WebEngine (URLLoader) запрашивает страницы с Accept-Encoding: gzip. Документ загружается заранее
+     * с тем же заголовком, иначе ключ записи HttpCache не совпадёт с ключом запроса страницы
+     */
+    private static final Map<String, List<String>> PAGE_REQUEST_HEADERS = Map.of("Accept-Encoding", List.of("gzip"));
+
+    private static final Map<String, Warmup> warmups = new ConcurrentHashMap<>();
+
+    private static final AtomicLong preconnects = new AtomicLong();
+
+    private static final AtomicLong prefetches = new AtomicLong();
+
+    private static final AtomicLong prefetchedBytes = new AtomicLong();
+
+    private static final AtomicLong overBudget = new AtomicLong();
+
+    private static final AtomicLong hits = new AtomicLong();
+
+    private static final AtomicLong prefetchHits = new AtomicLong();
+
+    private static final AtomicLong wasted = new AtomicLong();
+
+    private static final LatencyHistogram SAVED_TIME = new LatencyHistogram("Speculation time saved");
+
+    private static final LatencyHistogram WARM_LOADS = new LatencyHistogram("Page load after speculation");
+
+    private static final LatencyHistogram COLD_LOADS = new LatencyHistogram("Page load without speculation");
+
+    private SpeculativeLoader() {
+    }
+
+    /**
+     * Учёт подсказок, найденных для введённого текста (вызывается в фоновом потоке поиска подсказок).
+     * Для первой подсказки оценивается уверенность и при необходимости запускается подготовка перехода
+     */
+    public static void suggestionsShown(String input, List<String> proposals) {
+        if (!ENABLED || proposals.isEmpty()) {
+            return;
+        }
+        AutocompleteIndex index = URLTextField.getAutocompleteIndex();
+        String url = proposals.get(0);
+        double nextScore = proposals.size() > 1 ? index.getScore(proposals.get(1)) : Double.NEGATIVE_INFINITY;
+        HistoryStore.Entry entry = HistoryStore.getDefault().getEntry(url);
+        double confidence = getConfidence(input, url, index.getScore(url), nextScore, entry != null);
+        if (confidence >= PRECONNECT_CONFIDENCE) {
+            speculate(url, confidence >= PREFETCH_CONFIDENCE);
+        }
+    }
+
+    /**
+     * Уверенность в том, что пользователь выберет подсказку url для введённого текста input:
+     * вероятность выбора подсказки из первых двух по их оценкам frecency (getDominance),
+     * умноженная на 0.5 + 0.5 * (доля введённого имени хоста) и на 0.6 для адресов, которые ещё не посещались.
+     * Подсказки, не начинающиеся с введённого текста (без схемы и www.), получают 0
+     */
+    static double getConfidence(String input, String url, double score, double nextScore, boolean visited) {
+        String typed = stripPrefix(input.strip().toLowerCase(Locale.ROOT));
+        String target = stripPrefix(url.toLowerCase(Locale.ROOT));
+        if (typed.isEmpty() || !target.startsWith(typed)) {
+            return 0;
+        }
+        int hostEnd = 0;
+        while (hostEnd < target.length() && "/?#:".indexOf(target.charAt(hostEnd)) < 0) {
+            hostEnd++;
+        }
+        double typedShare = Math.min(1.0, (double) typed.length() / Math.max(1, hostEnd));
+        return getDominance(score, nextScore) * (0.5 + 0.5 * typedShare) * (visited ? 1.0 : 0.6);
+    }
+
+    /**
+     * Доля первой подсказки среди двух. Оценки AutocompleteIndex - логарифмы суммы вкладов посещений
+     * (каждый вклад растёт в e раз за неделю), поэтому доля считается по softmax: exp(score) / (exp(score) + exp(nextScore)).
+     * Отношение самих оценок почти всегда близко к 0.5: у любого посещённого адреса оценка около 350.
+     * Нет второй подсказки (NEGATIVE_INFINITY) - доля 1; неизвестная оценка (NaN) считается наименьшей
+     */
+    static double getDominance(double score, double nextScore) {
+        if (Double.isNaN(score)) {
+            score = Double.NEGATIVE_INFINITY;
+        }
+        if (Double.isNaN(nextScore)) {
+            nextScore = Double.NEGATIVE_INFINITY;
+        }
+        if (score == nextScore) {
+            return 0.5;
+        }
+        return 1 / (1 + Math.exp(nextScore - score));
+    }
+
+    private static String stripPrefix(String text) {
+        int scheme = text.indexOf("://");
+        if (scheme > 0) {
+            text = text.substring(scheme + 3);
+        }
+        return text.startsWith("www.") ? text.substring(4) : text;
+    }
+
+    /**
+     * Запуск подготовки перехода на url, если источник не подготавливался недавно и бюджет не исчерпан
+     */
+    static void speculate(String url, boolean prefetch) {
+        String origin = CachingProxy.getOrigin(url);
+        if (origin == null || !(origin.startsWith("http://") || origin.startsWith("https://"))) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        expire(now);
+        Warmup warmup = new Warmup(url, now);
+        Warmup existing = warmups.putIfAbsent(origin, warmup);
+        if (existing != null) {
+            //Уверенность выросла по мере ввода: к уже открытому соединению добавляется загрузка документа
+            if (prefetch && existing.done && !existing.prefetchRequested && existing.url.equals(url)) {
+                existing.prefetchRequested = true;
+                existing.done = false;
+                TaskScheduler.run(TaskScheduler.global(), "speculation", () -> {
+                    long start = System.nanoTime();
+                    try {
+                        prefetchDocument(existing, origin);
+                    } finally {
+                        existing.workNanos += System.nanoTime() - start;
+                        existing.done = true;
+                    }
+                });
+            }
+            return;
+        }
+        if (!PRECONNECT_BUDGET.tryAcquire(1)) {
+            warmups.remove(origin, warmup);
+            overBudget.incrementAndGet();
+            return;
+        }
+        warmup.prefetchRequested = prefetch;
+        TaskScheduler.run(TaskScheduler.global(), "speculation", () -> {
+            long start = System.nanoTime();
+            try {
+                connect(warmup, origin);
+                if (prefetch) {
+                    prefetchDocument(warmup, origin);
+                }
+            } finally {
+                warmup.workNanos = System.nanoTime() - start;
+                warmup.done = true;
+            }
+        });
+    }
+
+    /**
+     * Разрешение имени и открытие соединения запросом HEAD (его заголовки решают, загружать ли документ)
+     */
+    private static void connect(Warmup warmup, String origin) {
+        long start = System.nanoTime();
+        try {
+            URI uri = NetworkClient.toURI(warmup.url);
+            InetAddress.getAllByName(uri.getHost());
+            if (CachingProxy.isInstalled()) {
+                warmup.headers = origin.startsWith("https:") ? headUrlConnection(warmup.url) : headNetworkClient(warmup.url);
+            }
+            preconnects.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            //Подготовка не обязательна: при ошибке переход выполнится обычным образом
+        } finally {
+            warmup.connectNanos = System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Загрузка документа в HttpCache, только если кэш сохранит его и отдаст при переходе без обращения к серверу
+     */
+    private static void prefetchDocument(Warmup warmup, String origin) {
+        Map<String, List<String>> headers = warmup.headers;
+        long now = System.currentTimeMillis();
+        if (headers == null || !origin.startsWith("http:") || !HttpCache.isStorable(headers)
+                || HttpCache.getExpiresAt(headers, now) <= now + MIN_FRESH_MILLIS) {
+            return;
+        }
+        try {
+            String contentLength = HttpCache.getHeader(headers, "Content-Length");
+            long length = contentLength != null ? Long.parseLong(contentLength.strip()) : MAX_DOCUMENT_BYTES;
+            if (length > MAX_DOCUMENT_BYTES || !PREFETCH_BUDGET.tryAcquire(length)) {
+                overBudget.incrementAndGet();
+                return;
+            }
+            long read = 0;
+            try {
+                read = prefetch(warmup.url);
+            } finally {
+                //Неизрасходованная часть бюджета возвращается (длина могла быть неизвестна заранее)
+                PREFETCH_BUDGET.release(Math.max(0, length - read));
+            }
+            prefetchedBytes.addAndGet(read);
+            prefetches.incrementAndGet();
+            warmup.prefetched = true;
+        } catch (IOException | RuntimeException e) {
+            //Документ будет загружен обычным образом при переходе
+        }
+    }
+
+    /**
+     * HEAD через HttpURLConnection: соединение (с TLS-рукопожатием) остаётся в пуле keep-alive,
+     * из которого его берёт загрузчик WebEngine
+     */
+    private static Map<String, List<String>> headUrlConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("HEAD");
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.getResponseCode();
+        Map<String, List<String>> headers = connection.getHeaderFields();
+        //Закрытие потока ответа (а не disconnect) возвращает соединение в пул
+        try (InputStream in = connection.getInputStream()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            //Ответ с ошибкой: соединение всё равно может быть переиспользовано
+        }
+        return headers;
+    }
+
+    /**
+     * HEAD через клиент HttpCache: соединение остаётся в пуле NetworkClient, через который прокси загружает страницы
+     */
+    private static Map<String, List<String>> headNetworkClient(String url) throws IOException {
+        HttpRequest request = NetworkClient.newRequest(url)
+                .method("HEAD", HttpRequest.BodyPublishers.noBody())
+                .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                .build();
+        HttpResponse<InputStream> response = NetworkClient.sendRaw(request);
+        response.body().close();
+        return response.headers().map();
+    }
+
+    /**
+     * Загрузка документа через HttpCache (ответ сохраняется в кэше, когда тело прочитано полностью).
+     * Возвращает число прочитанных из сети байт
+     */
+    private static long prefetch(String url) throws IOException {
+        try (HttpCache.Response response = HttpCache.send("GET", url, PAGE_REQUEST_HEADERS, null)) {
+            if (response.getStatus() != 200 || "HIT".equals(response.getCacheStatus())) {
+                return 0;
+            }
+            byte[] buffer = new byte[16 * 1024];
+            long total = 0;
+            int read;
+            InputStream body = response.getBody();
+            while ((read = body.read(buffer)) >= 0 && total <= MAX_DOCUMENT_BYTES) {
+                total += read;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Учёт перехода из адресной строки на address. Возвращает true, если переход был подготовлен
+     */
+    public static boolean navigationStarted(String address) {
+        String origin = CachingProxy.getOrigin(address);
+        Warmup warmup = origin != null ? warmups.remove(origin) : null;
+        if (warmup == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - warmup.startedAt > WARMUP_TTL_MILLIS) {
+            wasted.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        //Сэкономлено столько работы, сколько выполнено до перехода; загруженный документ учитывается,
+        //только если переход выполняется именно на него
+        long saved = warmup.done ? warmup.connectNanos : (now - warmup.startedAt) * 1_000_000;
+        if (warmup.done && warmup.prefetched && sameDocument(address, warmup.url)) {
+            prefetchHits.incrementAndGet();
+            saved = warmup.workNanos;
+        }
+        SAVED_TIME.record(saved);
+        return true;
+    }
+
+    /**
+     * Учёт времени загрузки страницы, открытой из адресной строки, с подготовкой перехода и без неё
+     */
+    public static void recordLoad(boolean speculated, long loadMillis) {
+        if (loadMillis >= 0) {
+            (speculated ? WARM_LOADS : COLD_LOADS).record(loadMillis * 1_000_000);
+        }
+    }
+
+    private static boolean sameDocument(String a, String b) {
+        return trimSlash(a).equalsIgnoreCase(trimSlash(b));
+    }
+
+    private static String trimSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * Удаление устаревших подготовок, после которых перехода не было
+     */
+    private static void expire(long now) {
+        warmups.values().removeIf(warmup -> {
+            boolean expired = warmup.done && now - warmup.startedAt > WARMUP_TTL_MILLIS;
+            if (expired) {
+                wasted.incrementAndGet();
+            }
+            return expired;
+        });
+    }
+
+    public static LatencyHistogram getSavedTime() {
+        return SAVED_TIME;
+    }
+
+    public static LatencyHistogram getWarmLoads() {
+        return WARM_LOADS;
+    }
+
+    public static LatencyHistogram getColdLoads() {
+        return COLD_LOADS;
+    }
+
+    /**
+     * Сводка для вкладки диагностики
+     */
+    public static String getStatistics() {
+        return String.format("speculation %s: preconnects=%d prefetches=%d (%s) used=%d prefetch hits=%d wasted=%d over budget=%d",
+                ENABLED ? "on" : "off", preconnects.get(), prefetches.get(), DownloadsPanel.formatBytes(prefetchedBytes.get()),
+                hits.get(), prefetchHits.get(), wasted.get(), overBudget.get());
+    }
+
+    /**
+     * Подготовка перехода к источнику
+     */
+    private static final class Warmup {
+
+        private final String url;
+        private final long startedAt;
+        private volatile Map<String, List<String>> headers;
+        private volatile boolean prefetchRequested;
+        private volatile long connectNanos;
+        private volatile long workNanos;
+        private volatile boolean prefetched;
+        private volatile boolean done;
+
+        Warmup(String url, long startedAt) {
+            this.url = url;
+            this.startedAt = startedAt;
+        }
+
+    }
+
+    /**
+     * Бюджет, который равномерно пополняется до capacity за period миллисекунд
+     */
+    private static final class Budget {
+
+        private final double capacity;
+        private final double refillPerMilli;
+        private double available;
+        private long updatedAt = System.currentTimeMillis();
+
+        Budget(long capacity, long periodMillis) {
+            this.capacity = capacity;
+            this.refillPerMilli = (double) capacity / periodMillis;
+            this.available = capacity;
+        }
+
+        synchronized boolean tryAcquire(long amount) {
+            refill();
+            if (available < amount) {
+                return false;
+            }
+            available -= amount;
+            return true;
+        }
+
+        synchronized void release(long amount) {
+            available = Math.min(capacity, available + amount);
+        }
+
+        private void refill() {
+            long now = System.currentTimeMillis();
+            available = Math.min(capacity, available + (now - updatedAt) * refillPerMilli);
+            updatedAt = now;
+        }
+
+    }
+
+}
@@ -0,0 +1,56 @@
+package browser;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.Observable;
+import javafx.beans.property.Property;
+import javafx.beans.value.ChangeListener;
+import javafx.beans.value.ObservableValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Класс Subscriptions - группа слушателей и привязок, которые вкладка добавляет к долгоживущим объектам
+ * (WebEngine и WebView из WebViewPool). Все они снимаются одним вызовом release, поэтому движок,
+ * возвращённый в пул, не удерживает закрытую вкладку и не вызывает её обработчики.
+ * Используется только из потока JavaFX
+ */
+final class Subscriptions {
+
+    private final List<Runnable> removals = new ArrayList<>();
+
+    <T> ChangeListener<? super T> listen(ObservableValue<T> observable, ChangeListener<? super T> listener) {
+        observable.addListener(listener);
+        removals.add(() -> observable.removeListener(listener));
+        return listener;
+    }
+
+    InvalidationListener listen(Observable observable, InvalidationListener listener) {
+        observable.addListener(listener);
+        removals.add(() -> observable.removeListener(listener));
+        return listener;
+    }
+
+    <T> void bind(Property<T> property, ObservableValue<? extends T> source) {
+        property.bind(source);
+        removals.add(property::unbind);
+    }
+
+    /**
+     * Действие, которое выполняется при снятии группы (остановка анимаций, отсоединение узлов)
+     */
+    void onRelease(Runnable action) {
+        removals.add(action);
+    }
+
+    /**
+     * Снятие всех слушателей и привязок в порядке, обратном добавлению
+     */
+    void release() {
+        for (int i = removals.size() - 1; i >= 0; i--) {
+            removals.get(i).run();
+        }
+        removals.clear();
+    }
+
+}
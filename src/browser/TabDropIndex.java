@@ -0,0 +1,139 @@
+package browser;
+
+import javafx.geometry.Rectangle2D;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Класс TabDropIndex - пространственный индекс панелей вкладок и их вкладок в экранных координатах
+ * для поиска места вставки перетаскиваемой вкладки. Прямоугольники панелей разложены по ячейкам сетки экрана,
+ * а середины вкладок каждой панели хранятся по возрастанию, поэтому поиск места вставки при движении мыши
+ * не зависит от числа окон и выполняется двоичным поиском по вкладкам.
+ * Индекс строится один раз на начало перетаскивания и перестраивается только после перемещения окон
+ * или изменения раскладки вкладок
+ */
+final class TabDropIndex<P> {
+
+    /**
+     * Размер ячейки сетки в пикселях экрана
+     */
+    private static final double CELL_SIZE = 256;
+
+    /**
+     * Допуск по вертикали под строкой вкладок, в пределах которого вкладку можно вставить в панель
+     */
+    private static final double ROW_TOLERANCE = 60;
+
+    private final List<Entry<P>> entries = new ArrayList<>();
+
+    private final Map<Long, List<Entry<P>>> cells = new HashMap<>();
+
+    /**
+     * Добавление панели pane с прямоугольником paneRect и прямоугольниками её вкладок tabRects (слева направо)
+     */
+    void add(P pane, Rectangle2D paneRect, Rectangle2D[] tabRects) {
+        Entry<P> entry = new Entry<>(pane, paneRect, tabRects);
+        entries.add(entry);
+        long minX = cell(paneRect.getMinX());
+        long maxX = cell(paneRect.getMaxX());
+        long minY = cell(paneRect.getMinY());
+        long maxY = cell(paneRect.getMaxY());
+        for (long x = minX; x <= maxX; x++) {
+            for (long y = minY; y <= maxY; y++) {
+                cells.computeIfAbsent(key(x, y), k -> new ArrayList<>(2)).add(entry);
+            }
+        }
+    }
+
+    /**
+     * Панель, содержащая точку экрана (из перекрывающихся - добавленная первой), либо null
+     */
+    Entry<P> paneAt(double x, double y) {
+        List<Entry<P>> candidates = cells.get(key(cell(x), cell(y)));
+        if (candidates == null) {
+            return null;
+        }
+        for (Entry<P> entry : candidates) {
+            if (entry.paneRect.contains(x, y)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    int getPaneCount() {
+        return entries.size();
+    }
+
+    private static long cell(double coordinate) {
+        return (long) Math.floor(coordinate / CELL_SIZE);
+    }
+
+    private static long key(long x, long y) {
+        return (x << 32) ^ (y & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Панель вкладок в индексе
+     */
+    static final class Entry<P> {
+
+        private final P pane;
+
+        private final Rectangle2D paneRect;
+
+        private final Rectangle2D[] tabRects;
+
+        /**
+         * Середины вкладок по горизонтали: вкладка вставляется перед первой вкладкой, середина которой правее точки
+         */
+        private final double[] middles;
+
+        private Entry(P pane, Rectangle2D paneRect, Rectangle2D[] tabRects) {
+            this.pane = pane;
+            this.paneRect = paneRect;
+            this.tabRects = tabRects;
+            middles = new double[tabRects.length];
+            for (int i = 0; i < tabRects.length; i++) {
+                middles[i] = tabRects[i].getMinX() + tabRects[i].getWidth() / 2;
+            }
+        }
+
+        P getPane() {
+            return pane;
+        }
+
+        Rectangle2D getTabRect(int index) {
+            return tabRects[index];
+        }
+
+        /**
+         * Место вставки для точки экрана (от 0 до числа вкладок) либо -1, если точка вне строки вкладок
+         */
+        int insertIndex(double x, double y) {
+            if (tabRects.length == 0) {
+                return 0;
+            }
+            Rectangle2D first = tabRects[0];
+            if (first.getMaxY() + ROW_TOLERANCE < y || first.getMinY() > y) {
+                return -1;
+            }
+            //Число середин вкладок, не превышающих x
+            int low = 0;
+            int high = middles.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (middles[middle] <= x) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+    }
+
+}
@@ -0,0 +1,187 @@
+package browser;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.util.Duration;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Класс TabLifecycleManager управляет жизненным циклом вкладок браузера.
+ * Раз в несколько секунд он выгружает из памяти (BrowserTab.suspend) фоновые вкладки, которые не выбирались
+ * дольше заданного времени, а при нехватке памяти - дополнительно вытесняет вкладки, к которым дольше всего
+ * не обращались (LRU).
+ * Память WebKit почти целиком находится вне кучи Java, поэтому нехватка памяти определяется прежде всего
+ * по памяти процесса и системы: RSS процесса выше порога (по умолчанию - доля физической памяти) либо
+ * доступной памяти системы меньше заданной доли. Заполнение кучи проверяется всегда, а если сведения
+ * о памяти процесса и системы недоступны, остаётся единственным признаком.
+ * Выбранные вкладки и вкладки, на которых идёт загрузка, не выгружаются.
+ * <p>
+ * Настройки (системные свойства):
+ * jwebbrowser.tabs.idleMinutes - время бездействия до выгрузки (0 - не выгружать по времени),
+ * jwebbrowser.tabs.heapPercent - порог заполнения кучи в процентах,
+ * jwebbrowser.tabs.rssMegabytes - порог RSS процесса в мегабайтах (0 - доля физической памяти),
+ * jwebbrowser.tabs.rssPercent - порог RSS процесса в процентах физической памяти, если порог в мегабайтах не задан,
+ * jwebbrowser.tabs.availablePercent - наименьшая доступная память системы в процентах физической памяти
+ */
+public final class TabLifecycleManager {
+
+    private static final long IDLE_MILLIS = TimeUnit.MINUTES.toMillis(BrowserSettings.getInt("jwebbrowser.tabs.idleMinutes", 30));
+
+    private static final int HEAP_PERCENT = BrowserSettings.getInt("jwebbrowser.tabs.heapPercent", 75);
+
+    private static final long RSS_LIMIT_BYTES = BrowserSettings.getInt("jwebbrowser.tabs.rssMegabytes", 0) * 1024L * 1024L;
+
+    private static final int RSS_PERCENT = BrowserSettings.getInt("jwebbrowser.tabs.rssPercent", 50);
+
+    private static final int AVAILABLE_PERCENT = BrowserSettings.getInt("jwebbrowser.tabs.availablePercent", 10);
+
+    private static final int CHECK_INTERVAL_SECONDS = 15;
+
+    /**
+     * Сколько вкладок выгружается за одну проверку при нехватке памяти:
+     * память освобождается не сразу, а после сборки мусора
+     */
+    private static final int EVICTIONS_PER_CHECK = 2;
+
+    private static final List<BrowserTab> tabs = new ArrayList<>();
+
+    private static Timeline timer;
+
+    private TabLifecycleManager() {
+    }
+
+    /**
+     * Регистрация вкладки (вызывается из потока JavaFX)
+     */
+    public static void register(BrowserTab tab) {
+        tabs.add(tab);
+        if (timer == null) {
+            timer = new Timeline(new KeyFrame(Duration.seconds(CHECK_INTERVAL_SECONDS), event -> check()));
+            timer.setCycleCount(Timeline.INDEFINITE);
+            timer.play();
+        }
+    }
+
+    public static void unregister(BrowserTab tab) {
+        tabs.remove(tab);
+    }
+
+    /**
+     * Список всех зарегистрированных вкладок
+     */
+    public static List<BrowserTab> getTabs() {
+        return new ArrayList<>(tabs);
+    }
+
+    /**
+     * Проверка вкладок: выгрузка бездействующих и вытеснение по LRU при нехватке памяти.
+     * Сведения о памяти процесса и системы читаются из файлов, поэтому проверка завершается
+     * в потоке JavaFX после фонового чтения
+     */
+    static void check() {
+        if (isHeapLow()) {
+            evict(true);
+            return;
+        }
+        TaskScheduler.submit(TaskScheduler.global(), "memory", TabLifecycleManager::isNativeMemoryLow,
+                TabLifecycleManager::evict);
+    }
+
+    private static void evict(boolean memoryLow) {
+        long now = System.currentTimeMillis();
+        List<BrowserTab> candidates = new ArrayList<>();
+        for (BrowserTab tab : tabs) {
+            if (!tab.isSuspended() && !tab.isSelected() && !tab.isLoading()) {
+                candidates.add(tab);
+            }
+        }
+        candidates.sort(Comparator.comparingLong(BrowserTab::getLastAccessTime));
+
+        int evictions = memoryLow ? EVICTIONS_PER_CHECK : 0;
+        for (BrowserTab tab : candidates) {
+            if (evictions > 0) {
+                tab.suspend();
+                evictions--;
+            } else if (IDLE_MILLIS > 0 && now - tab.getLastAccessTime() > IDLE_MILLIS) {
+                tab.suspend();
+            }
+        }
+    }
+
+    private static boolean isHeapLow() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = runtime.totalMemory() - runtime.freeMemory();
+        return used * 100 > runtime.maxMemory() * HEAP_PERCENT;
+    }
+
+    /**
+     * Нехватка памяти вне кучи: RSS процесса выше порога или доступная память системы ниже порога.
+     * false, если сведения недоступны (тогда учитывается только куча)
+     */
+    static boolean isNativeMemoryLow() {
+        long total = -1;
+        long available = -1;
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            com.sun.management.OperatingSystemMXBean system = (com.sun.management.OperatingSystemMXBean) os;
+            total = system.getTotalMemorySize();
+            available = system.getFreeMemorySize();
+        }
+        //Свободная память Linux не учитывает страничный кэш, который система освободит при необходимости
+        long memAvailable = getAvailableMemory();
+        if (memAvailable >= 0) {
+            available = memAvailable;
+        }
+        long rssLimit = RSS_LIMIT_BYTES > 0 ? RSS_LIMIT_BYTES : total > 0 ? total / 100 * RSS_PERCENT : -1;
+        if (rssLimit > 0) {
+            long rss = getResidentSetSize();
+            if (rss > rssLimit) {
+                return true;
+            }
+        }
+        return total > 0 && available >= 0 && available < total / 100 * AVAILABLE_PERCENT;
+    }
+
+    /**
+     * Доступная память системы (MemAvailable: свободная и освобождаемая память).
+     * Доступна только в Linux, на других системах возвращается -1
+     */
+    static long getAvailableMemory() {
+        return readKilobytes(Paths.get("/proc/meminfo"), "MemAvailable:");
+    }
+
+    /**
+     * Размер резидентной памяти процесса (включая память WebKit вне кучи Java).
+     * Доступен только в Linux, на других системах возвращается -1
+     */
+    static long getResidentSetSize() {
+        return readKilobytes(Paths.get("/proc/self/status"), "VmRSS:");
+    }
+
+    /**
+     * Значение в байтах из строки файла /proc с заданным началом (значения там указаны в килобайтах) либо -1
+     */
+    private static long readKilobytes(Path file, String prefix) {
+        try {
+            for (String line : Files.readAllLines(file)) {
+                if (line.startsWith(prefix)) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            //Сведения о памяти недоступны (не Linux)
+        }
+        return -1;
+    }
+
+}
@@ -0,0 +1,210 @@
+package browser;
+
+import javafx.beans.value.ChangeListener;
+import javafx.concurrent.Worker;
+import javafx.event.Event;
+import javafx.event.EventHandler;
+import javafx.scene.web.WebEngine;
+
+/**
+ * Класс TabMetrics - показатели производительности вкладки для окна диспетчера задач.
+ * <p>
+ * Время загрузки отсчитывается от запроса адреса (или перехода WebEngine в SCHEDULED) до состояний
+ * SCHEDULED, RUNNING и SUCCEEDED. Число узлов DOM, занятая память JS и переданные байты считываются со страницы
+ * скриптом при вызове sample; если движок не сообщает размер ресурсов, берутся байты, полученные сайтом
+ * из сети через CachingProxy. Заблокированные запросы считаются ContentFilter по сайту страницы.
+ * Время потока JavaFX - суммарное время обработчиков вкладки, обёрнутых методами timed
+ * (работу самого WebKit в общем потоке JavaFX нельзя разделить по вкладкам).
+ * Все методы вызываются из потока JavaFX
+ */
+public class TabMetrics {
+
+    /**
+     * Скрипт замера страницы: число элементов DOM, занятая память JS (только если её сообщает движок)
+     * и сумма transferSize по записям Resource Timing (-1, если движок их не поддерживает)
+     */
+    private static final String SAMPLE_SCRIPT = "(function() {"
+            + "var p = window.performance, heap = -1, bytes = -1;"
+            + "if (p && p.memory) heap = p.memory.usedJSHeapSize;"
+            + "if (p && p.getEntriesByType) {"
+            + "  var e = p.getEntriesByType('navigation').concat(p.getEntriesByType('resource'));"
+            + "  for (var i = 0; i < e.length; i++) if (e[i].transferSize > 0) bytes = Math.max(bytes, 0) + e[i].transferSize;"
+            + "}"
+            + "return document.getElementsByTagName('*').length + ',' + heap + ',' + bytes;"
+            + "})()";
+
+    private static final long MAX_REQUEST_DELAY_NANOS = 10_000_000_000L;
+
+    /**
+     * Время запроса адреса пользователем, ещё не дошедшего до SCHEDULED (0 - запроса нет)
+     */
+    private long requestedAt;
+
+    private long loadStart;
+
+    private long scheduledAt;
+
+    private long runningAt;
+
+    private long finishedAt;
+
+    private Worker.State state = Worker.State.READY;
+
+    private int domNodes = -1;
+
+    private long jsHeapBytes = -1;
+
+    private long transferredBytes = -1;
+
+    private long blockedRequests = -1;
+
+    private long fxNanos;
+
+    /**
+     * Отметка запроса адреса пользователем (до перехода движка в SCHEDULED)
+     */
+    public void loadRequested() {
+        requestedAt = System.nanoTime();
+    }
+
+    /**
+     * Учёт смены состояния загрузки страницы. Загрузка без запроса пользователя (ссылка, перенаправление,
+     * давний запрос) отсчитывается от перехода в SCHEDULED
+     */
+    public void stateChanged(Worker.State newState) {
+        long now = System.nanoTime();
+        state = newState;
+        switch (newState) {
+            case SCHEDULED:
+                loadStart = requestedAt != 0 && now - requestedAt < MAX_REQUEST_DELAY_NANOS ? requestedAt : now;
+                requestedAt = 0;
+                scheduledAt = now;
+                runningAt = 0;
+                finishedAt = 0;
+                break;
+            case RUNNING:
+                runningAt = now;
+                break;
+            case SUCCEEDED:
+            case FAILED:
+            case CANCELLED:
+                finishedAt = now;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Замер страницы скриптом (число узлов DOM, память JS, переданные байты)
+     */
+    public void sample(WebEngine engine) {
+        blockedRequests = ContentFilter.getBlockedCount(engine.getLocation());
+        try {
+            Object result = engine.executeScript(SAMPLE_SCRIPT);
+            String[] values = String.valueOf(result).split(",");
+            domNodes = Integer.parseInt(values[0]);
+            jsHeapBytes = (long) Double.parseDouble(values[1]);
+            transferredBytes = (long) Double.parseDouble(values[2]);
+            if (transferredBytes < 0) {
+                //Движок без transferSize в Resource Timing: байты, загруженные сайтом через кэширующий прокси
+                transferredBytes = CachingProxy.getTransferredBytes(engine.getLocation());
+            }
+        } catch (RuntimeException e) {
+            //Страница ещё не загружена или скрипты недоступны
+            clearSample();
+        }
+    }
+
+    /**
+     * Сброс результатов замера (вкладка выгружена)
+     */
+    public void clearSample() {
+        domNodes = -1;
+        jsHeapBytes = -1;
+        transferredBytes = -1;
+        blockedRequests = -1;
+    }
+
+    /**
+     * Обёртка обработчика вкладки: время его работы учитывается во времени потока JavaFX вкладки и в FxMonitor
+     */
+    public <T> ChangeListener<T> timed(String name, ChangeListener<T> listener) {
+        return FxMonitor.timed(name, (observable, oldValue, newValue) -> {
+            long start = System.nanoTime();
+            try {
+                listener.changed(observable, oldValue, newValue);
+            } finally {
+                fxNanos += System.nanoTime() - start;
+            }
+        });
+    }
+
+    public <E extends Event> EventHandler<E> timedHandler(String name, EventHandler<E> handler) {
+        return FxMonitor.timedHandler(name, event -> {
+            long start = System.nanoTime();
+            try {
+                handler.handle(event);
+            } finally {
+                fxNanos += System.nanoTime() - start;
+            }
+        });
+    }
+
+    public Worker.State getState() {
+        return state;
+    }
+
+    /**
+     * Время от запроса до SCHEDULED в миллисекундах (-1, если загрузки не было)
+     */
+    public long getScheduledMillis() {
+        return elapsed(loadStart, scheduledAt);
+    }
+
+    /**
+     * Время от запроса до RUNNING в миллисекундах
+     */
+    public long getRunningMillis() {
+        return elapsed(loadStart, runningAt);
+    }
+
+    /**
+     * Время от запроса до окончания загрузки (SUCCEEDED, FAILED или CANCELLED) в миллисекундах
+     */
+    public long getLoadMillis() {
+        return elapsed(loadStart, finishedAt);
+    }
+
+    public int getDomNodes() {
+        return domNodes;
+    }
+
+    /**
+     * Занятая память JS в байтах либо -1, если движок её не сообщает
+     */
+    public long getJsHeapBytes() {
+        return jsHeapBytes;
+    }
+
+    public long getTransferredBytes() {
+        return transferredBytes;
+    }
+
+    /**
+     * Запросы страниц сайта вкладки, заблокированные ContentFilter (счётчик общий для вкладок одного сайта),
+     * либо -1, если фильтр не работает
+     */
+    public long getBlockedRequests() {
+        return blockedRequests;
+    }
+
+    public long getFxMillis() {
+        return fxNanos / 1_000_000;
+    }
+
+    private static long elapsed(long from, long to) {
+        return from == 0 || to == 0 ? -1 : Math.max(0, (to - from) / 1_000_000);
+    }
+
+}
@@ -0,0 +1,168 @@
+package browser;
+
+import javafx.animation.KeyFrame;
+import javafx.animation.Timeline;
+import javafx.beans.property.ReadOnlyObjectWrapper;
+import javafx.scene.Scene;
+import javafx.scene.control.Button;
+import javafx.scene.control.Label;
+import javafx.scene.control.TableCell;
+import javafx.scene.control.TableColumn;
+import javafx.scene.control.TableView;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+import javafx.util.Duration;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Класс TaskManagerWindow - окно диспетчера задач со списком вкладок всех окон браузера и их показателями
+ * (TabMetrics): время загрузки, число узлов DOM, память JS, переданные байты и время потока JavaFX.
+ * Таблицу можно сортировать по любому столбцу, выбранную вкладку - выгрузить или закрыть.
+ * Показатели обновляются раз в REFRESH_MILLIS, пока окно открыто
+ */
+public final class TaskManagerWindow {
+
+    private static final int REFRESH_MILLIS = 2_000;
+
+    private static Stage stage;
+
+    private static TableView<BrowserTab> table;
+
+    private static Label summary;
+
+    private TaskManagerWindow() {
+    }
+
+    /**
+     * Отображение окна диспетчера задач (окно создаётся при первом вызове)
+     */
+    public static void show() {
+        if (stage == null) {
+            stage = createStage();
+        }
+        refresh();
+        stage.show();
+        stage.toFront();
+    }
+
+    private static Stage createStage() {
+        table = new TableView<>();
+        table.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
+
+        TableColumn<BrowserTab, String> titleColumn = new TableColumn<>("Tab");
+        titleColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(getTitle(cell.getValue())));
+        titleColumn.setPrefWidth(220);
+        TableColumn<BrowserTab, String> stateColumn = new TableColumn<>("State");
+        stateColumn.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(getState(cell.getValue())));
+
+        table.getColumns().add(titleColumn);
+        table.getColumns().add(stateColumn);
+        table.getColumns().add(numberColumn("Scheduled", tab -> tab.getMetrics().getScheduledMillis(), TaskManagerWindow::formatMillis));
+        table.getColumns().add(numberColumn("Running", tab -> tab.getMetrics().getRunningMillis(), TaskManagerWindow::formatMillis));
+        table.getColumns().add(numberColumn("Loaded", tab -> tab.getMetrics().getLoadMillis(), TaskManagerWindow::formatMillis));
+        table.getColumns().add(numberColumn("DOM nodes", tab -> tab.getMetrics().getDomNodes(), String::valueOf));
+        table.getColumns().add(numberColumn("JS memory", tab -> tab.getMetrics().getJsHeapBytes(), DownloadsPanel::formatBytes));
+        table.getColumns().add(numberColumn("Transferred", tab -> tab.getMetrics().getTransferredBytes(), DownloadsPanel::formatBytes));
+        table.getColumns().add(numberColumn("Blocked on site", tab -> tab.getMetrics().getBlockedRequests(), String::valueOf));
+        table.getColumns().add(numberColumn("FX time", tab -> tab.getMetrics().getFxMillis(), TaskManagerWindow::formatMillis));
+
+        Button suspendButton = new Button("Suspend");
+        suspendButton.setOnAction(event -> {
+            BrowserTab tab = table.getSelectionModel().getSelectedItem();
+            if (tab != null && !tab.isSelected()) {
+                tab.suspend();
+                refresh();
+            }
+        });
+        Button closeButton = new Button("End Tab");
+        closeButton.setOnAction(event -> {
+            BrowserTab tab = table.getSelectionModel().getSelectedItem();
+            if (tab != null) {
+                tab.close();
+                refresh();
+            }
+        });
+        summary = new Label();
+        summary.setMaxWidth(Double.MAX_VALUE);
+        HBox.setHgrow(summary, Priority.ALWAYS);
+        HBox bottom = new HBox(5, summary, suspendButton, closeButton);
+
+        VBox root = new VBox(5, table, bottom);
+        VBox.setVgrow(table, Priority.ALWAYS);
+
+        Timeline timer = new Timeline(new KeyFrame(Duration.millis(REFRESH_MILLIS),
+                FxMonitor.timedHandler("taskManager.refresh", event -> refresh())));
+        timer.setCycleCount(Timeline.INDEFINITE);
+
+        Stage taskStage = new Stage();
+        taskStage.setTitle("Task Manager");
+        taskStage.setScene(new Scene(root, 900, 400));
+        taskStage.setOnShown(event -> timer.play());
+        taskStage.setOnHidden(event -> timer.stop());
+        return taskStage;
+    }
+
+    /**
+     * Замер загруженных вкладок и обновление таблицы с сохранением выбранной строки и сортировки
+     */
+    private static void refresh() {
+        BrowserTab selected = table.getSelectionModel().getSelectedItem();
+        table.getItems().setAll(TabLifecycleManager.getTabs());
+        table.getItems().forEach(BrowserTab::sampleMetrics);
+        table.sort();
+        if (selected != null && table.getItems().contains(selected)) {
+            table.getSelectionModel().select(selected);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        String cpu = os instanceof com.sun.management.OperatingSystemMXBean
+                ? String.format("%.0f%%", Math.max(0, ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuLoad()) * 100)
+                : "n/a";
+        summary.setText(String.format("%d tabs, process CPU %s, Java heap %s of %s", table.getItems().size(), cpu,
+                DownloadsPanel.formatBytes(runtime.totalMemory() - runtime.freeMemory()),
+                DownloadsPanel.formatBytes(runtime.maxMemory())));
+    }
+
+    /**
+     * Числовой столбец: сортируется по значению, -1 отображается как n/a
+     */
+    private static TableColumn<BrowserTab, Long> numberColumn(String name, ToLongFunction<BrowserTab> value,
+                                                              LongFunction<String> format) {
+        TableColumn<BrowserTab, Long> column = new TableColumn<>(name);
+        column.setCellValueFactory(cell -> new ReadOnlyObjectWrapper<>(value.applyAsLong(cell.getValue())));
+        column.setCellFactory(c -> new TableCell<>() {
+            @Override
+            protected void updateItem(Long item, boolean empty) {
+                super.updateItem(item, empty);
+                setText(empty || item == null ? null : item < 0 ? "n/a" : format.apply(item));
+            }
+        });
+        column.setStyle("-fx-alignment: CENTER-RIGHT;");
+        return column;
+    }
+
+    private static String getTitle(BrowserTab tab) {
+        String title = tab.getTitle();
+        return title != null && !title.isEmpty() ? title : tab.getLocation() != null ? tab.getLocation() : "New Tab";
+    }
+
+    private static String getState(BrowserTab tab) {
+        if (tab.isSuspended()) {
+            return "Suspended";
+        }
+        return tab.isLoading() ? "Loading" : tab.getMetrics().getState().name().charAt(0)
+                + tab.getMetrics().getState().name().substring(1).toLowerCase();
+    }
+
+    private static String formatMillis(long millis) {
+        return millis + " ms";
+    }
+
+}
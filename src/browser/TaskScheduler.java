@@ -0,0 +1,399 @@
+package browser;
+
+import javafx.application.Platform;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Класс TaskScheduler - единый планировщик фоновых задач браузера (сетевые запросы, чтение и запись файлов).
+ * <p>
+ * Каждая задача выполняется в своём виртуальном потоке, если их поддерживает JVM (Java 21+), иначе - в пуле
+ * потоков-демонов (jwebbrowser.tasks.threads). Задачи принадлежат области (Scope): вкладка создаёт свою область
+ * и отменяет её при закрытии, при этом выполняющиеся задачи прерываются, а их результаты не передаются
+ * в поток JavaFX. Результат задачи передаётся в поток JavaFX через Platform.runLater.
+ * <p>
+ * Собирается статистика: глубина очереди, число выполняющихся задач, время ожидания в очереди и время выполнения
+ * (выводится при завершении с -Djwebbrowser.stats=true)
+ */
+public final class TaskScheduler {
+
+    private static final String FX_THREAD_NAME = "JavaFX Application Thread";
+
+    private static final boolean VIRTUAL_THREADS = newVirtualThreadFactory("probe") != null;
+
+    private static final ExecutorService executor = createExecutor();
+
+    /**
+     * Область задач, не связанных с вкладкой (загрузки, общие кэши). Не отменяется
+     */
+    private static final Scope GLOBAL = new Scope("global");
+
+    private static final AtomicInteger queued = new AtomicInteger();
+
+    private static final AtomicInteger running = new AtomicInteger();
+
+    private static final AtomicInteger maxQueued = new AtomicInteger();
+
+    private static final AtomicLong submitted = new AtomicLong();
+
+    private static final AtomicLong completed = new AtomicLong();
+
+    private static final AtomicLong failed = new AtomicLong();
+
+    private static final AtomicLong cancelled = new AtomicLong();
+
+    private static final AtomicLong fxBlockingCalls = new AtomicLong();
+
+    private static final LatencyHistogram QUEUE_WAIT = new LatencyHistogram("Task queue wait");
+
+    private static final LatencyHistogram RUN_TIME = new LatencyHistogram("Task run time");
+
+    static {
+        if (Boolean.getBoolean("jwebbrowser.stats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println(getStatistics());
+                System.out.println(QUEUE_WAIT);
+                System.out.println(RUN_TIME);
+            }));
+        }
+    }
+
+    private TaskScheduler() {
+    }
+
+    /**
+     * Область задач, не связанных с конкретной вкладкой
+     */
+    public static Scope global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Новая область задач (например, для вкладки)
+     */
+    public static Scope newScope(String name) {
+        return new Scope(name);
+    }
+
+    /**
+     * Запуск фоновой задачи. Если onFx не null, результат передаётся в него в потоке JavaFX,
+     * если к этому времени область не отменена. Ошибки задачи выводятся в System.err
+     */
+    public static <T> Future<T> submit(Scope scope, String name, Callable<T> work, Consumer<? super T> onFx) {
+        ScheduledTask<T> task = new ScheduledTask<>(scope, name, work, onFx);
+        if (scope.cancelled) {
+            task.dequeued.set(true);
+            task.cancel(false);
+            return task;
+        }
+        scope.tasks.add(task);
+        submitted.incrementAndGet();
+        maxQueued.accumulateAndGet(queued.incrementAndGet(), Math::max);
+        executor.execute(task);
+        //Отмена области могла произойти между проверкой и добавлением задачи
+        if (scope.cancelled) {
+            task.cancel(true);
+        }
+        return task;
+    }
+
+    /**
+     * Запуск фоновой задачи без результата
+     */
+    public static Future<?> run(Scope scope, String name, Runnable work) {
+        return submit(scope, name, () -> {
+            work.run();
+            return null;
+        }, null);
+    }
+
+    /**
+     * Передача действия в поток JavaFX (выполняется сразу, если вызов сделан из него)
+     */
+    public static void runOnFx(Runnable action) {
+        if (isFxThread()) {
+            action.run();
+        } else {
+            Platform.runLater(action);
+        }
+    }
+
+    /**
+     * Проверка перед блокирующим вызовом: такие вызовы не должны выполняться в потоке JavaFX.
+     * Нарушение не прерывает работу, но учитывается и выводится в System.err со стеком вызова
+     */
+    static void checkNotFxThread(String operation) {
+        if (isFxThread()) {
+            fxBlockingCalls.incrementAndGet();
+            new IllegalStateException("Blocking " + operation + " on the JavaFX Application Thread").printStackTrace();
+        }
+    }
+
+    /**
+     * Проверка по имени потока, не требующая запущенного JavaFX (работает и в бенчмарках)
+     */
+    static boolean isFxThread() {
+        return FX_THREAD_NAME.equals(Thread.currentThread().getName());
+    }
+
+    public static boolean isUsingVirtualThreads() {
+        return VIRTUAL_THREADS;
+    }
+
+    /**
+     * Число задач, ожидающих свободного потока
+     */
+    public static int getQueueDepth() {
+        return queued.get();
+    }
+
+    public static int getMaxQueueDepth() {
+        return maxQueued.get();
+    }
+
+    public static int getRunningCount() {
+        return running.get();
+    }
+
+    public static long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public static long getCompletedCount() {
+        return completed.get();
+    }
+
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    public static long getCancelledCount() {
+        return cancelled.get();
+    }
+
+    /**
+     * Число блокирующих вызовов, обнаруженных в потоке JavaFX
+     */
+    public static long getFxBlockingCalls() {
+        return fxBlockingCalls.get();
+    }
+
+    public static LatencyHistogram getQueueWait() {
+        return QUEUE_WAIT;
+    }
+
+    public static LatencyHistogram getRunTime() {
+        return RUN_TIME;
+    }
+
+    /**
+     * Сводка статистики планировщика
+     */
+    public static String getStatistics() {
+        return String.format("tasks (%s): submitted=%d completed=%d failed=%d cancelled=%d running=%d queued=%d max queued=%d fx blocking calls=%d",
+                VIRTUAL_THREADS ? "virtual threads" : "thread pool", getSubmittedCount(), getCompletedCount(),
+                getFailedCount(), getCancelledCount(), getRunningCount(), getQueueDepth(), getMaxQueueDepth(),
+                getFxBlockingCalls());
+    }
+
+    /**
+     * Исполнитель с отдельным виртуальным потоком на каждую задачу либо, если виртуальные потоки недоступны,
+     * кэшируемый пул потоков-демонов. Используется службами со своими долгими задачами (сетевой клиент, прокси)
+     */
+    static ExecutorService newVirtualThreadExecutor(String name) {
+        ThreadFactory factory = newVirtualThreadFactory(name);
+        if (factory != null) {
+            try {
+                Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+                return (ExecutorService) perTask.invoke(null, factory);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                //Используется пул обычных потоков
+            }
+        }
+        return Executors.newCachedThreadPool(daemonFactory(name));
+    }
+
+    /**
+     * Фабрика виртуальных потоков. Проект собирается для Java 17, поэтому Thread.ofVirtual вызывается
+     * через отражение. Возвращает null, если виртуальные потоки недоступны
+     */
+    private static ThreadFactory newVirtualThreadFactory(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 1L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory daemonFactory(String name) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * Без виртуальных потоков задачи ожидают в очереди ограниченного пула, чтобы их число не определяло число потоков
+     */
+    private static ExecutorService createExecutor() {
+        if (VIRTUAL_THREADS) {
+            return newVirtualThreadExecutor("task");
+        }
+        int threads = BrowserSettings.getInt("jwebbrowser.tasks.threads", 32);
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), daemonFactory("task"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Область задач. Отмена области прерывает её выполняющиеся задачи, снимает с очереди ожидающие
+     * и отменяет передачу результатов в поток JavaFX. Новые задачи отменённой области не запускаются
+     */
+    public static final class Scope {
+
+        private final String name;
+        private final Set<ScheduledTask<?>> tasks = ConcurrentHashMap.newKeySet();
+        private volatile boolean cancelled;
+
+        private Scope(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * Число незавершённых задач области
+         */
+        public int getActiveCount() {
+            return tasks.size();
+        }
+
+        public void cancel() {
+            if (this == GLOBAL) {
+                throw new UnsupportedOperationException("Global scope cannot be cancelled");
+            }
+            cancelled = true;
+            for (ScheduledTask<?> task : tasks) {
+                task.cancel(true);
+            }
+        }
+
+        /**
+         * Обёртка обработчика, вызываемого в потоке JavaFX: после отмены области обработчик не вызывается
+         */
+        public <T> Consumer<T> bind(Consumer<T> callback) {
+            return value -> {
+                if (!cancelled) {
+                    callback.accept(value);
+                }
+            };
+        }
+
+    }
+
+    /**
+     * Задача с учётом времени ожидания, времени выполнения и передачей результата в поток JavaFX
+     */
+    private static class ScheduledTask<T> extends FutureTask<T> {
+
+        private final Scope scope;
+        private final String name;
+        private final Consumer<? super T> onFx;
+        private final long queuedAt = System.nanoTime();
+        private final AtomicBoolean dequeued = new AtomicBoolean();
+
+        ScheduledTask(Scope scope, String name, Callable<T> work, Consumer<? super T> onFx) {
+            super(work);
+            this.scope = scope;
+            this.name = name;
+            this.onFx = onFx;
+        }
+
+        @Override
+        public void run() {
+            if (!leaveQueue()) {
+                return;
+            }
+            QUEUE_WAIT.recordSince(queuedAt);
+            running.incrementAndGet();
+            long start = System.nanoTime();
+            try {
+                super.run();
+            } finally {
+                RUN_TIME.recordSince(start);
+                running.decrementAndGet();
+                //Прерывание, выставленное отменой, не должно достаться следующей задаче пула
+                Thread.interrupted();
+            }
+        }
+
+        @Override
+        protected void done() {
+            leaveQueue();
+            scope.tasks.remove(this);
+            if (isCancelled()) {
+                cancelled.incrementAndGet();
+                return;
+            }
+            try {
+                T result = get();
+                completed.incrementAndGet();
+                if (onFx != null && !scope.cancelled) {
+                    Platform.runLater(() -> {
+                        if (!scope.cancelled) {
+                            FxMonitor.measure("task " + name, () -> onFx.accept(result));
+                        }
+                    });
+                }
+            } catch (ExecutionException e) {
+                failed.incrementAndGet();
+                if (!scope.cancelled) {
+                    System.err.println("Task \"" + name + "\" failed: " + e.getCause());
+                }
+            } catch (InterruptedException | CancellationException e) {
+                cancelled.incrementAndGet();
+            }
+        }
+
+        /**
+         * Выход из очереди (один раз). Возвращает false, если задача уже отменена до начала выполнения
+         */
+        private boolean leaveQueue() {
+            if (dequeued.compareAndSet(false, true)) {
+                queued.decrementAndGet();
+            }
+            return !isDone();
+        }
+
+    }
+
+}
@@ -1,5 +1,6 @@
 package browser;
 
+import javafx.application.Platform;
 import javafx.beans.InvalidationListener;
 import javafx.geometry.Side;
 import javafx.scene.control.ContextMenu;
@@ -7,8 +8,13 @@ import javafx.scene.control.MenuItem;
 import javafx.scene.control.TextField;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Класс URLTextField - специальный класс для создания адресной строки браузера
@@ -21,7 +27,7 @@ public class URLTextField extends TextField {
     /**
      * Всевозможные существующие записи для автозаполнения в текстовом поле
      */
-    private final SortedSet<String> WEBSITE_PROPOSALS = new TreeSet<>(Arrays.asList("https://www.104.com.tw", "https://www.11st.co.kr", "https://www.123-reg.co.uk",
+    private static final SortedSet<String> WEBSITE_PROPOSALS = new TreeSet<>(Arrays.asList("https://www.104.com.tw", "https://www.11st.co.kr", "https://www.123-reg.co.uk",
             "https://www.1337x.to", "https://www.163.com", "https://www.1688.com", "https://www.17ok.com", "https://www.1and1.com", "https://www.1and1.fr", "https://www.1und1.de",
             "https://www.2ch.net", "https://www.360.cn", "https://www.39.net", "https://www.4.cn", "https://www.4chan.org", "https://www.4dsply.com", "https://www.4pda.ru",
             "https://www.4shared.com", "https://www.51.la", "https://www.51sole.com", "https://www.52pk.com", "https://www.58.com", "https://www.9gag.com", "https://www.a8.net",
@@ -234,6 +240,62 @@ public class URLTextField extends TextField {
             "https://www.zdnet.com", "https://www.zendesk.com", "https://www.zhanqi.tv", "https://www.zhihu.com", "https://www.zillow.com", "https://www.zing.vn",
             "https://www.zippyshare.com", "https://www.zoho.com", "https://www.zomato.com", "https://www.zone-telechargement.ws", "https://www.zoom.us"));
 
+    /**
+     * Общий для всех адресных строк индекс автозаполнения, построенный один раз
+     */
+    private static final AutocompleteIndex AUTOCOMPLETE_INDEX = new AutocompleteIndex();
+
+    static {
+        AUTOCOMPLETE_INDEX.addAll(WEBSITE_PROPOSALS);
+    }
+
+    /**
+     * Задержка (мс), с которой запрос подсказок выполняется при быстром наборе текста.
+     * Если после предыдущего нажатия клавиши прошло больше этой задержки, запрос выполняется сразу
+     */
+    private static final int DEBOUNCE_MILLIS = BrowserSettings.getInt("jwebbrowser.autocomplete.debounce", 30);
+
+    /**
+     * Фоновый поток для поиска подсказок, общий для всех адресных строк
+     */
+    private static final ScheduledExecutorService SUGGESTION_EXECUTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "autocomplete");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Гистограммы задержки от нажатия клавиши до обновления всплывающего окна
+     * и времени работы обработчиков в потоке JavaFX
+     */
+    private static final LatencyHistogram KEYSTROKE_LATENCY = new LatencyHistogram("Keystroke to popup");
+
+    private static final LatencyHistogram FX_THREAD_TIME = new LatencyHistogram("Autocomplete FX thread time");
+
+    static {
+        if (Boolean.getBoolean("jwebbrowser.stats")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println(KEYSTROKE_LATENCY);
+                System.out.println(FX_THREAD_TIME);
+            }));
+        }
+    }
+
+    /**
+     * Номер последнего изменения текста (изменяется только в потоке JavaFX).
+     * Результаты запросов для устаревших номеров отбрасываются
+     */
+    private long generation;
+
+    private long lastKeystrokeTime;
+
+    private ScheduledFuture<?> pendingQuery;
+
+    /**
+     * Текст устанавливается браузером (адрес загружаемой страницы), а не вводится пользователем
+     */
+    private boolean settingAddress;
+
     /**
      * Всплывающее окно для выбора записи из предложенных
      */
@@ -244,17 +306,58 @@ public class URLTextField extends TextField {
      */
     private final int maximumEntries = 15;
 
+    /**
+     * Пункты всплывающего окна создаются один раз и переиспользуются: меняются только их текст и видимость
+     */
+    private final MenuItem[] proposalItems = new MenuItem[maximumEntries];
+
     public URLTextField() {
         this.urlTextField = new TextField();
     }
 
+    public static AutocompleteIndex getAutocompleteIndex() {
+        return AUTOCOMPLETE_INDEX;
+    }
+
+    public static LatencyHistogram getKeystrokeLatency() {
+        return KEYSTROKE_LATENCY;
+    }
+
+    public static LatencyHistogram getFxThreadTime() {
+        return FX_THREAD_TIME;
+    }
+
     public TextField getUrlTextField() {
         return urlTextField;
     }
 
+    /**
+     * Отображение адреса открытой страницы. Это не ввод пользователя: подсказки не ищутся и переход
+     * не готовится заранее, иначе каждая загрузка предварительно запрашивала бы саму себя
+     */
+    public void showAddress(String address) {
+        settingAddress = true;
+        try {
+            urlTextField.setText(address);
+        } finally {
+            settingAddress = false;
+        }
+    }
+
     public void setUrlTextField(TextField urlTextField) {
         this.urlTextField = urlTextField;
 
+        for (int i = 0; i < maximumEntries; i++) {
+            MenuItem item = new MenuItem();
+            item.setVisible(false);
+            item.setOnAction(a -> {
+                urlTextField.setText(item.getText());
+                urlTextField.positionCaret(urlTextField.getLength());
+            });
+            proposalItems[i] = item;
+        }
+        proposalPopUp.getItems().setAll(proposalItems);
+
         /**
          * Реализация автозаполнения:
          */
@@ -265,33 +368,66 @@ public class URLTextField extends TextField {
          * можно внести выбранное значение в адресную строку браузера
          */
         final InvalidationListener textListener = v -> {
-            if (urlTextField.getText().length() == 0 || WEBSITE_PROPOSALS.isEmpty())
+            long keystrokeTime = System.nanoTime();
+            long queryGeneration = ++generation;
+            if (pendingQuery != null) {
+                pendingQuery.cancel(false);
+                pendingQuery = null;
+            }
+
+            //Текст читается и в этом случае: слушатель недействительности срабатывает только после чтения значения
+            String text = urlTextField.getText();
+            //Адрес загружаемой страницы: устаревший поиск отменён, новый не начинается
+            if (settingAddress) {
                 proposalPopUp.hide();
-            else {
-                proposalPopUp.getItems().clear();
-
-                String text = urlTextField.getText().toLowerCase();
-
-                // Фифльтрация максимального количества записей, соответствующих введ]нному значению в текстовом поле
-                proposalPopUp.getItems().addAll(WEBSITE_PROPOSALS.stream().filter(string -> string.toLowerCase().
-                        contains(text.toLowerCase())).limit(maximumEntries).map(MenuItem::new).toList());
-
-                proposalPopUp.getItems().forEach(item -> item.setOnAction(a -> {
-                    urlTextField.setText(item.getText());
-                    urlTextField.positionCaret(urlTextField.getLength());
-                }));
-                if (!proposalPopUp.isShowing()) {
-                    proposalPopUp.show(urlTextField, Side.BOTTOM, 0, 0);
-                    //Запрашиваем фокус на элементе списка
-                    if (!proposalPopUp.getItems().isEmpty())
-                        proposalPopUp.getSkin().getNode().lookup(".menu-item:nth-child(1)").requestFocus();
-                }
+                return;
             }
 
+            if (text.length() == 0 || AUTOCOMPLETE_INDEX.size() == 0) {
+                proposalPopUp.hide();
+            } else {
+                // Поиск выполняется в фоне: сразу, если пользователь только начал ввод, иначе - после паузы
+                long delay = keystrokeTime - lastKeystrokeTime > TimeUnit.MILLISECONDS.toNanos(DEBOUNCE_MILLIS) ? 0 : DEBOUNCE_MILLIS;
+                pendingQuery = SUGGESTION_EXECUTOR.schedule(() -> {
+                    List<String> proposals = HistoryStore.getDefault().query(text, maximumEntries);
+                    //Переход по почти наверняка выбираемой подсказке готовится заранее
+                    SpeculativeLoader.suggestionsShown(text, proposals);
+                    Platform.runLater(() -> FxMonitor.measure("omnibox.proposals",
+                            () -> showProposals(queryGeneration, proposals, keystrokeTime)));
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+            lastKeystrokeTime = keystrokeTime;
+            FX_THREAD_TIME.recordSince(keystrokeTime);
         };
 
-        urlTextField.textProperty().addListener(textListener);
+        urlTextField.textProperty().addListener(FxMonitor.timed("omnibox.text", textListener));
+
+    }
+
+    /**
+     * Отображение найденных записей в потоке JavaFX, если за время поиска текст не изменился
+     */
+    private void showProposals(long queryGeneration, List<String> proposals, long keystrokeTime) {
+        if (queryGeneration != generation) {
+            return;
+        }
+        long start = System.nanoTime();
+        pendingQuery = null;
+        for (int i = 0; i < maximumEntries; i++) {
+            boolean used = i < proposals.size();
+            proposalItems[i].setText(used ? proposals.get(i) : null);
+            proposalItems[i].setVisible(used);
+        }
 
+        if (proposals.isEmpty())
+            proposalPopUp.hide();
+        else if (!proposalPopUp.isShowing()) {
+            proposalPopUp.show(urlTextField, Side.BOTTOM, 0, 0);
+            //Запрашиваем фокус на элементе списка
+            proposalPopUp.getSkin().getNode().lookup(".menu-item:nth-child(1)").requestFocus();
+        }
+        FX_THREAD_TIME.recordSince(start);
+        KEYSTROKE_LATENCY.recordSince(keystrokeTime);
     }
 
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package browser;
 import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
+import javafx.scene.control.Tab;
 import javafx.scene.control.TabPane;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
@@ -11,6 +12,9 @@ import javafx.scene.layout.HBox;
 import javafx.scene.paint.Color;
 import javafx.stage.Stage;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * @author Mikhail Shevchenko
  */
@@ -19,13 +23,18 @@ public class WebBrowser extends Application {
     @Override
     public void start(final Stage primaryStage) {
 
+        //Локальный кэширующий прокси должен быть установлен до создания первого WebView
+        CachingProxy.install();
+        //Списки блокировки рекламы и трекеров компилируются в фоне, до этого запросы не фильтруются
+        ContentFilter.start();
+        //Наблюдение за потоком JavaFX: зависания, время кадров и обработчиков (вкладка about:diagnostics)
+        FxMonitor.start();
+
         final AnchorPane root = new AnchorPane();
         final TabPane tabPane = new TabPane();
         tabPane.setPrefSize(1325, 768);
         final Button addButton = new Button(); //adding tab button
-        ImageView addImg = new ImageView(new Image("rsc/img/newTab.png"));
-        addImg.setFitHeight(20);
-        addImg.setFitWidth(20);
+        ImageView addImg = ResourceCache.createImageView("rsc/img/newtab.png", 20);
         addButton.setGraphic(addImg);
         final HBox topPanel = new HBox();
         topPanel.getChildren().addAll(tabPane, addButton);
@@ -36,7 +45,23 @@ public class WebBrowser extends Application {
         AnchorPane.setTopAnchor(addButton, 10.0);
         AnchorPane.setLeftAnchor(addButton, 1330.0);
 
-        BrowserTab.CreateWelcomeTab(tabPane);
+        //Восстановление вкладок и окон прошлой сессии, при её отсутствии открывается приветственная вкладка
+        SessionStore.Session session = SessionStore.restore();
+        List<SessionStore.WindowState> windows = session.getWindows();
+        if (windows.isEmpty()) {
+            BrowserTab.CreateWelcomeTab(tabPane);
+        } else {
+            SessionStore.WindowState mainWindow = windows.get(0);
+            BrowserTab selected = restoreTabs(session, mainWindow, tabPane.getTabs());
+            if (selected != null)
+                tabPane.getSelectionModel().select(selected);
+            if (mainWindow.getWidth() > 0 && mainWindow.getHeight() > 0) {
+                primaryStage.setX(mainWindow.getX());
+                primaryStage.setY(mainWindow.getY());
+                primaryStage.setWidth(mainWindow.getWidth());
+                primaryStage.setHeight(mainWindow.getHeight());
+            }
+        }
 
         addButton.setOnAction(event -> {
             BrowserTab browserTab = BrowserTab.createNewTab();
@@ -52,6 +77,47 @@ public class WebBrowser extends Application {
         primaryStage.getIcons().add(new Image("rsc/img/icon.jpg"));
         primaryStage.show();
 
+        SessionStore.trackWindow(primaryStage, tabPane);
+        for (SessionStore.WindowState window : windows.subList(Math.min(1, windows.size()), windows.size())) {
+            List<Tab> tabs = new ArrayList<>();
+            BrowserTab selected = restoreTabs(session, window, tabs);
+            TabPane pane = DraggableTab.openWindow(tabs, window.getX(), window.getY(), window.getWidth(), window.getHeight());
+            if (selected != null)
+                pane.getSelectionModel().select(selected);
+        }
+        SessionStore.start();
+        //Пул WebView заполняется после показа окна, чтобы новые вкладки открывались без создания движка
+        WebViewPool.prewarm();
+        //История посещений читается в фоне и пополняет подсказки адресной строки
+        HistoryStore.getDefault();
+        //Управление браузером из тестов, если задан порт jwebbrowser.automation.port
+        AutomationServer.start(tabPane);
+
+    }
+
+    @Override
+    public void stop() {
+        SessionStore.close();
+        HistoryStore.closeDefault();
+        PageIndex.closeDefault();
+        AutomationServer.stop();
+    }
+
+    /**
+     * Создание вкладок-заготовок сохранённого окна. Возвращает вкладку, которая была выбрана в окне
+     */
+    private static BrowserTab restoreTabs(SessionStore.Session session, SessionStore.WindowState window, List<Tab> tabs) {
+        BrowserTab selected = null;
+        for (long id : window.getTabIds()) {
+            SessionStore.TabState state = session.getTab(id);
+            BrowserTab tab = BrowserTab.createTab(state != null ? state.getLocation() : null, state != null ? state.getTitle() : null);
+            if (state != null)
+                tab.restoreHistory(state.getHistory(), state.getHistoryIndex());
+            tabs.add(tab);
+            if (id == window.getSelectedTabId())
+                selected = tab;
+        }
+        return selected;
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,198 @@
+package browser;
+
+import javafx.application.Platform;
+import javafx.scene.web.PopupFeatures;
+import javafx.scene.web.WebEngine;
+import javafx.scene.web.WebHistory;
+import javafx.scene.web.WebView;
+import javafx.util.Callback;
+
+import java.util.ArrayDeque;
+
+/**
+ * Класс WebViewPool - ограниченный пул заранее созданных WebView для быстрого открытия и закрытия вкладок.
+ * <p>
+ * Вкладка берёт WebView из пула при загрузке (acquire) и возвращает его при выгрузке или закрытии (release).
+ * В пул возвращаются только WebView, которые не загружали страниц (кроме about:blank): страница WebKit
+ * остаётся у движка и после загрузки пустого документа, а вместе с ней - sessionStorage и другие данные сайта,
+ * которые иначе увидела бы следующая вкладка. Такие WebView останавливаются и освобождаются сборщиком мусора,
+ * а пул пополняется новыми в фоне (prewarm).
+ * Перед возвратом WebView очищается: останавливается загрузка, очищается история (WebHistory), сбрасываются
+ * масштаб, прозрачность, обработчики событий и настройки движка.
+ * Слушатели вкладки снимаются самой вкладкой (Subscriptions) до возврата. Cookies общие для процесса
+ * (CookieHandler), поэтому отдельно для WebView не очищаются.
+ * Лишние WebView сверх jwebbrowser.webview.pool не хранятся и освобождаются сборщиком мусора.
+ * Пул используется только из потока JavaFX
+ */
+public final class WebViewPool {
+
+    private static final int CAPACITY = BrowserSettings.getInt("jwebbrowser.webview.pool", 4);
+
+    private static final String USER_AGENT = "JFXWeb Browser by Miyo - AppleWebKit/555.99";
+
+    private static final int HISTORY_SIZE = 100;
+
+    private static final ArrayDeque<WebView> idle = new ArrayDeque<>();
+
+    /**
+     * Обработчик всплывающих окон нового движка (восстанавливается у переиспользуемых движков)
+     */
+    private static Callback<PopupFeatures, WebEngine> defaultPopupHandler;
+
+    private static long created;
+
+    private static long reused;
+
+    private static long discarded;
+
+    private static long retired;
+
+    private WebViewPool() {
+    }
+
+    /**
+     * WebView из пула либо новый, если пул пуст
+     */
+    public static WebView acquire() {
+        WebView view = idle.pollFirst();
+        if (view == null) {
+            return create();
+        }
+        reused++;
+        clearHistory(view.getEngine().getHistory());
+        return view;
+    }
+
+    /**
+     * Возврат WebView в пул после очистки. WebView уже не должен использоваться вкладкой.
+     * WebView, загружавший страницы, в пул не возвращается: его движок останавливается, а пул пополняется новым
+     */
+    public static void release(WebView view) {
+        if (view == null) {
+            return;
+        }
+        if (!isBlank(view.getEngine())) {
+            retired++;
+            stop(view.getEngine());
+            prewarm();
+            return;
+        }
+        reset(view);
+        if (idle.size() < CAPACITY) {
+            idle.addLast(view);
+        } else {
+            discarded++;
+        }
+    }
+
+    /**
+     * Заполнение пула в фоне: по одному WebView за обработку очереди потока JavaFX,
+     * чтобы создание движков не задерживало отрисовку окна
+     */
+    public static void prewarm() {
+        if (idle.size() >= CAPACITY) {
+            return;
+        }
+        Platform.runLater(() -> FxMonitor.measure("webViewPool.prewarm", () -> {
+            if (idle.size() < CAPACITY) {
+                idle.addLast(create());
+                prewarm();
+            }
+        }));
+    }
+
+    private static WebView create() {
+        created++;
+        WebView view = new WebView();
+        view.setContextMenuEnabled(false);
+        WebEngine engine = view.getEngine();
+        engine.setUserAgent(USER_AGENT);
+        if (defaultPopupHandler == null) {
+            defaultPopupHandler = engine.getCreatePopupHandler();
+        }
+        return view;
+    }
+
+    /**
+     * Не загружал ли движок страниц, кроме about:blank: у такого движка нет данных сайтов
+     */
+    private static boolean isBlank(WebEngine engine) {
+        if (!isBlank(engine.getLocation())) {
+            return false;
+        }
+        for (WebHistory.Entry entry : engine.getHistory().getEntries()) {
+            if (!isBlank(entry.getUrl())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isBlank(String location) {
+        return location == null || location.isEmpty() || "about:blank".equals(location);
+    }
+
+    /**
+     * Остановка движка, не возвращаемого в пул: до сборки мусора его страница не должна выполнять скрипты
+     * и загружать данные
+     */
+    private static void stop(WebEngine engine) {
+        engine.getLoadWorker().cancel();
+        engine.setOnAlert(null);
+        engine.setConfirmHandler(null);
+        engine.setPromptHandler(null);
+        engine.setCreatePopupHandler(null);
+        engine.loadContent("");
+    }
+
+    /**
+     * Очистка WebView до состояния нового: от прежней вкладки не остаются ни история, ни обработчики
+     */
+    private static void reset(WebView view) {
+        WebEngine engine = view.getEngine();
+        engine.getLoadWorker().cancel();
+        clearHistory(engine.getHistory());
+
+        engine.setJavaScriptEnabled(true);
+        engine.setUserStyleSheetLocation(null);
+        engine.setOnAlert(null);
+        engine.setOnError(null);
+        engine.setOnResized(null);
+        engine.setOnStatusChanged(null);
+        engine.setOnVisibilityChanged(null);
+        engine.setConfirmHandler(null);
+        engine.setPromptHandler(null);
+        engine.setCreatePopupHandler(defaultPopupHandler);
+        engine.setUserAgent(USER_AGENT);
+
+        view.setOnMousePressed(null);
+        view.setOnMouseClicked(null);
+        view.setOnKeyPressed(null);
+        view.setOnScroll(null);
+        view.setContextMenuEnabled(false);
+        view.setZoom(1);
+        view.setFontScale(1);
+        view.setOpacity(1);
+    }
+
+    /**
+     * WebHistory не позволяет удалять записи, но при нулевом размере отбрасывает их все
+     */
+    private static void clearHistory(WebHistory history) {
+        history.setMaxSize(0);
+        history.setMaxSize(HISTORY_SIZE);
+    }
+
+    public static int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Сводка для вкладки диагностики
+     */
+    public static String getStatistics() {
+        return String.format("webview pool: idle=%d/%d created=%d reused=%d retired=%d discarded=%d",
+                idle.size(), CAPACITY, created, reused, retired, discarded);
+    }
+
+}
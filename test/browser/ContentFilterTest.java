@@ -0,0 +1,57 @@
+package browser;
+
+import java.util.List;
+
+/**
+ * Проверки отнесения запросов https без Referer к странице вкладки в ContentFilter.
+ * <p>
+ * Запуск: java -cp out:lib/* browser.ContentFilterTest
+ */
+public class ContentFilterTest {
+
+    public static void main(String[] args) {
+        ContentFilter filter = new ContentFilter(List.of(
+                "||tracker.example^$third-party",
+                "/banner.js$domain=news.example"));
+        Object first = new Object();
+        Object second = new Object();
+
+        check(ContentFilter.getOpenPage() == null, "no tabs: page must be unknown");
+
+        //Одна вкладка: запросы без Referer относятся к её странице
+        ContentFilter.pageStarted(first, "https://news.example/today");
+        String page = ContentFilter.getOpenPage();
+        check("https://news.example/today".equals(page), "one tab: page=" + page);
+        check(filter.matches("https://tracker.example/pixel.gif", page, ContentFilter.UNKNOWN), "one tab: third-party rule");
+        check(filter.matches("https://cdn.example/banner.js", page, ContentFilter.UNKNOWN), "one tab: $domain= rule");
+
+        //Вторая вкладка того же сайта не мешает отнесению
+        ContentFilter.pageStarted(second, "https://news.example/sport");
+        page = ContentFilter.getOpenPage();
+        check(page != null && CachingProxy.getOrigin(page).equals("https://news.example"), "same site: page=" + page);
+
+        //Вкладки разных сайтов: страница неизвестна, правила $third-party и $domain= не применяются
+        ContentFilter.pageStarted(second, "https://tracker.example/account");
+        page = ContentFilter.getOpenPage();
+        check(page == null, "different sites: page=" + page);
+        check(!filter.matches("https://tracker.example/pixel.gif", page, ContentFilter.UNKNOWN), "different sites: third-party rule");
+        check(!filter.matches("https://cdn.example/banner.js", page, ContentFilter.UNKNOWN), "different sites: $domain= rule");
+
+        //Закрытие вкладки другого сайта возвращает отнесение к оставшейся вкладке
+        ContentFilter.tabClosed(second);
+        page = ContentFilter.getOpenPage();
+        check("https://news.example/today".equals(page), "after close: page=" + page);
+
+        ContentFilter.tabClosed(first);
+        check(ContentFilter.getOpenPage() == null, "all tabs closed: page must be unknown");
+
+        System.out.println("ContentFilterTest: OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package browser;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * Проверки срока свежести ответов HttpCache.getExpiresAt.
+ * <p>
+ * Запуск: java -cp out:lib/* browser.HttpCacheTest
+ */
+public class HttpCacheTest {
+
+    public static void main(String[] args) {
+        //Даты HTTP записываются с точностью до секунды
+        long now = System.currentTimeMillis() / 1000 * 1000;
+
+        //Некорректный Date заменяется текущим временем, а не нулём: иначе Expires продлевает свежесть на десятилетия
+        long expiresAt = HttpCache.getExpiresAt(Map.of(
+                "Date", List.of("not a date"),
+                "Expires", List.of(httpDate(now + 60_000))), now);
+        check(expiresAt > now && expiresAt <= now + 61_000, "malformed Date: expiresAt=" + (expiresAt - now) + " ms");
+
+        //Корректные Date и Expires: срок - их разность
+        expiresAt = HttpCache.getExpiresAt(Map.of(
+                "Date", List.of(httpDate(now)),
+                "Expires", List.of(httpDate(now + 3_600_000))), now);
+        check(Math.abs(expiresAt - now - 3_600_000) <= 1_000, "Date + Expires: expiresAt=" + (expiresAt - now) + " ms");
+
+        //Expires: 0 означает уже устаревший ответ
+        expiresAt = HttpCache.getExpiresAt(Map.of(
+                "Date", List.of(httpDate(now)),
+                "Expires", List.of("0")), now);
+        check(expiresAt == -1, "Expires: 0 without validator: expiresAt=" + expiresAt);
+
+        expiresAt = HttpCache.getExpiresAt(Map.of(
+                "Date", List.of(httpDate(now)),
+                "Expires", List.of("0"),
+                "ETag", List.of("\"v1\"")), now);
+        check(expiresAt == 0, "Expires: 0 with validator: expiresAt=" + expiresAt);
+
+        //max-age важнее Expires
+        expiresAt = HttpCache.getExpiresAt(Map.of(
+                "Cache-Control", List.of("public, max-age=120"),
+                "Expires", List.of("garbage")), now);
+        check(expiresAt == now + 120_000, "max-age: expiresAt=" + (expiresAt - now) + " ms");
+
+        System.out.println("HttpCacheTest: OK");
+    }
+
+    private static String httpDate(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}
@@ -0,0 +1,65 @@
+package browser;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Проверки уверенности SpeculativeLoader.getConfidence на оценках frecency, полученных из AutocompleteIndex.
+ * <p>
+ * Запуск: java -cp out:lib/* browser.SpeculativeLoaderTest
+ */
+public class SpeculativeLoaderTest {
+
+    private static final double PRECONNECT = 0.5;
+
+    private static final double PREFETCH = 0.8;
+
+    public static void main(String[] args) {
+        long now = System.currentTimeMillis();
+        AutocompleteIndex index = new AutocompleteIndex();
+        //github.com - 100 посещений сегодня, gitlab.com - одно посещение месяц назад
+        for (int i = 0; i < 100; i++) {
+            index.recordVisit("https://github.com/", now - i * 60_000L);
+        }
+        index.recordVisit("https://gitlab.com/", now - TimeUnit.DAYS.toMillis(30));
+        //Два адреса с одним посещением в один день
+        index.recordVisit("https://news.example.com/", now);
+        index.recordVisit("https://news.example.org/", now - 60_000L);
+        index.add("https://github.io/");
+
+        double github = index.getScore("https://github.com/");
+        double gitlab = index.getScore("https://gitlab.com/");
+        double neverVisited = index.getScore("https://github.io/");
+        check(github > 300 && gitlab > 300, "scores are log-domain: " + github + ", " + gitlab);
+
+        //Частый адрес против редкого: полностью введённое имя хоста уверенно ведёт к загрузке документа
+        double full = SpeculativeLoader.getConfidence("github.com", "https://github.com/", github, gitlab, true);
+        check(full >= PREFETCH, "full host, dominant suggestion: " + full);
+        double prefix = SpeculativeLoader.getConfidence("git", "https://github.com/", github, gitlab, true);
+        check(prefix >= PRECONNECT && prefix < PREFETCH, "short prefix, dominant suggestion: " + prefix);
+
+        //Равные по частоте адреса: выбор неочевиден, документ заранее не загружается
+        double close = SpeculativeLoader.getConfidence("news.example.com", "https://news.example.com/",
+                index.getScore("https://news.example.com/"), index.getScore("https://news.example.org/"), true);
+        check(close >= 0.45 && close < PREFETCH, "similar suggestions: " + close);
+
+        //Редкий адрес впереди частого получает почти нулевую уверенность
+        double weaker = SpeculativeLoader.getConfidence("gitlab.com", "https://gitlab.com/", gitlab, github, true);
+        check(weaker < 0.01, "weaker suggestion first: " + weaker);
+
+        //Непосещённый второй адрес (BASE_SCORE) и отсутствие второй подсказки не мешают уверенности
+        check(SpeculativeLoader.getDominance(github, neverVisited) > 0.999, "never visited runner-up");
+        check(SpeculativeLoader.getDominance(github, Double.NEGATIVE_INFINITY) == 1, "no runner-up");
+        check(SpeculativeLoader.getDominance(Double.NaN, Double.NaN) == 0.5, "unknown scores");
+        check(SpeculativeLoader.getConfidence("example.com", "https://github.com/", github, gitlab, true) == 0,
+                "suggestion not matching input");
+
+        System.out.println("SpeculativeLoaderTest: OK");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new AssertionError(message);
+        }
+    }
+
+}